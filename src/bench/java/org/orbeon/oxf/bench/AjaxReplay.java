@@ -0,0 +1,418 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.bench;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.orbeon.oxf.common.OXFException;
+import org.orbeon.oxf.pipeline.api.ExternalContext;
+import org.orbeon.oxf.pipeline.api.PipelineContext;
+import org.orbeon.oxf.processor.ProcessorImpl;
+import org.orbeon.oxf.processor.ProcessorOutput;
+import org.orbeon.oxf.processor.generator.DOMGenerator;
+import org.orbeon.oxf.processor.test.TestExternalContext;
+import org.orbeon.oxf.util.PipelineUtils;
+import org.orbeon.oxf.util.SecureUtils;
+import org.orbeon.oxf.xforms.XFormsConstants;
+import org.orbeon.oxf.xforms.XFormsContainingDocument;
+import org.orbeon.oxf.xforms.XFormsStaticState;
+import org.orbeon.oxf.xforms.XFormsStaticStateImpl;
+import org.orbeon.oxf.xforms.processor.AjaxRecorder;
+import org.orbeon.oxf.xforms.processor.XFormsServer;
+import org.orbeon.oxf.xforms.state.DocumentWeigher$;
+import org.orbeon.oxf.xforms.state.DynamicState;
+import org.orbeon.oxf.xforms.state.XFormsDocumentCache;
+import org.orbeon.oxf.xforms.state.XFormsStateLifecycle;
+import org.orbeon.oxf.xforms.state.XFormsStateManager;
+import org.orbeon.oxf.xml.XMLReceiverAdapter;
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Headless load generator which replays Ajax requests against many documents in the same JVM.
+ *
+ * Each virtual user has its own session and document. Requests go through XFormsServer and the XFormsStateManager
+ * lifecycle like in a real deployment, including the document cache and the state store, but without HTTP and without
+ * a browser. Requests come from:
+ *
+ * - a directory of requests recorded with oxf.xforms.ajax-recording.directory, either the directory of one document
+ *   or a directory containing several of them, which are then spread over the users
+ * - synthetic:<rows>, the synthetic form of the benchmarks, with value changes on each row
+ *
+ * Requests must target documents using server-side state handling. The report includes throughput, latency
+ * percentiles, heap per document and, if enabled, the size of the dynamic state after each request. Measuring the
+ * state takes place outside of the request latencies, but it is included in the elapsed time, so it is off by default
+ * and throughput is flagged when it is on.
+ *
+ * Usage: AjaxReplay <recording directory | synthetic:rows> [users] [threads] [iterations] [measure state]
+ */
+public class AjaxReplay {
+
+    private static final QName EVENT_REQUEST_QNAME = new QName("event-request", XFormsConstants.XXFORMS_NAMESPACE);
+
+    private static final XFormsStateLifecycle stateManager = XFormsStateManager.instance();
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 1) {
+            System.err.println("Usage: AjaxReplay <recording directory | synthetic:rows> [users] [threads] [iterations] [measure state]");
+            System.exit(2);
+        }
+
+        final int users            = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        final int threads          = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        final int iterations       = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        final boolean measureState = args.length > 4 && Boolean.parseBoolean(args[4]);
+
+        BenchmarkSupport.setUpPipelineContext().destroy(true);
+
+        final List<Scenario> scenarios = loadScenarios(args[0]);
+        if (scenarios.isEmpty())
+            throw new OXFException("No recorded requests found in " + args[0]);
+
+        // Create all the documents first, so that the heap used by each document can be measured
+        final long heapBefore = usedHeap();
+        final List<VirtualUser> virtualUsers = new ArrayList<VirtualUser>(users);
+        long estimatedWeight = 0;
+        for (int i = 0; i < users; i++) {
+            final VirtualUser user = new VirtualUser(scenarios.get(i % scenarios.size()), iterations, measureState);
+            estimatedWeight += user.createDocument();
+            virtualUsers.add(user);
+        }
+        final long heapPerDocument = (usedHeap() - heapBefore) / users;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final long start = System.nanoTime();
+        final List<Future<?>> futures = new ArrayList<Future<?>>(users);
+        for (final VirtualUser user : virtualUsers)
+            futures.add(executor.submit(user));
+        for (final Future<?> future : futures)
+            future.get();
+        final long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        final long heapAfter = usedHeap();
+
+        // Gather results
+        final Stats latencies     = new Stats();
+        final Stats stateSizes    = new Stats();
+        final Stats responseSizes = new Stats();
+        int errors = 0;
+        for (final VirtualUser user : virtualUsers) {
+            latencies.addAll(user.latencies);
+            stateSizes.addAll(user.stateSizes);
+            responseSizes.addAll(user.responseSizes);
+            errors += user.errors;
+        }
+
+        System.out.println("Scenarios:             " + scenarios.size());
+        System.out.println("Users:                 " + users + " on " + threads + " threads, " + iterations + " iteration(s)");
+        System.out.println("Requests:              " + latencies.count() + " (" + errors + " user(s) stopped on error)");
+        System.out.println("Elapsed:               " + millis(elapsed) + " ms");
+        System.out.println("Throughput:            " + String.format("%.1f", latencies.count() * 1e9 / elapsed) + " requests/s"
+            + (measureState ? " (including state measurement)" : ""));
+        System.out.println("Latency (ms):          " +
+            "p50 "  + millis(latencies.percentile(0.50)) +
+            ", p90 " + millis(latencies.percentile(0.90)) +
+            ", p99 " + millis(latencies.percentile(0.99)) +
+            ", max " + millis(latencies.percentile(1.0)));
+        System.out.println("Heap per document:     " + heapPerDocument / 1024 + " KB measured, " + estimatedWeight / users / 1024 + " KB estimated");
+        System.out.println("Heap after replay:     " + (heapAfter - heapBefore) / 1024 + " KB above baseline, " + XFormsDocumentCache.instance().getCurrentSize() + " document(s) cached");
+        if (measureState)
+            System.out.println("State per request:     " +
+                "mean " + stateSizes.mean() + " chars, p50 " + stateSizes.percentile(0.50) + ", max " + stateSizes.percentile(1.0));
+        System.out.println("Response per request:  mean " + responseSizes.mean() + " chars, max " + responseSizes.percentile(1.0));
+
+        System.exit(errors == 0 ? 0 : 1);
+    }
+
+    /**
+     * Form and Ajax requests played by a virtual user.
+     */
+    private static class Scenario {
+        final XFormsStaticState staticState;
+        final List<Document> requests;
+
+        Scenario(XFormsStaticState staticState, List<Document> requests) {
+            this.staticState = staticState;
+            this.requests = requests;
+        }
+    }
+
+    private static List<Scenario> loadScenarios(String source) throws Exception {
+        final List<Scenario> scenarios = new ArrayList<Scenario>();
+        if (source.startsWith("synthetic:")) {
+            final int rows = Integer.parseInt(source.substring("synthetic:".length()));
+            scenarios.add(new Scenario(BenchmarkSupport.staticState(rows, "value"), syntheticRequests(rows)));
+        } else {
+            final File directory = new File(source);
+            if (new File(directory, AjaxRecorder.StaticStateFile()).exists()) {
+                scenarios.add(recordedScenario(directory));
+            } else {
+                final File[] children = directory.listFiles();
+                if (children != null) {
+                    Arrays.sort(children);
+                    for (final File child : children)
+                        if (new File(child, AjaxRecorder.StaticStateFile()).exists())
+                            scenarios.add(recordedScenario(child));
+                }
+            }
+        }
+        return scenarios;
+    }
+
+    private static Scenario recordedScenario(File documentDirectory) {
+        final scala.Tuple2<String, String> digestAndState = AjaxRecorder.readStaticState(documentDirectory);
+        final XFormsStaticState staticState = XFormsStaticStateImpl.restore(scala.Option.apply(digestAndState._1()), digestAndState._2());
+        return new Scenario(staticState, scala.collection.JavaConversions.seqAsJavaList(AjaxRecorder.readRequests(documentDirectory)));
+    }
+
+    // One request per row, which changes the value of the input and of the select1 of the row
+    private static List<Document> syntheticRequests(int rows) {
+        final List<Document> requests = new ArrayList<Document>(rows);
+        for (int i = 1; i <= rows; i++) {
+            final Document request = DocumentHelper.createDocument();
+            final Element root = request.addElement(EVENT_REQUEST_QNAME);
+            root.addElement(XFormsConstants.XXFORMS_UUID_QNAME);
+            root.addElement(XFormsConstants.XXFORMS_SEQUENCE_QNAME);
+            final Element action = root.addElement(XFormsConstants.XXFORMS_ACTION_QNAME);
+            addValueEvent(action, "name" + XFormsConstants.REPEAT_SEPARATOR + i, "changed " + i);
+            addValueEvent(action, "quantity" + XFormsConstants.REPEAT_SEPARATOR + i, (i % 2 == 0) ? "0" : "5");
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    private static void addValueEvent(Element action, String controlId, String value) {
+        final Element event = action.addElement(XFormsConstants.XXFORMS_EVENT_QNAME);
+        event.addAttribute("name", "xxforms-value");
+        event.addAttribute("source-control-id", controlId);
+        event.setText(value);
+    }
+
+    /**
+     * User with its own session and document, which plays the requests of a scenario in order.
+     */
+    private static class VirtualUser implements Runnable {
+
+        private final Scenario scenario;
+        private final int iterations;
+        private final boolean measureState;
+
+        private final ExternalContext.Session session = new TestExternalContext.TestSession(SecureUtils.randomHexId());
+
+        private String uuid;
+        private long sequence;
+
+        final Stats latencies     = new Stats();
+        final Stats stateSizes    = new Stats();
+        final Stats responseSizes = new Stats();
+        int errors;
+
+        VirtualUser(Scenario scenario, int iterations, boolean measureState) {
+            this.scenario = scenario;
+            this.iterations = iterations;
+            this.measureState = measureState;
+        }
+
+        // Like the initial page load, without producing the page. Return the estimated weight of the document.
+        long createDocument() {
+            final PipelineContext pipelineContext = newPipelineContext();
+            boolean success = false;
+            try {
+                final XFormsContainingDocument document = new XFormsContainingDocument(scenario.staticState, null, null, true);
+                document.afterInitialResponse();
+                uuid = document.getUUID();
+                sequence = document.getSequence();
+                final long weight = DocumentWeigher$.MODULE$.weigh(document);
+                stateManager.afterInitialResponse(document, null);
+                success = true;
+                return weight;
+            } finally {
+                pipelineContext.destroy(success);
+            }
+        }
+
+        public void run() {
+            try {
+                for (int i = 0; i < iterations; i++) {
+                    for (final Document recorded : scenario.requests) {
+                        final Document request = Dom4jUtils.createDocumentCopyElement(recorded.getRootElement());
+                        request.getRootElement().element(XFormsConstants.XXFORMS_UUID_QNAME).setText(uuid);
+                        request.getRootElement().element(XFormsConstants.XXFORMS_SEQUENCE_QNAME).setText(Long.toString(sequence));
+
+                        final long start = System.nanoTime();
+                        final long responseSize = send(request);
+                        latencies.add(System.nanoTime() - start);
+                        responseSizes.add(responseSize);
+
+                        // The document moves to the next sequence number after each request
+                        sequence++;
+
+                        if (measureState)
+                            stateSizes.add(stateSize(request));
+                    }
+                }
+            } catch (Throwable t) {
+                errors++;
+                System.err.println("Stopping user of document " + uuid + " on error: " + t);
+            }
+        }
+
+        // Run XFormsServer on the request and return the number of characters of the response
+        private long send(Document request) {
+            final PipelineContext pipelineContext = newPipelineContext();
+            boolean success = false;
+            try {
+                final XFormsServer server = new XFormsServer();
+                PipelineUtils.connect(
+                    PipelineUtils.createDOMGenerator(request, "replayed request", DOMGenerator.ZeroValidity, DOMGenerator.DefaultContext),
+                    ProcessorImpl.OUTPUT_DATA, server, "request");
+                final ProcessorOutput output = server.createOutput("response");
+                server.reset(pipelineContext);
+
+                final CharacterCounter counter = new CharacterCounter();
+                output.read(pipelineContext, counter);
+                success = true;
+                return counter.count;
+            } finally {
+                pipelineContext.destroy(success);
+            }
+        }
+
+        // Size of the encoded dynamic state, going through the lifecycle to find the document
+        private long stateSize(Document request) {
+            final PipelineContext pipelineContext = newPipelineContext();
+            boolean success = false;
+            try {
+                final XFormsStateLifecycle.RequestParameters parameters = stateManager.extractParameters(request, false);
+                final Lock lock = stateManager.acquireDocumentLock(parameters);
+                if (lock == null)
+                    throw new OXFException("Document " + uuid + " is no longer associated with the session");
+                final long size;
+                try {
+                    final XFormsContainingDocument document = stateManager.beforeUpdate(parameters);
+                    try {
+                        sequence = document.getSequence();
+                        size = DynamicState.encodeDocumentToString(document, true, false).length();
+                    } finally {
+                        stateManager.afterUpdate(document, true);
+                    }
+                } finally {
+                    stateManager.releaseDocumentLock(lock);
+                }
+                success = true;
+                return size;
+            } finally {
+                pipelineContext.destroy(success);
+            }
+        }
+
+        // New request in the session of the user
+        private PipelineContext newPipelineContext() {
+            final PipelineContext pipelineContext = new PipelineContext();
+            pipelineContext.setAttribute(PipelineContext.EXTERNAL_CONTEXT, new TestExternalContext(pipelineContext, ajaxRequest()) {
+                @Override
+                public ExternalContext.Session getSession(boolean create) {
+                    return session;
+                }
+            });
+            return pipelineContext;
+        }
+    }
+
+    // Request description for TestExternalContext, which makes XFormsServer handle the request as an Ajax request
+    private static Document ajaxRequest() {
+        final Document document = DocumentHelper.createDocument();
+        final Element root = document.addElement("request");
+        root.addElement("container-type").setText("servlet");
+        root.addElement("method").setText("POST");
+        root.addElement("body").addAttribute("content-type", "application/xml");
+        return document;
+    }
+
+    private static class CharacterCounter extends XMLReceiverAdapter {
+        long count;
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            count += length;
+        }
+    }
+
+    private static class Stats {
+        private long[] values = new long[16];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void addAll(Stats other) {
+            for (int i = 0; i < other.size; i++)
+                add(other.values[i]);
+        }
+
+        int count() {
+            return size;
+        }
+
+        long mean() {
+            long sum = 0;
+            for (int i = 0; i < size; i++)
+                sum += values[i];
+            return size == 0 ? 0 : sum / size;
+        }
+
+        // Nearest-rank percentile
+        long percentile(double fraction) {
+            if (size == 0)
+                return 0;
+            final long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted[Math.max(0, (int) Math.ceil(fraction * size) - 1)];
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new OXFException(e);
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
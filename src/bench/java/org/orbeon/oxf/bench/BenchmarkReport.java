@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.bench;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Compare JMH results, in JSON format, with baseline results.
+ *
+ * Usage: BenchmarkReport results.json baseline.json [threshold-percent]
+ *
+ * Prints one line per benchmark and parameters, and exits with status 1 if a benchmark is slower than the baseline by
+ * more than the threshold (10% by default). Benchmarks missing from the baseline are reported as new.
+ */
+public class BenchmarkReport {
+
+    private static class Result {
+        final double score;
+        final double error;
+        final String unit;
+        final boolean higherIsBetter;
+
+        Result(double score, double error, String unit, boolean higherIsBetter) {
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+            this.higherIsBetter = higherIsBetter;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 2) {
+            System.err.println("Usage: BenchmarkReport results.json baseline.json [threshold-percent]");
+            System.exit(2);
+        }
+
+        final Map<String, Result> results = read(new File(args[0]));
+        final File baselineFile = new File(args[1]);
+        final Map<String, Result> baseline = baselineFile.exists() ? read(baselineFile) : new LinkedHashMap<String, Result>();
+        final double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+
+        if (! baselineFile.exists())
+            System.out.println("No baseline found at " + baselineFile + ", reporting results only.");
+
+        int regressions = 0;
+        for (final Map.Entry<String, Result> entry : results.entrySet()) {
+            final String name = entry.getKey();
+            final Result current = entry.getValue();
+            final Result previous = baseline.get(name);
+
+            final String line = String.format("%-90s %14.3f ± %-10.3f %-8s", name, current.score, current.error, current.unit);
+            if (previous == null || ! previous.unit.equals(current.unit)) {
+                System.out.println(line + " new");
+            } else {
+                // Positive change means better
+                final double change = (current.score - previous.score) / previous.score * 100 * (current.higherIsBetter ? 1 : -1);
+                final boolean isRegression = change < -threshold;
+                if (isRegression)
+                    regressions++;
+                System.out.println(line + String.format(" %+7.1f%%%s", change, isRegression ? " REGRESSION" : ""));
+            }
+        }
+
+        for (final String name : baseline.keySet())
+            if (! results.containsKey(name))
+                System.out.println(String.format("%-90s missing from results", name));
+
+        if (regressions > 0) {
+            System.out.println(regressions + " regression(s) over " + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Result> read(File file) throws Exception {
+        final Map<String, Result> results = new LinkedHashMap<String, Result>();
+        final JSONArray array = new JSONArray(FileUtils.readFileToString(file, "UTF-8"));
+        for (int i = 0; i < array.length(); i++) {
+            final JSONObject benchmark = array.getJSONObject(i);
+            final JSONObject metric = benchmark.getJSONObject("primaryMetric");
+
+            final StringBuilder name = new StringBuilder(benchmark.getString("benchmark"));
+            final JSONObject params = benchmark.optJSONObject("params");
+            if (params != null) {
+                // Sort parameters, as the order of JSON object keys isn't guaranteed
+                final SortedSet<String> paramNames = new TreeSet<String>();
+                for (final Iterator i = params.keys(); i.hasNext();)
+                    paramNames.add((String) i.next());
+                for (final String paramName : paramNames)
+                    name.append(' ').append(paramName).append('=').append(params.getString(paramName));
+            }
+            name.append(' ').append(benchmark.getInt("threads")).append('t');
+
+            final double score = metric.getDouble("score");
+            final double error = metric.optDouble("scoreError", 0.0);
+            final boolean higherIsBetter = benchmark.getString("mode").equals("thrpt");
+            results.put(name.toString(), new Result(score, Double.isNaN(error) ? 0.0 : error, metric.getString("scoreUnit"), higherIsBetter));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.bench;
+
+import org.orbeon.oxf.common.OXFException;
+import org.orbeon.oxf.pipeline.api.PipelineContext;
+import org.orbeon.oxf.test.ResourceManagerTestBase;
+import org.orbeon.oxf.xforms.XFormsContainingDocument;
+import org.orbeon.oxf.xforms.XFormsStaticState;
+import org.orbeon.oxf.xforms.XFormsStaticStateImpl;
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
+
+/**
+ * Environment and data shared by the benchmarks.
+ *
+ * Benchmarks run with the same resource manager and properties as the unit tests. States which need a pipeline
+ * context must use Scope.Thread, so that the context is set on the thread running the benchmark.
+ */
+public class BenchmarkSupport extends ResourceManagerTestBase {
+
+    private BenchmarkSupport() {}
+
+    /**
+     * Initialize the resource manager and properties, and set a pipeline context with an external context on the
+     * current thread. The caller must destroy the pipeline context.
+     */
+    public static PipelineContext setUpPipelineContext() {
+        try {
+            staticSetup();
+        } catch (Exception e) {
+            throw new OXFException(e);
+        }
+        return new BenchmarkSupport().createPipelineContextWithExternalContext();
+    }
+
+    /**
+     * XML document with the given number of rows, each with a few attributes and text nodes.
+     */
+    public static String syntheticData(int rows, String value) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<rows>");
+        for (int i = 1; i <= rows; i++) {
+            sb.append("<row id=\"row-").append(i).append("\" position=\"").append(i).append("\">");
+            sb.append("<name>").append(value).append(' ').append(i).append("</name>");
+            sb.append("<quantity>").append(i % 10).append("</quantity>");
+            sb.append("<comment>Lorem ipsum dolor sit amet, consectetur adipiscing elit</comment>");
+            sb.append("</row>");
+        }
+        sb.append("</rows>");
+        return sb.toString();
+    }
+
+    /**
+     * Form with a repeat over the given number of rows, with an input, an output and a select1 per row.
+     */
+    public static String syntheticForm(int rows, String value) {
+        return
+            "<xh:html xmlns:xf=\"http://www.w3.org/2002/xforms\"" +
+            "         xmlns:xh=\"http://www.w3.org/1999/xhtml\"" +
+            "         xmlns:xxf=\"http://orbeon.org/oxf/xml/xforms\">" +
+            "    <xh:head>" +
+            "        <xf:model id=\"model\" xxf:state-handling=\"server\" xxf:cache.document=\"true\">" +
+            "            <xf:instance id=\"instance\">" + syntheticData(rows, value) + "</xf:instance>" +
+            "            <xf:bind ref=\"row/quantity\" type=\"xf:integer\" constraint=\". ge 0\"/>" +
+            "        </xf:model>" +
+            "    </xh:head>" +
+            "    <xh:body>" +
+            "        <xf:repeat id=\"repeat\" ref=\"row\">" +
+            "            <xf:input id=\"name\" ref=\"name\"><xf:label>Name</xf:label></xf:input>" +
+            "            <xf:output id=\"position\" value=\"@position\"/>" +
+            "            <xf:select1 id=\"quantity\" ref=\"quantity\">" +
+            "                <xf:label>Quantity</xf:label>" +
+            "                <xf:item><xf:label>None</xf:label><xf:value>0</xf:value></xf:item>" +
+            "                <xf:item><xf:label>Some</xf:label><xf:value>5</xf:value></xf:item>" +
+            "            </xf:select1>" +
+            "        </xf:repeat>" +
+            "    </xh:body>" +
+            "</xh:html>";
+    }
+
+    public static XFormsStaticState staticState(int rows, String value) {
+        try {
+            return XFormsStaticStateImpl.createFromDocument(Dom4jUtils.readDom4j(syntheticForm(rows, value)))._2();
+        } catch (Exception e) {
+            throw new OXFException(e);
+        }
+    }
+
+    public static XFormsContainingDocument newDocument(int rows, String value) {
+        return new XFormsContainingDocument(staticState(rows, value), null, null, true);
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.orbeon.oxf.pipeline.api.PipelineContext;
+import org.orbeon.oxf.xforms.XFormsContainingDocument;
+import org.orbeon.oxf.xforms.control.XFormsControl;
+import org.orbeon.oxf.xforms.processor.ControlsComparator;
+import org.orbeon.oxf.xml.XMLReceiverAdapter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diffs of control trees, as done to produce Ajax responses.
+ *
+ * The trees come from two documents with the same structure: one with the original values, one with all the values
+ * changed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ControlsComparatorBenchmark {
+
+    @Param({"10", "500"})
+    public int rows;
+
+    private PipelineContext pipelineContext;
+    private XFormsContainingDocument document;
+    private List<XFormsControl> original;
+    private List<XFormsControl> changed;
+
+    @Setup
+    public void setUp() {
+        pipelineContext = BenchmarkSupport.setUpPipelineContext();
+        document = BenchmarkSupport.newDocument(rows, "original");
+        original = document.getControls().getCurrentControlTree().getChildren();
+        changed = BenchmarkSupport.newDocument(rows, "changed").getControls().getCurrentControlTree().getChildren();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipelineContext.destroy(true);
+    }
+
+    private void diff(List<XFormsControl> left, List<XFormsControl> right) {
+        new ControlsComparator(document, Collections.<String>emptySet(), false).diffJava(new XMLReceiverAdapter(), left, right);
+    }
+
+    // Output of all the controls, as for a new subtree
+    @Benchmark
+    public void full() {
+        diff(Collections.<XFormsControl>emptyList(), original);
+    }
+
+    @Benchmark
+    public void unchanged() {
+        diff(original, original);
+    }
+
+    @Benchmark
+    public void allValuesChanged() {
+        diff(original, changed);
+    }
+}
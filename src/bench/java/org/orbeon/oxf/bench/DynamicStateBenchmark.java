@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.orbeon.oxf.pipeline.api.PipelineContext;
+import org.orbeon.oxf.xforms.XFormsContainingDocument;
+import org.orbeon.oxf.xforms.state.DynamicState;
+import org.orbeon.oxf.xforms.state.XFormsProtocols;
+import org.orbeon.oxf.xforms.state.XFormsState;
+import sbinary.Operations;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the dynamic state of a document, as done when storing and restoring server state, and for
+ * client state handling.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DynamicStateBenchmark {
+
+    @Param({"10", "500"})
+    public int rows;
+
+    private PipelineContext pipelineContext;
+    private XFormsContainingDocument document;
+    private DynamicState dynamicState;
+    private byte[] record;
+    private String encoded;
+
+    @Setup
+    public void setUp() {
+        pipelineContext = BenchmarkSupport.setUpPipelineContext();
+        document = BenchmarkSupport.newDocument(rows, "value");
+        dynamicState = DynamicState.apply(document);
+        record = Operations.toByteArray(dynamicState, XFormsProtocols.DynamicStateRecordFormat());
+        encoded = dynamicState.encodeToString(true, false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipelineContext.destroy(true);
+    }
+
+    // Snapshot of the live document
+    @Benchmark
+    public DynamicState fromDocument() {
+        return DynamicState.apply(document);
+    }
+
+    @Benchmark
+    public byte[] encodeRecord() {
+        return Operations.toByteArray(dynamicState, XFormsProtocols.DynamicStateRecordFormat());
+    }
+
+    @Benchmark
+    public DynamicState decodeRecord() {
+        return Operations.fromByteArray(record, XFormsProtocols.DynamicStateRecordFormat());
+    }
+
+    // Compressed, as sent to the client
+    @Benchmark
+    public String encodeToString() {
+        return dynamicState.encodeToString(true, false);
+    }
+
+    @Benchmark
+    public Object decodeFromString() {
+        return DynamicState.apply(encoded).decodeInstancesControls();
+    }
+
+    // Full restore of a document from its state
+    @Benchmark
+    public XFormsContainingDocument restoreDocument() {
+        return new XFormsContainingDocument(
+            new XFormsState(scala.Option.apply(document.getStaticState().digest()), document.getStaticState().encodedState(), dynamicState),
+            false
+        );
+    }
+}
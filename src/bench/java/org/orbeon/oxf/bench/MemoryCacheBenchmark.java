@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.orbeon.oxf.cache.InternalCacheKey;
+import org.orbeon.oxf.cache.MemoryCacheImpl;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MemoryCacheImpl with several threads finding and adding entries, with a working set larger than the cache so that
+ * there are evictions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MemoryCacheBenchmark {
+
+    private static final Long VALIDITY = 0L;
+    private static final int KEYS = 2000;
+
+    @Param({"1000"})
+    public int size;
+
+    private MemoryCacheImpl cache;
+    private InternalCacheKey[] keys;
+
+    @Setup
+    public void setUp() {
+        cache = new MemoryCacheImpl("benchmark", size);
+        keys = new InternalCacheKey[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new InternalCacheKey("benchmark", "key" + i);
+            if (i < size)
+                cache.add(keys[i], VALIDITY, i);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadRandom {
+        public final Random random = new Random();
+    }
+
+    // Find an entry, adding it on miss
+    private Object findOrAdd(ThreadRandom threadRandom) {
+        final InternalCacheKey key = keys[threadRandom.random.nextInt(KEYS)];
+        final Object found = cache.findValid(key, VALIDITY);
+        if (found != null)
+            return found;
+        cache.add(key, VALIDITY, key);
+        return key;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object singleThread(ThreadRandom threadRandom) {
+        return findOrAdd(threadRandom);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object contended(ThreadRandom threadRandom) {
+        return findOrAdd(threadRandom);
+    }
+}
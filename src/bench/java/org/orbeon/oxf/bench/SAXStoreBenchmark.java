@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.orbeon.oxf.xml.SAXStore;
+import org.orbeon.oxf.xml.XMLParsing;
+import org.orbeon.oxf.xml.XMLReceiverAdapter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording SAX events into a SAXStore, and replaying them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SAXStoreBenchmark {
+
+    @Param({"100", "10000"})
+    public int rows;
+
+    private String xml;
+    private SAXStore store;
+
+    @Setup
+    public void setUp() {
+        xml = BenchmarkSupport.syntheticData(rows, "value");
+        store = record();
+    }
+
+    // Parsing is included in both benchmarks, so that the difference is the cost of recording
+    @Benchmark
+    public void parseOnly() {
+        XMLParsing.stringToSAX(xml, null, new XMLReceiverAdapter(), XMLParsing.ParserConfiguration.PLAIN, true);
+    }
+
+    @Benchmark
+    public SAXStore record() {
+        final SAXStore result = new SAXStore();
+        XMLParsing.stringToSAX(xml, null, result, XMLParsing.ParserConfiguration.PLAIN, true);
+        return result;
+    }
+
+    @Benchmark
+    public void replay() throws Exception {
+        store.replay(new XMLReceiverAdapter());
+    }
+
+    @Benchmark
+    public void approximateSize(Blackhole blackhole) {
+        blackhole.consume(store.getApproximateSize());
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.orbeon.oxf.xforms.XFormsCompressor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compression and decompression of state-like XML content.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XFormsCompressorBenchmark {
+
+    @Param({"100", "10000"})
+    public int rows;
+
+    private byte[] bytes;
+    private byte[] compressed;
+
+    @Setup
+    public void setUp() throws Exception {
+        bytes = BenchmarkSupport.syntheticData(rows, "value").getBytes("UTF-8");
+        compressed = XFormsCompressor.compressBytes(bytes);
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return XFormsCompressor.compressBytes(bytes);
+    }
+
+    @Benchmark
+    public byte[] uncompress() {
+        return XFormsCompressor.uncompressBytes(compressed);
+    }
+
+    // Threads compete for the deflater pool
+    @Benchmark
+    @Threads(4)
+    public byte[] compressContended() {
+        return XFormsCompressor.compressBytes(bytes);
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.orbeon.oxf.xml.XMLParsing;
+import org.orbeon.oxf.xml.XMLReceiverAdapter;
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse throughput, to SAX and to dom4j, in documents per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XMLParsingBenchmark {
+
+    @Param({"100", "10000"})
+    public int rows;
+
+    @Param({"PLAIN", "XINCLUDE_ONLY"})
+    public String configuration;
+
+    private String xml;
+    private XMLParsing.ParserConfiguration parserConfiguration;
+
+    @Setup
+    public void setUp() {
+        xml = BenchmarkSupport.syntheticData(rows, "value");
+        parserConfiguration =
+            "PLAIN".equals(configuration) ? XMLParsing.ParserConfiguration.PLAIN : XMLParsing.ParserConfiguration.XINCLUDE_ONLY;
+    }
+
+    @Benchmark
+    public void toSAX() {
+        XMLParsing.stringToSAX(xml, null, new XMLReceiverAdapter(), parserConfiguration, false);
+    }
+
+    @Benchmark
+    public Object toDom4j() throws Exception {
+        return Dom4jUtils.readDom4j(xml, parserConfiguration);
+    }
+}
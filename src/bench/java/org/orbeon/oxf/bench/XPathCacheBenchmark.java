@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.orbeon.oxf.pipeline.api.PipelineContext;
+import org.orbeon.oxf.util.XPath;
+import org.orbeon.oxf.util.XPathCache;
+import org.orbeon.oxf.xforms.XFormsStaticStateImpl;
+import org.orbeon.oxf.xml.TransformerUtils;
+import org.orbeon.saxon.om.DocumentInfo;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * XPathCache.evaluate, where expressions come from the cache and their pool after the first evaluation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XPathCacheBenchmark {
+
+    @Param({"1000"})
+    public int rows;
+
+    private PipelineContext pipelineContext;
+    private DocumentInfo document;
+
+    @Setup
+    public void setUp() {
+        pipelineContext = BenchmarkSupport.setUpPipelineContext();
+        document = TransformerUtils.stringToTinyTree(XPath.GlobalConfiguration(), BenchmarkSupport.syntheticData(rows, "value"), false, false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipelineContext.destroy(true);
+    }
+
+    private List<Object> evaluate(String xpath) {
+        return XPathCache.evaluate(document, xpath, XFormsStaticStateImpl.BASIC_NAMESPACE_MAPPING(), null, null, null, null, null, null);
+    }
+
+    @Benchmark
+    public List<Object> path() {
+        return evaluate("/rows/row[@position = '500']/name");
+    }
+
+    @Benchmark
+    public List<Object> aggregate() {
+        return evaluate("sum(/rows/row/quantity)");
+    }
+
+    @Benchmark
+    public List<Object> simple() {
+        return evaluate("count(/rows)");
+    }
+
+    // Threads compete for the pooled expressions
+    @Benchmark
+    @Threads(4)
+    public List<Object> contended() {
+        return evaluate("/rows/row[@position = '500']/name");
+    }
+}
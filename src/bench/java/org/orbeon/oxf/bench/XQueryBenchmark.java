@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.orbeon.oxf.processor.XQuery.XQuerySessionPool;
+import org.orbeon.saxon.xqj.SaxonXQDataSource;
+
+import javax.xml.namespace.QName;
+import javax.xml.xquery.XQConnection;
+import javax.xml.xquery.XQPreparedExpression;
+import javax.xml.xquery.XQResultSequence;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call latency of a query run with Saxon's XQJ implementation, the way the XQuery processor runs it:
+ *
+ * - perCall: new data source, connection and prepared expression for each call, as the processor used to do
+ * - pooled: connection taken from the session pool, with the expression prepared on the first call only
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XQueryBenchmark {
+
+    private static final String KEY = "saxon";
+    private static final String QUERY =
+        "declare variable $count external;\n" +
+        "for $i in 1 to xs:integer($count) return <item position=\"{$i}\">{$i * $i}</item>";
+
+    @Param({"10", "1000"})
+    public int count;
+
+    private XQuerySessionPool pool;
+
+    @Setup
+    public void setUp() {
+        pool = new XQuerySessionPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.clear();
+    }
+
+    private int run(XQPreparedExpression expression) throws Exception {
+        expression.bindString(new QName("count"), Integer.toString(count), null);
+        final XQResultSequence rs = expression.executeQuery();
+        int length = 0;
+        while (rs.next())
+            length += rs.getItemAsString(null).length();
+        rs.close();
+        return length;
+    }
+
+    @Benchmark
+    public int perCall() throws Exception {
+        final XQConnection connection = new SaxonXQDataSource().getConnection();
+        try {
+            return run(connection.prepareExpression(QUERY));
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Benchmark
+    public int pooled() throws Exception {
+        XQuerySessionPool.XQJSession session = (XQuerySessionPool.XQJSession) pool.take(KEY, 0);
+        if (session == null)
+            session = new XQuerySessionPool.XQJSession(KEY, new SaxonXQDataSource().getConnection(), null, null);
+        try {
+            return run(session.prepare(QUERY));
+        } finally {
+            pool.release(session, XQuerySessionPool.DEFAULT_MAX_IDLE);
+        }
+    }
+}
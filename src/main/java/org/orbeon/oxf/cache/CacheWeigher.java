@@ -0,0 +1,28 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.cache;
+
+/**
+ * Computes the weight of cached objects, for caches limited by total weight instead of by number of entries.
+ */
+public interface CacheWeigher {
+
+    /**
+     * Called when the object is added to the cache, or added again under the same key.
+     *
+     * @param cacheable object to weigh
+     * @return          weight, for example an estimate of the retained bytes
+     */
+    long weigh(Object cacheable);
+}
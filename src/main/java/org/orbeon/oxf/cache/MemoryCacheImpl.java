@@ -30,14 +30,33 @@ public class MemoryCacheImpl implements Cache {
 
     private int maxSize;
 
+    // Optional limit on the total weight of the entries, in addition to the limit on the number of entries
+    private final CacheWeigher weigher;
+    private final long maxWeight;
+
     private final String statisticsContextKey;
 
     private Map<CacheKey, CacheEntry> keyToEntryMap = new HashMap<CacheKey, CacheEntry>();
     private CacheLinkedList linkedList = new CacheLinkedList();
     private int currentSize;
+    private long currentWeight;
 
     public MemoryCacheImpl(String cacheName, int maxSize) {
+        this(cacheName, maxSize, null, 0);
+    }
+
+    /**
+     * Cache limited by number of entries and by total weight.
+     *
+     * @param cacheName     name of the cache
+     * @param maxSize       maximum number of entries
+     * @param weigher       weigher called when an entry is added, or null
+     * @param maxWeight     maximum total weight, 0 for no limit
+     */
+    public MemoryCacheImpl(String cacheName, int maxSize, CacheWeigher weigher, long maxWeight) {
         this.maxSize = maxSize;
+        this.weigher = maxWeight > 0 ? weigher : null;
+        this.maxWeight = maxWeight;
         this.statisticsContextKey =  "memory-cache-statistics." + cacheName;
     }
 
@@ -62,7 +81,12 @@ public class MemoryCacheImpl implements Cache {
         public void incrementExpirationCount() { expirationCount++; }
     }
 
-    public synchronized void add(CacheKey key, Object validity, Object cacheable) {
+    public void add(CacheKey key, Object validity, Object cacheable) {
+        // Weigh outside of the lock, as the weigher can take some time
+        add(key, validity, cacheable, weigher != null ? weigher.weigh(cacheable) : 0);
+    }
+
+    private synchronized void add(CacheKey key, Object validity, Object cacheable, long weight) {
         if (key == null || validity == null || maxSize == 0) return;
         final PropertyContext propertyContext = PipelineContext.get();
         final MemoryCacheStatistics statistics = (propertyContext != null) ? (MemoryCacheStatistics) getStatistics() : null;
@@ -83,6 +107,7 @@ public class MemoryCacheImpl implements Cache {
             entry.key = key;
             entry.validity = validity;
             entry.cacheable = cacheable;
+            setWeight(entry, weight);
             keyToEntryMap.put(key, entry);
             entry.listEntry = linkedList.addFirst(entry);
 
@@ -93,9 +118,36 @@ public class MemoryCacheImpl implements Cache {
             // Update validity and move to the front
             entry.validity = validity;
             entry.cacheable = cacheable;
+            setWeight(entry, weight);
             linkedList.remove(entry.listEntry);
             entry.listEntry = linkedList.addFirst(entry);
         }
+
+        if (weigher != null)
+            evictOverweight(entry);
+    }
+
+    private void setWeight(CacheEntry entry, long weight) {
+        currentWeight += weight - entry.weight;
+        entry.weight = weight;
+    }
+
+    // Evict entries, starting from the end, until the total weight is within bounds. The entry just added is kept even
+    // if it is heavier than the maximum weight on its own.
+    private void evictOverweight(CacheEntry added) {
+        while (currentWeight > maxWeight) {
+            boolean evicted = false;
+            for (final Iterator<CacheEntry> i = linkedList.reverseIterator(); i.hasNext();) {
+                final CacheEntry entryToTry = i.next();
+                if (entryToTry != added && tryEvict(entryToTry)) {
+                    evicted = true;
+                    break;
+                }
+            }
+            // If all the other entries are locked, the cache will grow over the maximum weight
+            if (! evicted)
+                break;
+        }
     }
 
     private boolean tryEvictLast() {
@@ -147,6 +199,7 @@ public class MemoryCacheImpl implements Cache {
             keyToEntryMap.remove(key);
             linkedList.remove(entry.listEntry);
             currentSize--;
+            currentWeight -= entry.weight;
 
             // Notify object
             if (isEvict) {
@@ -190,6 +243,7 @@ public class MemoryCacheImpl implements Cache {
         keyToEntryMap = new HashMap<CacheKey, CacheEntry>();
         linkedList = new CacheLinkedList();
         currentSize = 0;
+        currentWeight = 0;
         return previousSize;
     }
 
@@ -238,6 +292,10 @@ public class MemoryCacheImpl implements Cache {
         return currentSize;
     }
 
+    public long getCurrentWeight() {
+        return currentWeight;
+    }
+
     public int getMaxSize() {
         return maxSize;
     }
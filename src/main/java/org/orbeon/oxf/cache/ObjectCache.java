@@ -28,6 +28,7 @@ public class ObjectCache {
 
     private static final String CACHE_PROPERTY_NAME_PREFIX = "oxf.";
     private static final String CACHE_PROPERTY_NAME_SIZE_SUFFIX = ".size";
+    private static final String CACHE_PROPERTY_NAME_MAX_WEIGHT_SUFFIX = ".max-weight";
 
     private static final Map<String, Cache> namedObjectCaches = new HashMap<String, Cache>();
 
@@ -54,11 +55,29 @@ public class ObjectCache {
      * @return              instance of cache
      */
     public synchronized static Cache instance(String cacheName, int defaultSize) {
+        return instance(cacheName, defaultSize, null, 0);
+    }
+
+    /**
+     * Get the instance of the object cache specified, limited by total weight in addition to number of entries.
+     *
+     * @param cacheName         name of the cache
+     * @param defaultSize       default size if size is not found in properties
+     * @param weigher           weigher for the cached objects
+     * @param defaultMaxWeight  default maximum weight if not found in properties, 0 for no limit
+     * @return                  instance of cache
+     */
+    public synchronized static Cache instance(String cacheName, int defaultSize, CacheWeigher weigher, int defaultMaxWeight) {
         Cache cache = namedObjectCaches.get(cacheName);
         if (cache == null) {
-            final String propertyName = CACHE_PROPERTY_NAME_PREFIX + cacheName + CACHE_PROPERTY_NAME_SIZE_SUFFIX;
-            final Integer size = Properties.instance().getPropertySet().getInteger(propertyName, defaultSize);
-            cache = new MemoryCacheImpl(cacheName, size);
+            final String propertyPrefix = CACHE_PROPERTY_NAME_PREFIX + cacheName;
+            final Integer size = Properties.instance().getPropertySet().getInteger(propertyPrefix + CACHE_PROPERTY_NAME_SIZE_SUFFIX, defaultSize);
+            if (weigher != null) {
+                final Integer maxWeight = Properties.instance().getPropertySet().getInteger(propertyPrefix + CACHE_PROPERTY_NAME_MAX_WEIGHT_SUFFIX, defaultMaxWeight);
+                cache = new MemoryCacheImpl(cacheName, size, weigher, maxWeight);
+            } else {
+                cache = new MemoryCacheImpl(cacheName, size);
+            }
             namedObjectCaches.put(cacheName, cache);
         }
         return cache;
@@ -134,9 +134,10 @@ public class SchedulerProcessor extends ProcessorImpl {
                         // NOTE: The ExternalContext passed:
                         // - has visibility on the application context only
                         // - doesn't keep references to the current context
-                        ProcessorTask task = new ProcessorTask(config.getName(), processor, config.isSynchro(),
+                        ProcessorTask task = new ProcessorTask(config.getName(), processor,
                                 new WebAppExternalContext(externalContext.getWebAppContext(), scala.Option.apply((HttpSession) null)));
                         task.setSchedule(config.getStartTime(), config.getInterval());
+                        task.setOverlapPolicy(config.isSynchro() ? Task.OverlapPolicy.SKIP : Task.OverlapPolicy.QUEUE);
                         scheduler.schedule(task);
                         break;
                     case Config.STOP:
@@ -164,12 +165,10 @@ public class SchedulerProcessor extends ProcessorImpl {
         private ExternalContext externalContext;
         private String name;
         private String status = WAITING;
-        private boolean sync;
 
-        public ProcessorTask(String name, Processor processor, boolean sync, ExternalContext externalContext) {
+        public ProcessorTask(String name, Processor processor, ExternalContext externalContext) {
             this.name = name;
             this.processor = processor;
-            this.sync = sync;
             this.externalContext = externalContext;
         }
 
@@ -188,19 +187,15 @@ public class SchedulerProcessor extends ProcessorImpl {
                 status = WAITING;
         }
 
+        // NOTE: The scheduler doesn't run the task again while it is running, see the task's overlap policy
         public void run() {
             try {
-                if (sync && getStatus().equals(RUNNING)) {
-                    if (logger.isInfoEnabled())
-                        logger.info("Task: " + getName() + " won't run since it is already running");
-                } else {
-                    setStatus(true);
-                    InitUtils.runProcessor(processor, externalContext, new PipelineContext(), logger);
-                    setStatus(false);
-                }
+                setStatus(true);
+                InitUtils.runProcessor(processor, externalContext, new PipelineContext(), logger);
             } catch (Exception e) {
-                setStatus(false);
                 throw new OXFException(e);
+            } finally {
+                setStatus(false);
             }
         }
     }
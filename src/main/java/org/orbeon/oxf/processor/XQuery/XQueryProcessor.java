@@ -16,6 +16,9 @@ package org.orbeon.oxf.processor.XQuery;
 import org.apache.log4j.Logger;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.pipeline.api.PipelineContext;
+import org.orbeon.oxf.processor.CacheableInputReader;
+import org.orbeon.oxf.processor.ProcessorInput;
+import org.orbeon.oxf.properties.PropertySet;
 import org.orbeon.oxf.xml.XMLParsing;
 import org.orbeon.oxf.xml.XMLReceiver;
 import org.orbeon.oxf.processor.ProcessorImpl;
@@ -38,6 +41,9 @@ import java.util.Vector;
 
 /**
  * XQuery client/server processor, typically based on XQJ.
+ *
+ * Connections are pooled by data source, and expressions are prepared once per connection. The config is cached when
+ * the config input is cacheable, while parameters are bound again on each execution.
  */
 
 
@@ -48,6 +54,15 @@ public class XQueryProcessor extends ProcessorImpl {
 
     private static Logger logger = Logger.getLogger(XQueryProcessor.class);
 
+    public static final String MAX_IDLE_CONNECTIONS_PROPERTY = "max-idle-connections";
+    public static final String IDLE_TIMEOUT_PROPERTY = "idle-timeout";
+
+    // Connections are shared by all the XQuery processors
+    private static final XQuerySessionPool sessionPool = new XQuerySessionPool();
+
+    public static XQuerySessionPool getSessionPool() {
+        return sessionPool;
+    }
 
     private static HashMap<String, String> knownImplementations = initKnownImplementations();
 
@@ -129,64 +144,95 @@ public class XQueryProcessor extends ProcessorImpl {
                             return knownJDBCImplementations.get(vendor);
                         }
 
+                        // Connections can be reused between configs with the same key
+                        public String getDataSourceKey() {
+                            final StringBuilder key = new StringBuilder(String.valueOf(getImplementation()));
+                            if (jdbc != null)
+                                key.append("|jdbc|").append(getJDBCImplementation()).append('|').append(jdbc.url);
+                            if (username != null)
+                                key.append("|user|").append(username).append('|').append(password);
+                            for (final NameValuePair p : property)
+                                key.append("|property|").append(p.name).append('=').append(p.value);
+                            return key.toString();
+                        }
+
                     }
                 }
 
-                final ConfigContainer container = new ConfigContainer();
-                readInputAsSAX(pipelineContext, INPUT_CONFIG, container);
-                final ConfigContainer.Config config = container.config;
+                final ConfigContainer.Config config = readCacheInputAsObject(pipelineContext, getInputByName(INPUT_CONFIG), new CacheableInputReader<ConfigContainer.Config>() {
+                    public ConfigContainer.Config read(PipelineContext context, ProcessorInput input) {
+                        final ConfigContainer container = new ConfigContainer();
+                        readInputAsSAX(context, input, container);
+                        return container.config;
+                    }
+                });
                 XMLReceiverHelper helper = new XMLReceiverHelper(xmlReceiver);
+                final PropertySet propertySet = getPropertySet();
+                final int maxIdle = propertySet.getInteger(MAX_IDLE_CONNECTIONS_PROPERTY, XQuerySessionPool.DEFAULT_MAX_IDLE);
+                final long idleTimeout = propertySet.getInteger(IDLE_TIMEOUT_PROPERTY, XQuerySessionPool.DEFAULT_IDLE_TIMEOUT);
                 try {
                     if ("oracle".equals(config.vendor)) {
                         // Use JDBC as a workaround until we find out how to set the connection info in XQJ
                         // (see https://forums.oracle.com/forums/thread.jspa?messageID=10338407#10338407)
-                        Driver driver = (Driver) Class.forName(config.getJDBCImplementation()).newInstance();
-                        Connection conn = driver.connect(config.jdbc.url, null);
-                        StringBuilder xquery = new StringBuilder("SELECT * from XMLTable('" + config.query.replaceAll("'", "''") + "' ");
-                        Iterator<ConfigContainer.Config.NameValuePair> iter = config.parameter.iterator();
-                        int i = 1;
-                        while (iter.hasNext()) {
-                            ConfigContainer.Config.NameValuePair parameter = iter.next();
-                            xquery.append((i == 1 ? "PASSING " : ", ") + ":" + i + " AS \"" + parameter.name + "\" ");
-                            i++;
-                        }
-                        xquery.append(")");
-                        logger.debug("XQuery: " + xquery.toString());
-                        PreparedStatement statement = conn.prepareStatement(xquery.toString());
-                        i = 1;
-                        iter = config.parameter.iterator();
-                        while (iter.hasNext()) {
-                            ConfigContainer.Config.NameValuePair parameter = iter.next();
-                            statement.setString(i, parameter.value);
-                            i++;
+                        final String key = "jdbc|" + config.getJDBCImplementation() + "|" + config.jdbc.url;
+                        XQuerySessionPool.JDBCSession session = (XQuerySessionPool.JDBCSession) sessionPool.take(key, idleTimeout);
+                        if (session == null) {
+                            Driver driver = (Driver) Class.forName(config.getJDBCImplementation()).newInstance();
+                            session = new XQuerySessionPool.JDBCSession(key, driver.connect(config.jdbc.url, null));
                         }
-                        ResultSet rs = statement.executeQuery();
-                        helper.startDocument();
-                        helper.startElement("results");
-
-                        while (rs.next()) {
-                            for (i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
-                                helper.startElement("result");
-                                // This used to use SQLXML.getString() but "The behavior of this method is the same as
-                                // ResultSet.getString() when the designated column of the ResultSet has a
-                                // type java.sql.Types of SQLXML." For 1.5 compatibility we use getString() instead.
-                                String sqlxml = rs.getString(i);
-                                if (sqlxml != null) {
-                                    XMLParsing.parseDocumentFragment(sqlxml, xmlReceiver);
+                        boolean success = false;
+                        try {
+                            StringBuilder xquery = new StringBuilder("SELECT * from XMLTable('" + config.query.replaceAll("'", "''") + "' ");
+                            Iterator<ConfigContainer.Config.NameValuePair> iter = config.parameter.iterator();
+                            int i = 1;
+                            while (iter.hasNext()) {
+                                ConfigContainer.Config.NameValuePair parameter = iter.next();
+                                xquery.append((i == 1 ? "PASSING " : ", ") + ":" + i + " AS \"" + parameter.name + "\" ");
+                                i++;
+                            }
+                            xquery.append(")");
+                            logger.debug("XQuery: " + xquery.toString());
+                            PreparedStatement statement = session.prepare(xquery.toString());
+                            i = 1;
+                            iter = config.parameter.iterator();
+                            while (iter.hasNext()) {
+                                ConfigContainer.Config.NameValuePair parameter = iter.next();
+                                statement.setString(i, parameter.value);
+                                i++;
+                            }
+                            ResultSet rs = statement.executeQuery();
+                            helper.startDocument();
+                            helper.startElement("results");
+
+                            while (rs.next()) {
+                                for (i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                                    helper.startElement("result");
+                                    // This used to use SQLXML.getString() but "The behavior of this method is the same as
+                                    // ResultSet.getString() when the designated column of the ResultSet has a
+                                    // type java.sql.Types of SQLXML." For 1.5 compatibility we use getString() instead.
+                                    String sqlxml = rs.getString(i);
+                                    if (sqlxml != null) {
+                                        XMLParsing.parseDocumentFragment(sqlxml, xmlReceiver);
+                                    }
                                 }
+                                helper.endElement();
                             }
+
                             helper.endElement();
+                            helper.endDocument();
+                            rs.close();
+                            success = true;
+                        } finally {
+                            // The statement stays open with the connection, for the next execution
+                            if (success)
+                                sessionPool.release(session, maxIdle);
+                            else
+                                session.close();
                         }
-
-                        helper.endElement();
-                        helper.endDocument();
-                        rs.close();
-                        statement.close();
-                        conn.close();
                     } else {
                         // Use XQJ
-                        XQDataSource xqs = (XQDataSource) Class.forName(config.getImplementation()).newInstance();
                         if (config.info != null) {
+                            XQDataSource xqs = (XQDataSource) Class.forName(config.getImplementation()).newInstance();
                             helper.startDocument();
                             helper.startElement("info");
                             helper.element("vendor", config.vendor == null ? "" : config.vendor);
@@ -212,55 +258,81 @@ public class XQueryProcessor extends ProcessorImpl {
                             helper.endElement();
                             helper.endDocument();
                         } else {
-                            Iterator<ConfigContainer.Config.NameValuePair> iter = config.property.iterator();
-                            while (iter.hasNext()) {
-                                ConfigContainer.Config.NameValuePair property = iter.next();
-                                xqs.setProperty(property.name, property.value);
-                            }
-                            if (SaxonXQDataSource.class.isInstance(xqs)) {
-                                // For Saxon: setup a URI resolver to support the "input:" scheme
-                                final TransformerURIResolver resolver = new TransformerURIResolver(XQueryProcessor.this, pipelineContext, INPUT_CONFIG, XMLParsing.ParserConfiguration.PLAIN);
-                                ((SaxonXQDataSource) xqs).getConfiguration().setURIResolver(resolver);
-                            }
-                            XQConnection conn;
-                            if (config.jdbc != null) {
-                                Driver driver = (Driver) Class.forName(config.getJDBCImplementation()).newInstance();
-                                Connection jdbcConn = driver.connect(config.jdbc.url, null);
-                                // Class.forName(config.getJDBCImplementation());
-                                // Connection jdbcConn = DriverManager.getConnection(config.jdbc.url);
-                                conn = xqs.getConnection(jdbcConn);
-                            } else if (config.username != null) {
-                                conn = xqs.getConnection(config.username, config.password);
-                            } else {
-                                conn = xqs.getConnection();
-                            }
-                            XQPreparedExpression xqpe = conn.prepareExpression(config.query);
-                            iter = config.parameter.iterator();
-                            while (iter.hasNext()) {
-                                ConfigContainer.Config.NameValuePair parameter = iter.next();
-                                xqpe.bindString(new QName(parameter.name), parameter.value, null);
-                            }
-                            XQResultSequence rs = xqpe.executeQuery();
-                            helper.startDocument();
-                            helper.startElement("results");
-                            while (rs.next()) {
-                                helper.startElement("result");
-                                if (rs.getItemType().getItemKind() == XQItemType.XQITEMKIND_TEXT || rs.getItemType().getItemKind() == XQItemType.XQITEMKIND_ATOMIC) {
-                                    helper.text(rs.getItem().getAtomicValue());
+                            final String key = config.getDataSourceKey();
+                            XQuerySessionPool.XQJSession session = (XQuerySessionPool.XQJSession) sessionPool.take(key, idleTimeout);
+                            if (session == null) {
+                                XQDataSource xqs = (XQDataSource) Class.forName(config.getImplementation()).newInstance();
+                                Iterator<ConfigContainer.Config.NameValuePair> iter = config.property.iterator();
+                                while (iter.hasNext()) {
+                                    ConfigContainer.Config.NameValuePair property = iter.next();
+                                    xqs.setProperty(property.name, property.value);
+                                }
+                                XQuerySessionPool.ForwardingURIResolver uriResolver = null;
+                                if (SaxonXQDataSource.class.isInstance(xqs)) {
+                                    // For Saxon: setup a URI resolver to support the "input:" scheme
+                                    // The resolver forwards to a resolver for the current pipeline, set below
+                                    uriResolver = new XQuerySessionPool.ForwardingURIResolver();
+                                    ((SaxonXQDataSource) xqs).getConfiguration().setURIResolver(uriResolver);
+                                }
+                                XQConnection conn;
+                                Connection jdbcConn = null;
+                                if (config.jdbc != null) {
+                                    Driver driver = (Driver) Class.forName(config.getJDBCImplementation()).newInstance();
+                                    jdbcConn = driver.connect(config.jdbc.url, null);
+                                    // Class.forName(config.getJDBCImplementation());
+                                    // Connection jdbcConn = DriverManager.getConnection(config.jdbc.url);
+                                    conn = xqs.getConnection(jdbcConn);
+                                } else if (config.username != null) {
+                                    conn = xqs.getConnection(config.username, config.password);
                                 } else {
-                                    rs.writeItemToSAX(new SimpleForwardingXMLReceiver(xmlReceiver) {
-                                        public void startDocument() throws SAXException {
-                                        }
-
-                                        public void endDocument() throws SAXException {
-                                        }
-                                    });
+                                    conn = xqs.getConnection();
+                                }
+                                session = new XQuerySessionPool.XQJSession(key, conn, jdbcConn, uriResolver);
+                            }
+                            final TransformerURIResolver resolver = (session.getURIResolver() == null) ? null
+                                    : new TransformerURIResolver(XQueryProcessor.this, pipelineContext, INPUT_CONFIG, XMLParsing.ParserConfiguration.PLAIN);
+                            if (resolver != null)
+                                session.getURIResolver().setResolver(resolver);
+                            boolean success = false;
+                            try {
+                                XQPreparedExpression xqpe = session.prepare(config.query);
+                                Iterator<ConfigContainer.Config.NameValuePair> iter = config.parameter.iterator();
+                                while (iter.hasNext()) {
+                                    ConfigContainer.Config.NameValuePair parameter = iter.next();
+                                    xqpe.bindString(new QName(parameter.name), parameter.value, null);
+                                }
+                                XQResultSequence rs = xqpe.executeQuery();
+                                helper.startDocument();
+                                helper.startElement("results");
+                                while (rs.next()) {
+                                    helper.startElement("result");
+                                    if (rs.getItemType().getItemKind() == XQItemType.XQITEMKIND_TEXT || rs.getItemType().getItemKind() == XQItemType.XQITEMKIND_ATOMIC) {
+                                        helper.text(rs.getItem().getAtomicValue());
+                                    } else {
+                                        rs.writeItemToSAX(new SimpleForwardingXMLReceiver(xmlReceiver) {
+                                            public void startDocument() throws SAXException {
+                                            }
+
+                                            public void endDocument() throws SAXException {
+                                            }
+                                        });
+                                    }
+                                    helper.endElement();
                                 }
                                 helper.endElement();
+                                helper.endDocument();
+                                rs.close();
+                                success = true;
+                            } finally {
+                                if (resolver != null) {
+                                    session.getURIResolver().setResolver(null);
+                                    resolver.destroy();
+                                }
+                                if (success)
+                                    sessionPool.release(session, maxIdle);
+                                else
+                                    session.close();
                             }
-                            helper.endElement();
-                            helper.endDocument();
-                            conn.close();
                         }
                     }
 
@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.XQuery;
+
+import org.apache.log4j.Logger;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.xquery.XQConnection;
+import javax.xml.xquery.XQException;
+import javax.xml.xquery.XQPreparedExpression;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Idle connections of the XQuery processor, by data source, each with the expressions already prepared on it.
+ *
+ * A session is used by one thread at a time: it is taken from the pool to run a query, and released when done. A
+ * session which failed is closed instead, as its connection might not be usable anymore.
+ */
+public class XQuerySessionPool {
+
+    private static Logger logger = Logger.getLogger(XQuerySessionPool.class);
+
+    public static final int DEFAULT_MAX_IDLE = 8;
+    public static final int DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+    public static final int MAX_PREPARED_EXPRESSIONS = 32;
+
+    // Idle sessions by data source key, most recently used first
+    private final Map<String, LinkedList<Session<?>>> idleSessions = new HashMap<String, LinkedList<Session<?>>>();
+
+    /**
+     * Take an idle session for the given data source, if any.
+     *
+     * @param key           data source key
+     * @param idleTimeout   sessions idle for longer than this, in ms, are closed instead of being returned
+     * @return              session, or null if there is no usable idle session
+     */
+    public Session<?> take(String key, long idleTimeout) {
+        final LinkedList<Session<?>> expired = new LinkedList<Session<?>>();
+        Session<?> result = null;
+        synchronized (this) {
+            final LinkedList<Session<?>> sessions = idleSessions.get(key);
+            if (sessions != null) {
+                final long now = System.currentTimeMillis();
+                while (result == null && ! sessions.isEmpty()) {
+                    final Session<?> session = sessions.removeFirst();
+                    if (idleTimeout > 0 && now - session.lastUsed > idleTimeout)
+                        expired.add(session);
+                    else
+                        result = session;
+                }
+            }
+        }
+        // Close outside of the lock, as this can involve the network
+        for (final Session<?> session : expired)
+            session.close();
+        return result;
+    }
+
+    /**
+     * Make a session available again, or close it if there are already enough idle sessions for its data source.
+     */
+    public void release(Session<?> session, int maxIdle) {
+        boolean pooled = false;
+        synchronized (this) {
+            LinkedList<Session<?>> sessions = idleSessions.get(session.key);
+            if (sessions == null) {
+                sessions = new LinkedList<Session<?>>();
+                idleSessions.put(session.key, sessions);
+            }
+            if (sessions.size() < maxIdle) {
+                session.lastUsed = System.currentTimeMillis();
+                sessions.addFirst(session);
+                pooled = true;
+            }
+        }
+        if (! pooled)
+            session.close();
+    }
+
+    /**
+     * Close all the idle sessions.
+     */
+    public void clear() {
+        final LinkedList<Session<?>> sessions = new LinkedList<Session<?>>();
+        synchronized (this) {
+            for (final LinkedList<Session<?>> keySessions : idleSessions.values())
+                sessions.addAll(keySessions);
+            idleSessions.clear();
+        }
+        for (final Session<?> session : sessions)
+            session.close();
+    }
+
+    public synchronized int getIdleCount(String key) {
+        final LinkedList<Session<?>> sessions = idleSessions.get(key);
+        return (sessions == null) ? 0 : sessions.size();
+    }
+
+    /**
+     * A connection and the statements prepared on it, by text. Statements are closed when they are evicted.
+     */
+    public static abstract class Session<S> {
+
+        public final String key;
+        private long lastUsed;
+
+        private final Map<String, S> statements = new LinkedHashMap<String, S>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, S> eldest) {
+                if (size() > MAX_PREPARED_EXPRESSIONS) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        };
+
+        protected Session(String key) {
+            this.key = key;
+        }
+
+        public S prepare(String text) throws Exception {
+            S statement = statements.get(text);
+            if (statement == null) {
+                statement = newStatement(text);
+                statements.put(text, statement);
+            }
+            return statement;
+        }
+
+        public int getPreparedCount() {
+            return statements.size();
+        }
+
+        protected abstract S newStatement(String text) throws Exception;
+        protected abstract void closeStatement(S statement) throws Exception;
+        protected abstract void closeConnection() throws Exception;
+
+        private void closeQuietly(S statement) {
+            try {
+                closeStatement(statement);
+            } catch (Exception e) {
+                logger.warn("unable to close XQuery statement", e);
+            }
+        }
+
+        public void close() {
+            for (final Iterator<S> i = statements.values().iterator(); i.hasNext();)
+                closeQuietly(i.next());
+            statements.clear();
+            try {
+                closeConnection();
+            } catch (Exception e) {
+                logger.warn("unable to close XQuery connection", e);
+            }
+        }
+    }
+
+    /**
+     * XQJ connection with prepared expressions. The connection can also own the JDBC connection it was created from.
+     */
+    public static class XQJSession extends Session<XQPreparedExpression> {
+
+        public final XQConnection connection;
+        private final Connection jdbcConnection;
+        private final ForwardingURIResolver uriResolver;
+
+        public XQJSession(String key, XQConnection connection, Connection jdbcConnection, ForwardingURIResolver uriResolver) {
+            super(key);
+            this.connection = connection;
+            this.jdbcConnection = jdbcConnection;
+            this.uriResolver = uriResolver;
+        }
+
+        /**
+         * Resolver installed on the data source of the connection, if any, which forwards to a resolver for the
+         * current use of the session.
+         */
+        public ForwardingURIResolver getURIResolver() {
+            return uriResolver;
+        }
+
+        protected XQPreparedExpression newStatement(String text) throws XQException {
+            return connection.prepareExpression(text);
+        }
+
+        protected void closeStatement(XQPreparedExpression statement) throws XQException {
+            statement.close();
+        }
+
+        protected void closeConnection() throws XQException, SQLException {
+            try {
+                connection.close();
+            } finally {
+                if (jdbcConnection != null)
+                    jdbcConnection.close();
+            }
+        }
+    }
+
+    /**
+     * JDBC connection with prepared statements.
+     */
+    public static class JDBCSession extends Session<PreparedStatement> {
+
+        public final Connection connection;
+
+        public JDBCSession(String key, Connection connection) {
+            super(key);
+            this.connection = connection;
+        }
+
+        protected PreparedStatement newStatement(String text) throws SQLException {
+            return connection.prepareStatement(text);
+        }
+
+        protected void closeStatement(PreparedStatement statement) throws SQLException {
+            statement.close();
+        }
+
+        protected void closeConnection() throws SQLException {
+            connection.close();
+        }
+    }
+
+    /**
+     * URI resolver which forwards to another resolver, set for each use of a session.
+     */
+    public static class ForwardingURIResolver implements URIResolver {
+
+        private URIResolver resolver;
+
+        public void setResolver(URIResolver resolver) {
+            this.resolver = resolver;
+        }
+
+        public Source resolve(String href, String base) throws TransformerException {
+            if (resolver == null)
+                throw new TransformerException("No URI resolver available to resolve: " + href);
+            return resolver.resolve(href, base);
+        }
+    }
+}
@@ -208,6 +208,7 @@ public class PipelineReader extends ProcessorImpl {
                     forEach.setOutputSchemaHref(element.attributeValue("output-schema-href"));
                     forEach.setOutputSchemaUri(element.attributeValue("output-schema-uri"));
                     forEach.setOutputDebug(element.attributeValue("output-debug"));
+                    forEach.setParallel("true".equals(element.attributeValue("parallel")));
                     forEach.getStatements().addAll(readStatements(element));
                 }
             }
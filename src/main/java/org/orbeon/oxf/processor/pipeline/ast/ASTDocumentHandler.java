@@ -143,6 +143,8 @@ public class ASTDocumentHandler implements ASTHandler {
         if (forEach.getRef() != null)
             currentElement.addAttribute("ref", forEach.getRef());
         currentElement.addAttribute("root", forEach.getRoot());
+        if (forEach.isParallel())
+            currentElement.addAttribute("parallel", "true");
         return true;
     }
 
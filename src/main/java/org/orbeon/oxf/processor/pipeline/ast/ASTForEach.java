@@ -29,6 +29,7 @@ public class ASTForEach extends ASTStatement {
     private String outputSchemaHref;
     private String outputSchemaUri;
     private String outputDebug;
+    private boolean parallel;
     private List<ASTStatement> statements = new ArrayList<ASTStatement>();
 
     public ASTHref getHref() {
@@ -119,6 +120,14 @@ public class ASTForEach extends ASTStatement {
         this.outputDebug = outputDebug;
     }
 
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
     public List<ASTStatement> getStatements() {
         return statements;
     }
@@ -17,17 +17,25 @@ import org.dom4j.*;
 import org.orbeon.oxf.cache.OutputCacheKey;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.common.ValidationException;
+import org.orbeon.oxf.externalcontext.AsyncRequest;
+import org.orbeon.oxf.externalcontext.LocalExternalContext;
+import org.orbeon.oxf.externalcontext.ResponseAdapter;
+import org.orbeon.oxf.pipeline.api.ExternalContext;
 import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.xml.XMLReceiver;
 import org.orbeon.oxf.processor.*;
 import org.orbeon.oxf.processor.generator.DOMGenerator;
+import org.orbeon.oxf.processor.generator.SAXStoreGenerator;
 import org.orbeon.oxf.processor.pipeline.PipelineProcessor;
 import org.orbeon.oxf.processor.pipeline.TeeProcessor;
 import org.orbeon.oxf.processor.pipeline.ast.*;
 import org.orbeon.oxf.util.PooledXPathExpression;
 import org.orbeon.oxf.util.XPathCache;
+import org.orbeon.oxf.webapp.WebAppContext;
+import org.orbeon.oxf.webapp.WebAppListener;
 import org.orbeon.oxf.xml.EmbeddedDocumentXMLReceiver;
 import org.orbeon.oxf.xml.NamespaceMapping;
+import org.orbeon.oxf.xml.SAXStore;
 import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
 import org.orbeon.saxon.dom4j.DocumentWrapper;
 import org.orbeon.saxon.om.DocumentInfo;
@@ -36,13 +44,23 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 public class ConcreteForEachProcessor extends ProcessorImpl {
 
+    // Shared by all parallel p:for-each of a web app
+    private static final int PARALLEL_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final String PARALLEL_THREAD_POOL_ATTRIBUTE = "oxf.for-each.thread-pool";
+    // Whether the current thread runs a parallel iteration, in which case nested p:for-each run sequentially
+    private static final ThreadLocal<Boolean> inParallelIteration = new ThreadLocal<Boolean>();
+
     private final Processor forEachBlockProcessor;
     private final ProcessorOutput iterationOutput;
     private final String select;
     private final NamespaceMapping namespaceContext;
+    private final StreamingSelect streamingSelect;
+    private final boolean isSelfContained;
+    private final boolean isParallel;
     private String rootLocalName;
     private String rootQName;
     private String rootNamespaceURI;
@@ -93,6 +111,19 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
 
         select = forEachAST.getSelect();
         namespaceContext = new NamespaceMapping(Dom4jUtils.getNamespaceContextNoDefault((Element) forEachAST.getNode()));
+
+        // A simple path can be evaluated while reading $data, without building a document
+        streamingSelect = StreamingSelect.compile(select, namespaceContext);
+
+        // If the block only reads $current, iterations can run while $data is being read, and independently from
+        // each other
+        isSelfContained = refsWithNoId.length == 0
+            || refsWithNoId.length == 1 && refsWithNoId[0].equals(AbstractForEachProcessor.FOR_EACH_CURRENT_INPUT);
+
+        if (forEachAST.isParallel() && ! isSelfContained)
+            logger.warn("p:for-each with parallel=\"true\" reads inputs other than current(), running iterations sequentially: "
+                    + forEachAST.getLocationData());
+        isParallel = forEachAST.isParallel() && isSelfContained;
         if (forEachAST.getRoot() != null) {
             rootQName = forEachAST.getRoot();
             int columnPosition = rootQName.indexOf(':');
@@ -116,40 +147,12 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
         final ProcessorOutput output = new ProcessorOutputImpl(ConcreteForEachProcessor.this, name) {
             public void readImpl(PipelineContext pipelineContext, XMLReceiver xmlReceiver) {
                 try {
-                    final State state = (State) getState(pipelineContext);
-
                     // Open document
                     xmlReceiver.startDocument();
                     xmlReceiver.startElement(rootNamespaceURI, rootLocalName, rootQName, new AttributesImpl());
 
                     // Read n times from iterationOutput
-                    PooledXPathExpression expression = null;
-                    int iterationCount = 0;
-                    try {
-                        expression = createExpression(pipelineContext);
-
-                        for (Iterator i = new ElementIterator(expression); i.hasNext(); iterationCount++) {
-                            final Element currentElement = (Element) i.next();
-
-                            // Create DOMGenerator
-                            final String systemId = Dom4jUtils.makeSystemId(currentElement);
-                            final DOMGenerator domGenerator = new DOMGenerator
-                                    (currentElement, "for each input", DOMGenerator.ZeroValidity, systemId);
-                            domGenerator.createOutput(OUTPUT_DATA);
-                            state.domGenerator = domGenerator;
-
-                            // Run iteration
-                            forEachBlockProcessor.reset(pipelineContext);
-                            iterationOutput.read(pipelineContext, new EmbeddedDocumentXMLReceiver(xmlReceiver));
-                        }
-                    } catch (XPathException e) {
-                        throw new OXFException(e);
-                    } finally {
-                        // Clear state to allow gc as the state might be referenced for a while
-                        if (state != null) state.domGenerator = null;
-                        // Return expression
-                        if (expression != null) expression.returnToPool();
-                    }
+                    final int iterationCount = iterate(pipelineContext, xmlReceiver);
 
                     // Notify input Tee processors that we are done
                     commitInputs(pipelineContext, iterationCount);
@@ -251,40 +254,302 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
 
     @Override
     public void start(PipelineContext pipelineContext) {
+        // Start n times the iteration block
+        final int iterationCount = iterate(pipelineContext, null);
+
+        // Notify input Tee processors that we are done
+        commitInputs(pipelineContext, iterationCount);
+    }
+
+    /**
+     * Run the iteration block once for each element selected in $data.
+     *
+     * @param xmlReceiver   receiver for the output of the iterations, or null to start the iteration block
+     * @return              number of iterations
+     */
+    private int iterate(final PipelineContext pipelineContext, XMLReceiver xmlReceiver) {
         final State state = (State) getState(pipelineContext);
 
-        // Read n times from iterationOutput
-        PooledXPathExpression expression = null;
-        int iterationCount = 0;
-        try {
-            expression = createExpression(pipelineContext);
+        final Iterations iterations;
+        if (isParallel && inParallelIteration.get() == null)
+            iterations = new ParallelIterations(pipelineContext, xmlReceiver);
+        else if (streamingSelect != null && ! isSelfContained)
+            iterations = new BufferedIterations(pipelineContext, xmlReceiver);
+        else
+            iterations = new SequentialIterations(pipelineContext, xmlReceiver);
 
-            for (Iterator i = new ElementIterator(expression); i.hasNext(); iterationCount++) {
-                final Element currentElement = (Element) i.next();
+        try {
+            if (streamingSelect != null) {
+                // Iterations run from within the reading of $data, but reading $data may change the parent processors
+                // (see PipelineProcessor.executeParents()), so iterations must restore those in force at this point
+                final Stack<ProcessorImpl> iterationParents = new Stack<ProcessorImpl>();
+                final Stack<ProcessorImpl> parents = (Stack<ProcessorImpl>) pipelineContext.getAttribute(PARENT_PROCESSORS);
+                if (parents != null)
+                    iterationParents.addAll(parents);
+
+                // Split $data into one SAXStore per selected element while reading it
+                readInputAsSAX(pipelineContext, getInputByName(AbstractForEachProcessor.FOR_EACH_DATA_INPUT),
+                    streamingSelect.createXMLReceiver(new StreamingSelect.Listener() {
+                        public void subtree(SAXStore subtree) {
+                            final Object readingParents = pipelineContext.getAttribute(PARENT_PROCESSORS);
+                            pipelineContext.setAttribute(PARENT_PROCESSORS, iterationParents);
+                            try {
+                                iterations.add(new SAXStoreGenerator(subtree));
+                            } finally {
+                                pipelineContext.setAttribute(PARENT_PROCESSORS, readingParents);
+                            }
+                        }
+                    }));
+            } else {
+                // Evaluate the select expression on the whole $data document
+                PooledXPathExpression expression = null;
+                try {
+                    expression = createExpression(pipelineContext);
 
-                // Create DOMGenerator
-                final String systemId = Dom4jUtils.makeSystemId(currentElement);
-                final DOMGenerator domGenerator = new DOMGenerator
-                        (currentElement, "for each input", DOMGenerator.ZeroValidity, systemId);
-                domGenerator.createOutput(OUTPUT_DATA);
-                state.domGenerator = domGenerator;
+                    for (Iterator i = new ElementIterator(expression); i.hasNext();) {
+                        final Element currentElement = (Element) i.next();
 
-                // Run iteration
-                forEachBlockProcessor.reset(pipelineContext);
-                forEachBlockProcessor.start(pipelineContext);
+                        final String systemId = Dom4jUtils.makeSystemId(currentElement);
+                        iterations.add(new DOMGenerator(currentElement, "for each input", DOMGenerator.ZeroValidity, systemId));
+                    }
+                } catch (XPathException e) {
+                    throw new OXFException(e);
+                } finally {
+                    // Return expression
+                    if (expression != null) expression.returnToPool();
+                }
             }
-
-        } catch (XPathException e) {
-            throw new OXFException(e);
+            iterations.end();
         } finally {
+            iterations.cancel();
             // Clear state to allow gc as the state might be referenced for a while
-            if (state != null) state.domGenerator = null;
-            // Return expression
-            if (expression != null) expression.returnToPool();
+            if (state != null) state.generator = null;
         }
 
-        // Notify input Tee processors that we are done
-        commitInputs(pipelineContext, iterationCount);
+        return iterations.count;
+    }
+
+    /**
+     * Run the iteration block in the given context with the given generator for $current.
+     */
+    private void runIteration(PipelineContext pipelineContext, Processor generator, XMLReceiver xmlReceiver) {
+        final State state = (State) getState(pipelineContext);
+        state.generator = generator;
+
+        forEachBlockProcessor.reset(pipelineContext);
+        if (xmlReceiver != null)
+            iterationOutput.read(pipelineContext, new EmbeddedDocumentXMLReceiver(xmlReceiver));
+        else
+            forEachBlockProcessor.start(pipelineContext);
+    }
+
+    private abstract class Iterations {
+
+        protected final PipelineContext pipelineContext;
+        protected final XMLReceiver xmlReceiver;
+        public int count;
+
+        protected Iterations(PipelineContext pipelineContext, XMLReceiver xmlReceiver) {
+            this.pipelineContext = pipelineContext;
+            this.xmlReceiver = xmlReceiver;
+        }
+
+        public void add(ProcessorImpl generator) {
+            generator.createOutput(OUTPUT_DATA);
+            count++;
+            run(generator);
+        }
+
+        protected abstract void run(Processor generator);
+
+        // Called once all the iterations have been added
+        public void end() {}
+
+        // Called in all cases once done
+        public void cancel() {}
+    }
+
+    /**
+     * Run each iteration as soon as it is added.
+     */
+    private class SequentialIterations extends Iterations {
+
+        public SequentialIterations(PipelineContext pipelineContext, XMLReceiver xmlReceiver) {
+            super(pipelineContext, xmlReceiver);
+        }
+
+        protected void run(Processor generator) {
+            runIteration(pipelineContext, generator, xmlReceiver);
+        }
+    }
+
+    /**
+     * Run iterations once $data has been entirely read. This is needed when streaming, if the iteration block reads
+     * other inputs: they might be connected to the same output as $data, which can't be read while it is being read.
+     */
+    private class BufferedIterations extends Iterations {
+
+        private final List<Processor> generators = new ArrayList<Processor>();
+
+        public BufferedIterations(PipelineContext pipelineContext, XMLReceiver xmlReceiver) {
+            super(pipelineContext, xmlReceiver);
+        }
+
+        protected void run(Processor generator) {
+            generators.add(generator);
+        }
+
+        @Override
+        public void end() {
+            for (int i = 0; i < generators.size(); i++) {
+                runIteration(pipelineContext, generators.get(i), xmlReceiver);
+                // Allow gc of the SAXStore
+                generators.set(i, null);
+            }
+        }
+    }
+
+    private static ExecutorService newParallelThreadPool() {
+        return Executors.newFixedThreadPool(PARALLEL_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "p:for-each worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // Used when running outside of a web app, e.g. from the command line
+    private static class StandaloneParallelThreadPool {
+        static final ExecutorService INSTANCE = newParallelThreadPool();
+    }
+
+    /**
+     * Return the thread pool of the web app, created on first use and shut down when the web app is destroyed.
+     */
+    private static ExecutorService getParallelThreadPool(WebAppContext webAppContext) {
+        if (webAppContext == null)
+            return StandaloneParallelThreadPool.INSTANCE;
+
+        synchronized (webAppContext) {
+            final ExecutorService existingThreadPool = (ExecutorService) webAppContext.getAttributesMap().get(PARALLEL_THREAD_POOL_ATTRIBUTE);
+            if (existingThreadPool != null) {
+                return existingThreadPool;
+            } else {
+                final ExecutorService newThreadPool = newParallelThreadPool();
+                webAppContext.getAttributesMap().put(PARALLEL_THREAD_POOL_ATTRIBUTE, newThreadPool);
+                webAppContext.addListener(new WebAppListener() {
+                    public void webAppDestroyed() {
+                        newThreadPool.shutdownNow();
+                    }
+                });
+                return newThreadPool;
+            }
+        }
+    }
+
+    /**
+     * Run iterations on the shared thread pool and output their results in order.
+     *
+     * Each iteration runs in its own PipelineContext, so this is only used if the iteration block doesn't read inputs
+     * other than $current. The number of iterations in progress is bounded, so that memory use does not grow with the
+     * size of $data.
+     *
+     * Workers don't touch the request's ExternalContext, which is not thread-safe: they see a copy of the request
+     * taken ahead of time, and a response which ignores what is written to it, as the iteration results are only
+     * output through the receiver.
+     */
+    private class ParallelIterations extends Iterations {
+
+        private final ExternalContext externalContext;
+        private final ExecutorService threadPool;
+        private final Stack<ProcessorImpl> parents;
+        private final LinkedList<Future<SAXStore>> pending = new LinkedList<Future<SAXStore>>();
+
+        public ParallelIterations(PipelineContext pipelineContext, XMLReceiver xmlReceiver) {
+            super(pipelineContext, xmlReceiver);
+
+            final ExternalContext requestExternalContext = (ExternalContext) pipelineContext.getAttribute(PipelineContext.EXTERNAL_CONTEXT);
+            this.externalContext = requestExternalContext == null ? null : new LocalExternalContext(
+                requestExternalContext.getWebAppContext(),
+                new AsyncRequest(requestExternalContext.getRequest()),
+                new ResponseAdapter());
+            this.threadPool = getParallelThreadPool(requestExternalContext == null ? null : requestExternalContext.getWebAppContext());
+
+            // Copy the stack of parent processors so that iterations find the state of this processor
+            final Stack<ProcessorImpl> requestParents = (Stack<ProcessorImpl>) pipelineContext.getAttribute(PARENT_PROCESSORS);
+            this.parents = new Stack<ProcessorImpl>();
+            if (requestParents != null)
+                this.parents.addAll(requestParents);
+        }
+
+        protected void run(final Processor generator) {
+            if (pending.size() >= 2 * PARALLEL_THREADS)
+                outputNext();
+
+            // Each iteration gets its own copy, as the stack changes while the iteration runs
+            final Stack<ProcessorImpl> iterationParents = new Stack<ProcessorImpl>();
+            iterationParents.addAll(parents);
+
+            pending.add(threadPool.submit(new Callable<SAXStore>() {
+                public SAXStore call() {
+                    final PipelineContext iterationContext = new PipelineContext();
+                    iterationContext.setAttribute(PipelineContext.EXTERNAL_CONTEXT, externalContext);
+                    iterationContext.setAttribute(PARENT_PROCESSORS, iterationParents);
+                    inParallelIteration.set(Boolean.TRUE);
+                    boolean success = false;
+                    try {
+                        setState(iterationContext, new State());
+                        final SAXStore result = new SAXStore();
+                        runIteration(iterationContext, generator, xmlReceiver != null ? result : null);
+                        success = true;
+                        return result;
+                    } finally {
+                        inParallelIteration.remove();
+                        iterationContext.destroy(success);
+                    }
+                }
+            }));
+        }
+
+        @Override
+        public void end() {
+            while (! pending.isEmpty())
+                outputNext();
+        }
+
+        @Override
+        public void cancel() {
+            // Only iterations not yet started are cancelled if an iteration failed
+            for (final Future<SAXStore> future : pending)
+                future.cancel(false);
+            pending.clear();
+        }
+
+        private void outputNext() {
+            final SAXStore result;
+            try {
+                result = pending.removeFirst().get();
+            } catch (InterruptedException e) {
+                throw new OXFException(e);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                else if (cause instanceof Error)
+                    throw (Error) cause;
+                else
+                    throw new OXFException(cause);
+            }
+
+            if (xmlReceiver != null) {
+                try {
+                    result.replay(xmlReceiver);
+                } catch (SAXException e) {
+                    throw new OXFException(e);
+                }
+            }
+        }
     }
 
     /**
@@ -337,7 +602,7 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
     }
 
     /**
-     * Reads from the DOM generator stored in state.
+     * Reads from the generator stored in state.
      */
     private class IterationProcessorOutput extends ProcessorOutputImpl {
 
@@ -347,19 +612,19 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
 
         protected void readImpl(PipelineContext pipelineContext, XMLReceiver xmlReceiver) {
             final State state = (State) getState(pipelineContext);
-            state.domGenerator.getOutputByName(OUTPUT_DATA).read(pipelineContext, xmlReceiver);
+            state.generator.getOutputByName(OUTPUT_DATA).read(pipelineContext, xmlReceiver);
         }
 
         @Override
         public OutputCacheKey getKeyImpl(PipelineContext pipelineContext) {
             final State state = (State) getState(pipelineContext);
-            return state.domGenerator.getOutputByName(OUTPUT_DATA).getKey(pipelineContext);
+            return state.generator.getOutputByName(OUTPUT_DATA).getKey(pipelineContext);
         }
 
         @Override
         protected Object getValidityImpl(PipelineContext pipelineContext) {
             final State state = (State) getState(pipelineContext);
-            return state.domGenerator.getOutputByName(OUTPUT_DATA).getValidity(pipelineContext);
+            return state.generator.getOutputByName(OUTPUT_DATA).getValidity(pipelineContext);
         }
     }
 
@@ -367,7 +632,7 @@ public class ConcreteForEachProcessor extends ProcessorImpl {
      * Runtime state information for p:for-each.
      */
     private static class State {
-        DOMGenerator domGenerator;
+        Processor generator;
     }
 
     @Override
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.pipeline.foreach;
+
+import org.orbeon.oxf.xml.NamespaceContext;
+import org.orbeon.oxf.xml.NamespaceMapping;
+import org.orbeon.oxf.xml.SAXStore;
+import org.orbeon.oxf.xml.XMLReceiver;
+import org.orbeon.saxon.om.Name10Checker;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Streaming evaluation of simple p:for-each select expressions.
+ *
+ * A select expression is simple if it is an absolute path made only of child steps with name tests, for example
+ * /orders/order, /*&#47;item or /my:root/my:*. Such an expression can be evaluated on SAX events without building a
+ * document: each matching element, along with its in-scope namespaces, is captured into its own SAXStore and handed
+ * to a Listener as soon as its end tag is reached.
+ */
+class StreamingSelect {
+
+    interface Listener {
+        void subtree(SAXStore subtree) throws SAXException;
+    }
+
+    // For each step, namespace URI and local name, where null matches any
+    private final String[] uris;
+    private final String[] localNames;
+
+    private StreamingSelect(String[] uris, String[] localNames) {
+        this.uris = uris;
+        this.localNames = localNames;
+    }
+
+    /**
+     * Return a StreamingSelect for the given expression, or null if the expression is not simple.
+     */
+    public static StreamingSelect compile(String select, NamespaceMapping namespaceMapping) {
+        final String trimmed = select.trim();
+        if (! trimmed.startsWith("/") || trimmed.startsWith("//") || trimmed.endsWith("/"))
+            return null;
+
+        final String[] steps = trimmed.substring(1).split("/");
+        final String[] uris = new String[steps.length];
+        final String[] localNames = new String[steps.length];
+
+        for (int i = 0; i < steps.length; i++) {
+            final String step = steps[i].startsWith("child::") ? steps[i].substring("child::".length()) : steps[i];
+            if (! isNameTest(step))
+                return null;
+
+            final int colonIndex = step.indexOf(':');
+            if (colonIndex == -1) {
+                // NOTE: Like for the XPath expression, there is no default namespace for element names
+                uris[i] = step.equals("*") ? null : "";
+                localNames[i] = step.equals("*") ? null : step;
+            } else {
+                final String uri = namespaceMapping.mapping.get(step.substring(0, colonIndex));
+                if (uri == null)
+                    return null; // let the XPath expression report the error
+                final String localName = step.substring(colonIndex + 1);
+                uris[i] = uri;
+                localNames[i] = localName.equals("*") ? null : localName;
+            }
+        }
+
+        return new StreamingSelect(uris, localNames);
+    }
+
+    // Whether the step is *, name, prefix:name, or prefix:*
+    private static boolean isNameTest(String step) {
+        if (step.equals("*"))
+            return true;
+
+        final Name10Checker checker = Name10Checker.getInstance();
+        final int colonIndex = step.indexOf(':');
+        if (colonIndex == -1) {
+            return checker.isValidNCName(step);
+        } else {
+            final String localName = step.substring(colonIndex + 1);
+            return checker.isValidNCName(step.substring(0, colonIndex)) && (localName.equals("*") || checker.isValidNCName(localName));
+        }
+    }
+
+    private boolean matches(int step, String uri, String localname) {
+        return (uris[step] == null || uris[step].equals(uri)) && (localNames[step] == null || localNames[step].equals(localname));
+    }
+
+    /**
+     * Create a receiver which notifies the listener of each selected element.
+     */
+    public XMLReceiver createXMLReceiver(Listener listener) {
+        return new SplittingXMLReceiver(listener);
+    }
+
+    private class SplittingXMLReceiver implements XMLReceiver {
+
+        private final Listener listener;
+        private final NamespaceContext namespaceContext = new NamespaceContext();
+
+        private Locator locator;
+
+        // Depth of the current element, where the root element is at depth 1
+        private int level = 0;
+        // Number of levels from the root element which match the path so far
+        private int matchedLevel = 0;
+
+        // Current subtree if any
+        private SAXStore subtree;
+        private List<String> subtreePrefixes;
+
+        private SplittingXMLReceiver(Listener listener) {
+            this.listener = listener;
+        }
+
+        public void setDocumentLocator(Locator locator) {
+            this.locator = locator;
+        }
+
+        public void startDocument() {}
+        public void endDocument() {}
+
+        public void startPrefixMapping(String prefix, String uri) throws SAXException {
+            if (subtree != null)
+                subtree.startPrefixMapping(prefix, uri);
+            else
+                namespaceContext.startPrefixMapping(prefix, uri);
+        }
+
+        public void endPrefixMapping(String prefix) throws SAXException {
+            if (subtree != null)
+                subtree.endPrefixMapping(prefix);
+        }
+
+        public void startElement(String uri, String localname, String qName, Attributes attributes) throws SAXException {
+            if (subtree != null) {
+                level++;
+                subtree.startElement(uri, localname, qName, attributes);
+            } else {
+                namespaceContext.startElement();
+                level++;
+                if (matchedLevel == level - 1 && level <= uris.length && matches(level - 1, uri, localname)) {
+                    matchedLevel = level;
+                    if (matchedLevel == uris.length)
+                        startSubtree(uri, localname, qName, attributes);
+                }
+            }
+        }
+
+        public void endElement(String uri, String localname, String qName) throws SAXException {
+            if (subtree != null) {
+                subtree.endElement(uri, localname, qName);
+                if (level == matchedLevel)
+                    endSubtree();
+                else {
+                    level--;
+                    return;
+                }
+            }
+            if (matchedLevel == level)
+                matchedLevel--;
+            namespaceContext.endElement();
+            level--;
+        }
+
+        private void startSubtree(String uri, String localname, String qName, Attributes attributes) throws SAXException {
+            subtree = new SAXStore();
+            if (locator != null)
+                subtree.setDocumentLocator(locator);
+            subtree.startDocument();
+
+            // Declare all the namespaces in scope on the subtree root, as the original declarations may be on ancestors
+            subtreePrefixes = new ArrayList<String>();
+            final String defaultURI = namespaceContext.getURI("");
+            if (defaultURI != null)
+                subtreePrefixes.add("");
+            for (final Enumeration<String> e = namespaceContext.getPrefixes(); e.hasMoreElements();) {
+                final String prefix = e.nextElement();
+                if (! prefix.equals("xml"))
+                    subtreePrefixes.add(prefix);
+            }
+            for (final String prefix : subtreePrefixes)
+                subtree.startPrefixMapping(prefix, namespaceContext.getURI(prefix));
+
+            subtree.startElement(uri, localname, qName, attributes);
+        }
+
+        private void endSubtree() throws SAXException {
+            for (final String prefix : subtreePrefixes)
+                subtree.endPrefixMapping(prefix);
+            subtree.endDocument();
+
+            final SAXStore completed = subtree;
+            subtree = null;
+            subtreePrefixes = null;
+
+            listener.subtree(completed);
+        }
+
+        public void characters(char[] chars, int start, int length) throws SAXException {
+            if (subtree != null)
+                subtree.characters(chars, start, length);
+        }
+
+        public void ignorableWhitespace(char[] chars, int start, int length) throws SAXException {
+            if (subtree != null)
+                subtree.ignorableWhitespace(chars, start, length);
+        }
+
+        public void processingInstruction(String target, String data) throws SAXException {
+            if (subtree != null)
+                subtree.processingInstruction(target, data);
+        }
+
+        public void skippedEntity(String name) throws SAXException {
+            if (subtree != null)
+                subtree.skippedEntity(name);
+        }
+
+        public void comment(char[] chars, int start, int length) throws SAXException {
+            if (subtree != null)
+                subtree.comment(chars, start, length);
+        }
+
+        public void startDTD(String name, String publicId, String systemId) {}
+        public void endDTD() {}
+        public void startEntity(String name) {}
+        public void endEntity(String name) {}
+        public void startCDATA() {}
+        public void endCDATA() {}
+    }
+}
@@ -13,129 +13,142 @@
  */
 package org.orbeon.oxf.processor.zip;
 
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.disk.DiskFileItem;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.pipeline.api.PipelineContext;
-import org.orbeon.oxf.xml.XMLReceiver;
 import org.orbeon.oxf.processor.*;
-import org.orbeon.oxf.resources.ResourceManagerWrapper;
 import org.orbeon.oxf.resources.URLFactory;
-import org.orbeon.oxf.util.NetUtils;
+import org.orbeon.oxf.util.*;
+import org.orbeon.oxf.xml.XMLReceiver;
 import org.orbeon.oxf.xml.XMLReceiverAdapter;
 import org.orbeon.oxf.xml.dom4j.LocationData;
 import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
 
-import java.io.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+/**
+ * Produce a zip file from a list of files:
+ *
+ *   <files filename="archive.zip" status-code="200" compress="true">
+ *       <file name="index.html">oxf:/apps/my-app/index.html</file>
+ *       <file name="images/photo.jpg" compress="false">http://example.org/photo.jpg</file>
+ *   </files>
+ *
+ * The archive is streamed to the output as Base64 characters while it is being built, and each file is only opened
+ * when its entry is written, using any scheme supported by Connection. Files with compress="false" are stored with no
+ * compression, which is useful for content which is already compressed.
+ */
 public class ZipProcessor extends ProcessorImpl {
 
+    private static final IndentedLogger indentedLogger = new IndentedLogger(logger, "oxf:zip");
+
     public ZipProcessor() {
         addInputInfo(new ProcessorInputOutputInfo(INPUT_DATA));
         addOutputInfo(new ProcessorInputOutputInfo(OUTPUT_DATA));
     }
 
+    private static class Entry {
+        public final String name;
+        public final URL url;
+        public final boolean compress;
+
+        private Entry(String name, URL url, boolean compress) {
+            this.name = name;
+            this.url = url;
+            this.compress = compress;
+        }
+    }
+
     @Override
     public ProcessorOutput createOutput(String name) {
         final ProcessorOutput output = new ProcessorOutputImpl(ZipProcessor.this, name) {
 
-            String fileName = null;
-            int statusCode = -1;
-
             public void readImpl(PipelineContext context, XMLReceiver xmlReceiver) {
-                try {
-                    // Create temporary zip file
-                    final FileItem fileItem = NetUtils.prepareFileItem(NetUtils.REQUEST_SCOPE, logger);
-                    fileItem.getOutputStream().close();
-                    final File temporaryZipFile = ((DiskFileItem) fileItem).getStoreLocation();
-                    temporaryZipFile.createNewFile();
-                    final ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(temporaryZipFile));
-
-                    try {
-                        // Read list of files and write to zip output stream as we go
-                        readInputAsSAX(context, INPUT_DATA, new XMLReceiverAdapter() {
-
-                            String name;
-                            StringBuilder uri;
-
-                            // Get the file name, store it
-                            @Override
-                            public void startElement(String namespaceURI, String localName, String qName, Attributes atts) throws SAXException {
-                                if ("file".equals(localName)) {
-                                    name = atts.getValue("name");
-                                    uri = new StringBuilder();
-                                } else if ("files".equals(localName)) {
-                                    fileName = atts.getValue("filename");
-                                    String value = atts.getValue("status-code");
-                                    if (value != null ) {
-                                        statusCode = Integer.parseInt(value);
-                                    }
-                                }
-                            }
-
-                            // Get the URI to the file, store it
-                            @Override
-                            public void characters(char ch[], int start, int length) throws SAXException {
-                                if (uri != null)
-                                    uri.append(ch, start, length);
-                            }
-
-                            // Process file
-                            @Override
-                            public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
-                                try {
-                                    if ("file".equals(localName)) {
-                                        zipOutputStream.putNextEntry(new ZipEntry(name));
-                                        final LocationData locationData = getLocationData();
-                                        final String realPath;
-
-                                        final URL fullURL = (locationData != null && locationData.getSystemID() != null)
-                                            ? URLFactory.createURL(locationData.getSystemID(), uri.toString())
-                                            : URLFactory.createURL(uri.toString());
-
-                                        if (fullURL.getProtocol().equals("oxf")) {
-                                            // Get real path to resource path if possible
-                                            realPath = ResourceManagerWrapper.instance().getRealPath(fullURL.getFile());
-                                            if (realPath == null)
-                                                throw new OXFException("Zip processor is unable to obtain the real path of the file using the oxf: protocol for the base-directory property: " + uri.toString());
-                                        } else if (fullURL.getProtocol().equals("file")) {
-                                            String host = fullURL.getHost();
-                                            realPath = host + (host.length() > 0 ? ":" : "") + fullURL.getFile();
-                                        } else {
-                                            throw new OXFException("Zip processor only supports the file: and oxf: protocols for the base-directory property: " + uri.toString());
-                                        }
-
-                                        InputStream fileInputStream = new FileInputStream(new File(realPath));
-                                        try {
-                                            NetUtils.copyStream(fileInputStream, zipOutputStream);
-                                        } finally {
-                                            fileInputStream.close();
-                                        }
-                                    }
-                                } catch (IOException e) {
-                                    throw new OXFException(e);
-                                }
-                            }
-                        });
-                    } finally {
-                        zipOutputStream.close();
+
+                final String[] fileName = { null };
+                final String[] statusCode = { null };
+                final List<Entry> entries = new ArrayList<Entry>();
+
+                // Read the list of files first, as the attributes of the output document must be known before any
+                // content is produced
+                readInputAsSAX(context, INPUT_DATA, new XMLReceiverAdapter() {
+
+                    boolean compressByDefault = true;
+
+                    String name;
+                    boolean compress;
+                    StringBuilder uri;
+
+                    // Get the file name, store it
+                    @Override
+                    public void startElement(String namespaceURI, String localName, String qName, Attributes atts) {
+                        if ("file".equals(localName)) {
+                            name = atts.getValue("name");
+                            compress = isCompress(atts, compressByDefault);
+                            uri = new StringBuilder();
+                        } else if ("files".equals(localName)) {
+                            fileName[0] = atts.getValue("filename");
+                            final String value = atts.getValue("status-code");
+                            if (value != null)
+                                statusCode[0] = Integer.toString(Integer.parseInt(value));
+                            compressByDefault = isCompress(atts, true);
+                        }
                     }
 
-                    // Generate an Orbeon binary document with the content of the zip file
-                    FileInputStream zipInputStream = new FileInputStream(temporaryZipFile);
-                    try {
-                        ProcessorUtils.readBinary(zipInputStream, xmlReceiver, "multipart/x-gzip", null, statusCode, fileName);
-                    } finally {
-                        zipInputStream.close();
+                    // Get the URI to the file, store it
+                    @Override
+                    public void characters(char ch[], int start, int length) {
+                        if (uri != null)
+                            uri.append(ch, start, length);
                     }
-                } catch (FileNotFoundException e) {
-                    throw new OXFException(e);
+
+                    // Resolve the URI, but don't open it yet
+                    @Override
+                    public void endElement(String namespaceURI, String localName, String qName) {
+                        if ("file".equals(localName)) {
+                            final LocationData locationData = getLocationData();
+                            final URL fullURL = (locationData != null && locationData.getSystemID() != null)
+                                ? URLFactory.createURL(locationData.getSystemID(), uri.toString().trim())
+                                : URLFactory.createURL(uri.toString().trim());
+
+                            entries.add(new Entry(name, fullURL, compress));
+                            uri = null;
+                        }
+                    }
+                });
+
+                // Write the zip file directly to the output as an Orbeon binary document
+                final ContentHandlerOutputStream binaryOutputStream = new ContentHandlerOutputStream(xmlReceiver, true);
+                binaryOutputStream.setContentType("multipart/x-gzip");
+                binaryOutputStream.setStatusCode(statusCode[0]);
+                binaryOutputStream.setFileName(fileName[0]);
+
+                final DeflaterZipOutputStream zipOutputStream = new DeflaterZipOutputStream(binaryOutputStream);
+                try {
+                    for (final Entry entry : entries) {
+                        // The level applies to the entry started next
+                        zipOutputStream.setLevel(entry.compress ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION);
+                        zipOutputStream.putNextEntry(new ZipEntry(entry.name));
+                        copyEntry(entry.url, zipOutputStream);
+                        zipOutputStream.closeEntry();
+                    }
+                    // This also closes the binary output stream, which ends the document
+                    zipOutputStream.close();
                 } catch (IOException e) {
                     throw new OXFException(e);
+                } finally {
+                    // Closing doesn't release the deflater if the archive can't be finished, and we don't want to end
+                    // the document upon error anyway
+                    zipOutputStream.endDeflater();
                 }
             }
 
@@ -146,4 +159,48 @@ public class ZipProcessor extends ProcessorImpl {
         addOutput(name, output);
         return output;
     }
+
+    // ZipOutputStream which can release its native deflater without finishing the archive
+    private static class DeflaterZipOutputStream extends ZipOutputStream {
+
+        private DeflaterZipOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        // NOTE: Deflater.end() can be called more than once
+        public void endDeflater() {
+            def.end();
+        }
+    }
+
+    private static boolean isCompress(Attributes atts, boolean defaultValue) {
+        final String value = atts.getValue("compress");
+        return value == null ? defaultValue : ! "false".equals(value);
+    }
+
+    // Open the given URL and copy its content to the current zip entry
+    private static void copyEntry(URL url, ZipOutputStream zipOutputStream) throws IOException {
+        final URI uri;
+        try {
+            uri = url.toURI();
+        } catch (URISyntaxException e) {
+            throw new OXFException(e);
+        }
+
+        final scala.collection.immutable.Map<String, scala.collection.immutable.List<String>> headers =
+            Connection.jBuildConnectionHeadersLowerIfNeeded(uri.getScheme(), null, null, null, indentedLogger);
+
+        final ConnectionResult connectionResult =
+            Connection.jApply("GET", uri, null, null, headers, true, false, indentedLogger).connect(true);
+
+        try {
+            if (! NetUtils.isSuccessCode(connectionResult.statusCode()))
+                throw new OXFException("Zip processor got invalid return code while loading URI: " + url.toExternalForm() + ", " + connectionResult.statusCode());
+
+            final InputStream inputStream = connectionResult.content().inputStream();
+            NetUtils.copyStream(inputStream, zipOutputStream);
+        } finally {
+            connectionResult.close();
+        }
+    }
 }
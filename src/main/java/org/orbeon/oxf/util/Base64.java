@@ -45,8 +45,8 @@ public class Base64 {
     static private final int  SIGN               = -128;
     static private final char PAD                = '=';
     static private final boolean fDebug          = false;
-    static final private byte [] base64Alphabet        = new byte[BASELENGTH];
-    static final private char [] lookUpBase64Alphabet  = new char[LOOKUPLENGTH];
+    static final byte [] base64Alphabet        = new byte[BASELENGTH];
+    static final char [] lookUpBase64Alphabet  = new char[LOOKUPLENGTH];
 
     static {
 
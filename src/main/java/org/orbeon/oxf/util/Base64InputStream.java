@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that decodes the Base64-encoded characters of a range of a CharSequence.
+ *
+ * This reads the characters in place, so no copy of the encoded data is made. White space is ignored, as with
+ * Base64.decode().
+ */
+public class Base64InputStream extends InputStream {
+
+    private final CharSequence chars;
+    private final int end;
+    private int position;
+
+    private final byte[] group = new byte[3];
+    private int groupSize;
+    private int groupPosition;
+
+    private boolean ended;
+
+    public Base64InputStream(CharSequence chars) {
+        this(chars, 0, chars.length());
+    }
+
+    public Base64InputStream(CharSequence chars, int start, int end) {
+        if (start < 0 || end > chars.length() || start > end)
+            throw new IndexOutOfBoundsException();
+
+        this.chars = chars;
+        this.position = start;
+        this.end = end;
+    }
+
+    public int read() throws IOException {
+        if (groupPosition == groupSize && ! decodeGroup())
+            return -1;
+        return group[groupPosition++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if ((off < 0) || (len < 0) || (off > b.length) || ((off + len) > b.length))
+            throw new IndexOutOfBoundsException();
+        else if (len == 0)
+            return 0;
+
+        int count = 0;
+        while (count < len) {
+            if (groupPosition == groupSize && ! decodeGroup())
+                break;
+            final int toCopy = Math.min(len - count, groupSize - groupPosition);
+            System.arraycopy(group, groupPosition, b, off + count, toCopy);
+            groupPosition += toCopy;
+            count += toCopy;
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    public int available() {
+        return groupSize - groupPosition;
+    }
+
+    // Decode the next group of 4 characters, return false at the end of the data
+    private boolean decodeGroup() throws IOException {
+        if (ended)
+            return false;
+
+        final char c1 = nextChar();
+        if (c1 == 0) {
+            ended = true;
+            return false;
+        }
+        final char c2 = nextChar();
+        final char c3 = nextChar();
+        final char c4 = nextChar();
+
+        if (c4 == 0)
+            throw new IOException("Base64 data length is not a multiple of 4");
+
+        final int b1 = value(c1);
+        final int b2 = value(c2);
+
+        group[0] = (byte) ((b1 << 2) | (b2 >> 4));
+        if (c3 == '=') {
+            if (c4 != '=')
+                throw new IOException("Invalid Base64 padding");
+            groupSize = 1;
+            ended = true;
+        } else {
+            final int b3 = value(c3);
+            group[1] = (byte) (((b2 & 0xf) << 4) | (b3 >> 2));
+            if (c4 == '=') {
+                groupSize = 2;
+                ended = true;
+            } else {
+                group[2] = (byte) (((b3 & 0x3) << 6) | value(c4));
+                groupSize = 3;
+            }
+        }
+        groupPosition = 0;
+        return true;
+    }
+
+    // Return the next non-white space character, or 0 at the end of the data
+    private char nextChar() {
+        while (position < end) {
+            final char c = chars.charAt(position++);
+            if (! Base64.isWhiteSpace(c))
+                return c;
+        }
+        return 0;
+    }
+
+    private static int value(char c) throws IOException {
+        final int value = c < Base64.base64Alphabet.length ? Base64.base64Alphabet[c] : -1;
+        if (value < 0)
+            throw new IOException("Invalid Base64 character: " + c);
+        return value;
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * An OutputStream that converts the bytes written into it into Base64-encoded characters written to a Writer.
+ *
+ * The output is the same as Base64.encode(bytes, false), that is without line breaks. Closing this stream writes the
+ * final padded group and flushes the Writer, but doesn't close it.
+ */
+public class Base64OutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 4096; // must be a multiple of 4
+
+    private final Writer writer;
+
+    private final char[] charBuffer = new char[BUFFER_SIZE];
+    private int charCount;
+
+    private final byte[] group = new byte[3];
+    private int groupSize;
+
+    private boolean closed;
+
+    public Base64OutputStream(Writer writer) {
+        this.writer = writer;
+    }
+
+    public void write(int b) throws IOException {
+        if (closed)
+            throw new IOException("Base64OutputStream already closed");
+
+        group[groupSize++] = (byte) b;
+        if (groupSize == 3)
+            encodeGroup();
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Base64OutputStream already closed");
+
+        if ((off < 0) || (len < 0) || (off > b.length) || ((off + len) > b.length))
+            throw new IndexOutOfBoundsException();
+
+        final int end = off + len;
+        int i = off;
+
+        // Complete the pending group if any
+        while (groupSize > 0 && i < end)
+            write(b[i++]);
+
+        // Encode full groups directly from the input
+        final char[] lookup = Base64.lookUpBase64Alphabet;
+        while (end - i >= 3) {
+            if (charCount == BUFFER_SIZE)
+                flushBuffer();
+
+            final int b1 = b[i++] & 0xff;
+            final int b2 = b[i++] & 0xff;
+            final int b3 = b[i++] & 0xff;
+
+            charBuffer[charCount++] = lookup[b1 >> 2];
+            charBuffer[charCount++] = lookup[((b1 & 0x3) << 4) | (b2 >> 4)];
+            charBuffer[charCount++] = lookup[((b2 & 0xf) << 2) | (b3 >> 6)];
+            charBuffer[charCount++] = lookup[b3 & 0x3f];
+        }
+
+        // Keep the remaining bytes for later
+        while (i < end)
+            group[groupSize++] = b[i++];
+    }
+
+    public void flush() throws IOException {
+        // Only complete groups can be written before the end
+        flushBuffer();
+        writer.flush();
+    }
+
+    public void close() throws IOException {
+        if (! closed) {
+            if (groupSize > 0)
+                encodeGroup();
+            flush();
+            closed = true;
+        }
+    }
+
+    private void encodeGroup() throws IOException {
+        if (charCount == BUFFER_SIZE)
+            flushBuffer();
+
+        final char[] lookup = Base64.lookUpBase64Alphabet;
+
+        final int b1 = group[0] & 0xff;
+        final int b2 = groupSize > 1 ? group[1] & 0xff : 0;
+        final int b3 = groupSize > 2 ? group[2] & 0xff : 0;
+
+        charBuffer[charCount++] = lookup[b1 >> 2];
+        charBuffer[charCount++] = lookup[((b1 & 0x3) << 4) | (b2 >> 4)];
+        charBuffer[charCount++] = groupSize > 1 ? lookup[((b2 & 0xf) << 2) | (b3 >> 6)] : '=';
+        charBuffer[charCount++] = groupSize > 2 ? lookup[b3 & 0x3f] : '=';
+
+        groupSize = 0;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (charCount > 0) {
+            writer.write(charBuffer, 0, charCount);
+            charCount = 0;
+        }
+    }
+}
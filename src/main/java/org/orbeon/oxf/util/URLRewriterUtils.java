@@ -19,18 +19,20 @@ import org.orbeon.oxf.common.Version;
 import org.orbeon.oxf.pipeline.api.ExternalContext;
 import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.controller.PageFlowControllerProcessor;
-import org.orbeon.oxf.processor.RegexpMatcher;
 import org.orbeon.oxf.properties.Properties;
 import org.orbeon.oxf.servlet.OrbeonXFormsFilter;
 import org.orbeon.oxf.xforms.XFormsProperties;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Utility class to rewrite URLs.
@@ -65,6 +67,16 @@ public class URLRewriterUtils {
         MATCH_ALL_PATH_MATCHERS = Collections.singletonList(URLRewriterUtils.MATCH_ALL_PATH_MATCHER);
     }
 
+    // Compiled regexps of the platform and app paths properties, recompiled only when the property changes
+    private static final CompiledPattern platformPathsPattern = new CompiledPattern();
+    private static final CompiledPattern appPathsPattern = new CompiledPattern();
+
+    // Versioned matchers for lists of path matchers, which are few and usually come from the page flow
+    // NOTE: The maps are cleared when they reach their maximum size, which only happens if matchers keep changing.
+    private static final int MAX_VERSIONED_MATCHERS = 100;
+    private static final int MAX_RESOURCE_PATHS = 1000;
+    private static final Map<List<PathMatcher>, VersionedMatcher> versionedMatchers = new ConcurrentHashMap<List<PathMatcher>, VersionedMatcher>();
+
     /**
      * Rewrite a URL based on the request URL, a URL, and a rewriting mode.
      *
@@ -151,7 +163,7 @@ public class URLRewriterUtils {
 
     public static boolean isSeparateDeployment(ExternalContext.Request request) {
         final Map<String, Object> attributes = request.getAttributesMap();
-        return "separate".equals(attributes.get(OrbeonXFormsFilter.RendererDeploymentAttributeName()));
+        return attributes != null && "separate".equals(attributes.get(OrbeonXFormsFilter.RendererDeploymentAttributeName()));
     }
 
     public static boolean isForwarded(ExternalContext.Request request) {
@@ -183,21 +195,7 @@ public class URLRewriterUtils {
             return urlString;
 
         try {
-            final String baseURLString;
-            {
-                String _baseURLString;
-                // Prepend absolute base if needed
-                if ((rewriteMode & ExternalContext.Response.REWRITE_MODE_ABSOLUTE) != 0) {
-                    _baseURLString = scheme + "://" + host + ((port == 80 || port == -1) ? "" : ":" + port);
-                } else {
-                    _baseURLString = "";
-                }
-                // Append context path if needed
-                if ((rewriteMode & ExternalContext.Response.REWRITE_MODE_ABSOLUTE_PATH_NO_CONTEXT) == 0)
-                    _baseURLString = _baseURLString + contextPath;
-
-                baseURLString = _baseURLString;
-            }
+            final String baseURLString = baseURL(scheme, host, port, contextPath, rewriteMode);
 
             // Return absolute path URI with query string and fragment identifier if needed
             if (urlString.startsWith("?")) {
@@ -228,6 +226,22 @@ public class URLRewriterUtils {
         }
     }
 
+    // Return the scheme, host, port and context path to prepend to an absolute path, depending on the rewrite mode
+    private static String baseURL(String scheme, String host, int port, String contextPath, int rewriteMode) {
+        String baseURLString;
+        // Prepend absolute base if needed
+        if ((rewriteMode & ExternalContext.Response.REWRITE_MODE_ABSOLUTE) != 0) {
+            baseURLString = scheme + "://" + host + ((port == 80 || port == -1) ? "" : ":" + port);
+        } else {
+            baseURLString = "";
+        }
+        // Append context path if needed
+        if ((rewriteMode & ExternalContext.Response.REWRITE_MODE_ABSOLUTE_PATH_NO_CONTEXT) == 0)
+            baseURLString = baseURLString + contextPath;
+
+        return baseURLString;
+    }
+
     /**
      * Rewrite a resource URL, possibly with version information, based on the incoming request as well as a list of
      * path matchers.
@@ -240,56 +254,74 @@ public class URLRewriterUtils {
      */
     public static String rewriteResourceURL(ExternalContext.Request request, String urlString, List<URLRewriterUtils.PathMatcher> pathMatchers, int rewriteMode) {
         if (pathMatchers != null && pathMatchers.size() > 0) {
-            // We need to match the URL against the matcher
-
-            // 1. Rewrite to absolute path URI without context
-            final String absoluteURINoContext = rewriteURL(request, urlString, ExternalContext.Response.REWRITE_MODE_ABSOLUTE_PATH_NO_CONTEXT);
-            if (NetUtils.urlHasProtocol(absoluteURINoContext))
-                return absoluteURINoContext; // will be an absolute path
-
-            // Obtain just the path
-            final String absolutePathNoContext;
-            {
-                final URI absoluteURINoContextURI;
-                try {
-                    absoluteURINoContextURI = new URI(absoluteURINoContext);
-                } catch (URISyntaxException e) {
-                    throw new OXFException(e);
+            // We need to match the URL against the matchers
+            final VersionedMatcher versionedMatcher = getVersionedMatcher(pathMatchers);
+
+            if (urlString.startsWith("/") && ! urlString.startsWith("//")) {
+                // Absolute path: the path doesn't depend on the request path, so it is memoized per matcher list, and
+                // only the base URL is built from the request
+                final String resourcePath = versionedMatcher.resourcePath(request, urlString);
+                return baseURL(request.getScheme(), request.getServerName(), request.getServerPort(), request.getClientContextPath(urlString), rewriteMode)
+                        + resourcePath;
+            } else {
+                final String absoluteURINoContext = rewriteURL(request, urlString, ExternalContext.Response.REWRITE_MODE_ABSOLUTE_PATH_NO_CONTEXT);
+                if (NetUtils.urlHasProtocol(absoluteURINoContext))
+                    return absoluteURINoContext; // will be an absolute path
+
+                final String version = resourceVersion(request, absoluteURINoContext, versionedMatcher);
+                if (version != null) {
+                    // Found a match, perform additional rewrite at the beginning
+                    // Call full method so that we can get the proper client context path
+                    return rewriteURL(request.getScheme(), request.getServerName(), request.getServerPort(),
+                            request.getClientContextPath(urlString), request.getRequestPath(), "/" + version + absoluteURINoContext, rewriteMode);
                 }
-                absolutePathNoContext = absoluteURINoContextURI.getPath();
-            }
 
-            if (absolutePathNoContext.startsWith("/xforms-server/")) {
-                // Special URL must not be rewritten as resource
-                // TODO: when is this hit?
+                // No match found, perform regular rewrite
                 return rewriteURL(request, urlString, rewriteMode);
             }
+        } else {
+            // No Page Flow context, perform regular rewrite
+            return rewriteURL(request, urlString, rewriteMode);
+        }
+    }
 
-            // 2. Determine if URL is a platform or application URL based on reserved paths
-            final boolean isPlatformURL = isPlatformPath(absolutePathNoContext);
+    /**
+     * Return the version to prepend to the given absolute URI without context, or null if it is not versioned.
+     */
+    private static String resourceVersion(ExternalContext.Request request, String absoluteURINoContext, VersionedMatcher versionedMatcher) {
 
-            // TODO: get version only once for a run
-            final String applicationVersion = getApplicationResourceVersion();
-            if (!isPlatformURL && (applicationVersion == null || isSeparateDeployment(request))) {
-                // There is no application version OR we are in separate deployment so do usual rewrite
-                return rewriteURL(request, urlString, rewriteMode);
+        // Obtain just the path
+        final String absolutePathNoContext;
+        {
+            final URI absoluteURINoContextURI;
+            try {
+                absoluteURINoContextURI = new URI(absoluteURINoContext);
+            } catch (URISyntaxException e) {
+                throw new OXFException(e);
             }
+            absolutePathNoContext = absoluteURINoContextURI.getPath();
+        }
 
-            // 3. Iterate through matchers and see if we get a match
-            if (isVersionedURL(absolutePathNoContext, pathMatchers)) {
-                // 4. Found a match, perform additional rewrite at the beginning
-                final String version = isPlatformURL ? URLRewriterUtils.getOrbeonVersionForClient() : applicationVersion;
-                // Call full method so that we can get the proper client context path
-                return rewriteURL(request.getScheme(), request.getServerName(), request.getServerPort(),
-                        request.getClientContextPath(urlString), request.getRequestPath(), "/" + version + absoluteURINoContext, rewriteMode);
-            }
+        if (absolutePathNoContext.startsWith("/xforms-server/")) {
+            // Special URL must not be rewritten as resource
+            // TODO: when is this hit?
+            return null;
+        }
 
-            // No match found, perform regular rewrite
-            return rewriteURL(request, urlString, rewriteMode);
-        } else {
-            // No Page Flow context, perform regular rewrite
-            return rewriteURL(request, urlString, rewriteMode);
+        // Determine if URL is a platform or application URL based on reserved paths
+        final boolean isPlatformURL = isPlatformPath(absolutePathNoContext);
+
+        final String applicationVersion = getApplicationResourceVersion();
+        if (!isPlatformURL && (applicationVersion == null || isSeparateDeployment(request))) {
+            // There is no application version OR we are in separate deployment so do usual rewrite
+            return null;
         }
+
+        // Check whether one of the matchers matches
+        if (versionedMatcher.matches(absolutePathNoContext))
+            return isPlatformURL ? URLRewriterUtils.getOrbeonVersionForClient() : applicationVersion;
+        else
+            return null;
     }
 
     /**
@@ -300,8 +332,7 @@ public class URLRewriterUtils {
      */
     public static boolean isPlatformPath(String absolutePathNoContext) {
         final String regexp = Properties.instance().getPropertySet().getString(REWRITING_PLATFORM_PATHS_PROPERTY, null);
-        // TODO: do not compile the regexp every time
-        return regexp != null && RegexpMatcher.jMatchResult(Pattern.compile(regexp), absolutePathNoContext).matches();
+        return regexp != null && platformPathsPattern.get(regexp).matcher(absolutePathNoContext).matches();
     }
 
     /**
@@ -312,8 +343,22 @@ public class URLRewriterUtils {
      */
     public static boolean isNonPlatformPathAppPath(String absolutePathNoContext) {
         final String regexp = Properties.instance().getPropertySet().getString(REWRITING_APP_PATHS_PROPERTY, null);
-        // TODO: do not compile the regexp every time
-        return regexp != null && RegexpMatcher.jMatchResult(Pattern.compile(regexp), absolutePathNoContext).matches();
+        return regexp != null && appPathsPattern.get(regexp).matcher(absolutePathNoContext).matches();
+    }
+
+    // Pattern compiled from the last value of a regexp property
+    private static class CompiledPattern {
+        private volatile Pattern pattern;
+
+        public Pattern get(String regexp) {
+            final Pattern current = pattern;
+            if (current != null && current.pattern().equals(regexp))
+                return current;
+
+            final Pattern newPattern = Pattern.compile(regexp);
+            pattern = newPattern;
+            return newPattern;
+        }
     }
 
     /**
@@ -432,15 +477,122 @@ public class URLRewriterUtils {
 
             this.pattern = Pattern.compile(regexp);
         }
+
+        @Override
+        public boolean equals(Object other) {
+            if (! (other instanceof PathMatcher))
+                return false;
+            final PathMatcher otherMatcher = (PathMatcher) other;
+            return regexp.equals(otherMatcher.regexp)
+                    && (mimeType == null ? otherMatcher.mimeType == null : mimeType.equals(otherMatcher.mimeType))
+                    && versioned == otherMatcher.versioned;
+        }
+
+        @Override
+        public int hashCode() {
+            return regexp.hashCode() * 31 + (mimeType == null ? 0 : mimeType.hashCode()) + (versioned ? 1 : 0);
+        }
     }
-    
-    public static boolean isVersionedURL(String absolutePathNoContext, List<URLRewriterUtils.PathMatcher> pathMatchers) {
-        for (final URLRewriterUtils.PathMatcher pathMatcher : pathMatchers) {
-            if (RegexpMatcher.jMatchResult(pathMatcher.pattern, absolutePathNoContext).matches())
-                return true;
+
+    /**
+     * Match paths against a list of path matchers with a single regexp combining the regexps of all the matchers.
+     */
+    private static class VersionedMatcher {
+        public final String regexp;
+
+        private final Pattern combinedPattern;
+        private final List<PathMatcher> pathMatchers;
+
+        // Memo of rewritten absolute paths, without base URL, for regular and separate deployment
+        private final Map<String, String> resourcePaths = new ConcurrentHashMap<String, String>();
+        private final Map<String, String> separateDeploymentResourcePaths = new ConcurrentHashMap<String, String>();
+        // Properties the memo depends on
+        private volatile String memoApplicationVersion;
+        private volatile String memoPlatformPaths;
+
+        public VersionedMatcher(List<PathMatcher> pathMatchers) {
+            final StringBuilder sb = new StringBuilder();
+            for (final PathMatcher pathMatcher : pathMatchers) {
+                if (sb.length() > 0)
+                    sb.append('|');
+                sb.append("(?:").append(pathMatcher.regexp).append(')');
+            }
+
+            this.regexp = sb.toString();
+            this.pathMatchers = pathMatchers;
+
+            // Back references would refer to the wrong groups in the combined regexp
+            Pattern combined = null;
+            if (! BACK_REFERENCE.matcher(regexp).find()) {
+                try {
+                    combined = Pattern.compile(regexp);
+                } catch (PatternSyntaxException e) {
+                    // Match the patterns one by one
+                }
+            }
+            this.combinedPattern = combined;
         }
-        
-        return false;
+
+        public boolean matches(String absolutePathNoContext) {
+            if (combinedPattern != null)
+                return combinedPattern.matcher(absolutePathNoContext).matches();
+
+            for (final PathMatcher pathMatcher : pathMatchers) {
+                if (pathMatcher.pattern.matcher(absolutePathNoContext).matches())
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Rewrite an absolute path to an absolute path without context, with version information if needed.
+         */
+        public String resourcePath(ExternalContext.Request request, String absolutePath) {
+
+            // Forget the memo if the properties it depends on have changed
+            final String applicationVersion = getApplicationResourceVersion();
+            final String platformPaths = Properties.instance().getPropertySet().getString(REWRITING_PLATFORM_PATHS_PROPERTY, null);
+            if (! StringUtils.equals(applicationVersion, memoApplicationVersion) || ! StringUtils.equals(platformPaths, memoPlatformPaths)) {
+                resourcePaths.clear();
+                separateDeploymentResourcePaths.clear();
+                memoApplicationVersion = applicationVersion;
+                memoPlatformPaths = platformPaths;
+            }
+
+            final Map<String, String> memo = isSeparateDeployment(request) ? separateDeploymentResourcePaths : resourcePaths;
+            final String existing = memo.get(absolutePath);
+            if (existing != null)
+                return existing;
+
+            final String absoluteURINoContext = rewriteURL(request, absolutePath, ExternalContext.Response.REWRITE_MODE_ABSOLUTE_PATH_NO_CONTEXT);
+            final String version = resourceVersion(request, absoluteURINoContext, this);
+            final String resourcePath = version != null ? "/" + version + absoluteURINoContext : absoluteURINoContext;
+
+            if (memo.size() >= MAX_RESOURCE_PATHS)
+                memo.clear();
+            memo.put(absolutePath, resourcePath);
+            return resourcePath;
+        }
+    }
+
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\[1-9]|\\\\k<");
+
+    private static VersionedMatcher getVersionedMatcher(List<PathMatcher> pathMatchers) {
+        final VersionedMatcher existing = versionedMatchers.get(pathMatchers);
+        if (existing != null)
+            return existing;
+
+        // Key on a copy, as the list passed might change
+        final List<PathMatcher> copy = Collections.unmodifiableList(new ArrayList<PathMatcher>(pathMatchers));
+        final VersionedMatcher versionedMatcher = new VersionedMatcher(copy);
+        if (versionedMatchers.size() >= MAX_VERSIONED_MATCHERS)
+            versionedMatchers.clear();
+        versionedMatchers.put(copy, versionedMatcher);
+        return versionedMatcher;
+    }
+
+    public static boolean isVersionedURL(String absolutePathNoContext, List<URLRewriterUtils.PathMatcher> pathMatchers) {
+        return getVersionedMatcher(pathMatchers).matches(absolutePathNoContext);
     }
     
     public static List<URLRewriterUtils.PathMatcher> getPathMatchers() {
@@ -31,6 +31,16 @@ import java.io.ObjectOutput;
 
 public abstract class Task implements Runnable, Externalizable {
 
+    /**
+     * What to do when the task is due while its previous run is still active.
+     */
+    public enum OverlapPolicy {
+        /** don't run the task this time */
+        SKIP,
+        /** run the task again as soon as the previous run completes */
+        QUEUE
+    }
+
     // instance variables
     /** has the cancel() method been called? */
     protected boolean isCancelled = false;
@@ -42,10 +52,23 @@ public abstract class Task implements Runnable, Externalizable {
     private long scheduledInitialTime = 0;
     private long scheduledInterval = 0;   // if <=0 -- means one-time execution
     private long lastRunTime = 0;
+    private volatile OverlapPolicy overlapPolicy = OverlapPolicy.QUEUE;
 
     // package view -- the task scheduler sets this when the task is scheduled with it
     TaskScheduler scheduler = null;
 
+    // package view -- state of the task within the scheduler, guarded by the scheduler
+    long nextRunTime = Long.MAX_VALUE;
+    boolean running = false;
+    boolean queued = false;
+
+    // metrics -- runs of a task don't overlap, so each metric only has one writer at a time
+    private volatile long runCount = 0;
+    private volatile long failureCount = 0;
+    private volatile long skipCount = 0;
+    private volatile long totalRunDuration = 0;
+    private volatile long lastRunDuration = 0;
+
 
     // static variables
     private static Boolean mutex = new Boolean(true);
@@ -78,9 +101,9 @@ public abstract class Task implements Runnable, Externalizable {
      * <b>Periodic</b><br>
      * The task is scheduled for repeated periodic execution, beginning at the specified time.
      * Once a task starts running, the next occurrence of the task will start running <i>interval</i>
-     * time later. It is possible for one event-firing of the task (if it runs too long) will overlap
-     * another event-firing of that same task. If this is not desired, then the task should
-     * synchronize within its run() method.
+     * time later. Runs of the same task never overlap: if the task runs too long, the next occurrence
+     * is skipped or queued depending on the task's overlap policy. If several occurrences are due at
+     * once, for example after a long pause of the JVM, they result in a single run.
      * <p>
      * This method can only be called once. Calling it more than once
      * will cause an exception.
@@ -103,6 +126,25 @@ public abstract class Task implements Runnable, Externalizable {
     }
 
 
+    /**
+     * Set what to do when the task is due while its previous run is still active. By default, the task runs again
+     * as soon as the previous run completes. At most one run is queued this way.
+     * @param overlapPolicy the policy to use
+     */
+    public void setOverlapPolicy(OverlapPolicy overlapPolicy) {
+        this.overlapPolicy = overlapPolicy;
+    }
+
+
+    /**
+     * Get what to do when the task is due while its previous run is still active.
+     * @return the overlap policy of the task
+     */
+    public OverlapPolicy getOverlapPolicy() {
+        return overlapPolicy;
+    }
+
+
     /**
      * Get the task ID.
      * @return unique Task ID.
@@ -221,6 +263,73 @@ public abstract class Task implements Runnable, Externalizable {
     }
 
 
+    /**
+     * Record a completed run. This is only called by the TaskScheduler
+     * @param duration the duration of the run in millis
+     * @param failed whether the run threw an exception
+     */
+    void recordRun(long duration, boolean failed) {
+        runCount++;
+        if (failed)
+            failureCount++;
+        totalRunDuration += duration;
+        lastRunDuration = duration;
+    }
+
+
+    /**
+     * Record a run skipped because the previous run was still active. This is only called by the TaskScheduler
+     */
+    void recordSkip() {
+        skipCount++;
+    }
+
+
+    /**
+     * Get the number of completed runs, including failed runs.
+     * @return the number of runs
+     */
+    public long getRunCount() {
+        return runCount;
+    }
+
+
+    /**
+     * Get the number of runs which threw an exception.
+     * @return the number of failed runs
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+
+    /**
+     * Get the number of runs skipped because the previous run was still active.
+     * @return the number of skipped runs
+     */
+    public long getSkipCount() {
+        return skipCount;
+    }
+
+
+    /**
+     * Get the total duration of the completed runs.
+     * @return the duration (as long, millis)
+     */
+    public long getTotalRunDuration() {
+        return totalRunDuration;
+    }
+
+
+    /**
+     * Get the duration of the last completed run.
+     * @return the duration (as long, millis), 0 if the task has not run yet
+     */
+    public long getLastRunDuration() {
+        return lastRunDuration;
+    }
+
+
     /**
      * This method persists the task. Tasks should override this method
      * if they carry instance data. (Make sure to call super.writeExternal()
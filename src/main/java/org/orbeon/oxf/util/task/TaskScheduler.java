@@ -16,14 +16,23 @@ package org.orbeon.oxf.util.task;
 // imports
 
 import org.apache.log4j.Logger;
+import org.orbeon.oxf.properties.Properties;
+import org.orbeon.oxf.properties.PropertySet;
 import org.orbeon.oxf.util.LoggerFactory;
 import org.orbeon.oxf.webapp.WebAppContext;
 import org.orbeon.oxf.webapp.WebAppListener;
 
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -34,6 +43,11 @@ import java.util.TimerTask;
  * the abstract methods ( e.g. its run() method ).
  * </p>
  * <p>
+ * A single timer thread finds the tasks which are due, and the tasks run on a
+ * bounded pool of worker threads. A task which is slow or throws only affects
+ * itself: its exceptions are logged and counted in its metrics.
+ * </p>
+ * <p>
  * Persistence of the Task objects allows the TaskScheduler to be shutdown and
  * restarted with all the scheduled tasks read from storage.
  * </p>
@@ -47,21 +61,82 @@ public class TaskScheduler {
 
     private static Logger logger = LoggerFactory.createLogger(TaskScheduler.class);
 
+    public static final String THREADS_PROPERTY = "oxf.scheduler.threads";
+    public static final String SHUTDOWN_TIMEOUT_PROPERTY = "oxf.scheduler.shutdown-timeout";
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_SHUTDOWN_TIMEOUT = 10 * 1000;
+
+    /**
+     * Source of the current time, which tests can control.
+     */
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
     // instance variables
-    private Timer schedulerThread;
-    private ArrayList taskList;
-    private long initTime;
+    private final Clock clock;
+    private ScheduledExecutorService timer;
+    private Executor workers;
+    private final long shutdownTimeout;
+    private final ArrayList<Task> taskList = new ArrayList<Task>();
+    private final long initTime;
+
+    // Next time the timer looks for due tasks
+    private ScheduledFuture<?> wakeup;
+    private long wakeupTime;
 
     private TaskPersistStrategy persistStrategy = null;
 
 
     /**
-     * Create a task scheduler with a default thread pool size.
+     * Create a task scheduler with the configured number of worker threads.
      */
-    private TaskScheduler() {
-        schedulerThread = new Timer(false);
-        initTime = System.currentTimeMillis();
-        taskList = new ArrayList();
+    private TaskScheduler(int threads, long shutdownTimeout) {
+        this(SYSTEM_CLOCK, newTimer(), newWorkers(threads), shutdownTimeout);
+    }
+
+
+    /**
+     * Create a task scheduler.
+     * @param clock source of the current time
+     * @param timer executor used to wait until the next task is due, or null to only run due tasks upon calling
+     *              runDueTasks()
+     * @param workers executor running the tasks
+     * @param shutdownTimeout time given to running tasks to complete upon shutdown (in millis)
+     */
+    TaskScheduler(Clock clock, ScheduledExecutorService timer, Executor workers, long shutdownTimeout) {
+        this.clock = clock;
+        this.timer = timer;
+        this.workers = workers;
+        this.shutdownTimeout = shutdownTimeout;
+        this.initTime = clock.currentTimeMillis();
+    }
+
+
+    private static ScheduledExecutorService newTimer() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "Orbeon scheduler timer");
+            }
+        });
+    }
+
+
+    // NOTE: Threads are not daemon threads, as with the former Timer, so that scheduled tasks keep running when the
+    // scheduler is used from the command line.
+    private static ExecutorService newWorkers(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "Orbeon scheduler worker " + count.incrementAndGet());
+            }
+        });
     }
 
 
@@ -90,49 +165,74 @@ public class TaskScheduler {
      * scheduling properties.
      * @param task The task to schedule for execution.
      *
-     * @exception IllegalStateException if task was already scheduled or cancelled, timer
-     *    was cancelled, or timer thread terminated.
+     * @exception IllegalStateException if task was already scheduled or cancelled, or
+     *    the scheduler was shut down.
      * @exception Exception if cannot persist task
      */
     public void schedule(Task task)
             throws IllegalStateException
             , Exception {
         synchronized (this) {
+            if (workers == null)
+                throw new IllegalStateException("Scheduler was shut down");
+
             cleanupAll();
             if (taskList.contains(task))
                 throw new IllegalStateException("Task was already scheduled");
+            if (task.isCancelled())
+                throw new IllegalStateException("Task was cancelled");
 
-            Date time = new Date(task.getScheduledFirstTime());
-
-            RunTask runTask = new RunTask(task);
-
-            if (task.getScheduledInterval() <= 0) {
-                schedulerThread.schedule(runTask, time);
-            } else {
-                schedulerThread.scheduleAtFixedRate(runTask, time, task.getScheduledInterval());
-            }
-
+            task.nextRunTime = task.getScheduledFirstTime();
             task.scheduler = this;
             taskList.add(task);
 
             this.persist(task);
+
+            scheduleWakeup(clock.currentTimeMillis());
         }
     }
 
 
     /**
-     * Cancel all executing tasks and timer threads.
-     * @param withRestart if true, all timer threads will restart; however, all scheduled task
-     * will have been cancelled.
+     * Cancel all scheduled tasks. Runs in progress complete, but no task runs again.
+     * @param withRestart if false, the scheduler is also shut down: it waits for
+     * runs in progress to complete, up to the configured timeout, and its threads
+     * terminate. If true, tasks can be scheduled again.
      *
      */
     public void cancelAll(boolean withRestart) {
+        final Executor workersToShutdown;
         synchronized (this) {
             taskList.clear();
-            schedulerThread.cancel();
 
-            if (withRestart)
-                schedulerThread = new Timer(false);
+            if (withRestart) {
+                workersToShutdown = null;
+            } else {
+                workersToShutdown = workers;
+                workers = null;
+                if (timer != null) {
+                    timer.shutdownNow();
+                    timer = null;
+                }
+            }
+        }
+
+        // Wait outside of the lock, as completing tasks need it
+        if (workersToShutdown instanceof ExecutorService)
+            shutdown((ExecutorService) workersToShutdown, shutdownTimeout);
+    }
+
+
+    private static void shutdown(ExecutorService executor, long timeout) {
+        executor.shutdown();
+        try {
+            if (! executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                logger.warn("Scheduled tasks still running after " + timeout + " ms, interrupting them");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -144,22 +244,15 @@ public class TaskScheduler {
      * @return array of Tasks which are not cancelled
      */
     public Task[] getRunningTasks() {
-        ArrayList list = new ArrayList();
-        cleanupAll();
+        final List<Task> list = new ArrayList<Task>();
 
         synchronized (this) {
-            for (int i = 0; i < taskList.size(); i++) {
-                Task task = (Task) taskList.get(i);
-                if (!task.isCancelled()) {
+            cleanupAll();
+            for (final Task task : taskList)
+                if (! task.isCancelled())
                     list.add(task);
-                }
-            }
         }
-        Task[] out = new Task[list.size()];
-        for (int i = 0; i < out.length; i++)
-            out[i] = (Task) list.get(i);
-
-        return out;
+        return list.toArray(new Task[list.size()]);
     }
 
 
@@ -170,14 +263,126 @@ public class TaskScheduler {
      */
     public Task findTaskByID(long taskID) {
         synchronized (this) {
-            for (int i = 0; i < taskList.size(); i++) {
-                Task task = (Task) taskList.get(i);
-                if (task.getID() == taskID) {
+            for (final Task task : taskList)
+                if (task.getID() == taskID)
                     return task;
+        }
+        return null;
+    }
+
+
+    /**
+     * Run the tasks which are due. This is called by the timer, and directly by tests.
+     */
+    void runDueTasks() {
+        final List<Task> toRun = new ArrayList<Task>();
+        synchronized (this) {
+            final long now = clock.currentTimeMillis();
+            cleanupAll();
+            for (final Task task : taskList) {
+                if (task.nextRunTime <= now) {
+
+                    // Next occurrence, skipping those already past
+                    final long interval = task.getScheduledInterval();
+                    if (interval > 0)
+                        task.nextRunTime += ((now - task.nextRunTime) / interval + 1) * interval;
+                    else
+                        task.nextRunTime = Long.MAX_VALUE;
+
+                    if (! task.running) {
+                        task.running = true;
+                        toRun.add(task);
+                    } else if (task.getOverlapPolicy() == Task.OverlapPolicy.QUEUE) {
+                        task.queued = true;
+                    } else {
+                        task.recordSkip();
+                        if (logger.isInfoEnabled())
+                            logger.info("Task: " + task.getName() + " won't run since it is already running");
+                    }
+                }
+            }
+            scheduleWakeup(now);
+        }
+
+        for (final Task task : toRun)
+            submit(task);
+    }
+
+
+    // Make sure the timer wakes up when the next task is due
+    private void scheduleWakeup(long now) {
+        if (timer == null)
+            return;
+
+        long next = Long.MAX_VALUE;
+        for (final Task task : taskList)
+            next = Math.min(next, task.nextRunTime);
+
+        if (next != Long.MAX_VALUE && (wakeup == null || next < wakeupTime)) {
+            if (wakeup != null)
+                wakeup.cancel(false);
+
+            wakeupTime = next;
+            wakeup = timer.schedule(new Runnable() {
+                public void run() {
+                    synchronized (TaskScheduler.this) {
+                        wakeup = null;
+                    }
+                    runDueTasks();
+                }
+            }, Math.max(0, next - now), TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    private void submit(final Task task) {
+        final Executor executor;
+        synchronized (this) {
+            executor = workers;
+        }
+        try {
+            if (executor == null)
+                throw new RejectedExecutionException();
+
+            executor.execute(new Runnable() {
+                public void run() {
+                    runTask(task);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The scheduler was shut down in the meanwhile
+            synchronized (this) {
+                task.running = false;
+                task.queued = false;
+            }
+        }
+    }
+
+
+    /**
+     * Run a task, and run it again as long as another run was queued in the meanwhile.
+     */
+    private void runTask(Task task) {
+        boolean runAgain = true;
+        while (runAgain) {
+            final long startTime = clock.currentTimeMillis();
+            task.setLastRunTime(startTime);
+
+            boolean failed = true;
+            try {
+                task.run();
+                failed = false;
+            } catch (Throwable t) {
+                logger.error("Task: " + task.getName() + " failed", t);
+            } finally {
+                task.recordRun(clock.currentTimeMillis() - startTime, failed);
+                synchronized (this) {
+                    runAgain = task.queued && workers != null && taskList.contains(task) && ! task.isCancelled();
+                    task.queued = false;
+                    task.running = runAgain;
                 }
             }
         }
-        return null;
     }
 
 
@@ -217,7 +422,7 @@ public class TaskScheduler {
     private void cleanupAll() {
         synchronized (this) {
             for (int i = 0; i < taskList.size(); i++) {
-                Task task = (Task) taskList.get(i);
+                Task task = taskList.get(i);
                 if (task.isCancelled()) {
                     taskList.remove(i);
                     if (persistStrategy != null)
@@ -231,7 +436,8 @@ public class TaskScheduler {
 
     /**
      * Get a singleton TaskScheduler. This can be used if the application wants
-     * to share one task scheduler across the whole JVM.
+     * to share one task scheduler across the whole JVM. The scheduler is shut down
+     * when the web application is destroyed.
      */
     public static TaskScheduler getInstance(WebAppContext webAppContext) {
         synchronized (webAppContext) {
@@ -239,7 +445,11 @@ public class TaskScheduler {
             if (existingTaskScheduler != null) {
                 return existingTaskScheduler;
             } else {
-                final TaskScheduler newTaskScheduler = new TaskScheduler();
+                final PropertySet propertySet = Properties.instance().getPropertySet();
+                final TaskScheduler newTaskScheduler = new TaskScheduler(
+                    propertySet.getInteger(THREADS_PROPERTY, DEFAULT_THREADS),
+                    propertySet.getInteger(SHUTDOWN_TIMEOUT_PROPERTY, DEFAULT_SHUTDOWN_TIMEOUT)
+                );
                 webAppContext.getAttributesMap().put("task-scheduler", newTaskScheduler);
                 webAppContext.addListener(new WebAppListener() {
                     public void webAppDestroyed() {
@@ -250,46 +460,4 @@ public class TaskScheduler {
             }
         }
     }
-
-
-    /**
-     * RunTask class is scheduler to on the Timer
-     * and is associated with a Task which it runs.
-     */
-    private class RunTask extends TimerTask {
-        // instance variables
-        private Task task;
-
-
-        /**
-         * Create a new RunTask
-         * @param task The Task to run
-         */
-        public RunTask(Task task) {
-            this.task = task;
-        }
-
-
-        /**
-         * Run the Task
-         */
-        public void run() {
-            if (task.isCancelled()) {
-                this.cancel();
-                return;
-            }
-
-            // NOTE: TBD
-            //    For now we just launch a thread to do the task.
-            //    This is potentially not scaleable. In the future,
-            //    we will pick threads from a pool.
-
-            Thread runner = new Thread(task);
-            runner.start();
-            task.setLastRunTime(System.currentTimeMillis());
-        }
-
-    }
-
-
-}
\ No newline at end of file
+}
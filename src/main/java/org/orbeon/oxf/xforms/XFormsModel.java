@@ -702,6 +702,14 @@ public class XFormsModel extends XFormsModelBase implements XFormsEventObserver,
         // Set the flags
         deferredActionContext().markStructuralChange();
 
+        // Schema validation must process the whole instance again
+        if (instance != null)
+            instance.schemaValidationState().invalidate();
+        else
+            for (final XFormsInstance currentInstance : instances)
+                if (currentInstance != null)
+                    currentInstance.schemaValidationState().invalidate();
+
         // Notify dependencies of the change
         containingDocument().getXPathDependencies().markStructuralChange(this, instance);
     }
@@ -16,6 +16,7 @@ package org.orbeon.oxf.xforms;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.dom4j.Attribute;
+import org.dom4j.Document;
 import org.dom4j.Element;
 import org.dom4j.Node;
 import org.dom4j.QName;
@@ -59,6 +60,8 @@ import org.orbeon.oxf.xml.XMLParsing;
 import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
 import org.orbeon.oxf.xml.dom4j.ExtendedLocationData;
 import org.orbeon.oxf.xml.dom4j.LocationData;
+import org.orbeon.saxon.om.NodeInfo;
+import org.orbeon.saxon.om.VirtualNode;
 import org.xml.sax.InputSource;
 import org.xml.sax.helpers.AttributesImpl;
 import scala.Option;
@@ -66,8 +69,10 @@ import scala.Option;
 import javax.xml.parsers.SAXParserFactory;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Provides XML Schema validation services for the XForms model.
@@ -92,6 +97,9 @@ public class XFormsModelSchemaValidator {
     // REDocumentDeclaration is not reentrant, but the validator is used by a single thread
     private REDocumentDeclaration documentDeclaration;
 
+    // State recorded for the instance being validated, if any
+    private ValidationState currentState;
+
     public XFormsModelSchemaValidator(Element modelElement, IndentedLogger indentedLogger) {
         this.modelElement = modelElement;
         this.indentedLogger = indentedLogger;
@@ -148,6 +156,168 @@ public class XFormsModelSchemaValidator {
         }
     }
 
+    /**
+     * Result of the last validation of an instance, kept so that the next validation only processes the elements whose
+     * value changed since.
+     *
+     * For each element, this remembers the state of the parent's acceptor just before the element, and the content
+     * model left to the parent just after it. When the value of an element changes, the element is validated again
+     * from the acceptor state before it. Its parent is validated again only if what is left of the parent's content
+     * model is different, and so on up to the root element.
+     *
+     * Any structural change to the instance requires a full validation. Instances whose schema uses identity
+     * constraints are always fully validated, as these constraints are checked across the whole document.
+     */
+    public static class ValidationState {
+
+        private Document document;
+        private REDocumentDeclaration documentDeclaration;
+        private boolean hasIdentityConstraints;
+
+        private final Map<Element, ElementState> elementStates = new IdentityHashMap<Element, ElementState>();
+        private final Map<Node, Boolean> invalidNodes = new IdentityHashMap<Node, Boolean>();
+        private final Map<Element, Boolean> changedElements = new IdentityHashMap<Element, Boolean>();
+
+        private int validatedElementCount;
+
+        /**
+         * Whether the next validation only needs to process the changed elements.
+         */
+        public boolean isIncremental() {
+            return document != null && ! hasIdentityConstraints;
+        }
+
+        private boolean isIncremental(Document document, REDocumentDeclaration documentDeclaration) {
+            return isIncremental() && this.document == document && this.documentDeclaration == documentDeclaration;
+        }
+
+        /**
+         * Require a full validation next time, following a structural change or a replacement of the document.
+         */
+        public void invalidate() {
+            document = null;
+            documentDeclaration = null;
+            elementStates.clear();
+            invalidNodes.clear();
+            changedElements.clear();
+        }
+
+        /**
+         * Remember that the value of an element or attribute changed since the last validation.
+         */
+        public void markValueChange(NodeInfo nodeInfo) {
+            if (document != null) {
+                final Node node = (nodeInfo instanceof VirtualNode) ? (Node) ((VirtualNode) nodeInfo).getUnderlyingNode() : null;
+                final Element element = (node instanceof Element) ? (Element) node : (node != null) ? node.getParent() : null;
+                if (element != null)
+                    changedElements.put(element, Boolean.TRUE);
+                else
+                    invalidate();
+            }
+        }
+
+        public boolean isValid() {
+            return invalidNodes.isEmpty();
+        }
+
+        /**
+         * Number of elements validated by the last validation, which is smaller than the number of elements of the
+         * instance when the validation was incremental.
+         */
+        public int getValidatedElementCount() {
+            return validatedElementCount;
+        }
+
+        private void reset(Document document, REDocumentDeclaration documentDeclaration) {
+            invalidate();
+            this.document = document;
+            this.documentDeclaration = documentDeclaration;
+            this.hasIdentityConstraints = false;
+            this.validatedElementCount = 0;
+            forget(document.getRootElement());
+        }
+
+        // Clear the schema state of the element and its descendants before validating them again
+        private void forget(Element element) {
+            elementStates.remove(element);
+            invalidNodes.remove(element);
+            InstanceData.clearSchemaState(element);
+
+            for (final Object o : element.attributes()) {
+                final Attribute attribute = (Attribute) o;
+                invalidNodes.remove(attribute);
+                InstanceData.clearSchemaState(attribute);
+            }
+
+            for (final Iterator iterator = element.elementIterator(); iterator.hasNext();)
+                forget((Element) iterator.next());
+        }
+
+        // Changed elements which are still in the document, outermost only, or null if one was removed
+        private List<Element> takeChangedElements() {
+            final List<Element> result = new ArrayList<Element>(changedElements.size());
+            for (final Element element : changedElements.keySet()) {
+                if (element.getDocument() != document)
+                    return null;
+
+                boolean hasChangedAncestor = false;
+                for (Element ancestor = element.getParent(); ancestor != null && ! hasChangedAncestor; ancestor = ancestor.getParent())
+                    hasChangedAncestor = changedElements.containsKey(ancestor);
+
+                if (! hasChangedAncestor)
+                    result.add(element);
+            }
+            changedElements.clear();
+            return result;
+        }
+    }
+
+    /**
+     * What the next validation needs to validate an element again.
+     *
+     * This doesn't clone the parent's acceptor for each element. Expressions are shared within a grammar, and the
+     * parent's acceptor is shared by its children, so the acceptor before the element is created again only when the
+     * element is validated again.
+     */
+    private static class ElementState {
+
+        // Element validated in lax mode
+        static final ElementState LAX = new ElementState(null, null, null);
+
+        final SimpleAcceptor parentAcceptor; // acceptor of the parent's content, null if validated in lax mode
+        final Expression before;             // parent's content model left before the element
+        final Expression after;              // parent's content model left after the element
+
+        ElementState(SimpleAcceptor parentAcceptor, Expression before, Expression after) {
+            this.parentAcceptor = parentAcceptor;
+            this.before = before;
+            this.after = after;
+        }
+
+        boolean isLax() {
+            return parentAcceptor == null;
+        }
+
+        // NOTE: Only plain SimpleAcceptor and XSAcceptor are recreated, as their state is just their expression
+        static boolean canRecreate(Acceptor acceptor) {
+            return acceptor.getClass() == SimpleAcceptor.class || acceptor.getClass() == XSAcceptor.class;
+        }
+
+        // Parent's acceptor as it was just before the element
+        Acceptor createAcceptorBefore(REDocumentDeclaration documentDeclaration) {
+            if (parentAcceptor instanceof XSAcceptor)
+                return new XSAcceptor((XSREDocDecl) documentDeclaration, before, parentAcceptor.owner, parentAcceptor.continuation);
+            else
+                return new SimpleAcceptor(documentDeclaration, before, parentAcceptor.owner, parentAcceptor.continuation);
+        }
+
+        // NOTE: A SimpleAcceptor just moves to the continuation of the child, and expressions are unique within a
+        // grammar. With other acceptors, we don't know whether the state is the same.
+        boolean hasSameAfter(Acceptor acceptor) {
+            return acceptor instanceof SimpleAcceptor && ((SimpleAcceptor) acceptor).getExpression() == after;
+        }
+    }
+
     private void addSchemaError(final Element element, final String errMsg) {
         final String newErrorMessage;
         if (errMsg == null) {
@@ -160,12 +330,16 @@ public class XFormsModelSchemaValidator {
         if (indentedLogger.isDebugEnabled())
             indentedLogger.logDebug("schema", "validation error", "error", newErrorMessage);
         InstanceData.addSchemaError(element);
+        if (currentState != null)
+            currentState.invalidNodes.put(element, Boolean.TRUE);
     }
 
     private void addSchemaError(final Attribute attribute, final String schemaError) {
         if (indentedLogger.isDebugEnabled())
             indentedLogger.logDebug("schema", "validation error", "error", schemaError);
         InstanceData.addSchemaError(attribute);
+        if (currentState != null)
+            currentState.invalidNodes.put(attribute, Boolean.TRUE);
     }
 
     private boolean handleIDErrors(final IDConstraintChecker icc) {
@@ -183,6 +357,13 @@ public class XFormsModelSchemaValidator {
 
         boolean isElementValid = true;
 
+        if (currentState != null)
+            currentState.validatedElementCount++;
+
+        // Remember the parent's content model before the element, in case the element must be validated again
+        final boolean isRecordState = currentState != null && ElementState.canRecreate(acceptor);
+        final Expression before = isRecordState ? ((SimpleAcceptor) acceptor).getExpression() : null;
+
         // Create StartTagInfo
         final StartTagInfo startTagInfo;
         {
@@ -226,6 +407,9 @@ public class XFormsModelSchemaValidator {
         if (icc != null && isReportErrors) {
             icc.onNextAcceptorReady(startTagInfo, childAcceptor, element);
             isElementValid &= handleIDErrors(icc);
+
+            if (currentState != null && hasIdentityConstraints(childAcceptor))
+                currentState.hasIdentityConstraints = true;
         }
 
         // Validate children
@@ -269,6 +453,9 @@ public class XFormsModelSchemaValidator {
             }
         }
 
+        if (isRecordState)
+            currentState.elementStates.put(element, new ElementState((SimpleAcceptor) acceptor, before, ((SimpleAcceptor) acceptor).getExpression()));
+
         if (isReportErrors) {
             // Element may be invalid or not
             return isElementValid;
@@ -278,6 +465,16 @@ public class XFormsModelSchemaValidator {
         }
     }
 
+    private static boolean hasIdentityConstraints(Acceptor acceptor) {
+        final Object ownerType = acceptor.getOwnerType();
+        if (ownerType instanceof ElementDeclExp.XSElementExp) {
+            final ElementDeclExp.XSElementExp elementExp = (ElementDeclExp.XSElementExp) ownerType;
+            return elementExp.identityConstraints != null && elementExp.identityConstraints.size() > 0;
+        } else {
+            return false;
+        }
+    }
+
     private void setDataType(DatatypeRef datatypeRef, Node node) {
         if (datatypeRef.types != null && datatypeRef.types.length > 0) {
             // This element is valid and has at least one assigned datatype
@@ -350,9 +547,18 @@ public class XFormsModelSchemaValidator {
                 // Found type for element, so validate element
                 final Acceptor acceptor = documentDeclaration.createAcceptor();
                 isValid &= validateElement(element, acceptor, null, true);
-            } else {
+            }
+
+            // Validate the element in lax mode again if it changes, as its type might change
+            if (currentState != null)
+                currentState.elementStates.put(element, ElementState.LAX);
+
+            if (expression == null) {
                 // Element does not have type, so try to validate attributes and children elements
 
+                if (currentState != null)
+                    currentState.validatedElementCount++;
+
                 // Attributes
                 if (false) {
                     // TODO: find out way of validating an attribute only
@@ -634,30 +840,91 @@ public class XFormsModelSchemaValidator {
                 documentDeclaration = createDocumentDeclaration(schemaGrammar);
             }
 
-            // Get validation mode ("lax" is the default)
-            boolean isValid = true;
-            if (instance.instance().isLaxValidation()) {
-                // Lax validation
-                final Element instanceRootElement = instance.underlyingDocumentOrNull().getRootElement();
-                isValid &= validateElementLax(instanceRootElement);
-            } else if (instance.instance().isStrictValidation()) {
-                // Strict validation
-                final Acceptor acceptor = documentDeclaration.createAcceptor();
-                final Element instanceRootElement = instance.underlyingDocumentOrNull().getRootElement();
-                final IDConstraintChecker idConstraintChecker = new IDConstraintChecker();
-
-                isValid &= validateElement(instanceRootElement, acceptor, idConstraintChecker, true);
-                idConstraintChecker.endDocument();
-                isValid &= handleIDErrors(idConstraintChecker);
-            } else {
-                // Skip validation
+            final Document document = instance.underlyingDocumentOrNull();
+            final ValidationState state = instance.schemaValidationState();
+
+            currentState = state;
+            state.validatedElementCount = 0;
+            try {
+                // Only validate what changed since the last validation if possible
+                if (state.isIncremental(document, documentDeclaration) && validateChangedElements(state))
+                    return state.isValid();
+
+                // Clear the schema state of the whole instance
+                state.reset(document, documentDeclaration);
+
+                // Get validation mode ("lax" is the default)
+                boolean isValid = true;
+                if (instance.instance().isLaxValidation()) {
+                    // Lax validation
+                    final Element instanceRootElement = document.getRootElement();
+                    isValid &= validateElementLax(instanceRootElement);
+                } else if (instance.instance().isStrictValidation()) {
+                    // Strict validation
+                    final Acceptor acceptor = documentDeclaration.createAcceptor();
+                    final Element instanceRootElement = document.getRootElement();
+                    final IDConstraintChecker idConstraintChecker = new IDConstraintChecker();
+
+                    isValid &= validateElement(instanceRootElement, acceptor, idConstraintChecker, true);
+                    idConstraintChecker.endDocument();
+                    isValid &= handleIDErrors(idConstraintChecker);
+                } else {
+                    // Skip validation
+                }
+                return isValid;
+            } finally {
+                currentState = null;
             }
-            return isValid;
         } else {
             return true;
         }
     }
 
+    /**
+     * Validate again the elements whose value changed since the last validation, and their ancestors as needed.
+     *
+     * @return false if a full validation is required instead
+     */
+    private boolean validateChangedElements(ValidationState state) {
+
+        final List<Element> changedElements = state.takeChangedElements();
+        if (changedElements == null)
+            return false;
+
+        for (final Element changedElement : changedElements) {
+            Element element = changedElement;
+            while (element != null) {
+                final ElementState elementState = state.elementStates.get(element);
+                if (elementState == null) {
+                    // Element was not validated
+                    return false;
+                } else if (elementState.isLax()) {
+                    // Lax validation decides again whether there is a type for the element
+                    state.forget(element);
+                    validateElementLax(element);
+                    element = null;
+                } else if (element.getParent() == null) {
+                    // Strict validation of the root element is a full validation
+                    return false;
+                } else {
+                    state.forget(element);
+                    final Acceptor acceptor = elementState.createAcceptorBefore(documentDeclaration);
+                    validateElement(element, acceptor, null, true);
+
+                    // Continue with the parent if the rest of its content must be checked again
+                    element = elementState.hasSameAfter(acceptor) ? null : element.getParent();
+                }
+            }
+        }
+
+        if (indentedLogger.isDebugEnabled())
+            indentedLogger.logDebug("schema", "validated changed elements",
+                    "changed", Integer.toString(changedElements.size()),
+                    "validated", Integer.toString(state.validatedElementCount));
+
+        return true;
+    }
+
     /**
      * Check whether a node's value satisfies a simple schema type definition given by namespace URI and local name.
      *
@@ -78,45 +78,63 @@ public class XFormsUtils {
         final Source source = location ? new LocationDocumentSource(document) : new DocumentSource(document);
         TransformerUtils.sourceToSAX(source, saxStore);
 
-        // Serialize SAXStore to bytes
-        // TODO: This is not optimal since we create a third in-memory representation. Should stream instead.
-        final byte[] bytes;
+        // Serialize SAXStore directly to the encoded string
+        final StringBuilderWriter writer = new StringBuilderWriter();
         try {
-            final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            saxStore.writeExternal(new ObjectOutputStream(byteArrayOutputStream));
-            bytes = byteArrayOutputStream.toByteArray();
+            final OutputStream os = encodingOutputStream(writer, compress, encrypt);
+            try {
+                final ObjectOutputStream objectOutputStream = new ObjectOutputStream(os);
+                saxStore.writeExternal(objectOutputStream);
+                objectOutputStream.flush();
+            } finally {
+                // Close even upon error, as this returns the pooled cipher and deflater
+                os.close();
+            }
         } catch (IOException e) {
             throw new OXFException(e);
         }
-
-        // Encode bytes
-        return encodeBytes(bytes, compress, encrypt);
+        return writer.toString();
     }
 
     public static String encodeBytes(byte[] bytesToEncode, boolean compress, boolean encrypt) {
-        // Compress if needed
-        final byte[] gzipByteArray = compress ? XFormsCompressor.compressBytes(bytesToEncode) : null;
-
-        // Encrypt if needed
-        if (encrypt) {
-            // Perform encryption
-            if (gzipByteArray == null) {
-                // The data was not compressed above
-                return "X1" + SecureUtils.encrypt(bytesToEncode);
-            } else {
-                // The data was compressed above
-                return "X2" + SecureUtils.encrypt(gzipByteArray);
-            }
-        } else {
-            // No encryption
-            if (gzipByteArray == null) {
-                // The data was not compressed above
-                return "X3" + Base64.encode(bytesToEncode, false);
-            } else {
-                // The data was compressed above
-                return "X4" + Base64.encode(gzipByteArray, false);
+        // Without compression, the size of the result is known
+        final StringBuilderWriter writer = new StringBuilderWriter(compress ? 1024 : (bytesToEncode.length + 2) / 3 * 4 + 64);
+        try {
+            final OutputStream os = encodingOutputStream(writer, compress, encrypt);
+            try {
+                os.write(bytesToEncode);
+            } finally {
+                os.close();
             }
+        } catch (IOException e) {
+            throw new OXFException(e);
         }
+        return writer.toString();
+    }
+
+    /**
+     * Return a stream encoding the bytes written to it to the given writer, with a prefix indicating the encoding:
+     *
+     * - X1: encrypted
+     * - X2: compressed and encrypted
+     * - X3: plain
+     * - X4: compressed
+     *
+     * followed by the Base64-encoded data, without line breaks. The data goes through the compressor, the cipher and
+     * the Base64 encoder as it is written, so no intermediate copies are made. The stream must be closed in order to
+     * complete the encoding. This doesn't close the writer.
+     *
+     * @param writer    writer receiving the encoded characters
+     * @param compress  whether to compress the data
+     * @param encrypt   whether to encrypt the data
+     * @return          stream to write the data to encode to
+     */
+    public static OutputStream encodingOutputStream(Writer writer, boolean compress, boolean encrypt) throws IOException {
+        writer.write(encrypt ? (compress ? "X2" : "X1") : (compress ? "X4" : "X3"));
+
+        final OutputStream base64OutputStream = new Base64OutputStream(writer);
+        final OutputStream encryptedOutputStream = encrypt ? SecureUtils.encryptingOutputStream(base64OutputStream) : base64OutputStream;
+        return compress ? XFormsCompressor.compressingOutputStream(encryptedOutputStream) : encryptedOutputStream;
     }
 
     private static final HTMLSchema TAGSOUP_HTML_SCHEMA = new HTMLSchema();
@@ -373,14 +391,15 @@ public class XFormsUtils {
 
     public static Document decodeXML(String encodedXML) {
 
-        final byte[] bytes = decodeBytes(encodedXML);
-
-        // Deserialize bytes to SAXStore
-        // TODO: This is not optimal
-        final ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
+        // Deserialize SAXStore directly from the encoded string
         final SAXStore saxStore;
         try {
-            saxStore = new SAXStore(new ObjectInputStream(byteArrayInputStream));
+            final InputStream is = decodingInputStream(encodedXML);
+            try {
+                saxStore = new SAXStore(new ObjectInputStream(is));
+            } finally {
+                is.close();
+            }
         } catch (IOException e) {
             throw new OXFException(e);
         }
@@ -398,43 +417,58 @@ public class XFormsUtils {
         return result.getDocument();
     }
 
-    public static byte[] decodeBytes(String encoded) {
-        // Get raw text
-        byte[] resultBytes;
-        {
-            final String prefix = encoded.substring(0, 2);
-            final String encodedString = encoded.substring(2);
-
-            final byte[] resultBytes1;
-            final byte[] gzipByteArray;
-            if (prefix.equals("X1")) {
-                // Encryption + uncompressed
-                resultBytes1 = SecureUtils.decrypt(encodedString);
-                gzipByteArray = null;
-            } else if (prefix.equals("X2")) {
-                // Encryption + compressed
-                resultBytes1 = null;
-                gzipByteArray = SecureUtils.decrypt(encodedString);
-            } else if (prefix.equals("X3")) {
-                // No encryption + uncompressed
-                resultBytes1 = Base64.decode(encodedString);
-                gzipByteArray = null;
-            } else if (prefix.equals("X4")) {
-                // No encryption + compressed
-                resultBytes1 = null;
-                gzipByteArray = Base64.decode(encodedString);
-            } else {
-                throw new OXFException("Invalid prefix for encoded string: " + prefix);
+    public static byte[] decodeBytes(CharSequence encoded) {
+        try {
+            final InputStream is = decodingInputStream(encoded);
+            try {
+                final ByteArrayOutputStream os = new ByteArrayOutputStream(encoded.length());
+                NetUtils.copyStream(is, os);
+                return os.toByteArray();
+            } finally {
+                is.close();
             }
+        } catch (IOException e) {
+            throw new OXFException(e);
+        }
+    }
 
-            // Decompress if needed
-            if (gzipByteArray != null) {
-                resultBytes = XFormsCompressor.uncompressBytes(gzipByteArray);
-            } else {
-                resultBytes = resultBytes1;
-            }
+    /**
+     * Return a stream decoding a string produced with encodingOutputStream(). The characters are read in place, so
+     * no copy of the encoded string is made.
+     *
+     * @param encoded   encoded string
+     * @return          stream of decoded data
+     */
+    public static InputStream decodingInputStream(CharSequence encoded) throws IOException {
+        if (encoded.length() < 2)
+            throw new OXFException("Invalid encoded string");
+
+        final String prefix = encoded.subSequence(0, 2).toString();
+        final boolean encrypted;
+        final boolean compressed;
+        if (prefix.equals("X1")) {
+            // Encryption + uncompressed
+            encrypted = true;
+            compressed = false;
+        } else if (prefix.equals("X2")) {
+            // Encryption + compressed
+            encrypted = true;
+            compressed = true;
+        } else if (prefix.equals("X3")) {
+            // No encryption + uncompressed
+            encrypted = false;
+            compressed = false;
+        } else if (prefix.equals("X4")) {
+            // No encryption + compressed
+            encrypted = false;
+            compressed = true;
+        } else {
+            throw new OXFException("Invalid prefix for encoded string: " + prefix);
         }
-        return resultBytes;
+
+        final InputStream base64InputStream = new Base64InputStream(encoded, 2, encoded.length());
+        final InputStream decryptedInputStream = encrypted ? SecureUtils.decryptingInputStream(base64InputStream) : base64InputStream;
+        return compressed ? XFormsCompressor.uncompressingInputStream(decryptedInputStream) : decryptedInputStream;
     }
 
     /**
@@ -25,6 +25,7 @@ import org.orbeon.oxf.processor.ProcessorImpl;
 import org.orbeon.oxf.processor.ProcessorInputOutputInfo;
 import org.orbeon.oxf.processor.ProcessorOutput;
 import org.orbeon.oxf.servlet.OrbeonXFormsFilter;
+import org.orbeon.oxf.util.ContentHandlerWriter;
 import org.orbeon.oxf.util.IndentedLogger;
 import org.orbeon.oxf.util.LoggerFactory;
 import org.orbeon.oxf.util.NetUtils;
@@ -173,6 +174,10 @@ public class XFormsServer extends ProcessorImpl {
                     if (isIgnoreSequenceNumber || requestSequenceNumber == expectedSequenceNumber) {
                         // We are good: process request and produce new sequence number
                         try {
+                            // Record request for replay if enabled
+                            if (isAjaxRequest && AjaxRecorder.isEnabled())
+                                AjaxRecorder.record(containingDocument, requestDocument);
+
                             // Run events if any
                             final boolean isNoscript = containingDocument.noscript();
 
@@ -511,13 +516,11 @@ public class XFormsServer extends ProcessorImpl {
             }
 
             // Output dynamic state
-            {
-                final String dynamicState = XFormsStateManager.instance().getClientEncodedDynamicState(containingDocument);
-                if (dynamicState != null) {
-                    ch.startElement("xxf", XFormsConstants.XXFORMS_NAMESPACE_URI, "dynamic-state");
-                    ch.text(dynamicState);
-                    ch.endElement();
-                }
+            // NOTE: The state is encoded straight into the response, as it can be large
+            if (! containingDocument.getStaticState().isServerStateHandling()) {
+                ch.startElement("xxf", XFormsConstants.XXFORMS_NAMESPACE_URI, "dynamic-state");
+                XFormsStateManager.instance().writeClientEncodedDynamicState(containingDocument, new ContentHandlerWriter(ch.getXmlReceiver()));
+                ch.endElement();
             }
 
             // Output action
@@ -19,6 +19,7 @@ import org.orbeon.oxf.pipeline.api.ExternalContext;
 import org.orbeon.oxf.xforms.control.LHHASupport;
 import org.orbeon.oxf.xforms.processor.handlers.NullElementHandler;
 import org.orbeon.oxf.xml.*;
+import org.orbeon.oxf.xml.ElementHandlerController.HandlerFactory;
 import org.orbeon.oxf.resources.ResourceManagerWrapper;
 import org.orbeon.oxf.util.NetUtils;
 import org.orbeon.oxf.xforms.*;
@@ -264,122 +265,200 @@ public class XHTMLBodyHandler extends XFormsBaseHandlerXHTML {
 
     public static void registerHandlers(final ElementHandlerController controller, final XFormsContainingDocument containingDocument) {
 
+        // Handlers for the top-level part, computed once per static state
+        final ElementHandlerController.HandlerTable handlerTable =
+            containingDocument.getStaticState().bodyHandlerTable(containingDocument.noscript());
+
+        controller.registerHandlers(handlerTable);
+
+        // Add handlers for custom components of nested parts, which the static state doesn't know about
+        final Seq<QName> componentBindings = containingDocument.getStaticOps().jBindingQNames();
+        for (final scala.collection.Iterator<QName> i = componentBindings.iterator(); i.hasNext();) {
+            final QName currentQName = i.next();
+            if (! handlerTable.hasHandler(currentQName.getNamespaceURI(), currentQName.getName()))
+                controller.registerHandler(COMPONENT_HANDLER_FACTORY, currentQName.getNamespaceURI(), currentQName.getName(), ANY_MATCHER);
+        }
+    }
+
+    private static final HandlerFactory COMPONENT_HANDLER_FACTORY = new HandlerFactory() {
+        public ElementHandler newHandler() { return new XXFormsComponentHandler(); }
+    };
+
+    /**
+     * Create the handlers for the body of the top-level part. This only depends on the static state and on noscript.
+     */
+    public static ElementHandlerController.HandlerTable createHandlerTable(XFormsStaticState staticState, final boolean noscript) {
+
+        final ElementHandlerController.HandlerTable.Builder builder = new ElementHandlerController.HandlerTable.Builder();
+
         // xf:input
-        controller.registerHandler(XFormsInputHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "input", ANY_MATCHER);
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsInputHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "input", ANY_MATCHER);
 
         // xf:output
-        controller.registerHandler(XFormsOutputTextHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "output",
-                new AppearanceMatcher(XFormsConstants.XXFORMS_TEXT_APPEARANCE_QNAME));
-        controller.registerHandler(XFormsOutputDownloadHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "output",
-                new AppearanceMatcher(XFormsConstants.XXFORMS_DOWNLOAD_APPEARANCE_QNAME));
-        controller.registerHandler(XFormsOutputImageHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "output", new Matcher() {
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsOutputTextHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "output", new AppearanceMatcher(XFormsConstants.XXFORMS_TEXT_APPEARANCE_QNAME));
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsOutputDownloadHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "output", new AppearanceMatcher(XFormsConstants.XXFORMS_DOWNLOAD_APPEARANCE_QNAME));
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsOutputImageHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "output", new Matcher() {
             public boolean doesMatch(Attributes attributes, Object handlerContext) {
                 // TODO: aks ElementAnalysis for its mediatype
                 final String mediatypeValue = attributes.getValue("mediatype");
                 return mediatypeValue != null && mediatypeValue.startsWith("image/");
             }
         });
-        controller.registerHandler(XFormsOutputHTMLHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "output", new Matcher() {
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsOutputHTMLHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "output", new Matcher() {
             public boolean doesMatch(Attributes attributes, Object handlerContext) {
                 // TODO: aks ElementAnalysis for its mediatype
                 final String mediatypeValue = attributes.getValue("mediatype");
                 return mediatypeValue != null && mediatypeValue.equals("text/html");
             }
         });
-        controller.registerHandler(XFormsOutputDefaultHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "output", ANY_MATCHER);
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsOutputDefaultHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "output", ANY_MATCHER);
 
         // xf:trigger
+        final HandlerFactory triggerMinimalFactory = new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsTriggerMinimalHandler(); }
+        };
+        final HandlerFactory triggerFullFactory = new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsTriggerFullHandler(); }
+        };
         final Matcher triggerSubmitMinimalMatcher = new AppearanceMatcher(XFormsConstants.XFORMS_MINIMAL_APPEARANCE_QNAME) {
             public boolean doesMatch(Attributes attributes, Object handlerContext) {
                 // in noscript mode, use the full appearance
-                return ! containingDocument.noscript() && super.doesMatch(attributes, handlerContext);
+                return ! noscript && super.doesMatch(attributes, handlerContext);
             }
         };
-        controller.registerHandler(XFormsTriggerMinimalHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "trigger", triggerSubmitMinimalMatcher);
-        controller.registerHandler(XFormsTriggerFullHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "trigger", ANY_MATCHER);
+        builder.registerHandler(triggerMinimalFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "trigger", triggerSubmitMinimalMatcher);
+        builder.registerHandler(triggerFullFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "trigger", ANY_MATCHER);
 
         // xf:submit
-        controller.registerHandler(XFormsTriggerMinimalHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "submit", triggerSubmitMinimalMatcher);
-        controller.registerHandler(XFormsTriggerFullHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "submit", ANY_MATCHER);
+        builder.registerHandler(triggerMinimalFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "submit", triggerSubmitMinimalMatcher);
+        builder.registerHandler(triggerFullFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "submit", ANY_MATCHER);
 
         // xf:group
-        controller.registerHandler(XFormsGroupInternalHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "group",
-                new AppearanceMatcher(XFormsConstants.XXFORMS_INTERNAL_APPEARANCE_QNAME));
-
-        controller.registerHandler(XFormsGroupSeparatorHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "group", new Matcher() {
+        final HandlerFactory groupSeparatorFactory = new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsGroupSeparatorHandler(); }
+        };
+        final HandlerFactory groupDefaultFactory = new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsGroupDefaultHandler(); }
+        };
+        final Matcher separatorMatcher = new Matcher() {
             public boolean doesMatch(Attributes attributes, Object handlerContext) {
                 // XFormsAnnotator adds this appearance if needed
                 // See: https://github.com/orbeon/orbeon-forms/issues/418
                 final String appearanceAttributeValue = attributes.getValue(XFormsConstants.APPEARANCE_QNAME.getName());
                 return XFormsConstants.XXFORMS_SEPARATOR_APPEARANCE_QNAME.getQualifiedName().equals(appearanceAttributeValue);
             }
-        });
+        };
 
-        controller.registerHandler(XFormsGroupFieldsetHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "group",
-                new AppearanceMatcher(XFormsConstants.XXFORMS_FIELDSET_APPEARANCE_QNAME) {
-                    public boolean doesMatch(Attributes attributes, Object handlerContext) {
-                        return super.doesMatch(attributes, handlerContext) || LHHASupport.hasLabel(containingDocument, getPrefixedId(attributes, handlerContext));
-                    }
-                });
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsGroupInternalHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "group", new AppearanceMatcher(XFormsConstants.XXFORMS_INTERNAL_APPEARANCE_QNAME));
 
-        controller.registerHandler(XFormsGroupDefaultHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "group", ANY_MATCHER);
+        builder.registerHandler(groupSeparatorFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "group", separatorMatcher);
 
-        // xf:switch
-        // NOTE: We use the same handlers for switch as we do for group
-        controller.registerHandler(XFormsGroupSeparatorHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "switch", new Matcher() {
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsGroupFieldsetHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "group", new AppearanceMatcher(XFormsConstants.XXFORMS_FIELDSET_APPEARANCE_QNAME) {
             public boolean doesMatch(Attributes attributes, Object handlerContext) {
-                // XFormsAnnotator adds this appearance if needed
-                // See: https://github.com/orbeon/orbeon-forms/issues/418
-                final String appearanceAttributeValue = attributes.getValue(XFormsConstants.APPEARANCE_QNAME.getName());
-                return XFormsConstants.XXFORMS_SEPARATOR_APPEARANCE_QNAME.getQualifiedName().equals(appearanceAttributeValue);
+                final XFormsContainingDocument containingDocument = ((HandlerContext) handlerContext).getContainingDocument();
+                return super.doesMatch(attributes, handlerContext) || LHHASupport.hasLabel(containingDocument, getPrefixedId(attributes, handlerContext));
             }
         });
-        controller.registerHandler(XFormsGroupDefaultHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "switch", ANY_MATCHER);
-        controller.registerHandler(XFormsCaseHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "case", ANY_MATCHER);
+
+        builder.registerHandler(groupDefaultFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "group", ANY_MATCHER);
+
+        // xf:switch
+        // NOTE: We use the same handlers for switch as we do for group
+        builder.registerHandler(groupSeparatorFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "switch", separatorMatcher);
+        builder.registerHandler(groupDefaultFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "switch", ANY_MATCHER);
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsCaseHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "case", ANY_MATCHER);
 
         // xf:repeat
-        controller.registerHandler(XFormsRepeatHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "repeat", ANY_MATCHER);
-        controller.registerHandler(NullElementHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "repeat-iteration", ANY_MATCHER);
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsRepeatHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "repeat", ANY_MATCHER);
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new NullElementHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "repeat-iteration", ANY_MATCHER);
 
         // xf:secret
-        controller.registerHandler(XFormsSecretHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "secret", ANY_MATCHER);
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsSecretHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "secret", ANY_MATCHER);
 
         // xf:upload
-        controller.registerHandler(XFormsUploadHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "upload", ANY_MATCHER);
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsUploadHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "upload", ANY_MATCHER);
 
         // xf:range
-        controller.registerHandler(XFormsRangeHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "range", ANY_MATCHER);
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsRangeHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "range", ANY_MATCHER);
 
         // Other controls
-        controller.registerHandler(XFormsTextareaHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "textarea", ANY_MATCHER);
-        if (!containingDocument.noscript())
-            controller.registerHandler(XXFormsDialogHandler.class.getName(), XFormsConstants.XXFORMS_NAMESPACE_URI, "dialog", ANY_MATCHER);
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsTextareaHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "textarea", ANY_MATCHER);
+        if (! noscript)
+            builder.registerHandler(new HandlerFactory() {
+                public ElementHandler newHandler() { return new XXFormsDialogHandler(); }
+            }, XFormsConstants.XXFORMS_NAMESPACE_URI, "dialog", ANY_MATCHER);
         else
-            controller.registerHandler(NullHandler.class.getName(), XFormsConstants.XXFORMS_NAMESPACE_URI, "dialog", ANY_MATCHER);
+            builder.registerHandler(new HandlerFactory() {
+                public ElementHandler newHandler() { return new NullHandler(); }
+            }, XFormsConstants.XXFORMS_NAMESPACE_URI, "dialog", ANY_MATCHER);
 
         // xf:select and xf:select1
-        controller.registerHandler(XFormsSelect1InternalHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "select",
+        final HandlerFactory select1InternalFactory = new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsSelect1InternalHandler(); }
+        };
+        builder.registerHandler(select1InternalFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "select",
                 new AppearanceMatcher(XFormsConstants.XXFORMS_INTERNAL_APPEARANCE_QNAME));
-        controller.registerHandler(XFormsSelect1InternalHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "select1",
+        builder.registerHandler(select1InternalFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "select1",
                 new AppearanceMatcher(XFormsConstants.XXFORMS_INTERNAL_APPEARANCE_QNAME));
-        controller.registerHandler(XFormsSelectHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "select", ANY_MATCHER);
-        controller.registerHandler(XFormsSelect1Handler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "select1", ANY_MATCHER);
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsSelectHandler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "select", ANY_MATCHER);
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsSelect1Handler(); }
+        }, XFormsConstants.XFORMS_NAMESPACE_URI, "select1", ANY_MATCHER);
 
         // Add handlers for LHHA elements
-        controller.registerHandler(XFormsLHHAHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "label", ANY_MATCHER);
-        controller.registerHandler(XFormsLHHAHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "help", ANY_MATCHER);
-        controller.registerHandler(XFormsLHHAHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "hint", ANY_MATCHER);
-        controller.registerHandler(XFormsLHHAHandler.class.getName(), XFormsConstants.XFORMS_NAMESPACE_URI, "alert", ANY_MATCHER);
+        final HandlerFactory lhhaFactory = new HandlerFactory() {
+            public ElementHandler newHandler() { return new XFormsLHHAHandler(); }
+        };
+        builder.registerHandler(lhhaFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "label", ANY_MATCHER);
+        builder.registerHandler(lhhaFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "help", ANY_MATCHER);
+        builder.registerHandler(lhhaFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "hint", ANY_MATCHER);
+        builder.registerHandler(lhhaFactory, XFormsConstants.XFORMS_NAMESPACE_URI, "alert", ANY_MATCHER);
 
         // Add handlers for custom components
-        final Seq<QName> componentBindings = containingDocument.getStaticOps().jBindingQNames();
+        final Seq<QName> componentBindings = staticState.topLevelPart().jBindingQNames();
         for (final scala.collection.Iterator<QName> i = componentBindings.iterator(); i.hasNext();) {
             final QName currentQName = i.next();
-            controller.registerHandler(XXFormsComponentHandler.class.getName(), currentQName.getNamespaceURI(), currentQName.getName(), ANY_MATCHER);
+            builder.registerHandler(COMPONENT_HANDLER_FACTORY, currentQName.getNamespaceURI(), currentQName.getName(), ANY_MATCHER);
         }
 
         // xxf:dynamic
-        controller.registerHandler(XXFormsDynamicHandler.class.getName(), XFormsConstants.XXFORMS_NAMESPACE_URI, "dynamic", ANY_MATCHER);
+        builder.registerHandler(new HandlerFactory() {
+            public ElementHandler newHandler() { return new XXFormsDynamicHandler(); }
+        }, XFormsConstants.XXFORMS_NAMESPACE_URI, "dynamic", ANY_MATCHER);
+
+        return builder.build();
     }
 
     public void end(String uri, String localname, String qName) throws SAXException {
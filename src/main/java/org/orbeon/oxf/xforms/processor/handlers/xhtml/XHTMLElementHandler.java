@@ -13,6 +13,7 @@
  */
 package org.orbeon.oxf.xforms.processor.handlers.xhtml;
 
+import org.orbeon.oxf.xml.ElementHandlerController;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
@@ -26,6 +27,20 @@ public class XHTMLElementHandler extends XFormsBaseHandlerXHTML {
 	 */
 	private static final String[] REF_ID_ATTRIBUTE_NAMES = new String[] { "for" };
 
+    /**
+     * Elements without an id or a reference to an id are output unchanged, so they don't need a handler.
+     */
+    public static final ElementHandlerController.Matcher<Boolean> MATCHER = new ElementHandlerController.Matcher<Boolean>() {
+        public Boolean match(Attributes attributes, Object handlerContext) {
+            if (attributes.getIndex("id") != -1)
+                return Boolean.TRUE;
+            for (final String refIdAttributeName : REF_ID_ATTRIBUTE_NAMES)
+                if (attributes.getIndex(refIdAttributeName) != -1)
+                    return Boolean.TRUE;
+            return null;
+        }
+    };
+
 	public XHTMLElementHandler() {
         super(false, true);
     }
@@ -17,16 +17,29 @@ import org.orbeon.oxf.cache.Cache;
 import org.orbeon.oxf.cache.InternalCacheKey;
 import org.orbeon.oxf.cache.ObjectCache;
 import org.orbeon.oxf.util.SecureUtils;
+import org.orbeon.oxf.webapp.WebAppContext;
+import org.orbeon.oxf.webapp.WebAppListener;
 import org.orbeon.oxf.xforms.XFormsContainingDocument;
 import org.orbeon.oxf.xforms.XFormsStaticState;
 
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * This cache stores mappings XFormsState -> XFormsContainingDocument into a global cache.
+ *
+ * The cache is limited by the estimated memory retained by the documents (see DocumentWeigher), as well as by number
+ * of documents. The state of evicted documents is written to the state store on a background thread. Until that is
+ * done, the document can still be taken from the cache. When too many states are waiting to be written, the state is
+ * written by the thread which evicts the document instead, so that evicted documents can't pile up in memory.
  */
 public class XFormsDocumentCache {
 
     private static final String XFORMS_DOCUMENT_CACHE_NAME = "xforms.cache.documents";
     private static final int XFORMS_DOCUMENT_CACHE_DEFAULT_SIZE = 50;
+    private static final int XFORMS_DOCUMENT_CACHE_DEFAULT_MAX_WEIGHT = 200 * 1024 * 1024;
+    private static final int XFORMS_DOCUMENT_CACHE_MAX_PENDING_SPILLS = 50;
 
     private static final Long CONSTANT_VALIDITY = 0L;
     private static final String CONTAINING_DOCUMENT_KEY_TYPE = XFORMS_DOCUMENT_CACHE_NAME;
@@ -37,7 +50,24 @@ public class XFormsDocumentCache {
         return instance;
     }
 
-    private final Cache cache = ObjectCache.instance(XFORMS_DOCUMENT_CACHE_NAME, XFORMS_DOCUMENT_CACHE_DEFAULT_SIZE);
+    private final Cache cache = ObjectCache.instance(XFORMS_DOCUMENT_CACHE_NAME, XFORMS_DOCUMENT_CACHE_DEFAULT_SIZE,
+            DocumentWeigher$.MODULE$, XFORMS_DOCUMENT_CACHE_DEFAULT_MAX_WEIGHT);
+
+    // Evicted documents whose state is not stored yet, by UUID
+    private final ConcurrentMap<String, Spill> spills = new ConcurrentHashMap<String, Spill>();
+
+    private final ExecutorService spillExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(XFORMS_DOCUMENT_CACHE_MAX_PENDING_SPILLS),
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "XForms document cache spill");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private final AtomicBoolean shutdownRegistered = new AtomicBoolean(false);
 
     private XFormsDocumentCache() {}
 
@@ -69,7 +99,13 @@ public class XFormsDocumentCache {
      */
     public XFormsContainingDocument takeDocument(String uuid) {
         final InternalCacheKey cacheKey = createCacheKey(uuid);
-        return (XFormsContainingDocument) cache.takeValid(cacheKey, CONSTANT_VALIDITY);
+        final XFormsContainingDocument containingDocument = (XFormsContainingDocument) cache.takeValid(cacheKey, CONSTANT_VALIDITY);
+        if (containingDocument != null)
+            return containingDocument;
+
+        // The document might have been evicted but not stored yet, in which case it is still the most recent
+        final Spill spill = spills.remove(uuid);
+        return (spill != null) ? spill.claim() : null;
     }
 
     /**
@@ -80,6 +116,66 @@ public class XFormsDocumentCache {
     public void removeDocument(String uuid) {
         final InternalCacheKey cacheKey = createCacheKey(uuid);
         cache.remove(cacheKey);
+
+        final Spill spill = spills.remove(uuid);
+        if (spill != null)
+            spill.claim();
+    }
+
+    /**
+     * Store the state of a document evicted from the cache on a background thread.
+     *
+     * @param containingDocument    evicted document
+     * @param webAppContext         web app, on destruction of which the background thread stops
+     * @param store                 stores the document state
+     */
+    public void spillDocument(XFormsContainingDocument containingDocument, WebAppContext webAppContext, Runnable store) {
+        if (webAppContext != null && shutdownRegistered.compareAndSet(false, true)) {
+            webAppContext.addListener(new WebAppListener() {
+                public void webAppDestroyed() {
+                    final List<Runnable> pending = spillExecutor.shutdownNow();
+                    if (! pending.isEmpty())
+                        XFormsStateManager.getIndentedLogger().logWarning("", "Dropping state of documents evicted from cache.",
+                                "count", Integer.toString(pending.size()));
+                    spills.clear();
+                }
+            });
+        }
+
+        final Spill spill = new Spill(containingDocument, store);
+        spills.put(containingDocument.getUUID(), spill);
+        // Runs on this thread if too many spills are pending
+        spillExecutor.execute(spill);
+    }
+
+    private class Spill implements Runnable {
+
+        private final XFormsContainingDocument containingDocument;
+        private final Runnable store;
+        private boolean claimed;
+
+        private Spill(XFormsContainingDocument containingDocument, Runnable store) {
+            this.containingDocument = containingDocument;
+            this.store = store;
+        }
+
+        // Called by the spill thread
+        public synchronized void run() {
+            try {
+                if (! claimed)
+                    store.run();
+            } catch (Throwable t) {
+                XFormsStateManager.getIndentedLogger().logError("", "Unable to store state of document evicted from cache.", t);
+            } finally {
+                spills.remove(containingDocument.getUUID(), this);
+            }
+        }
+
+        // Called by a request which takes the document back, waiting if its state is being stored
+        public synchronized XFormsContainingDocument claim() {
+            claimed = true;
+            return containingDocument;
+        }
     }
 
     private InternalCacheKey createCacheKey(String uuid) {
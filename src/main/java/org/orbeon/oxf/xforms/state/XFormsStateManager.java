@@ -26,6 +26,7 @@ import org.orbeon.oxf.xforms.XFormsConstants;
 import org.orbeon.oxf.xforms.XFormsContainingDocument;
 import org.orbeon.oxf.xforms.XFormsProperties;
 
+import java.io.Writer;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
@@ -197,11 +198,12 @@ public class XFormsStateManager implements XFormsStateLifecycle {
     /**
      * Called when the document is evicted from cache.
      *
-     * Implementation: remove session listener; if server state, store the document state.
+     * Implementation: remove session listener; if server state, store the document state in the background so that the
+     * request which caused the eviction doesn't wait for it.
      *
      * @param containingDocument    containing document
      */
-    public void onEvictedFromCache(XFormsContainingDocument containingDocument) {
+    public void onEvictedFromCache(final XFormsContainingDocument containingDocument) {
 
         // WARNING: This could have been called while another threads owns this document lock, but the cache now obtains
         // the lock on the document first and will not evict us if we have the lock. This means that this will be called
@@ -211,8 +213,18 @@ public class XFormsStateManager implements XFormsStateLifecycle {
         removeCacheSessionListener(containingDocument.getUUID());
 
         // Store document state
-        if (containingDocument.getStaticState().isServerStateHandling())
-            storeDocumentState(containingDocument, false);
+        if (containingDocument.getStaticState().isServerStateHandling()) {
+            // Get the store and session now, as there is no external context on the spill thread
+            final ExternalContext externalContext = NetUtils.getExternalContext();
+            final XFormsStateStore stateStore = XFormsStateStoreFactory.instance(externalContext);
+            final ExternalContext.Session session = externalContext.getRequest().getSession(XFormsStateManager.FORCE_SESSION_CREATION);
+
+            XFormsDocumentCache.instance().spillDocument(containingDocument, externalContext.getWebAppContext(), new Runnable() {
+                public void run() {
+                    stateStore.storeDocumentState(containingDocument, session, false);
+                }
+            });
+        }
     }
 
     private void cacheOrStore(XFormsContainingDocument containingDocument, boolean isInitialState) {
@@ -541,6 +553,17 @@ public class XFormsStateManager implements XFormsStateLifecycle {
         return dynamicStateString;
     }
 
+    /**
+     * Write the dynamic state to send to the client directly to the given writer, for client state handling only.
+     *
+     * @param containingDocument    containing document
+     * @param writer                writer receiving the encoded state
+     */
+    public void writeClientEncodedDynamicState(XFormsContainingDocument containingDocument, Writer writer) {
+        assert ! containingDocument.getStaticState().isServerStateHandling();
+        DynamicState.encodeDocumentTo(containingDocument, writer, XFormsProperties.isGZIPState(), true);
+    }
+
     /**
      * Called before sending an update response.
      *
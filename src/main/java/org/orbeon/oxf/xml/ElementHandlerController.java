@@ -14,6 +14,7 @@
 package org.orbeon.oxf.xml;
 
 import org.dom4j.Element;
+import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.common.OrbeonLocationException;
 import org.orbeon.oxf.xml.dom4j.Dom4jUtils;
 import org.orbeon.oxf.xml.dom4j.LocationData;
@@ -23,6 +24,8 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * This is the controller for the handlers system.
@@ -41,8 +44,9 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
     private Object elementHandlerContext;
     private DeferredXMLReceiver output;
 
-    private final Map<String, List<HandlerMatcher>> handlerMatchers = new HashMap<String, List<HandlerMatcher>>();
-    private final Map<String, String> uriHandlers = new HashMap<String, String>();
+    private HandlerTable handlerTable = HandlerTable.EMPTY;
+    // Handlers registered since the table was last built, if any
+    private HandlerTable.Builder handlerTableBuilder;
 
     private final Stack<HandlerInfo> handlerInfos = new Stack<HandlerInfo>();
     private HandlerInfo currentHandlerInfo;
@@ -54,32 +58,52 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
 
     private int level = 0;
 
-    // Class.forName is expensive, so we cache mappings
-    private static Map<String, Class<ElementHandler>> classNameToHandlerClass = new HashMap<String, Class<ElementHandler>>();
+    // Class.forName is expensive, so we cache factories for handlers registered by class name
+    private static final ConcurrentMap<String, HandlerFactory> classNameToHandlerFactory = new ConcurrentHashMap<String, HandlerFactory>();
 
     /**
-     * Register a handler. The handler can match on a URI + localname + custom matcher, URI + localname, or on URI only
-     * in that order.
+     * Register a handler. The handler can match on a URI + localname + custom matcher, URI + localname, or on URI +
+     * custom matcher, or on URI only, in that order.
      *
-     * @param handlerClassName      class name for the handler
+     * @param handlerFactory        factory creating a new handler instance for each matching element
      * @param uri                   URI of the element that triggers the handler
      * @param localname             local name of the element that triggers the handler, or null if match on URI only
      * @param matcher               matcher on attributes, or null
      */
+    public void registerHandler(HandlerFactory handlerFactory, String uri, String localname, Matcher matcher) {
+        getHandlerTableBuilder().registerHandler(handlerFactory, uri, localname, matcher);
+    }
+
+    /**
+     * Register a handler by class name. Prefer registerHandler() with a HandlerFactory, which doesn't use reflection.
+     */
     public void registerHandler(String handlerClassName, String uri, String localname, Matcher matcher) {
-        if (localname != null) {
-            // Match on URI + localname and optionally custom matcher
-            final String key = XMLUtils.buildExplodedQName(uri, localname);
-            List<HandlerMatcher> handlerMatchers = this.handlerMatchers.get(key);
-            if (handlerMatchers == null) {
-                handlerMatchers = new ArrayList<HandlerMatcher>();
-                this.handlerMatchers.put(key, handlerMatchers);
-            }
-            handlerMatchers.add(new HandlerMatcher(handlerClassName, matcher != null ? matcher : ALL_MATCHER));
-        } else {
-            // Match on URI only
-            uriHandlers.put(uri, handlerClassName);
+        registerHandler(getHandlerFactory(handlerClassName), uri, localname, matcher);
+    }
+
+    /**
+     * Register all the handlers of the given table after the handlers already registered.
+     */
+    public void registerHandlers(HandlerTable handlerTable) {
+        if (handlerTableBuilder == null)
+            this.handlerTable = this.handlerTable.withHandlers(handlerTable);
+        else
+            handlerTableBuilder.registerHandlers(handlerTable);
+    }
+
+    public HandlerTable getHandlerTable() {
+        // Build the table once after a series of registrations, rather than copying it for each registration
+        if (handlerTableBuilder != null) {
+            handlerTable = handlerTableBuilder.build();
+            handlerTableBuilder = null;
         }
+        return handlerTable;
+    }
+
+    private HandlerTable.Builder getHandlerTableBuilder() {
+        if (handlerTableBuilder == null)
+            handlerTableBuilder = new HandlerTable.Builder(handlerTable);
+        return handlerTableBuilder;
     }
 
     public void setElementHandlerContext(Object elementHandlerContext) {
@@ -129,9 +153,7 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
                 // Just ignore content
             } else {
                 // Look for a new handler
-                final String explodedQName = XMLUtils.buildExplodedQName(uri, localname);
-
-                final HandlerInfo handlerInfo = getHandler(uri, explodedQName, attributes);
+                final HandlerInfo handlerInfo = getHandler(uri, localname, attributes);
 
                 if (handlerInfo != null) {
                     // New handler found
@@ -493,69 +515,76 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
      * @return          handler if found
      */
     public ElementHandler getHandler(Element element) {
-        final HandlerInfo handlerInfo = 
-        getHandler(element.getNamespaceURI(),
-                XMLUtils.buildExplodedQName(element.getNamespaceURI(), element.getName()),
-                Dom4jUtils.getSAXAttributes(element));
-        
+        final HandlerInfo handlerInfo =
+            getHandler(element.getNamespaceURI(), element.getName(), Dom4jUtils.getSAXAttributes(element));
+
         return (handlerInfo != null) ? handlerInfo.elementHandler : null;
     }
 
-    private HandlerInfo getHandler(String uri, String explodedQName, Attributes attributes) {
+    private HandlerInfo getHandler(String uri, String localname, Attributes attributes) {
         // 1: Try full matchers
-        final List<HandlerMatcher> handlerMatchers = this.handlerMatchers.get(explodedQName);
+        final HandlerTable handlerTable = getHandlerTable();
+        final HandlerMatcher[] handlerMatchers = handlerTable.getMatchers(uri, localname);
         if (handlerMatchers != null) {
             // Try matchers in order
-            for (HandlerMatcher handlerMatcher: handlerMatchers) {
+            for (final HandlerMatcher handlerMatcher : handlerMatchers) {
                 // Run matcher
                 final Object matched = handlerMatcher.matcher.match(attributes, elementHandlerContext);
                 if (matched != null) {
-                    final ElementHandler elementHandler = getHandlerByClassName(handlerMatcher.handlerClassName);
-                    return new HandlerInfo(level, explodedQName, elementHandler, attributes, matched, this.locator);
+                    final ElementHandler elementHandler = handlerMatcher.handlerFactory.newHandler();
+                    return new HandlerInfo(level, elementHandler, attributes, matched, this.locator);
                 }
             }
         }
 
         // 2: Try URI-based handler
-        final String uriHandlerClassName = uriHandlers.get(uri);
-        if (uriHandlerClassName != null) {
-            final ElementHandler elementHandler = getHandlerByClassName(uriHandlerClassName);
-            return new HandlerInfo(level, explodedQName, elementHandler, attributes, null, this.locator);
+        final HandlerMatcher uriHandlerMatcher = handlerTable.getURIMatcher(uri);
+        if (uriHandlerMatcher != null && uriHandlerMatcher.matcher.match(attributes, elementHandlerContext) != null) {
+            final ElementHandler elementHandler = uriHandlerMatcher.handlerFactory.newHandler();
+            return new HandlerInfo(level, elementHandler, attributes, null, this.locator);
         } else {
             return null;
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private ElementHandler getHandlerByClassName(String handlerClassName) {
-        Class<ElementHandler> handlerClass = classNameToHandlerClass.get(handlerClassName);
-        if (handlerClass == null) {
-            try {
-                handlerClass = (Class<ElementHandler>) Class.forName(handlerClassName);
-                classNameToHandlerClass.put(handlerClassName, handlerClass);
-            } catch (ClassNotFoundException e) {
-                throw OrbeonLocationException.wrapException(e, new LocationData(locator));
-            }
-        }
+    /**
+     * Return a factory for the given handler class name. The factory uses reflection to create handlers.
+     */
+    public static HandlerFactory getHandlerFactory(String handlerClassName) {
+        final HandlerFactory existingFactory = classNameToHandlerFactory.get(handlerClassName);
+        if (existingFactory != null)
+            return existingFactory;
+
+        final Class<? extends ElementHandler> handlerClass;
         try {
-            return handlerClass.newInstance();
-        } catch (Exception e) {
-            throw OrbeonLocationException.wrapException(e, new LocationData(locator));
+            handlerClass = Class.forName(handlerClassName).asSubclass(ElementHandler.class);
+        } catch (ClassNotFoundException e) {
+            throw new OXFException(e);
         }
+
+        final HandlerFactory newFactory = new HandlerFactory() {
+            public ElementHandler newHandler() {
+                try {
+                    return handlerClass.newInstance();
+                } catch (Exception e) {
+                    throw new OXFException(e);
+                }
+            }
+        };
+        classNameToHandlerFactory.putIfAbsent(handlerClassName, newFactory);
+        return newFactory;
     }
 
     private static class HandlerInfo {
         public final int level;
-        public final String explodedQName;
         public final ElementHandler elementHandler;
         public final Attributes attributes;
         public final Object matched;
 
         public final SAXStore saxStore;
         
-        public HandlerInfo(int level, String explodedQName, ElementHandler elementHandler, Attributes attributes, Object matched, Locator locator) {
+        public HandlerInfo(int level, ElementHandler elementHandler, Attributes attributes, Object matched, Locator locator) {
             this.level = level;
-            this.explodedQName = explodedQName;
             this.elementHandler = elementHandler;
             this.attributes = elementHandler.isRepeating() ? new AttributesImpl(attributes) : null; // NOTE: could keep attributes if needed
             this.matched = matched;
@@ -572,7 +601,14 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
         T match(Attributes attributes, Object handlerContext);
     }
 
-    private final Matcher ALL_MATCHER = new Matcher<Boolean>() {
+    /**
+     * Create a new handler instance.
+     */
+    public interface HandlerFactory {
+        ElementHandler newHandler();
+    }
+
+    private static final Matcher ALL_MATCHER = new Matcher<Boolean>() {
         public Boolean match(Attributes attributes, Object handlerContext) {
             // Just return something
             return Boolean.TRUE;
@@ -580,12 +616,128 @@ public class ElementHandlerController implements ElementHandlerContext, XMLRecei
     };
 
     private static class HandlerMatcher {
-        public String handlerClassName;
-        public Matcher matcher;
+        public final HandlerFactory handlerFactory;
+        public final Matcher matcher;
+
+        private HandlerMatcher(HandlerFactory handlerFactory, Matcher matcher) {
+            this.handlerFactory = handlerFactory;
+            this.matcher = matcher != null ? matcher : ALL_MATCHER;
+        }
+    }
+
+    /**
+     * Immutable dispatch table from elements to handlers.
+     *
+     * A table can be computed once and shared between threads and controllers. Lookups are by URI first, so elements
+     * in namespaces without handlers are forwarded without further work.
+     */
+    public static final class HandlerTable {
+
+        public static final HandlerTable EMPTY =
+            new HandlerTable(new HashMap<String, Map<String, HandlerMatcher[]>>(), new HashMap<String, HandlerMatcher>());
+
+        // URI → local name → matchers in order of registration
+        private final Map<String, Map<String, HandlerMatcher[]>> qNameMatchers;
+        // URI → matcher for any element in that namespace
+        private final Map<String, HandlerMatcher> uriMatchers;
+
+        private HandlerTable(Map<String, Map<String, HandlerMatcher[]>> qNameMatchers, Map<String, HandlerMatcher> uriMatchers) {
+            this.qNameMatchers = qNameMatchers;
+            this.uriMatchers = uriMatchers;
+        }
+
+        private HandlerMatcher[] getMatchers(String uri, String localname) {
+            final Map<String, HandlerMatcher[]> localnameMatchers = qNameMatchers.get(uri);
+            return localnameMatchers != null ? localnameMatchers.get(localname) : null;
+        }
+
+        private HandlerMatcher getURIMatcher(String uri) {
+            return uriMatchers.get(uri);
+        }
+
+        /**
+         * Whether at least one handler is registered for the given URI and local name.
+         */
+        public boolean hasHandler(String uri, String localname) {
+            return getMatchers(uri, localname) != null;
+        }
+
+        /**
+         * Return a new table with the handlers of the given table added after the handlers of this table.
+         */
+        public HandlerTable withHandlers(HandlerTable other) {
+            if (other == EMPTY)
+                return this;
+            else if (this == EMPTY)
+                return other;
+
+            return new Builder(this).registerHandlers(other).build();
+        }
+
+        /**
+         * Mutable builder for a HandlerTable. Registration order is kept.
+         */
+        public static final class Builder {
 
-        private HandlerMatcher(String handlerClassName, Matcher matcher) {
-            this.handlerClassName = handlerClassName;
-            this.matcher = matcher;
+            private final Map<String, Map<String, List<HandlerMatcher>>> qNameMatchers = new HashMap<String, Map<String, List<HandlerMatcher>>>();
+            private final Map<String, HandlerMatcher> uriMatchers = new HashMap<String, HandlerMatcher>();
+
+            public Builder() {}
+
+            public Builder(HandlerTable table) {
+                registerHandlers(table);
+            }
+
+            /**
+             * Register all the handlers of the given table after the handlers already registered.
+             */
+            public Builder registerHandlers(HandlerTable table) {
+                for (final Map.Entry<String, Map<String, HandlerMatcher[]>> uriEntry : table.qNameMatchers.entrySet())
+                    for (final Map.Entry<String, HandlerMatcher[]> localnameEntry : uriEntry.getValue().entrySet())
+                        for (final HandlerMatcher handlerMatcher : localnameEntry.getValue())
+                            add(uriEntry.getKey(), localnameEntry.getKey(), handlerMatcher);
+                uriMatchers.putAll(table.uriMatchers);
+                return this;
+            }
+
+            /**
+             * See ElementHandlerController.registerHandler().
+             */
+            public Builder registerHandler(HandlerFactory handlerFactory, String uri, String localname, Matcher matcher) {
+                if (localname != null) {
+                    // Match on URI + localname and optionally custom matcher
+                    add(uri, localname, new HandlerMatcher(handlerFactory, matcher));
+                } else {
+                    // Match on URI and optionally custom matcher
+                    uriMatchers.put(uri, new HandlerMatcher(handlerFactory, matcher));
+                }
+                return this;
+            }
+
+            private void add(String uri, String localname, HandlerMatcher handlerMatcher) {
+                Map<String, List<HandlerMatcher>> localnameMatchers = qNameMatchers.get(uri);
+                if (localnameMatchers == null) {
+                    localnameMatchers = new HashMap<String, List<HandlerMatcher>>();
+                    qNameMatchers.put(uri, localnameMatchers);
+                }
+                List<HandlerMatcher> handlerMatchers = localnameMatchers.get(localname);
+                if (handlerMatchers == null) {
+                    handlerMatchers = new ArrayList<HandlerMatcher>();
+                    localnameMatchers.put(localname, handlerMatchers);
+                }
+                handlerMatchers.add(handlerMatcher);
+            }
+
+            public HandlerTable build() {
+                final Map<String, Map<String, HandlerMatcher[]>> newQNameMatchers = new HashMap<String, Map<String, HandlerMatcher[]>>();
+                for (final Map.Entry<String, Map<String, List<HandlerMatcher>>> uriEntry : qNameMatchers.entrySet()) {
+                    final Map<String, HandlerMatcher[]> localnameMatchers = new HashMap<String, HandlerMatcher[]>();
+                    for (final Map.Entry<String, List<HandlerMatcher>> localnameEntry : uriEntry.getValue().entrySet())
+                        localnameMatchers.put(localnameEntry.getKey(), localnameEntry.getValue().toArray(new HandlerMatcher[localnameEntry.getValue().size()]));
+                    newQNameMatchers.put(uriEntry.getKey(), localnameMatchers);
+                }
+                return new HandlerTable(newQNameMatchers, new HashMap<String, HandlerMatcher>(uriMatchers));
+            }
         }
     }
 }
@@ -27,16 +27,17 @@ import javax.xml.transform.stream.StreamResult;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * SAXStore keeps a compact representation of SAX events sent to the ContentHandler interface.
  *
- * As of June 2009, we increase the size of buffers by 50% instead of 100%. Still not the greatest way. Possibly,
- * passed a threshold, say 10 MB or 20 MB, we could use a linked list of such big blocks.
- *
- * TODO: Handling of system IDs is not optimal in memory as system IDs are unlikely to change much within a document.
+ * Events, characters and numbers are kept in fixed-size pages (see SAXStorePages), so large documents don't need large
+ * arrays. Past the memory budget of the store, given by the oxf.sax-store.max-memory property unless passed to the
+ * constructor, pages are spilled to a temporary file. System IDs are only stored when they change.
  */
 public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
@@ -52,25 +53,25 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     public static final byte START_PREFIX_MAPPING = 0x0A;
     public static final byte COMMENT = 0x0B;
 
-    private static final int INITIAL_SIZE = 10;
-
-    private byte[] eventBuffer;
-    private int eventBufferPosition;
-
-    private char[] charBuffer;
-    private int charBufferPosition;
+    // Value computed for the previous implementation, whose serialized form is unchanged
+    private static final long serialVersionUID = -6180811846822160956L;
 
-    private int[] intBuffer;
-    private int intBufferPosition;
+    private final long maxMemory;
+    private SAXStorePages pages;
 
-    private int[] lineBuffer;
-    private int lineBufferPosition;
+    private SAXStorePages.BytePages eventBuffer;
+    private SAXStorePages.CharPages charBuffer;
+    private SAXStorePages.IntPages intBuffer;
+    private SAXStorePages.IntPages lineBuffer;
 
-    private String[] systemIdBuffer;
+    // System IDs: one location per event with location, but only the changes are stored, as pairs of location position
+    // and index in the list of distinct system IDs (-1 for a null system ID)
     private int systemIdBufferPosition;
+    private SAXStorePages.IntPages systemIdRuns;
+    private List<String> systemIds;
+    private Map<String, Integer> systemIdIndexes;
 
-    private int[] attributeCountBuffer;
-    private int attributeCountBufferPosition;
+    private SAXStorePages.IntPages attributeCountBuffer;
     private int attributeCount;
 
     private List<String> StringBuilder = new ArrayList<String>();
@@ -107,12 +108,12 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         private Mark(final SAXStore store, final String id) {
             this.id = id;
-            this.eventBufferPosition = store.eventBufferPosition;
-            this.charBufferPosition = store.charBufferPosition;
-            this.intBufferPosition = store.intBufferPosition;
-            this.lineBufferPosition = store.lineBufferPosition;
+            this.eventBufferPosition = store.eventBuffer.size();
+            this.charBufferPosition = store.charBuffer.size();
+            this.intBufferPosition = store.intBuffer.size();
+            this.lineBufferPosition = store.lineBuffer.size();
             this.systemIdBufferPosition = store.systemIdBufferPosition;
-            this.attributeCountBufferPosition = store.attributeCountBufferPosition;
+            this.attributeCountBufferPosition = store.attributeCountBuffer.size();
             this.StringBuilderPosition = store.StringBuilder.size();
             
             rememberMark();
@@ -150,23 +151,16 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     }
 
     public long getApproximateSize() {
-        long size = eventBufferPosition * 4;
-        size += charBufferPosition;
-        size += intBufferPosition * 4;
-        size += lineBufferPosition * 4;
+        long size = eventBuffer.size() * 4;
+        size += charBuffer.size();
+        size += intBuffer.size() * 4;
+        size += lineBuffer.size() * 4;
 
-        {
-            String previousId = null;
-            for (int i = 0; i < systemIdBuffer.length; i++) {
-                final String currentId = systemIdBuffer[i];
-                // This is rough, but entries in the list could point to the same string, so we try to detect this case.
-                if (currentId != null && currentId != previousId)
-                    size += currentId.length() * 2;
-                previousId = currentId;
-            }
-        }
+        size += systemIdRuns.size() * 4;
+        for (final String systemId : systemIds)
+            size += systemId.length() * 2;
 
-        size += attributeCountBufferPosition * 4;
+        size += attributeCountBuffer.size() * 4;
 
         {
             String previousString = null;
@@ -186,11 +180,27 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
         return attributeCount;
     }
 
+    /**
+     * Number of pages written to disk because the store exceeded its memory budget.
+     */
+    public int getSpilledPages() {
+        return pages.getSpilledPages();
+    }
+
     public SAXStore() {
+        this(-1);
+    }
+
+    /**
+     * @param maxMemory memory budget in bytes, 0 for no limit, or a negative value to use the configured budget
+     */
+    public SAXStore(long maxMemory) {
+        this.maxMemory = maxMemory;
         init();
     }
 
     public SAXStore(ObjectInput input) {
+        this.maxMemory = -1;
         try {
             readExternal(input);
         } catch (Exception e) {
@@ -200,6 +210,7 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
     public SAXStore(XMLReceiver xmlReceiver) {
         super.setXMLReceiver(xmlReceiver);
+        this.maxMemory = -1;
         init();
     }
 
@@ -208,23 +219,22 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     }
 
     protected void init() {
-        eventBufferPosition = 0;
-        eventBuffer = new byte[INITIAL_SIZE];
-
-        charBufferPosition = 0;
-        charBuffer = new char[INITIAL_SIZE * 4];
-
-        intBufferPosition = 0;
-        intBuffer = new int[INITIAL_SIZE];
+        if (pages != null)
+            pages.closeSpillFile();
+        pages = new SAXStorePages(maxMemory);
 
-        lineBufferPosition = 0;
-        lineBuffer = new int[INITIAL_SIZE];
+        eventBuffer = pages.new BytePages();
+        charBuffer = pages.new CharPages();
+        intBuffer = pages.new IntPages();
+        lineBuffer = pages.new IntPages();
 
         systemIdBufferPosition = 0;
-        systemIdBuffer = new String[INITIAL_SIZE];
+        systemIdRuns = pages.new IntPages();
+        systemIds = new ArrayList<String>();
+        systemIdIndexes = new HashMap<String, Integer>();
 
-        attributeCountBufferPosition = 0;
-        attributeCountBuffer = new int[INITIAL_SIZE];
+        attributeCountBuffer = pages.new IntPages();
+        attributeCount = 0;
 
         StringBuilder.clear();
 
@@ -242,7 +252,10 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
         int attributeCountBufferPos = mark.attributeCountBufferPosition;
         final int[] lineBufferPos = { mark.lineBufferPosition } ;
         final int[] systemIdBufferPos = { mark.systemIdBufferPosition } ;
+        final int[] systemIdRun = { findSystemIdRun(mark.systemIdBufferPosition) };
         final AttributesImpl attributes = new AttributesImpl();
+        final SAXStorePages.CharRun chars = new SAXStorePages.CharRun();
+        final int eventBufferPosition = eventBuffer.size();
         int currentEventPosition = mark.eventBufferPosition;
 
         final Locator outputLocator = !hasDocumentLocator ? null : new Locator() {
@@ -251,31 +264,17 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
             }
 
             public String getSystemId() {
-                try {
-                    return systemIdBuffer[systemIdBufferPos[0]];
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    return null;
-                }
+                return systemIdAt(systemIdBufferPos[0], systemIdRun);
             }
 
             public int getLineNumber() {
-                try {
-                    return lineBuffer[lineBufferPos[0]];
-                } catch (ArrayIndexOutOfBoundsException e) {// FIXME: sometimes this fails
-//                    System.out.println("Incorrect line number: " + lineBufferPos[0]);
-                    //e.printStackTrace();
-                    return -1;
-                }
+                final int position = lineBufferPos[0];
+                return position < lineBuffer.size() ? lineBuffer.get(position) : -1;
             }
 
             public int getColumnNumber() {
-                try {
-                    return lineBuffer[lineBufferPos[0] + 1];
-                } catch (ArrayIndexOutOfBoundsException e) {// FIXME: sometimes this fails
-//                    System.out.println("Incorrect line number: " + lineBufferPos[0]);
-                    //e.printStackTrace();
-                    return -1;
-                }
+                final int position = lineBufferPos[0] + 1;
+                return position < lineBuffer.size() ? lineBuffer.get(position) : -1;
             }
         };
 
@@ -284,11 +283,11 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
         }
 
         // Handle element marks
-        final boolean handleElementMark = (mark != START_MARK) && (eventBuffer[currentEventPosition] == START_ELEMENT);
+        final boolean handleElementMark = (mark != START_MARK) && currentEventPosition < eventBufferPosition && (eventBuffer.get(currentEventPosition) == START_ELEMENT);
 
         int elementLevel = 0;
         eventLoop: while (currentEventPosition < eventBufferPosition) {
-            final byte eventType = eventBuffer[currentEventPosition];
+            final byte eventType = eventBuffer.get(currentEventPosition);
             final boolean eventHasLocation = hasDocumentLocator && eventType != END_PREFIX_MAPPING && eventType != START_PREFIX_MAPPING;
             switch (eventType) {
                 case START_DOCUMENT: {
@@ -300,7 +299,7 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
                     final String localName = StringBuilder.get(StringBuilderPos++);
                     final String qName = StringBuilder.get(StringBuilderPos++);
                     attributes.clear();
-                    final int attributeCount = attributeCountBuffer[attributeCountBufferPos++];
+                    final int attributeCount = attributeCountBuffer.get(attributeCountBufferPos++);
                     for (int i = 0; i < attributeCount; i++) {
                         attributes.addAttribute(StringBuilder.get(StringBuilderPos++),
                                 StringBuilder.get(StringBuilderPos++), StringBuilder.get(StringBuilderPos++),
@@ -311,8 +310,9 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
                     break;
                 }
                 case CHARACTERS: {
-                    final int length = intBuffer[intBufferPos++];
-                    xmlReceiver.characters(charBuffer, charBufferPos, length);
+                    final int length = intBuffer.get(intBufferPos++);
+                    charBuffer.read(charBufferPos, length, chars);
+                    xmlReceiver.characters(chars.chars, chars.start, length);
                     charBufferPos += length;
                     break;
                 }
@@ -338,8 +338,9 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
                     break;
                 }
                 case IGN_WHITESPACE: {
-                    final int length = intBuffer[intBufferPos++];
-                    xmlReceiver.ignorableWhitespace(charBuffer, charBufferPos, length);
+                    final int length = intBuffer.get(intBufferPos++);
+                    charBuffer.read(charBufferPos, length, chars);
+                    xmlReceiver.ignorableWhitespace(chars.chars, chars.start, length);
                     charBufferPos += length;
                     break;
                 }
@@ -359,8 +360,9 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
                 }
                 case COMMENT: {
 
-                    final int length = intBuffer[intBufferPos++];
-                    xmlReceiver.comment(charBuffer, charBufferPos, length);
+                    final int length = intBuffer.get(intBufferPos++);
+                    charBuffer.read(charBufferPos, length, chars);
+                    xmlReceiver.comment(chars.chars, chars.start, length);
                     charBufferPos += length;
 
                     break;
@@ -374,6 +376,36 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
         }
     }
 
+    // Index of the system ID run containing the given location, or -1 if there is none
+    private int findSystemIdRun(int position) {
+        int low = 0;
+        int high = systemIdRuns.size() / 2 - 1;
+        int result = -1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (systemIdRuns.get(middle * 2) <= position) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return result;
+    }
+
+    // System ID at the given location. The run is a cursor which only moves forward, as locations are read in order.
+    private String systemIdAt(int position, int[] run) {
+        if (position >= systemIdBufferPosition || run[0] < 0)
+            return null;
+
+        final int runCount = systemIdRuns.size() / 2;
+        while (run[0] + 1 < runCount && systemIdRuns.get((run[0] + 1) * 2) <= position)
+            run[0]++;
+
+        final int index = systemIdRuns.get(run[0] * 2 + 1);
+        return index < 0 ? null : systemIds.get(index);
+    }
+
     // Create a new mark
     // NOTE: This must be called *before* the startElement() event that will be the first element associated with the mark.
     public Mark getMark(String id) {
@@ -446,6 +478,9 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         // The resulting SAXStore should never keep references to whoever filled it
         locator = null;
+
+        // Recording is done, so release the temporary file if pages were spilled
+        pages.closeSpillFile();
     }
 
     @Override
@@ -570,153 +605,94 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     }
 
     protected void addToCharBuffer(char[] chars, int start, int length) {
-        if (charBuffer.length - charBufferPosition <= length) {
-            // double the array
-            char[] old = charBuffer;
-            try{
-                charBuffer = new char[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, charBuffer, 0, charBufferPosition);
-            addToCharBuffer(chars, start, length);
-        } else {
-            System.arraycopy(chars, start, charBuffer, charBufferPosition, length);
-            charBufferPosition += length;
-        }
+        charBuffer.add(chars, start, length);
     }
 
     protected void addToIntBuffer(int i) {
-        if (intBuffer.length - intBufferPosition == 1) {
-            // double the array
-            int[] old = intBuffer;
-            try{
-                intBuffer = new int[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, intBuffer, 0, intBufferPosition);
-            addToIntBuffer(i);
-        } else {
-            intBuffer[intBufferPosition++] = i;
-        }
+        intBuffer.add(i);
     }
 
     protected void addToLineBuffer(int i) {
-        if (lineBuffer.length - lineBufferPosition == 1) {
-            // double the array
-            int[] old = lineBuffer;
-            try {
-                lineBuffer = new int[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, lineBuffer, 0, lineBufferPosition);
-            addToLineBuffer(i);
-        } else {
-            lineBuffer[lineBufferPosition++] = i;
-        }
+        lineBuffer.add(i);
     }
 
     protected void addToSystemIdBuffer(String systemId) {
-
-        // Try to detect contiguous system ids
-        //
-        // NOTE: This native method won't work during replay, will need to store number of contiguous identical strings
-        // as well, and/or use intern().
-//        if (systemIdBufferPosition > 0 && systemIdBuffer[systemIdBufferPosition] == systemId) {
-//            return;
-//        }
-
-        if (systemIdBuffer.length - systemIdBufferPosition == 1) {
-            // double the array
-            String[] old = systemIdBuffer;
-            try {
-                systemIdBuffer = new String[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, systemIdBuffer, 0, systemIdBufferPosition);
-            addToSystemIdBuffer(systemId);
-        } else {
-            systemIdBuffer[systemIdBufferPosition++] = systemId;
+        // Start a new run only if the system ID changes
+        final int runCount = systemIdRuns.size() / 2;
+        final int currentIndex = runCount == 0 ? -2 : systemIdRuns.get(runCount * 2 - 1);
+        final int index = systemIdIndex(systemId);
+        if (index != currentIndex) {
+            systemIdRuns.add(systemIdBufferPosition);
+            systemIdRuns.add(index);
         }
+        systemIdBufferPosition++;
     }
 
+    private int systemIdIndex(String systemId) {
+        if (systemId == null)
+            return -1;
+
+        final Integer existing = systemIdIndexes.get(systemId);
+        if (existing != null)
+            return existing;
+
+        final int index = systemIds.size();
+        systemIds.add(systemId);
+        systemIdIndexes.put(systemId, index);
+        return index;
+    }
 
     protected void addToEventBuffer(byte b) {
-        if (eventBuffer.length - eventBufferPosition == 1) {
-            // double the array
-            byte[] old = eventBuffer;
-            try {
-                eventBuffer = new byte[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, eventBuffer, 0, eventBufferPosition);
-            addToEventBuffer(b);
-        } else {
-            eventBuffer[eventBufferPosition++] = b;
-        }
+        eventBuffer.add(b);
     }
 
     private void addToAttributeBuffer(Attributes attributes) {
-        if (attributeCountBuffer.length - attributeCountBufferPosition == 1) {
-            // double the array
-            int[] old = attributeCountBuffer;
-            try {
-                attributeCountBuffer = new int[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, attributeCountBuffer, 0, attributeCountBufferPosition);
-            addToAttributeBuffer(attributes);
-        } else {
-            final int count = attributes.getLength();
-            attributeCountBuffer[attributeCountBufferPosition++] = count;
-            attributeCount += count;
-            for (int i = 0; i < attributes.getLength(); i++) {
-                StringBuilder.add(attributes.getURI(i));
-                StringBuilder.add(attributes.getLocalName(i));
-                StringBuilder.add(attributes.getQName(i));
-                StringBuilder.add(attributes.getType(i));
-                StringBuilder.add(attributes.getValue(i));
-            }
+        final int count = attributes.getLength();
+        attributeCountBuffer.add(count);
+        attributeCount += count;
+        for (int i = 0; i < attributes.getLength(); i++) {
+            StringBuilder.add(attributes.getURI(i));
+            StringBuilder.add(attributes.getLocalName(i));
+            StringBuilder.add(attributes.getQName(i));
+            StringBuilder.add(attributes.getType(i));
+            StringBuilder.add(attributes.getValue(i));
         }
     }
 
     public void writeExternal(ObjectOutput out) throws IOException {
 
+        final int eventBufferPosition = eventBuffer.size();
         out.writeInt(eventBufferPosition);
-        out.write(eventBuffer, 0, eventBufferPosition);
+        for (int i = 0; i < eventBufferPosition; i++)
+            out.writeByte(eventBuffer.get(i));
 
+        final int charBufferPosition = charBuffer.size();
         out.writeInt(charBufferPosition);
         for (int i = 0; i < charBufferPosition; i++)
-            out.writeChar(charBuffer[i]);
+            out.writeChar(charBuffer.get(i));
 
+        final int intBufferPosition = intBuffer.size();
         out.writeInt(intBufferPosition);
         for (int i = 0; i < intBufferPosition; i++)
-            out.writeInt(intBuffer[i]);
+            out.writeInt(intBuffer.get(i));
 
+        final int lineBufferPosition = lineBuffer.size();
         out.writeInt(lineBufferPosition);
         for (int i = 0; i < lineBufferPosition; i++)
-            out.writeInt(lineBuffer[i]);
+            out.writeInt(lineBuffer.get(i));
 
+        // One system ID per location, so that the serialized form doesn't depend on how system IDs are stored
         out.writeInt(systemIdBufferPosition);
+        final int[] systemIdRun = { findSystemIdRun(0) };
         for (int i = 0; i < systemIdBufferPosition; i++) {
-            final String systemId = systemIdBuffer[i];
+            final String systemId = systemIdAt(i, systemIdRun);
             out.writeObject(systemId == null ? "" : systemId);
         }
 
+        final int attributeCountBufferPosition = attributeCountBuffer.size();
         out.writeInt(attributeCountBufferPosition);
         for (int i = 0; i < attributeCountBufferPosition; i++)
-            out.writeInt(attributeCountBuffer[i]);
+            out.writeInt(attributeCountBuffer.get(i));
 
         out.writeInt(StringBuilder.size());
         for (int i = 0; i < StringBuilder.size(); i++)
@@ -745,60 +721,65 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     }
 
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-        eventBufferPosition = in.readInt();
-        eventBuffer = new byte[eventBufferPosition];
-        for (int i = 0; i < eventBufferPosition; i++)
-            eventBuffer[i] = in.readByte();
-
-        charBufferPosition = in.readInt();
-        charBuffer = new char[charBufferPosition];
-        for (int i = 0; i < charBufferPosition; i++)
-            charBuffer[i] = in.readChar();
+        init();
+        try {
+            final int eventBufferPosition = in.readInt();
+            for (int i = 0; i < eventBufferPosition; i++)
+                eventBuffer.add(in.readByte());
+
+            final int charBufferPosition = in.readInt();
+            final char[] chars = new char[Math.min(charBufferPosition, 4096)];
+            for (int read = 0; read < charBufferPosition;) {
+                final int count = Math.min(chars.length, charBufferPosition - read);
+                for (int i = 0; i < count; i++)
+                    chars[i] = in.readChar();
+                charBuffer.add(chars, 0, count);
+                read += count;
+            }
 
-        intBufferPosition = in.readInt();
-        intBuffer = new int[intBufferPosition];
-        for (int i = 0; i < intBufferPosition; i++)
-            intBuffer[i] = in.readInt();
+            final int intBufferPosition = in.readInt();
+            for (int i = 0; i < intBufferPosition; i++)
+                intBuffer.add(in.readInt());
 
-        lineBufferPosition = in.readInt();
-        lineBuffer = new int[lineBufferPosition];
-        for (int i = 0; i < lineBufferPosition; i++)
-            lineBuffer[i] = in.readInt();
+            final int lineBufferPosition = in.readInt();
+            for (int i = 0; i < lineBufferPosition; i++)
+                lineBuffer.add(in.readInt());
 
-        systemIdBufferPosition = in.readInt();
-        systemIdBuffer = new String[systemIdBufferPosition];
-        for (int i = 0; i < systemIdBufferPosition; i++) {
-            systemIdBuffer[i] = (String) in.readObject();
-            if ("".equals(systemIdBuffer[i]))
-                systemIdBuffer[i] = null;
-        }
+            final int systemIdCount = in.readInt();
+            for (int i = 0; i < systemIdCount; i++) {
+                final String systemId = (String) in.readObject();
+                addToSystemIdBuffer("".equals(systemId) ? null : systemId);
+            }
 
-        attributeCountBufferPosition = in.readInt();
-        attributeCountBuffer = new int[attributeCountBufferPosition];
-        for (int i = 0; i < attributeCountBufferPosition; i++) {
-            final int count = in.readInt();
-            attributeCountBuffer[i] = count;
-            attributeCount += count;
-        }
+            final int attributeCountBufferPosition = in.readInt();
+            for (int i = 0; i < attributeCountBufferPosition; i++) {
+                final int count = in.readInt();
+                attributeCountBuffer.add(count);
+                attributeCount += count;
+            }
 
-        final int StringBuilderSize = in.readInt();
-        for (int i = 0; i < StringBuilderSize; i++)
-            StringBuilder.add((String) in.readObject());
+            final int StringBuilderSize = in.readInt();
+            for (int i = 0; i < StringBuilderSize; i++)
+                StringBuilder.add((String) in.readObject());
 
-        hasDocumentLocator = in.readBoolean();
-        publicId = (String) in.readObject();
-        if ("".equals(publicId))
-            publicId = null;
+            hasDocumentLocator = in.readBoolean();
+            publicId = (String) in.readObject();
+            if ("".equals(publicId))
+                publicId = null;
         
-        final int marksCount = in.readInt();
-        if (marksCount > 0) {
-            for (int i = 0; i < marksCount; i++) {
-                final String id = (String) in.readObject();
-                int[] values = new int[7];
-                for (int j = 0; j < 7; j++)
-                    values[j] = in.readInt();
-                new Mark(values, id);
+            final int marksCount = in.readInt();
+            if (marksCount > 0) {
+                for (int i = 0; i < marksCount; i++) {
+                    final String id = (String) in.readObject();
+                    int[] values = new int[7];
+                    for (int j = 0; j < 7; j++)
+                        values[j] = in.readInt();
+                    new Mark(values, id);
+                }
             }
+        } finally {
+            // Reading is done, so release the temporary file if pages were spilled, as in endDocument()
+            pages.closeSpillFile();
         }
     }
 }
@@ -0,0 +1,374 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xml;
+
+import org.orbeon.oxf.common.OXFException;
+import org.orbeon.oxf.properties.Properties;
+import org.orbeon.oxf.properties.PropertySet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+
+/**
+ * Growable sequences of bytes, chars and ints used by SAXStore, stored in fixed-size pages.
+ *
+ * The first page of a sequence grows like an array, so that small stores remain small. The other pages have a fixed
+ * size and are never copied. When the pages of a store use more memory than its budget, the oldest full pages are
+ * written to a temporary file and read back through memory mapping.
+ *
+ * Sequences are written by a single thread. Once written, they can be read by several threads.
+ */
+class SAXStorePages {
+
+    public static final String MAX_MEMORY_PROPERTY = "oxf.sax-store.max-memory";
+    public static final int DEFAULT_MAX_MEMORY = 32 * 1024 * 1024;
+
+    static final int PAGE_SHIFT = 16;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int INITIAL_SIZE = 16;
+
+    private long maxMemory; // negative until resolved, 0 for no limit
+    private long memoryUsed;
+
+    // Full pages still in memory, oldest first
+    private final LinkedList<PageRef> memoryPages = new LinkedList<PageRef>();
+
+    private RandomAccessFile spillFile;
+    private long spillPosition;
+    private int spilledPages;
+
+    /**
+     * @param maxMemory memory budget in bytes, 0 for no limit, or a negative value to use the configured budget
+     */
+    SAXStorePages(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    int getSpilledPages() {
+        return spilledPages;
+    }
+
+    /**
+     * Close the temporary file if any. Pages already spilled remain readable, and more pages can be spilled later to
+     * another temporary file.
+     */
+    void closeSpillFile() {
+        if (spillFile != null) {
+            try {
+                spillFile.close();
+            } catch (IOException e) {
+                throw new OXFException(e);
+            } finally {
+                spillFile = null;
+                spillPosition = 0;
+            }
+        }
+    }
+
+    private long maxMemory() {
+        if (maxMemory < 0) {
+            // Properties are only needed once a store outgrows its first pages
+            final PropertySet propertySet = Properties.instance().getPropertySet();
+            maxMemory = (propertySet == null) ? DEFAULT_MAX_MEMORY : propertySet.getInteger(MAX_MEMORY_PROPERTY, DEFAULT_MAX_MEMORY);
+        }
+        return maxMemory;
+    }
+
+    private void addMemory(long bytes) {
+        memoryUsed += bytes;
+        final long max = maxMemory();
+        while (max > 0 && memoryUsed > max && ! memoryPages.isEmpty())
+            spill(memoryPages.removeFirst());
+    }
+
+    private void spill(PageRef ref) {
+        final Pages pages = ref.pages;
+        final ByteBuffer bytes = pages.toBytes(pages.pages[ref.index]);
+        final int length = bytes.remaining();
+        try {
+            if (spillFile == null)
+                spillFile = newSpillFile();
+
+            final FileChannel channel = spillFile.getChannel();
+            final long position = spillPosition;
+            while (bytes.hasRemaining())
+                spillPosition += channel.write(bytes, spillPosition);
+
+            final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.nativeOrder());
+            pages.pages[ref.index] = pages.fromBytes(mapped);
+        } catch (IOException e) {
+            throw new OXFException(e);
+        }
+        memoryUsed -= length;
+        spilledPages++;
+    }
+
+    // The file is deleted right away where possible, mappings keep the content available
+    private static RandomAccessFile newSpillFile() throws IOException {
+        final File file = File.createTempFile("orbeon-saxstore-", ".tmp");
+        final RandomAccessFile result = new RandomAccessFile(file, "rw");
+        if (! file.delete())
+            file.deleteOnExit();
+        return result;
+    }
+
+    private static class PageRef {
+        final Pages pages;
+        final int index;
+
+        PageRef(Pages pages, int index) {
+            this.pages = pages;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Pages of a sequence. A page is either an array, or a read-only view on a mapped region of the spill file.
+     */
+    abstract class Pages {
+
+        private final int elementBytes;
+
+        Object[] pages = new Object[4];
+        int pageCount;
+        int size;
+
+        Pages(int elementBytes) {
+            this.elementBytes = elementBytes;
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Offset in the last page where the next element goes, making room as needed
+        protected int reserve() {
+            final int pageIndex = size >>> PAGE_SHIFT;
+            final int offset = size & PAGE_MASK;
+            if (pageIndex == pageCount)
+                addPage();
+            else if (offset == arrayLength(pages[pageIndex]))
+                growFirstPage();
+            return offset;
+        }
+
+        private void addPage() {
+            final int length = (pageCount == 0) ? INITIAL_SIZE : PAGE_SIZE;
+
+            // The previous page is full and can be spilled
+            if (pageCount > 0)
+                memoryPages.add(new PageRef(this, pageCount - 1));
+            addMemory(length * elementBytes);
+
+            if (pageCount == pages.length) {
+                final Object[] old = pages;
+                pages = new Object[old.length * 2];
+                System.arraycopy(old, 0, pages, 0, pageCount);
+            }
+            pages[pageCount++] = newArray(length);
+        }
+
+        // Only the first page grows, up to the page size
+        private void growFirstPage() {
+            final Object old = pages[0];
+            final int oldLength = arrayLength(old);
+            final int newLength = Math.min(oldLength * 3 / 2 + 1, PAGE_SIZE);
+            final Object page = newArray(newLength);
+            System.arraycopy(old, 0, page, 0, oldLength);
+            pages[0] = page;
+            memoryUsed += (newLength - oldLength) * elementBytes;
+        }
+
+        protected abstract Object newArray(int length);
+        protected abstract int arrayLength(Object array);
+        protected abstract ByteBuffer toBytes(Object array);
+        protected abstract Object fromBytes(ByteBuffer bytes);
+    }
+
+    private static ByteBuffer allocate(int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.nativeOrder());
+    }
+
+    class BytePages extends Pages {
+
+        BytePages() {
+            super(1);
+        }
+
+        void add(byte value) {
+            final int offset = reserve();
+            ((byte[]) pages[pageCount - 1])[offset] = value;
+            size++;
+        }
+
+        byte get(int index) {
+            final Object page = pages[index >>> PAGE_SHIFT];
+            final int offset = index & PAGE_MASK;
+            return (page instanceof byte[]) ? ((byte[]) page)[offset] : ((ByteBuffer) page).get(offset);
+        }
+
+        protected Object newArray(int length) {
+            return new byte[length];
+        }
+
+        protected int arrayLength(Object array) {
+            return ((byte[]) array).length;
+        }
+
+        protected ByteBuffer toBytes(Object array) {
+            return ByteBuffer.wrap((byte[]) array);
+        }
+
+        protected Object fromBytes(ByteBuffer bytes) {
+            return bytes;
+        }
+    }
+
+    class IntPages extends Pages {
+
+        IntPages() {
+            super(4);
+        }
+
+        void add(int value) {
+            final int offset = reserve();
+            ((int[]) pages[pageCount - 1])[offset] = value;
+            size++;
+        }
+
+        int get(int index) {
+            final Object page = pages[index >>> PAGE_SHIFT];
+            final int offset = index & PAGE_MASK;
+            return (page instanceof int[]) ? ((int[]) page)[offset] : ((IntBuffer) page).get(offset);
+        }
+
+        protected Object newArray(int length) {
+            return new int[length];
+        }
+
+        protected int arrayLength(Object array) {
+            return ((int[]) array).length;
+        }
+
+        protected ByteBuffer toBytes(Object array) {
+            final int[] ints = (int[]) array;
+            final ByteBuffer bytes = allocate(ints.length * 4);
+            bytes.asIntBuffer().put(ints);
+            return bytes;
+        }
+
+        protected Object fromBytes(ByteBuffer bytes) {
+            return bytes.asIntBuffer();
+        }
+    }
+
+    class CharPages extends Pages {
+
+        CharPages() {
+            super(2);
+        }
+
+        void add(char[] chars, int start, int length) {
+            while (length > 0) {
+                final int offset = reserve();
+                final char[] page = (char[]) pages[pageCount - 1];
+                final int count = Math.min(length, page.length - offset);
+                System.arraycopy(chars, start, page, offset, count);
+                size += count;
+                start += count;
+                length -= count;
+            }
+        }
+
+        char get(int index) {
+            final Object page = pages[index >>> PAGE_SHIFT];
+            final int offset = index & PAGE_MASK;
+            return (page instanceof char[]) ? ((char[]) page)[offset] : ((CharBuffer) page).get(offset);
+        }
+
+        /**
+         * Point the run to the given characters: directly in the page if they are in a single page in memory, otherwise
+         * in the scratch array of the run.
+         */
+        void read(int index, int length, CharRun run) {
+            final Object firstPage = pages[index >>> PAGE_SHIFT];
+            final int firstOffset = index & PAGE_MASK;
+            if (firstPage instanceof char[] && firstOffset + length <= PAGE_SIZE) {
+                run.chars = (char[]) firstPage;
+                run.start = firstOffset;
+            } else {
+                if (run.scratch == null || run.scratch.length < length)
+                    run.scratch = new char[Math.max(length, INITIAL_SIZE)];
+
+                int copied = 0;
+                while (copied < length) {
+                    final Object page = pages[(index + copied) >>> PAGE_SHIFT];
+                    final int offset = (index + copied) & PAGE_MASK;
+                    final int count = Math.min(length - copied, PAGE_SIZE - offset);
+                    if (page instanceof char[]) {
+                        System.arraycopy(page, offset, run.scratch, copied, count);
+                    } else {
+                        final CharBuffer view = ((CharBuffer) page).duplicate();
+                        view.position(offset);
+                        view.get(run.scratch, copied, count);
+                    }
+                    copied += count;
+                }
+                run.chars = run.scratch;
+                run.start = 0;
+            }
+        }
+
+        protected Object newArray(int length) {
+            return new char[length];
+        }
+
+        protected int arrayLength(Object array) {
+            return ((char[]) array).length;
+        }
+
+        protected ByteBuffer toBytes(Object array) {
+            final char[] chars = (char[]) array;
+            final ByteBuffer bytes = allocate(chars.length * 2);
+            bytes.asCharBuffer().put(chars);
+            return bytes;
+        }
+
+        protected Object fromBytes(ByteBuffer bytes) {
+            return bytes.asCharBuffer();
+        }
+    }
+
+    /**
+     * Characters read from CharPages, valid until the next read with the same run.
+     */
+    static class CharRun {
+        char[] chars;
+        int start;
+        private char[] scratch;
+    }
+}
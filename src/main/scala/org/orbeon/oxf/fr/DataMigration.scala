@@ -13,11 +13,12 @@
  */
 package org.orbeon.oxf.fr
 
-import org.orbeon.oxf.fr.FormRunner._
-import org.orbeon.oxf.xml.TransformerUtils
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.xml.{ForwardingXMLReceiver, SAXUtils, TransformerUtils, XMLReceiver}
 import org.orbeon.saxon.om.{DocumentInfo, NodeInfo}
-import org.orbeon.scaxon.XML
+import org.orbeon.saxon.tinytree.TinyBuilder
 import org.orbeon.scaxon.XML._
+import org.xml.sax.Attributes
 
 object DataMigration {
 
@@ -48,28 +49,23 @@ object DataMigration {
         names.flatten.toList
     }
 
-    private def partitionNodes(
-        mutableData : NodeInfo,
-        migration   : List[(String, String)]
-    ): List[(List[NodeInfo], String)] =
-        migration flatMap {
-            case (path, iterationName) ⇒
+    // Migration paths as a tree of element names, so that elements are matched as they are visited
+    // NOTE: Paths are relative to the root element. Steps are compared with qualified names: in practice the data has
+    // no namespaces, and if it had, the prefixes would likely be unique.
+    private case class PathTree(children: Map[String, PathTree], iterationName: Option[String])
 
-                // NOTE: Use collect, but we know they are nodes if the JSON is correct and contains paths
-                val nodes = XML.eval(mutableData.rootElement, path) collect {
-                    case node: NodeInfo ⇒ node
-                }
-
-                // NOTE: Should ideally test on uriQualifiedName instead. The data in practice has elements which
-                // in no namespaces, and if they were in a namespace, the prefixes would likely be unique.
-                val firsts = nodes filter (node ⇒ node.precedingSibling(node.name).isEmpty)
+    private def pathTree(migration: List[(String, String)]): PathTree = {
 
-                firsts map { first ⇒
-                    (first :: first.followingSibling(first.name).toList, iterationName)
-                }
-        }
+        def build(paths: List[(List[String], String)]): PathTree =
+            PathTree(
+                paths collect { case (step :: rest, iterationName) ⇒ step → (rest, iterationName) } groupBy (_._1) map {
+                    case (step, stepsAndRests) ⇒ step → build(stepsAndRests map (_._2))
+                },
+                paths collectFirst { case (Nil, iterationName) ⇒ iterationName }
+            )
 
-    import org.orbeon.oxf.xforms.action.XFormsAPI._
+        build(migration map { case (path, iterationName) ⇒ split[List](path, "/") → iterationName })
+    }
 
     def dataMaybeMigratedFrom(data: DocumentInfo, metadata: Option[DocumentInfo]) =
         dataMaybeMigratedFromTo(data, metadata, migrateDataFrom)
@@ -91,49 +87,190 @@ object DataMigration {
     def migrationMapFromMetadata(metadataRootElement: NodeInfo) =
         metadataRootElement firstChild "migration" filter (_.attValue("version") == "4.8.0") map (_.stringValue)
 
-    def migrateDataTo(data: DocumentInfo, jsonMigrationMap: String): DocumentInfo = {
+    // Migrate in a single pass over the data, without intermediate mutable document
+    def migrateDataTo(data: DocumentInfo, jsonMigrationMap: String): DocumentInfo =
+        migrate(data, jsonMigrationMap, new MigrateToReceiver(_, _))
+
+    def migrateDataFrom(data: DocumentInfo, jsonMigrationMap: String): DocumentInfo =
+        migrate(data, jsonMigrationMap, new MigrateFromReceiver(_, _))
+
+    private def migrate(
+        data             : DocumentInfo,
+        jsonMigrationMap : String,
+        migrationReceiver: (PathTree, XMLReceiver) ⇒ XMLReceiver
+    ): DocumentInfo = {
+
+        val treeBuilder = new TinyBuilder
+        val identity    = TransformerUtils.getIdentityTransformerHandler(data.getConfiguration)
+        identity.setResult(treeBuilder)
+
+        TransformerUtils.writeTinyTree(data, migrationReceiver(pathTree(decodeMigrationsFromJSON(jsonMigrationMap)), identity))
+
+        treeBuilder.getCurrentRoot.asInstanceOf[DocumentInfo]
+    }
+
+    private case class Name(uri: String, localname: String, qName: String)
+
+    private def isWhitespace(chars: Array[Char], start: Int, length: Int) =
+        (start until start + length) forall (i ⇒ Character.isWhitespace(chars(i)))
+
+    // Keep track of the position of open elements in the migration paths
+    private trait PathTracking {
+
+        val tree: PathTree
+
+        // Position of the children of the given position, the root element being at the root of the tree
+        def childPosition(parent: Option[Option[PathTree]], qName: String): Option[PathTree] =
+            parent match {
+                case None           ⇒ Some(tree)
+                case Some(position) ⇒ position flatMap (_.children.get(qName))
+            }
+    }
+
+    // 4.7 to 4.8: consecutive repeated elements at a migration path are replaced by a single element with one nested
+    // iteration element for each of them
+    // - the first repeated element provides the attributes, other attributes are dropped
+    // - whitespace between repeated elements is output after the replacement element
+    private class MigrateToReceiver(val tree: PathTree, receiver: XMLReceiver)
+            extends ForwardingXMLReceiver(receiver) with PathTracking {
+
+        // Repeated elements under an element, while they are being output
+        private class Run(val name: Name, val iterationName: String) {
+            val whitespace = new java.lang.StringBuilder
+        }
+
+        private class Frame(val position: Option[PathTree], val iterationName: Option[String]) {
+            var run: Option[Run] = None
+        }
+
+        private var frames: List[Frame] = Nil
+
+        // Close the repeated elements under the current element, if any
+        private def closeRun(): Unit =
+            frames.headOption flatMap (_.run) foreach { run ⇒
+                frames.head.run = None
+                super.endElement(run.name.uri, run.name.localname, run.name.qName)
+                if (run.whitespace.length > 0) {
+                    val chars = run.whitespace.toString.toCharArray
+                    super.characters(chars, 0, chars.length)
+                }
+            }
+
+        private def startIteration(iterationName: String): Unit =
+            super.startElement("", iterationName, iterationName, SAXUtils.EMPTY_ATTRIBUTES)
 
-        val mutableData = TransformerUtils.extractAsMutableDocument(data)
+        override def startElement(uri: String, localname: String, qName: String, attributes: Attributes): Unit = {
 
-        partitionNodes(mutableData, decodeMigrationsFromJSON(jsonMigrationMap)) foreach {
-            case (iterations, iterationName) ⇒
+            val position = childPosition(frames.headOption map (_.position), qName)
 
-                val iterationContent = iterations map (_ / Node toList) // force
+            frames.headOption flatMap (_.run) match {
+                case Some(run) if run.name.qName == qName ⇒
+                    // Next repeated element
+                    startIteration(run.iterationName)
+                    frames ::= new Frame(position, Some(run.iterationName))
+                case _ ⇒
+                    closeRun()
+                    super.startElement(uri, localname, qName, attributes)
+                    position flatMap (_.iterationName) match {
+                        case Some(iterationName) ⇒
+                            // First repeated element
+                            frames.headOption foreach (_.run = Some(new Run(Name(uri, localname, qName), iterationName)))
+                            startIteration(iterationName)
+                            frames ::= new Frame(position, Some(iterationName))
+                        case None ⇒
+                            frames ::= new Frame(position, None)
+                    }
+            }
+        }
+
+        override def endElement(uri: String, localname: String, qName: String): Unit = {
+            closeRun()
+            val frame = frames.head
+            frames = frames.tail
+            frame.iterationName match {
+                case Some(iterationName) ⇒ super.endElement("", iterationName, iterationName)
+                case None                ⇒ super.endElement(uri, localname, qName)
+            }
+        }
 
-                delete(iterations.head / Node, doDispatch = false)
-                delete(iterations.tail,        doDispatch = false)
+        override def characters(chars: Array[Char], start: Int, length: Int): Unit =
+            frames.headOption flatMap (_.run) match {
+                case Some(run) if isWhitespace(chars, start, length) ⇒
+                    run.whitespace.append(chars, start, length)
+                case _ ⇒
+                    closeRun()
+                    super.characters(chars, start, length)
+            }
 
-                insert(
-                    into       = iterations.head,
-                    origin     = iterationContent map (elementInfo(iterationName, _)),
-                    doDispatch = false
-                )
+        override def comment(chars: Array[Char], start: Int, length: Int): Unit = {
+            closeRun()
+            super.comment(chars, start, length)
         }
 
-        mutableData
+        override def processingInstruction(target: String, data: String): Unit = {
+            closeRun()
+            super.processingInstruction(target, data)
+        }
     }
 
-    def migrateDataFrom(data: DocumentInfo, jsonMigrationMap: String): DocumentInfo = {
+    // 4.8 to 4.7: an element at a migration path is replaced by one element with the same name for each of its
+    // iteration elements, with the content of the iteration
+    // - attributes of the element and of the iterations are dropped
+    // - content of the element outside of iterations is dropped
+    private class MigrateFromReceiver(val tree: PathTree, receiver: XMLReceiver)
+            extends ForwardingXMLReceiver(receiver) with PathTracking {
 
-        val mutableData = TransformerUtils.extractAsMutableDocument(data)
+        private sealed trait Kind
+        private case object Other                   extends Kind
+        private case object Container               extends Kind
+        private case class  Iteration(name: Name)   extends Kind
 
-        partitionNodes(mutableData, decodeMigrationsFromJSON(jsonMigrationMap)) foreach {
-            case (iterations, iterationName) ⇒
+        private class Frame(val position: Option[PathTree], val kind: Kind, val name: Name)
 
-                assert(iterations.tail.isEmpty)
-                val container = iterations.head
+        private var frames: List[Frame] = Nil
 
-                val iterationContent = (container / * toList) map (_ / Node toList) // force
+        private def inContainer = frames.headOption exists (_.kind == Container)
 
-                insert(
-                    after      = container,
-                    origin     = iterationContent map (elementInfo(container.name, _)),
-                    doDispatch = false
-                )
+        override def startElement(uri: String, localname: String, qName: String, attributes: Attributes): Unit = {
+
+            val position = childPosition(frames.headOption map (_.position), qName)
+            val name     = Name(uri, localname, qName)
+
+            val kind =
+                if (inContainer) {
+                    val containerName = frames.head.name
+                    super.startElement(containerName.uri, containerName.localname, containerName.qName, SAXUtils.EMPTY_ATTRIBUTES)
+                    Iteration(containerName)
+                } else if (position exists (_.iterationName.isDefined)) {
+                    Container
+                } else {
+                    super.startElement(uri, localname, qName, attributes)
+                    Other
+                }
 
-                delete(container, doDispatch = false)
+            frames ::= new Frame(position, kind, name)
         }
 
-        mutableData
+        override def endElement(uri: String, localname: String, qName: String): Unit = {
+            val frame = frames.head
+            frames = frames.tail
+            frame.kind match {
+                case Iteration(containerName) ⇒ super.endElement(containerName.uri, containerName.localname, containerName.qName)
+                case Container                ⇒
+                case Other                    ⇒ super.endElement(uri, localname, qName)
+            }
+        }
+
+        override def characters(chars: Array[Char], start: Int, length: Int): Unit =
+            if (! inContainer)
+                super.characters(chars, start, length)
+
+        override def comment(chars: Array[Char], start: Int, length: Int): Unit =
+            if (! inContainer)
+                super.comment(chars, start, length)
+
+        override def processingInstruction(target: String, data: String): Unit =
+            if (! inContainer)
+                super.processingInstruction(target, data)
     }
 }
@@ -37,7 +37,7 @@ trait FormRunnerPersistence {
     val PersistencePropertyPrefix          = "oxf.fr.persistence"
     val PersistenceProviderPropertyPrefix  = PersistencePropertyPrefix + ".provider"
 
-    val StandardProviderProperties = Set("uri", "autosave", "active", "permissions")
+    val StandardProviderProperties = Set("uri", "autosave", "active", "permissions", "timeout")
 
     // NOTE: We generate .bin, but sample data can contain other extensions
     private val RecognizedAttachmentExtensions = Set("bin", "jpg", "jpeg", "gif", "png", "pdf")
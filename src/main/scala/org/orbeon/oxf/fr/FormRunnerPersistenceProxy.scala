@@ -15,24 +15,31 @@ package org.orbeon.oxf.fr
 
 
 import java.net.URI
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.xml.transform.stream.StreamResult
 
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
 import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.externalcontext.URLRewriter
 import org.orbeon.oxf.http.Headers._
-import org.orbeon.oxf.http.{Headers, StreamedContent}
+import org.orbeon.oxf.http.{ApacheHttpClient, Headers, PropertiesConnectionSettings, StreamedContent}
 import org.orbeon.oxf.pipeline.api.ExternalContext.{Request, Response}
 import org.orbeon.oxf.pipeline.api.PipelineContext
 import org.orbeon.oxf.processor.ProcessorImpl
 import org.orbeon.oxf.processor.generator.RequestGenerator
 import org.orbeon.oxf.properties.Properties
 import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.Logging._
 import org.orbeon.oxf.util._
+import org.orbeon.oxf.webapp.{WebAppListener, WebAppContext}
 import org.orbeon.oxf.xforms.action.XFormsAPI
 import org.orbeon.oxf.xml.TransformerUtils
+import org.orbeon.saxon.om.NodeInfo
 import org.orbeon.scaxon.XML._
 
 import scala.collection.JavaConverters._
+import scala.util.control.NonFatal
 
 /**
  * The persistence proxy processor:
@@ -43,6 +50,8 @@ import scala.collection.JavaConverters._
  */
 class FormRunnerPersistenceProxy extends ProcessorImpl {
 
+    import FormRunnerPersistenceProxy._
+
     private val FormPath                   = """/fr/service/persistence(/crud/([^/]+)/([^/]+)/form/([^/]+))""".r
     private val DataPath                   = """/fr/service/persistence(/crud/([^/]+)/([^/]+)/(data|draft)/([^/]+)/([^/]+))""".r
     private val DataCollectionPath         = """/fr/service/persistence(/crud/([^/]+)/([^/]+)/data/)""".r
@@ -80,6 +89,10 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
         val cxr =
             proxyEstablishConnection(request, NetUtils.appendQueryString(dropTrailingSlash(persistenceBaseURL) + path, buildQueryString), headers)
 
+        // Publishing or deleting a form definition changes the forms metadata of the provider
+        if (formOrData == "form" && Set("PUT", "DELETE")(request.getMethod) && NetUtils.isSuccessCode(cxr.statusCode))
+            FormRunnerPersistenceProxy.removeProviderForms(FormRunner.findProvider(app, form, "form").get, app, form)
+
         useAndClose(cxr) { cxr ⇒
             // Proxy status code
             response.setStatus(cxr.statusCode)
@@ -90,17 +103,16 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
         }
     }
 
-    private def proxyEstablishConnection(request: Request, uri: String, headers: Map[String, String]) = {
-        // Create the absolute outgoing URL
-        val outgoingURL =
-            URLRewriterUtils.rewriteServiceURL(NetUtils.getExternalContext.getRequest, uri, URLRewriter.REWRITE_MODE_ABSOLUTE)
-
-        val persistenceHeaders =
-            for ((name, value) ← headers)
-            yield capitalizeCommonOrSplitHeader(name) → List(value)
+    private def proxyEstablishConnection(request: Request, uri: String, headers: Map[String, String]) =
+        proxyConnection(request, uri, headers, Map.empty).connect(
+            saveState = true
+        )
 
-        val proxiedHeaders =
-            proxyAndCapitalizeHeaders(request.getHeaderValuesMap.asScala mapValues (_.toList), request = true)
+    // Create the connection, without connecting yet
+    // NOTE: This must run in the thread of the incoming request, as it uses the external context.
+    private def proxyConnection(request: Request, uri: String, headers: Map[String, String], conditionalHeaders: Map[String, List[String]]) = {
+        // Create the absolute outgoing URL
+        val outgoingURL = proxyOutgoingURL(uri)
 
         val method = request.getMethod
 
@@ -129,15 +141,29 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
             url         = new URI(outgoingURL),
             credentials = None,
             content     = requestContent,
-            headers     = persistenceHeaders ++ proxiedHeaders,
+            headers     = proxyOutgoingHeaders(request, headers, conditionalHeaders),
             loadState   = true,
             logBody     = false)(
             logger      = new IndentedLogger(ProcessorImpl.logger, "")
-        ).connect(
-            saveState = true
         )
     }
 
+    // NOTE: This must run in the thread of the incoming request, as it uses the external context.
+    private def proxyOutgoingURL(uri: String) =
+        URLRewriterUtils.rewriteServiceURL(NetUtils.getExternalContext.getRequest, uri, URLRewriter.REWRITE_MODE_ABSOLUTE)
+
+    private def proxyOutgoingHeaders(request: Request, headers: Map[String, String], conditionalHeaders: Map[String, List[String]]) = {
+
+        val persistenceHeaders =
+            for ((name, value) ← headers)
+            yield capitalizeCommonOrSplitHeader(name) → List(value)
+
+        val proxiedHeaders =
+            proxyAndCapitalizeHeaders(request.getHeaderValuesMap.asScala mapValues (_.toList), request = true)
+
+        persistenceHeaders ++ proxiedHeaders ++ conditionalHeaders
+    }
+
     /**
      * Proxies the request to every configured persistence layer to get the list of the forms, and aggregates the
      * results. So the response is not simply proxied, unlike for other persistence layer calls.
@@ -165,19 +191,63 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
             }
         }
 
-        val allFormElements =
-            providers map
-            FormRunner.getPersistenceURLHeadersFromProvider flatMap {
-                case (baseURI, headers) ⇒
-                    // Read all the forms for the current service
-                    val serviceURI = baseURI + "/form" + Option(path).getOrElse("")
-                    val cxr        = proxyEstablishConnection(request, serviceURI, headers)
-
-                    ConnectionResult.withSuccessConnection(cxr, closeOnSuccess = true) { is ⇒
-                        val forms = TransformerUtils.readTinyTree(XPath.GlobalConfiguration, is, serviceURI, false, false)
-                        forms \\ "forms" \\ "form"
-                    }
+        def timeout(provider: String) =
+            propertySet.getInteger(FormRunner.PersistencePropertyPrefix + '.' + provider + ".timeout", DefaultProviderTimeout).longValue
+
+        // Request the forms, or check that the cached forms are still valid
+        def fetch(provider: String, cached: Option[ProviderForms]): ProviderRead = {
+
+            val (baseURI, headers) = FormRunner.getPersistenceURLHeadersFromProvider(provider)
+            val serviceURI         = baseURI + "/form" + Option(path).getOrElse("")
+
+            val conditionalHeaders = (
+                cached.toList flatMap { cached ⇒
+                    (cached.etag map ("If-None-Match" → List(_))) ++
+                    (cached.lastModified map (lastModified ⇒ "If-Modified-Since" → List(DateUtils.RFC1123Date.print(lastModified))))
+                }
+            ).toMap
+
+            def readForms(cxr: ConnectionResult) =
+                cached match {
+                    case Some(cached) if cxr.statusCode == 304 ⇒
+                        cxr.close()
+                        cached
+                    case _ ⇒
+                        ConnectionResult.withSuccessConnection(cxr, closeOnSuccess = true) { is ⇒
+                            val forms = TransformerUtils.readTinyTree(XPath.GlobalConfiguration, is, serviceURI, false, false)
+                            ProviderForms(
+                                forms        = (forms \\ "forms" \\ "form").toList,
+                                etag         = cxr.getHeaderIgnoreCase("ETag").headOption,
+                                lastModified = cxr.lastModified
+                            )
+                        }
+                }
+
+            val outgoingURL = proxyOutgoingURL(serviceURI)
+            val method      = request.getMethod
+
+            // Internal services run with the incoming request, and a request body can only be read in its thread, so
+            // those reads go through a regular connection in this thread. Otherwise, the worker gets the URL, headers,
+            // and cookie store of the HTTP state obtained here, as it can't use the external context.
+            if (Connection.findInternalPath(outgoingURL).isDefined || Connection.requiresRequestBody(method)) {
+                val connection = proxyConnection(request, serviceURI, headers, conditionalHeaders)
+                ProviderRead(() ⇒ readForms(connection.connect(saveState = true)), inWorker = false)
+            } else {
+                val outgoingHeaders = proxyOutgoingHeaders(request, headers, conditionalHeaders)
+                val cookieStore     = Connection.httpStateCookieStore()
+                val httpClient      = workerHttpClient(timeout(provider))
+
+                shutdownWorkersOnDestroy(NetUtils.getExternalContext.getWebAppContext)
+
+                ProviderRead(() ⇒ {
+                    val response = httpClient.connect(outgoingURL, None, cookieStore, method, outgoingHeaders, None)
+                    readForms(ConnectionResult(outgoingURL, response.statusCode, response.headers, response.content))
+                }, inWorker = true)
             }
+        }
+
+        val allFormElements =
+            readProvidersForms(providers.toList, Option(path).getOrElse(""), timeout, fetch)
 
         val filteredFormElements = FormRunner.filterFormsAndAnnotateWithOperations(allFormElements)
 
@@ -188,4 +258,164 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
         response.setContentType("application/xml")
         TransformerUtils.getXMLIdentityTransformer.transform(documentElement, new StreamResult(response.getOutputStream))
     }
-}
\ No newline at end of file
+}
+
+object FormRunnerPersistenceProxy {
+
+    private implicit val Logger = new IndentedLogger(LoggerFactory.createLogger(classOf[FormRunnerPersistenceProxy]), "")
+
+    val DefaultProviderTimeout = 10000
+
+    // Forms metadata returned by a provider, with the validators returned by the provider, if any
+    case class ProviderForms(forms: List[NodeInfo], etag: Option[String], lastModified: Option[Long]) {
+        def hasValidators = etag.isDefined || lastModified.isDefined
+    }
+
+    private val CacheName        = "fr.cache.published-forms"
+    private val CacheDefaultSize = 50
+    private val KeyType          = "fr-published-forms"
+    private val Validity         = 0L
+
+    private def cache = ObjectCache.instance(CacheName, CacheDefaultSize)
+
+    private def cacheKey(provider: String, path: String) =
+        new InternalCacheKey(KeyType, provider + path)
+
+    private val MaxWorkers              = 8
+    private val MaxQueuedReads          = 64
+    private val MaxWorkerTimeoutSeconds = 1 << 20
+
+    // Bounded so that providers which don't respond can't make the pool grow without limit. When the pool is
+    // saturated, reads run in the thread of the incoming request, where they are bounded by the HTTP client timeouts.
+    private lazy val executor =
+        new ThreadPoolExecutor(
+            MaxWorkers,
+            MaxWorkers,
+            60L,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue[Runnable](MaxQueuedReads),
+            new ThreadFactory {
+                def newThread(runnable: Runnable) = {
+                    val thread = new Thread(runnable, "persistence proxy worker")
+                    thread.setDaemon(true)
+                    thread
+                }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy
+        ) |!> (_.allowCoreThreadTimeOut(true))
+
+    // HTTP clients used by workers, by connection timeout. Cancelling a worker doesn't interrupt socket I/O, so the
+    // timeout is also set on the connections, and a worker blocked on a provider eventually gets released. Provider
+    // timeouts are rounded up to a power of two seconds, so there are only a few clients.
+    private val workerHttpClients = new ConcurrentHashMap[Int, ApacheHttpClient]
+
+    def workerConnectionTimeout(providerTimeout: Long) = {
+        val seconds = providerTimeout / 1000 + (if (providerTimeout % 1000 > 0) 1 else 0)
+        var bucket = 1
+        while (bucket < seconds && bucket < MaxWorkerTimeoutSeconds)
+            bucket *= 2
+        bucket * 1000
+    }
+
+    private def workerHttpClient(providerTimeout: Long) = {
+        val timeout = workerConnectionTimeout(providerTimeout)
+        Option(workerHttpClients.get(timeout)) getOrElse {
+            val settings   = PropertiesConnectionSettings.apply.copy(soTimeout = timeout, connectionTimeout = timeout)
+            val httpClient = new ApacheHttpClient(settings)
+            Option(workerHttpClients.putIfAbsent(timeout, httpClient)) match {
+                case Some(existing) ⇒ httpClient.shutdown(); existing
+                case None           ⇒ httpClient
+            }
+        }
+    }
+
+    private val shutdownRegistered = new AtomicBoolean(false)
+
+    // Stop the workers and their HTTP clients when the web app is destroyed
+    private def shutdownWorkersOnDestroy(webAppContext: WebAppContext): Unit =
+        if (shutdownRegistered.compareAndSet(false, true))
+            webAppContext.addListener(new WebAppListener {
+                def webAppDestroyed() = {
+                    executor.shutdownNow()
+                    workerHttpClients.values.asScala foreach (_.shutdown())
+                    workerHttpClients.clear()
+                }
+            })
+
+    // Read of the forms of a provider, in a worker thread only if the read doesn't use the incoming request
+    case class ProviderRead(read: () ⇒ ProviderForms, inWorker: Boolean)
+
+    /**
+     * Read the forms of the given providers, concurrently if there is more than one provider.
+     *
+     * - `fetch` runs in the current thread, with the cached forms of the provider if any, and returns a read which
+     *   runs either in a worker thread or in the current thread, and returns either new forms, or the cached forms
+     *   if they are still valid.
+     * - Forms are cached only if the provider returned validators, as we can't know otherwise when they change.
+     * - A provider which doesn't respond within its timeout, in ms, is skipped.
+     */
+    def readProvidersForms(
+        providers : List[String],
+        path      : String,
+        timeout   : String ⇒ Long,
+        fetch     : (String, Option[ProviderForms]) ⇒ ProviderRead
+    ): List[NodeInfo] = {
+
+        def cached(provider: String) =
+            Option(cache.findValid(cacheKey(provider, path), Validity).asInstanceOf[ProviderForms])
+
+        def store(provider: String, forms: ProviderForms) =
+            if (forms.hasValidators)
+                cache.add(cacheKey(provider, path), Validity, forms)
+
+        providers match {
+            case Nil ⇒
+                Nil
+            case List(provider) ⇒
+                val forms = fetch(provider, cached(provider)).read()
+                store(provider, forms)
+                forms.forms
+            case _ ⇒
+                val start = System.currentTimeMillis
+                val reads = providers map { provider ⇒ provider → fetch(provider, cached(provider)) }
+
+                val futures =
+                    reads collect {
+                        case (provider, ProviderRead(read, true)) ⇒
+                            provider → executor.submit(new Callable[ProviderForms] { def call() = read() })
+                    } toMap
+
+                try {
+                    reads flatMap {
+                        case (provider, ProviderRead(read, false)) ⇒
+                            val forms = read()
+                            store(provider, forms)
+                            forms.forms
+                        case (provider, _) ⇒
+                            val future = futures(provider)
+                            try {
+                                val forms = future.get(math.max(start + timeout(provider) - System.currentTimeMillis, 0L), TimeUnit.MILLISECONDS)
+                                store(provider, forms)
+                                forms.forms
+                            } catch {
+                                case _: TimeoutException ⇒
+                                    future.cancel(true)
+                                    warn("timeout reading published forms from provider, skipping", Seq("provider" → provider))
+                                    Nil
+                                case e: ExecutionException ⇒
+                                    throw e.getCause
+                            }
+                    }
+                } catch {
+                    case NonFatal(t) ⇒
+                        futures.values foreach (_.cancel(true))
+                        throw t
+                }
+        }
+    }
+
+    // Called when a form definition is published or deleted on this node
+    def removeProviderForms(provider: String, app: String, form: String): Unit =
+        for (path ← List("", "/" + app, "/" + app + "/" + form))
+            cache.remove(cacheKey(provider, path))
+}
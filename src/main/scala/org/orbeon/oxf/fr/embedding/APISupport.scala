@@ -13,8 +13,8 @@
  */
 package org.orbeon.oxf.fr.embedding
 
-import java.io.Writer
-import java.{util ⇒ ju}
+import java.io.{InputStreamReader, Reader, Writer}
+import java.{lang ⇒ jl, util ⇒ ju}
 import javax.servlet.http.{HttpServletRequest, HttpServletResponse}
 
 import org.apache.commons.io.IOUtils
@@ -152,7 +152,6 @@ object APISupport {
             case Some(mediatype) if XMLUtils.isTextOrJSONContentType(mediatype) || XMLUtils.isXMLMediatype(mediatype) ⇒
                 // Text/JSON/XML content type: rewrite response content
                 val encoding        = content.contentType flatMap (t ⇒ Option(getContentTypeCharset(t))) getOrElse "utf-8"
-                val contentAsString = useAndClose(content.inputStream)(IOUtils.toString(_, encoding))
                 val encodeForXML    = XMLUtils.isXMLMediatype(mediatype)
 
                 def decodeURL(encoded: String) = {
@@ -160,17 +159,121 @@ object APISupport {
                     if (encodeForXML) XMLUtils.escapeXMLMinimal(decodedURL) else decodedURL
                 }
 
-                decodeWSRPContent(
-                    contentAsString,
-                    ctx.namespace,
-                    decodeURL,
-                    ctx.writer
-                )
+                useAndClose(new InputStreamReader(content.inputStream, encoding)) { reader ⇒
+                    decodeWSRPContent(
+                        reader,
+                        ctx.namespace,
+                        decodeURL,
+                        ctx.writer
+                    )
+                }
             case _ ⇒
                 // All other types: just output
                 useAndClose(content.inputStream)(IOUtils.copy(_, ctx.outputStream))
         }
 
+    // Copy content containing WSRP encodings from the reader to the writer, decoding the URLs and namespaces
+    //
+    // The content is not buffered: only the characters needed to recognize a tag are looked ahead, and only encoded
+    // URLs are accumulated before being passed to `decodeURL`.
+    def decodeWSRPContent(reader: Reader, ns: String, decodeURL: String ⇒ String, writer: Writer): Unit = {
+
+        import org.orbeon.oxf.externalcontext.WSRPURLRewriter.{decodeURL ⇒ _, _}
+
+        val buffer = new Array[Char](DecodeBufferSize)
+        var start  = 0     // first character not processed yet
+        var end    = 0     // end of the characters read
+        var eof    = false
+
+        // Whether at least count characters are available from start, reading more if needed
+        def ensure(count: Int) = {
+            if (end - start < count && ! eof) {
+                System.arraycopy(buffer, start, buffer, 0, end - start)
+                end -= start
+                start = 0
+                while (end < count && ! eof)
+                    reader.read(buffer, end, buffer.length - end) match {
+                        case -1   ⇒ eof = true
+                        case read ⇒ end += read
+                    }
+            }
+            end - start >= count
+        }
+
+        // Whether the tag is at the given index, assuming the characters are available
+        def matches(index: Int, tag: String) = {
+            var i = 0
+            while (i < tag.length && buffer(index + i) == tag.charAt(i))
+                i += 1
+            i == tag.length
+        }
+
+        def charAfterBaseTag =
+            if (ensure(BaseTagLength + 1)) buffer(start + BaseTagLength) else 0.toChar
+
+        // Read up to and including the end tag and return the encoded URL
+        def readEncodedURL() = {
+            val url = new jl.StringBuilder
+            var found = false
+            while (! found) {
+                if (! ensure(EndTagLength))
+                    throw new OXFException("Missing end tag for WSRP encoded URL.")
+
+                // Last index where a complete end tag can start
+                val last = end - EndTagLength
+                var i = start
+                while (i <= last && ! (buffer(i) == '/' && matches(i, EndTag)))
+                    i += 1
+
+                if (i <= last) {
+                    url.append(buffer, start, i - start)
+                    start = i + EndTagLength
+                    found = true
+                } else {
+                    // Keep the characters which might be the beginning of the end tag
+                    url.append(buffer, start, last + 1 - start)
+                    start = last + 1
+                }
+            }
+            url.toString
+        }
+
+        val firstChar = BaseTag.charAt(0)
+
+        while (ensure(1)) {
+
+            // Write up to the next possible tag
+            var i = start
+            while (i < end && buffer(i) != firstChar)
+                i += 1
+            writer.write(buffer, start, i - start)
+            start = i
+
+            if (start < end) {
+                if (ensure(BaseTagLength) && matches(start, BaseTag)) {
+                    if (ensure(BaseTagLength * 2) && matches(start + BaseTagLength, BaseTag)) {
+                        // Escaped tag
+                        writer.write(BaseTag)
+                        start += BaseTagLength * 2
+                    } else if (charAfterBaseTag == '?') {
+                        // URL encoding
+                        start += StartTagLength
+                        writer.write(decodeURL(readEncodedURL()))
+                    } else if (charAfterBaseTag == '_') {
+                        // Namespace encoding
+                        writer.write(ns)
+                        start += PrefixTagLength
+                    } else
+                        throw new OXFException("Invalid WSRP rewrite tagging.")
+                } else {
+                    // Not a tag
+                    writer.write(buffer(start).toInt)
+                    start += 1
+                }
+            }
+        }
+    }
+
     def scopeSettings[T](req: HttpServletRequest, settings: EmbeddingSettings)(body: ⇒ T): T = {
         req.setAttribute(SettingsKey, settings)
         try body
@@ -202,6 +305,8 @@ object APISupport {
 
     val NamespacePrefix = "o"
 
+    private val DecodeBufferSize = 8 * 1024
+
     private object Private {
 
         val SettingsKey           = "orbeon.form-runner.filter-settings"
@@ -227,49 +332,6 @@ object APISupport {
                 content     = requestDetails.content
             )
 
-        // Parse a string containing WSRP encodings and encode the URLs and namespaces
-        def decodeWSRPContent(content: String, ns: String, decodeURL: String ⇒ String, writer: Writer): Unit = {
-
-            val stringLength = content.length
-            var currentIndex = 0
-            var index        = 0
-
-            import org.orbeon.oxf.externalcontext.WSRPURLRewriter.{decodeURL ⇒ _, _}
-
-            while ({index = content.indexOf(BaseTag, currentIndex); index} != -1) {
-
-                // Write up to the current mark
-                writer.write(content, currentIndex, index - currentIndex)
-
-                // Check if escaping is requested
-                if (index + BaseTagLength * 2 <= stringLength &&
-                        content.substring(index + BaseTagLength, index + BaseTagLength * 2) == BaseTag) {
-                    // Write escaped tag, update index and keep looking
-                    writer.write(BaseTag)
-                    currentIndex = index + BaseTagLength * 2
-                } else if (index < stringLength - BaseTagLength && content.charAt(index + BaseTagLength) == '?') {
-                    // URL encoding
-                    // Find the matching end mark
-                    val endIndex = content.indexOf(EndTag, index)
-                    if (endIndex == -1)
-                        throw new OXFException("Missing end tag for WSRP encoded URL.")
-                    val encodedURL = content.substring(index + StartTagLength, endIndex)
-                    currentIndex = endIndex + EndTagLength
-
-                    writer.write(decodeURL(encodedURL))
-                } else if (index < stringLength - BaseTagLength && content.charAt(index + BaseTagLength) == '_') {
-                    // Namespace encoding
-                    writer.write(ns)
-                    currentIndex = index + PrefixTagLength
-                } else
-                    throw new OXFException("Invalid WSRP rewrite tagging.")
-            }
-
-            // Write remainder of string
-            if (currentIndex < stringLength)
-                writer.write(content, currentIndex, content.length - currentIndex)
-        }
-
         def getOrCreateCookieStore(implicit ctx: EmbeddingContext) =
             Option(ctx.getSessionAttribute(RemoteSessionIdKey).asInstanceOf[CookieStore]) getOrElse {
                 val newCookieStore = new BasicCookieStore
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.relational
+
+import java.sql.Connection
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
+import org.orbeon.oxf.util.IndentedLogger
+import org.orbeon.oxf.util.Logging._
+import org.orbeon.saxon.om.DocumentInfo
+
+/**
+ * Cache of parsed published form definitions and form metadata.
+ *
+ * The validity of entries is the `last_modified_time` of the form definition in the database. Checking it is a
+ * single indexed query, which is much cheaper than reading and parsing the form definition again, and it is
+ * cluster-safe: a publish on another node changes the validity. A publish on this node also removes the entries
+ * right away.
+ *
+ * If the form definition is not stored in the relational database used for the current request, entries are not
+ * cached, as we have no way to validate them.
+ *
+ * Keys include the provider and the datasource of the current request, as several providers or databases can be
+ * used in the same JVM.
+ */
+object FormDefinitionCache {
+
+    private val CacheName        = "fr.cache.form-definitions"
+    private val CacheDefaultSize = 100
+
+    private val MetadataKeyType   = "fr-form-metadata"
+    private val DefinitionKeyType = "fr-form-definition"
+
+    private def cache = ObjectCache.instance(CacheName, CacheDefaultSize)
+
+    private def scope(provider: String) =
+        provider + '/' + RelationalUtils.datasourceName
+
+    private def metadataKey(provider: String, app: String, form: String) =
+        new InternalCacheKey(MetadataKeyType, scope(provider) + '/' + app + '/' + form)
+
+    private def definitionKey(provider: String, app: String, form: String, version: Int) =
+        new InternalCacheKey(DefinitionKeyType, scope(provider) + '/' + app + '/' + form + '/' + version)
+
+    // Last modification time of any version of the form definition, used as validity for the metadata
+    def metadataLastModified(connection: Connection, app: String, form: String): Option[Long] = {
+        val ps = connection.prepareStatement(
+            """|SELECT max(last_modified_time)
+               |FROM   orbeon_form_definition
+               |WHERE  app = ? AND form = ?
+               |""".stripMargin)
+        ps.setString(1, app)
+        ps.setString(2, form)
+        val rs = ps.executeQuery()
+        if (rs.next()) Option(rs.getTimestamp(1)) map (_.getTime) else None
+    }
+
+    // Latest non-deleted version of the form definition along with its last modification time
+    def latestDefinitionLastModified(connection: Connection, app: String, form: String): Option[(Int, Long)] = {
+        val ps = connection.prepareStatement(
+            """|SELECT   t.form_version, t.last_modified_time
+               |FROM     orbeon_form_definition t,
+               |         (
+               |             SELECT   max(last_modified_time) last_modified_time, form_version
+               |             FROM     orbeon_form_definition
+               |             WHERE    app = ? AND form = ?
+               |             GROUP BY form_version
+               |         ) m
+               |WHERE    t.app = ? AND t.form = ?
+               |         AND t.form_version = m.form_version
+               |         AND t.last_modified_time = m.last_modified_time
+               |         AND t.deleted = 'N'
+               |ORDER BY t.form_version DESC
+               |""".stripMargin)
+        ps.setString(1, app)
+        ps.setString(2, form)
+        ps.setString(3, app)
+        ps.setString(4, form)
+        val rs = ps.executeQuery()
+        if (rs.next()) Option(rs.getTimestamp(2)) map (rs.getInt(1) → _.getTime) else None
+    }
+
+    def formMetadata(provider: String, app: String, form: String, lastModified: Option[Long])(load: ⇒ Option[DocumentInfo])(implicit logger: IndentedLogger): Option[DocumentInfo] =
+        findOrLoad(metadataKey(provider, app, form), lastModified, Seq("provider" → provider, "app" → app, "form" → form))(load)
+
+    def publishedForm(provider: String, app: String, form: String, version: Int, lastModified: Option[Long])(load: ⇒ Option[DocumentInfo])(implicit logger: IndentedLogger): Option[DocumentInfo] =
+        findOrLoad(definitionKey(provider, app, form, version), lastModified, Seq("provider" → provider, "app" → app, "form" → form, "version" → version.toString))(load)
+
+    // Called when a form definition is published or deleted on this node
+    def remove(provider: String, app: String, form: String, version: Int)(implicit logger: IndentedLogger): Unit = {
+        debug("removing form definition from cache", Seq("provider" → provider, "app" → app, "form" → form, "version" → version.toString))
+        cache.remove(metadataKey(provider, app, form))
+        cache.remove(definitionKey(provider, app, form, version))
+    }
+
+    private def findOrLoad(key: InternalCacheKey, lastModified: Option[Long], debugPairs: ⇒ Seq[(String, String)])(load: ⇒ Option[DocumentInfo])(implicit logger: IndentedLogger) =
+        lastModified match {
+            case Some(validity) ⇒
+                Option(cache.findValid(key, validity).asInstanceOf[DocumentInfo]) match {
+                    case some @ Some(_) ⇒
+                        debug("found form definition in cache", debugPairs)
+                        some
+                    case None ⇒
+                        // NOTE: Not synchronized, so concurrent requests might load the same document. The last one
+                        // to complete wins, which is fine as both are equivalent.
+                        debug("loading form definition into cache", debugPairs)
+                        val loaded = load
+                        loaded foreach (cache.add(key, validity, _))
+                        loaded
+                }
+            case None ⇒
+                load
+        }
+}
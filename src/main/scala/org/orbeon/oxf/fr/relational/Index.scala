@@ -13,30 +13,186 @@
  */
 package org.orbeon.oxf.fr.relational
 
-import java.sql.Connection
+import java.sql.{ResultSet, Connection}
+import javax.xml.transform.stream.StreamSource
 
 import org.orbeon.oxf.fb.FormBuilder._
 import org.orbeon.oxf.fr.DataMigration
-import org.orbeon.oxf.util.ScalaUtils
+import org.orbeon.oxf.util.{XPath, ScalaUtils}
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.xforms.XFormsConstants
+import org.orbeon.oxf.xml.{TransformerUtils, XMLConstants, NamespaceMapping}
 import org.orbeon.saxon.om.{DocumentInfo, NodeInfo}
+import org.orbeon.scaxon.XML
 import org.orbeon.scaxon.XML._
+import collection.JavaConverters._
 
+/**
+ * Relational index, used by the search when `oxf.fr.persistence.[provider].index-search` is enabled.
+ *
+ * - `orbeon_i_current` has one row for the latest draft and the latest non-draft of each data document which is not
+ *   deleted, `orbeon_i_control_text` one row for each value of a control with the `fr-summary` or `fr-search` class
+ * - the index is updated by the CRUD when data is saved or deleted, and rebuilt by `/fr/service/[provider]/reindex`
+ */
 object Index {
 
+    private val XPathPredicateRegex = """\[[^\]]*\]""".r
+
+    // Prefixes used in Form Builder; prefixes in other documents, for now, are not supported
+    val FbNamespaceMapping = new NamespaceMapping(Map(
+        "xh" → XMLConstants.XHTML_NAMESPACE_URI,
+        "xf" → XFormsConstants.XFORMS_NAMESPACE_URI
+    ).asJava)
+
+    // Latest draft and non-draft rows of the data documents which are not deleted, optionally for one document
+    def currentDataQuery(provider: String, forDocument: Boolean) =
+        s"""|SELECT   d.id, d.created, d.last_modified_time, d.username, d.groupname, d.app, d.form, d.document_id,
+            |         d.draft, ${RelationalUtils.xmlColumn(provider, "d")} xml
+            |FROM     orbeon_form_data d,
+            |         (
+            |             SELECT   app, form, document_id, draft, max(last_modified_time) last_modified_time
+            |             FROM     orbeon_form_data
+            |             ${if (forDocument) "WHERE app = ? AND form = ? AND document_id = ?" else ""}
+            |             GROUP BY app, form, document_id, draft
+            |         ) m
+            |WHERE    d.app = m.app
+            |         AND d.form = m.form
+            |         AND d.document_id = m.document_id
+            |         AND d.draft = m.draft
+            |         AND d.last_modified_time = m.last_modified_time
+            |         AND d.deleted = 'N'
+            |ORDER BY d.app, d.form
+            |""".stripMargin
+
+    def deleteAll(connection: Connection): Unit = {
+        connection.prepareStatement("DELETE FROM orbeon_i_control_text").execute()
+        connection.prepareStatement("DELETE FROM orbeon_i_current").execute()
+    }
+
+    // Brings the index up to date after a data document was saved or deleted; as this uses the connection on which
+    // the change was made, the index is updated in the same transaction
     def updateIndex(
-        connection : Connection,
-        appName    : String,
-        formName   : String,
-        documentId : String,
-        formDoc    : DocumentInfo,
-        dataDoc    : DocumentInfo
+        connection      : Connection,
+        provider        : String,
+        app             : String,
+        form            : String,
+        documentId      : String,
+        indexedControls : Seq[IndexedControl]
     ): Unit = {
+
         // Remove any existing data we might have in the index about this document
-        val cleanStatement = connection.prepareStatement("""delete from orbeon_i_control_text where document_id = ?""")
-        cleanStatement.setString(1, documentId)
-        cleanStatement.execute()
+        for (table ← List("orbeon_i_control_text", "orbeon_i_current")) {
+            val ps = connection.prepareStatement(
+                if (table == "orbeon_i_current")
+                    "DELETE FROM orbeon_i_current WHERE app = ? AND form = ? AND document_id = ?"
+                else
+                    """|DELETE FROM orbeon_i_control_text
+                       |WHERE  data_id IN (
+                       |           SELECT data_id FROM orbeon_i_current WHERE app = ? AND form = ? AND document_id = ?
+                       |       )
+                       |""".stripMargin)
+            ps.setString(1, app)
+            ps.setString(2, form)
+            ps.setString(3, documentId)
+            ps.executeUpdate()
+        }
+
+        // Index what is current now, which is nothing if the document was deleted
+        val ps = connection.prepareStatement(currentDataQuery(provider, forDocument = true))
+        ps.setString(1, app)
+        ps.setString(2, form)
+        ps.setString(3, documentId)
+        val currentData = ps.executeQuery()
+        while (currentData.next())
+            insertDocument(connection, provider, currentData, indexedControls)
+    }
+
+    // Index the current row of a result set returned by `currentDataQuery`
+    def insertDocument(connection: Connection, provider: String, currentData: ResultSet, indexedControls: Seq[IndexedControl]): Unit = {
 
-        findIndexedControls(formDoc)
+        val dataId   = currentData.getInt   ("id")
+        val username = currentData.getString("username")
+        val app      = currentData.getString("app")
+        val form     = currentData.getString("form")
+
+        // Insert into the "current data" table
+        locally {
+            val insert = connection.prepareStatement(
+                """|INSERT INTO orbeon_i_current
+                   |            (data_id, document_id, created, last_modified, username, groupname, app, form, draft)
+                   |     VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)
+                   |""".stripMargin)
+            insert.setInt      (1, dataId)
+            insert.setString   (2, currentData.getString   ("document_id"))
+            insert.setTimestamp(3, currentData.getTimestamp("created"))
+            insert.setTimestamp(4, currentData.getTimestamp("last_modified_time"))
+            insert.setString   (5, username)
+            insert.setString   (6, currentData.getString   ("groupname"))
+            insert.setString   (7, app)
+            insert.setString   (8, form)
+            insert.setString   (9, currentData.getString   ("draft"))
+            insert.execute()
+        }
+
+        // Extract and insert value for each indexed control
+        // - we only read the data if there are controls to index
+        // - XPath expressions are relative to the root element
+        if (indexedControls.nonEmpty) {
+
+            val dataRootElement: NodeInfo =
+                useAndClose(RelationalUtils.xmlReader(provider, currentData, "xml")) { reader ⇒
+                    TransformerUtils.readTinyTree(XPath.GlobalConfiguration, new StreamSource(reader), false) \\ * head
+                }
+
+            val insert = connection.prepareStatement(
+                """|INSERT INTO orbeon_i_control_text
+                   |            (data_id, username, app, form, control, pos, val)
+                   |     VALUES (?, ?, ?, ?, ?, ?, ?)
+                   |""".stripMargin)
+
+            for (control ← indexedControls) {
+
+                // Remove predicates from XPath expression; applies to:
+                // - the [1] added by `findIndexedControls` for the summary page;
+                //   those will go away when the search will return multiple values per control
+                // - in the FB form, the predicate for the language
+                val xpath = XPathPredicateRegex.replaceAllIn(control.xpath, "")
+
+                val values = XML.eval(dataRootElement, xpath, FbNamespaceMapping).asInstanceOf[Seq[NodeInfo]]
+                for ((value, position) ← values.zipWithIndex) {
+                    insert.setInt   (1, dataId)
+                    insert.setString(2, username)
+                    insert.setString(3, app)
+                    insert.setString(4, form)
+                    insert.setString(5, control.name)
+                    insert.setInt   (6, position + 1)
+                    insert.setString(7, truncateValue(provider, value.getStringValue))
+                    insert.execute()
+                }
+            }
+        }
+    }
+
+    /**
+     * If control values are "really long", we might not be able fully index them. Here we truncate values stored
+     * in the index table so it doesn't exceed the limit imposed by the type used to store the value in
+     * `orbeon_i_control_text` for the relevant database.
+     *
+     * - For MySQL, `text` can [store][MySQL text] up to pow(2, 16-1) bytes. Since UTF-8 encoding can take up to 4 bytes
+     *   per character, we conservatively divide this by 4 to get the max number of characters. In MySQL 5.6, with the
+     *   UTF-8 uses a [3-byte encoding][MySQL utf], but the documentation says it might use 4 in the future.
+     * - Other databases use a 255 characters column, which can be part of an index.
+     *
+     *   [MySQL text]: http://dev.mysql.com/doc/refman/5.6/en/storage-requirements.html#idp59499472
+     *   [MySQL utf]: http://dev.mysql.com/doc/refman/5.6/en/charset-unicode-utf8mb3.html
+     */
+    private def truncateValue(provider: String, value: String): String = {
+        // Limit based on the provider
+        val limit = provider match {
+            case "mysql" ⇒ math.floor((math.pow(2, 16) - 1) / 4).toInt
+            case _       ⇒ 255
+        }
+        if (limit < value.length) value.substring(0, limit) else value
     }
 
     // For Summary page
@@ -96,6 +252,7 @@ object Index {
         control   : String,
         htmlLabel : Boolean
     ) {
+        // The summary page searches selection controls by value, which can use the index
         def toXML: NodeInfo =
             <query
                 name={name}
@@ -104,7 +261,7 @@ object Index {
                 control={control}
                 search-field={inSearch.toString}
                 summary-field={inSummary.toString}
-                match="substring"
+                match={if (control == "select1") "exact" else "substring"}
                 html-label={htmlLabel.toString}/>
     }
 }
@@ -15,16 +15,9 @@ package org.orbeon.oxf.fr.relational
 
 import org.orbeon.oxf.processor.ProcessorImpl
 import org.orbeon.oxf.pipeline.api.PipelineContext
-import org.orbeon.oxf.xml.{NamespaceMapping, XMLConstants, TransformerUtils}
-import javax.xml.transform.stream.StreamSource
 import org.orbeon.oxf.util._
-import org.orbeon.scaxon.XML._
 import org.orbeon.oxf.fr.FormRunner
-import org.orbeon.saxon.om.NodeInfo
 import org.orbeon.oxf.fr.relational.Index.IndexedControl
-import org.orbeon.oxf.xforms.XFormsConstants
-import collection.JavaConverters._
-import org.orbeon.scaxon.XML
 
 /**
  * Processor repopulating the relational indices. This doesn't create the tables, but deletes their content
@@ -37,144 +30,60 @@ class ReindexProcessor extends ProcessorImpl {
 
     private implicit val Logger = new IndentedLogger(LoggerFactory.createLogger(classOf[ReindexProcessor]), "")
 
-    private val ReindexPathRegex    = """/fr/service/([^/]+)/reindex""".r
-    private val XPathPredicateRegex = """\[[^\]]*\]""".r
-
-    // Prefixes used in Form Builder; prefixes in other documents, for now, are not supported
-    val FbNamespaceMapping = new NamespaceMapping(Map(
-        "xh" → XMLConstants.XHTML_NAMESPACE_URI,
-        "xf" → XFormsConstants.XFORMS_NAMESPACE_URI
-    ).asJava)
+    private val ReindexPathRegex = """/fr/service/([^/]+)/reindex""".r
 
     override def start(pipelineContext: PipelineContext) {
 
         val ReindexPathRegex(provider) = NetUtils.getExternalContext.getRequest.getRequestPath
 
         RelationalUtils.withConnection { connection ⇒
+            RelationalUtils.withTransaction(connection) {
+
+                // Clean index
+                Index.deleteAll(connection)
+
+                // Get all the rows from orbeon_form_data that are "latest" and not deleted
+                val currentData = connection.prepareStatement(Index.currentDataQuery(provider, forDocument = false)).executeQuery()
+
+                // Info on indexed controls for a given app/form
+                case class FormIndexedControls(app: String, form: String, indexedControls: Seq[IndexedControl])
+
+                // Go through each data document
+                // - we keep track of the indexed controls along in the iteration, and thus avoid recomputing them
+                var prevIndexedControls: Option[FormIndexedControls] = None
+                while (currentData.next()) {
+                    val app  = currentData.getString("app")
+                    val form = currentData.getString("form")
+
+                    // Get indexed controls for current app/form
+                    val indexedControls: Seq[IndexedControl] = prevIndexedControls match {
+                        case Some(FormIndexedControls(`app`, `form`, indexedControls)) ⇒
+                            // Use indexed controls from previous iteration
+                            indexedControls
+                        case _ ⇒
+                            // Compute indexed controls reading the form definition
+                            val latest = FormDefinitionCache.latestDefinitionLastModified(connection, app, form)
+                            val formDefinitionOpt = latest match {
+                                case Some((version, lastModified)) ⇒
+                                    FormDefinitionCache.publishedForm(provider, app, form, version, Some(lastModified))(FormRunner.readPublishedForm(app, form))
+                                case None ⇒
+                                    FormRunner.readPublishedForm(app, form)
+                            }
+                            formDefinitionOpt match {
+                                case None ⇒
+                                    Logger.logError("", s"Can't index documents for $app/$form as form definition can't be found")
+                                    Seq.empty
+                                case Some(formDefinition) ⇒
+                                    Index.findIndexedControls(formDefinition)
+                            }
+                    }
 
-            // Clean index
-            connection.prepareStatement("delete from orbeon_i_current").execute()
-            connection.prepareStatement("delete from orbeon_i_control_text").execute()
-
-            // Get all the row from orbeon_form_data that are "latest" and not deleted
-            val currentData = connection.prepareStatement(
-                """select   id, created, last_modified, username, app, form, document_id, xml
-                  |  from   orbeon_form_data
-                  | where   (app, form, document_id, last_modified) in
-                  |         (
-                  |               select app, form, document_id, max(last_modified) last_modified
-                  |                 from orbeon_form_data
-                  |             group by app, form, document_id
-                  |         )
-                  |   and   deleted = 'N'
-                  |order by app, form
-                  |""".stripMargin).executeQuery()
-
-            // Info on indexed controls for a given app/form
-            case class FormIndexedControls(app: String, form: String, indexedControls: Seq[IndexedControl])
-
-            // Go through each data document
-            // - we keep track of the indexed controls along in the iteration, and thus avoid recomputing them
-            var prevIndexedControls: Option[FormIndexedControls] = None
-            while (currentData.next()) {
-                val app  = currentData.getString("app")
-                val form = currentData.getString("form")
-
-                // Get indexed controls for current app/form
-                val indexedControls: Seq[IndexedControl] = prevIndexedControls match {
-                    case Some(FormIndexedControls(`app`, `form`, indexedControls)) ⇒
-                        // Use indexed controls from previous iteration
-                        indexedControls
-                    case _ ⇒
-                        // Compute indexed controls reading the form definition
-                        FormRunner.readPublishedForm(app, form) match {
-                            case None ⇒
-                                Logger.logError("", s"Can't index documents for $app/$form as form definition can't be found")
-                                Seq.empty
-                            case Some(formDefinition) ⇒
-                                Index.findIndexedControls(formDefinition)
-                        }
-                }
-
-                // Insert into the "current data" table
-                val insert = connection.prepareStatement(
-                    """insert into orbeon_i_current
-                      |           (data_id, document_id, created, last_modified, username, app, form)
-                      |    values (?, ?, ?, ?, ?, ?, ?)
-                    """.stripMargin)
-                insert.setInt      (1, currentData.getInt      ("id"))
-                insert.setString   (2, currentData.getString   ("document_id"))
-                insert.setTimestamp(3, currentData.getTimestamp("created"))
-                insert.setTimestamp(4, currentData.getTimestamp("last_modified"))
-                insert.setString   (5, currentData.getString   ("username"))
-                insert.setString   (6, app)
-                insert.setString   (7, form)
-                insert.execute()
-
-                // Read data (XML)
-                // - using lazy, as we might not need the data, if there are no controls to index
-                // - return root element, as XPath this is the node XPath expressions are relative to
-                lazy val dataRootElement: NodeInfo = {
-                    val dataClob = currentData.getClob("xml")
-                    val source = new StreamSource(dataClob.getCharacterStream)
-                    val document = TransformerUtils.readTinyTree(XPath.GlobalConfiguration, source, false)
-                    document \\ * head
-                }
-
-                // Extract and insert value for each indexed control
-                for (control ← indexedControls) {
-
-                    // Remove predicates from XPath expression; applies to:
-                    // - the [1] added by `Index.findIndexedControls` for the summary page;
-                    //   those will go away when the search will return multiple values per control
-                    // - in the FB form, the predicate for the language
-                    val xpath = XPathPredicateRegex.replaceAllIn(control.xpath, "")
+                    Index.insertDocument(connection, provider, currentData, indexedControls)
 
-                    val values = XML.eval(dataRootElement, xpath, FbNamespaceMapping).asInstanceOf[Seq[NodeInfo]]
-                    for ((value, position) ← values.zipWithIndex) {
-                        val insert = connection.prepareStatement(
-                            """insert into orbeon_i_control_text
-                              |           (data_id, username, app, form, control, pos, val)
-                              |    values (?, ?, ?, ?, ?, ?, ?)
-                            """.stripMargin)
-                        insert.setInt      (1, currentData.getInt("id"))
-                        insert.setString   (2, currentData.getString("username"))
-                        insert.setString   (3, app)
-                        insert.setString   (4, form)
-                        insert.setString   (5, control.name)
-                        insert.setInt      (6, position + 1)
-                        insert.setString   (7, truncateValue(provider, value.getStringValue))
-                        insert.execute()
-                    }
+                    // Pass current indexed controls to the next iteration
+                    prevIndexedControls = Some(FormIndexedControls(app, form, indexedControls))
                 }
-
-                // Pass current indexed controls to the next iteration
-                prevIndexedControls = Some(FormIndexedControls(app, form, indexedControls))
             }
         }
     }
-
-    /**
-     * If control values are "really long", we might not be able fully index them. Here we truncate values stored
-     * in the index table so it doesn't exceed the limit imposed by the type used to store the value in
-     * `orbeon_i_control_text` for the relevant database.
-     *
-     * - For MySQL, `text` can [store][MySQL text] up to pow(2, 16-1) bytes. Since UTF-8 encoding can take up to 4 bytes
-     *   per character, we conservatively divide this by 4 to get the max number of characters. In MySQL 5.6, with the
-     *   UTF-8 uses a [3-byte encoding][MySQL utf], but the documentation says it might use 4 in the future.
-     *
-     *   [MySQL text]: http://dev.mysql.com/doc/refman/5.6/en/storage-requirements.html#idp59499472
-     *   [MySQL utf]: http://dev.mysql.com/doc/refman/5.6/en/charset-unicode-utf8mb3.html
-     */
-    private def truncateValue(provider: String, value: String): String = {
-        // Limit, if any, based on the provider
-        val limit: Option[Int] = provider match {
-            case "mysql" ⇒ Option(math.floor((math.pow(2, 16) - 1) / 4).toInt)
-            case _       ⇒ None
-        }
-        limit match {
-            case Some(l) if l < value.length ⇒ value.substring(0, l)
-            case _                           ⇒ value
-        }
-    }
 }
@@ -13,6 +13,7 @@
  */
 package org.orbeon.oxf.fr.relational
 
+import java.io.Reader
 import java.sql.{ResultSet, Connection, PreparedStatement}
 import org.orbeon.oxf.properties.Properties
 import org.orbeon.oxf.externalcontext.ExternalContextOps._
@@ -23,16 +24,52 @@ import org.orbeon.oxf.util.NetUtils
 
 object RelationalUtils {
 
+    // Name of the datasource used by the current request
+    def datasourceName: String =
+        NetUtils.getExternalContext.getRequest.getFirstHeader("orbeon-datasource").get
+
     def withConnection[T](block: Connection ⇒ T): T = {
         // Get connection to the database
         val dataSource = {
-            val datasource = NetUtils.getExternalContext.getRequest.getFirstHeader("orbeon-datasource").get
+            val datasource = datasourceName
             val jndiContext = new InitialContext().lookup("java:comp/env/jdbc").asInstanceOf[Context]
             jndiContext.lookup(datasource).asInstanceOf[DataSource]
         }
         useAndClose(dataSource.getConnection)(block)
     }
 
+    // Run the block in a transaction, committed if the block completes normally and rolled back otherwise
+    def withTransaction[T](connection: Connection)(block: ⇒ T): T = {
+        val autoCommit = connection.getAutoCommit
+        connection.setAutoCommit(false)
+        try {
+            val result = block
+            connection.commit()
+            result
+        } catch {
+            case t: Throwable ⇒
+                runQuietly(connection.rollback())
+                throw t
+        } finally
+            connection.setAutoCommit(autoCommit)
+    }
+
+    // Expression reading the `xml` column of the table with the given alias as a character large object
+    def xmlColumn(provider: String, alias: String) =
+        provider match {
+            case "oracle"     ⇒ s"$alias.xml.getClobVal()"
+            case "db2"        ⇒ s"xml2clob($alias.xml)"
+            case "postgresql" ⇒ s"$alias.xml as"
+            case _            ⇒ s"$alias.xml"
+        }
+
+    // Reader on a column selected with `xmlColumn`
+    def xmlReader(provider: String, resultSet: ResultSet, column: String): Reader =
+        provider match {
+            case "postgresql" ⇒ resultSet.getCharacterStream(column)
+            case _            ⇒ resultSet.getClob(column).getCharacterStream
+        }
+
     /**
      * For cases where we can't use `setString` on a prepared statement
      * - Apache Commons Lang had a `StringEscapeUtils.escapeSql` [1] but it has been deprecated in Commons Lang 3 [2]
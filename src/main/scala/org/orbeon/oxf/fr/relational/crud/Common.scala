@@ -15,7 +15,7 @@ package org.orbeon.oxf.fr.relational.crud
 
 import java.sql.Connection
 import org.orbeon.oxf.util.ScalaUtils._
-import org.orbeon.oxf.fr.relational.{ForDocument, Specific, Next, Unspecified}
+import org.orbeon.oxf.fr.relational._
 import org.orbeon.oxf.util.{LoggerFactory, IndentedLogger}
 import org.orbeon.oxf.fr.{FormRunnerPersistence, FormRunner}
 import org.orbeon.oxf.webapp.HttpStatusCodeException
@@ -97,8 +97,25 @@ trait Common extends RequestResponse with FormRunnerPersistence {
     def idColumnsList(req: Request): String = idColumns(req).mkString(", ")
     def joinColumns(cols: Seq[String], t1: String, t2: String) = cols.map(c ⇒ s"$t1.$c = $t2.$c").mkString(" AND ")
 
-    def readFormMetadata(req: Request): DocumentInfo =
-        readFormMetadata(req.app, req.form).ensuring(_.isDefined, "can't find form metadata for data").get
+    // Read the form metadata, from the cache if the form definition hasn't changed since it was cached
+    // NOTE: Call this before establishing the request's connection. The validity is checked with a connection which
+    // is released before the metadata is loaded, as loading it uses a connection of the provider serving the form
+    // definition, so we never hold two simultaneous connections.
+    def readFormMetadata(req: Request): DocumentInfo = {
+        val lastModified = RelationalUtils.withConnection(FormDefinitionCache.metadataLastModified(_, req.app, req.form))
+        FormDefinitionCache.formMetadata(req.provider, req.app, req.form, lastModified)(readFormMetadata(req.app, req.form))
+            .ensuring(_.isDefined, "can't find form metadata for data").get
+    }
+
+    // Read the latest published form definition, from the cache if it hasn't changed since it was cached
+    // NOTE: Like readFormMetadata, call this before establishing the request's connection.
+    def readLatestPublishedForm(req: Request): Option[DocumentInfo] =
+        RelationalUtils.withConnection(FormDefinitionCache.latestDefinitionLastModified(_, req.app, req.form)) match {
+            case Some((version, lastModified)) ⇒
+                FormDefinitionCache.publishedForm(req.provider, req.app, req.form, version, Some(lastModified))(readPublishedForm(req.app, req.form))
+            case None ⇒
+                readPublishedForm(req.app, req.form)
+        }
 
     // Given a user/group name coming from the data, tells us what operations we can do in this data, assuming that
     // it is for the current request app/form
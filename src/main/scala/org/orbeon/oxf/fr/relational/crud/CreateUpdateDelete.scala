@@ -13,7 +13,8 @@
  */
 package org.orbeon.oxf.fr.relational.crud
 
-import java.io.{Writer, InputStream, ByteArrayOutputStream}
+import java.io._
+import java.net.URI
 import java.sql.{Array ⇒ _, _}
 import javax.xml.transform.OutputKeys
 import javax.xml.transform.sax.{SAXResult, SAXSource}
@@ -22,7 +23,8 @@ import org.orbeon.oxf.fr.relational._
 import org.orbeon.oxf.pipeline.api.PipelineContext
 import org.orbeon.oxf.processor.generator.RequestGenerator
 import org.orbeon.oxf.util.ScalaUtils._
-import org.orbeon.oxf.util.{Whitespace, XPath, StringBuilderWriter, NetUtils}
+import org.apache.commons.fileupload.FileItem
+import org.orbeon.oxf.util.{LoggerFactory, Whitespace, XPath, StringBuilderWriter, NetUtils}
 import org.orbeon.oxf.xml._
 import org.xml.sax.InputSource
 import org.orbeon.saxon.om.DocumentInfo
@@ -32,6 +34,8 @@ import org.orbeon.oxf.xml.JXQName
 import org.orbeon.oxf.fr.relational.Specific
 import org.orbeon.oxf.fr.relational.ForDocument
 import org.orbeon.oxf.webapp.HttpStatusCodeException
+import org.orbeon.oxf.common.OXFException
+import scala.collection.mutable.ListBuffer
 
 object RequestReader {
 
@@ -61,16 +65,58 @@ object RequestReader {
         }
     }
 
-    def bytes(): Array[Byte] = {
-        val os = new ByteArrayOutputStream
-        NetUtils.copyStream(requestInputStream(), os)
-        os.toByteArray
+    // Request body as a stream along with its length, as JDBC drivers need the length to stream a BLOB
+    // If the length is not known upfront, the body is first spooled to a temporary file, so memory use stays bounded
+    def bodyWithLength(): (InputStream, Long) = {
+
+        def knownLength =
+            RequestGenerator.getRequestBody(PipelineContext.get) match {
+                case bodyURL: String ⇒
+                    val connection = new URI(bodyURL).toURL.openConnection()
+                    // NOTE: getContentLengthLong is only available from Java 7
+                    connection.getContentLength match {
+                        case -1     ⇒ None
+                        case length ⇒ Some(connection.getInputStream → length.toLong)
+                    }
+                case _ ⇒
+                    httpRequest.getContentLength match {
+                        case -1     ⇒ None
+                        case length ⇒ Some(httpRequest.getInputStream → length.toLong)
+                    }
+            }
+
+        knownLength getOrElse {
+            val fileItem = NetUtils.prepareFileItem(NetUtils.REQUEST_SCOPE, Logger)
+            useAndClose(fileItem.getOutputStream) { os ⇒
+                NetUtils.copyStream(requestInputStream(), os)
+            }
+            fileItem.getInputStream → fileItem.getSize
+        }
     }
 
-    def dataAndMetadataAsString(metadata: Boolean): (String, Option[String]) =
-        dataAndMetadataAsString(requestInputStream(), metadata)
+    // Serialized XML data spooled to a temporary file, so it can be handed to JDBC as a character stream
+    case class SpooledXML(fileItem: FileItem, length: Long) {
+        def reader: Reader = new InputStreamReader(fileItem.getInputStream, "UTF-8")
+    }
+
+    def spooledDataAndMetadata(metadata: Boolean): (SpooledXML, Option[String]) = {
+        val fileItem = NetUtils.prepareFileItem(NetUtils.REQUEST_SCOPE, Logger)
+        val writer   = new CountingWriter(new BufferedWriter(new OutputStreamWriter(fileItem.getOutputStream, "UTF-8")))
+        val metadataOpt =
+            useAndClose(writer) { writer ⇒
+                dataAndMetadataToWriter(requestInputStream(), metadata, writer)
+            }
+        (SpooledXML(fileItem, writer.count), metadataOpt)
+    }
 
     def dataAndMetadataAsString(inputStream: InputStream, metadata: Boolean): (String, Option[String]) = {
+        val dataWriter  = new StringBuilderWriter()
+        val metadataOpt = dataAndMetadataToWriter(inputStream, metadata, dataWriter)
+        (dataWriter.toString, metadataOpt)
+    }
+
+    // Serialize the data to the given writer, and return the metadata if requested
+    def dataAndMetadataToWriter(inputStream: InputStream, metadata: Boolean, dataWriter: Writer): Option[String] = {
 
         def newTransformer = (
             TransformerUtils.getXMLIdentityTransformer
@@ -101,8 +147,7 @@ object RequestReader {
             (metadataWriter, metadataFilter)
         }
 
-        val source     = new SAXSource(XMLParsing.newXMLReader(XMLParsing.ParserConfiguration.PLAIN), new InputSource(inputStream))
-        val dataWriter = new StringBuilderWriter()
+        val source = new SAXSource(XMLParsing.newXMLReader(XMLParsing.ParserConfiguration.PLAIN), new InputSource(inputStream))
 
         val resultReceiver = metadataWriterAndReceiver match {
             case Some((_, metadataFilter)) ⇒
@@ -113,9 +158,20 @@ object RequestReader {
 
         newTransformer.transform(source, new SAXResult(resultReceiver))
 
-        (dataWriter.toString, metadataWriterAndReceiver map (_._1.toString))
+        metadataWriterAndReceiver map (_._1.toString)
+    }
+
+    // Count characters written, as JDBC wants the length of character streams in characters
+    class CountingWriter(writer: Writer) extends FilterWriter(writer) {
+        var count = 0L
+        override def write(c: Int)                              = { count += 1;   super.write(c) }
+        override def write(cbuf: Array[Char], off: Int, len: Int) = { count += len; super.write(cbuf, off, len) }
+        override def write(str: String, off: Int, len: Int)     = { count += len; super.write(str, off, len) }
     }
 
+    private def httpRequest = NetUtils.getExternalContext.getRequest
+    private val Logger      = LoggerFactory.createLogger(classOf[CRUD])
+
     def xmlDocument(): DocumentInfo =
         TransformerUtils.readTinyTree(XPath.GlobalConfiguration, requestInputStream(), "", false, false)
 }
@@ -189,12 +245,36 @@ trait CreateUpdateDelete extends RequestResponse with Common {
 
             val (xmlOpt, metadataOpt) =
                 if (! delete && ! req.forAttachment) {
-                    val (xml, metadataOpt) = RequestReader.dataAndMetadataAsString(metadata = !req.forData)
+                    val (xml, metadataOpt) = RequestReader.spooledDataAndMetadata(metadata = !req.forData)
                     (Some(xml), metadataOpt)
                 } else {
                     (None, None)
                 }
 
+            // Streams handed to the driver, closed once the statement has run
+            val streams = ListBuffer[Closeable]()
+
+            // Use the int length overloads, as some drivers, including PostgreSQL's, don't implement the long ones
+            def intLength(length: Long) =
+                if (length <= Int.MaxValue) length.toInt else throw new OXFException(s"Content too large: $length")
+
+            // Stream content to the database rather than materializing it, as attachments and data can be large
+            def setBinaryStream(ps: PreparedStatement, i: Int): Unit = {
+                val (is, length) = RequestReader.bodyWithLength()
+                streams += is
+                ps.setBinaryStream(i, is, intLength(length))
+            }
+
+            def setXML(ps: PreparedStatement, i: Int): Unit =
+                xmlOpt match {
+                    case Some(xml) ⇒
+                        val reader = xml.reader
+                        streams += reader
+                        ps.setCharacterStream(i, reader, intLength(xml.length))
+                    case None ⇒
+                        ps.setString(i, null)
+                }
+
             val possibleCols = List(
                 true                  → "created"            → "?"    → param(_.setTimestamp, existingRow.map(_.created).getOrElse(now)),
                 true                  → "last_modified_time" → "?"    → param(_.setTimestamp, now),
@@ -206,11 +286,11 @@ trait CreateUpdateDelete extends RequestResponse with Common {
                 true                  → "deleted"            → "?"    → param(_.setString   , if (delete) "Y" else "N"),
                 req.forData           → "draft"              → "?"    → param(_.setString   , if (req.dataPart.get.isDraft) "Y" else "N"),
                 req.forAttachment     → "file_name"          → "?"    → param(_.setString   , req.filename.get),
-                req.forAttachment     → "file_content"       → "?"    → param(_.setBytes    , RequestReader.bytes()),
+                req.forAttachment     → "file_content"       → "?"    → (setBinaryStream _),
                 isFormDefinition      → "form_metadata"      → "?"    → param(_.setString   , metadataOpt.orNull),
                 req.forData           → "username"           → "?"    → param(_.setString   , existingRow.map(_.username).flatten.getOrElse(requestUsername.getOrElse(null))),
                 req.forData           → "groupname"          → "?"    → param(_.setString   , existingRow.map(_.group   ).flatten.getOrElse(requestGroup   .getOrElse(null))),
-                ! req.forAttachment   → xmlCol               → xmlVal → param(_.setString   , xmlOpt.orNull)
+                ! req.forAttachment   → xmlCol               → xmlVal → (setXML _)
             )
 
             val includedCols =
@@ -225,9 +305,12 @@ trait CreateUpdateDelete extends RequestResponse with Common {
                     |     VALUES ( ${includedCols.map(_._1._2).mkString(", ")} )
                     |""".stripMargin)
 
-            for ((((_, _), param), i) ← includedCols.zipWithIndex)
-                param(ps, i + 1)
-            ps.executeUpdate()
+            try {
+                for ((((_, _), param), i) ← includedCols.zipWithIndex)
+                    param(ps, i + 1)
+                ps.executeUpdate()
+            } finally
+                streams foreach (stream ⇒ runQuietly(stream.close()))
         }
 
         // If we saved a "normal" document (not a draft), delete any draft document and draft attachments
@@ -323,6 +406,24 @@ trait CreateUpdateDelete extends RequestResponse with Common {
         // Read before establishing a connection, so we don't use two simultaneous connections
         val formMetadata = req.forData option readFormMetadata(req)
 
+        lazy val latestPublishedForm = readLatestPublishedForm(req)
+
+        // Columns of the flat table, if the data saved or deleted must be reflected there
+        val flatTablePathsCols =
+            if (requestFlatTable && FlatView.SupportedProviders(req.provider) &&
+                    req.forData && ! req.forAttachment && ! req.dataPart.get.isDraft)
+                latestPublishedForm map (FlatView.extractPathsCols(_).to[List])
+            else
+                None
+
+        // Controls of the index, if the data saved or deleted must be reflected there
+        val indexedControls =
+            if (providerPropertyAsBoolean(req.provider, "index-search", default = false) &&
+                    req.forData && ! req.forAttachment)
+                Some(latestPublishedForm.toList flatMap Index.findIndexedControls)
+            else
+                None
+
         RelationalUtils.withConnection { connection ⇒
 
             // Initial test on version that doesn't rely on accessing the database to read a document; we do this first:
@@ -405,16 +506,35 @@ trait CreateUpdateDelete extends RequestResponse with Common {
             checkVersionWithExisting(existing)
             checkDocExistsForDelete(existing)
 
-            // Update database
-            val versionSet = store(connection, req, existing, delete)
-            if (! delete && req.forData && req.dataPart.get.isDraft)
-                deleteDraftOnSaveData(connection, req)
-            if (delete && req.forData)
-                deleteDraft(connection, req)
+            // Update database, along with the index and flat table, so searches never see a partial change
+            val versionSet = RelationalUtils.withTransaction(connection) {
+
+                val versionSet = store(connection, req, existing, delete)
+                if (! delete && req.forData && req.dataPart.get.isDraft)
+                    deleteDraftOnSaveData(connection, req)
+                if (delete && req.forData)
+                    deleteDraft(connection, req)
+
+                indexedControls foreach
+                    (Index.updateIndex(connection, req.provider, req.app, req.form, req.dataPart.get.documentId, _))
+
+                flatTablePathsCols foreach
+                    (FlatView.refreshFlatTable(req, connection, _))
 
-            // Create flat view if needed
-            if (requestFlatView && Set("oracle", "db2", "postgresql")(req.provider) && req.forForm && ! delete && req.form != "library")
-                FlatView.createFlatView(req, connection)
+                versionSet
+            }
+
+            // Publishing or deleting a form definition makes cached copies stale
+            if (req.forForm && ! req.forAttachment)
+                FormDefinitionCache.remove(req.provider, req.app, req.form, versionSet)
+
+            // Create flat view or table if needed
+            if (requestFlatView && FlatView.SupportedProviders(req.provider) && req.forForm && ! delete && req.form != "library") {
+                if (requestFlatTable)
+                    FlatView.createFlatTable(req, connection)
+                else
+                    FlatView.createFlatView(req, connection)
+            }
 
             // Inform caller of the form definition version used
             httpResponse.setHeader("Orbeon-Form-Definition-Version", versionSet.toString)
@@ -15,6 +15,7 @@ package org.orbeon.oxf.fr.relational.crud
 
 import java.sql.Connection
 import org.orbeon.oxf.fr.FormRunner
+import org.orbeon.oxf.util.ScalaUtils._
 import org.orbeon.saxon.om.{NodeInfo, DocumentInfo}
 import org.orbeon.scaxon.XML._
 import scala.annotation.tailrec
@@ -28,9 +29,13 @@ private object FlatView {
         List("document_id", "created", "last_modified_time", "last_modified_by")
                 .map(_.toUpperCase)
                 .map(col ⇒ Col(s"d.$col", s"METADATA_$col"))
+    val MetadataDocumentId      = MetadataPairs.head
     val PrefixedMetadataColumns = MetadataPairs.map{case Col(_, colName) ⇒ colName}
+
     val MaxNameLength           = 30
     val TablePrefix             = "ORBEON_F_"
+    val IndexPrefix             = "ORBEON_I_"
+    val SupportedProviders      = Set("oracle", "db2", "postgresql")
 
     // Create a flat relational view. See related issues:
     //
@@ -38,84 +43,145 @@ private object FlatView {
     // - https://github.com/orbeon/orbeon-forms/issues/1571
     def createFlatView(req: Request, connection: Connection): Unit = {
 
-        val viewName = {
-            val appXML  = xmlToSQLId(req.app)
-            val formXML = xmlToSQLId(req.form)
-            TablePrefix + joinParts(appXML, formXML, MaxNameLength - TablePrefix.length)
-        }
+        val viewName = flatName(TablePrefix, req.app, req.form)
 
         // Delete view if it exists
-        // - Only for DB2 and postgresql; on Oracle we can use "OR REPLACE" when creating the view.
-        if (Set("db2", "postgresql")(req.provider)) {
-            val viewExists = {
-                val query = req.provider match{
-                    case "db2"        ⇒ s"""|SELECT *
-                                             |  FROM SYSIBM.SYSVIEWS
-                                             | WHERE      creator =  (SELECT current_schema
-                                             |                          FROM SYSIBM.SYSDUMMY1)
-                                             |       AND  name    = ?
-                                             |""".stripMargin
-                    case "postgresql" ⇒ s"""|SELECT *
-                                             |  FROM      pg_catalog.pg_class c
-                                             |       JOIN pg_catalog.pg_namespace n
-                                             |         ON n.oid = c.relnamespace
-                                             | WHERE      n.nspname = current_schema
-                                             |       AND  c.relkind = 'v'
-                                             |       AND  upper(c.relname) = ?
-                                             |""".stripMargin
-                    case _            ⇒ ???
-                }
-
-                val ps = connection.prepareStatement(query)
-                ps.setString(1, viewName)
-                val rs = ps.executeQuery()
-                rs.next()
-            }
-            if (viewExists)
-                connection.prepareStatement(s"DROP VIEW $viewName").executeUpdate()
-        }
-
-        // Computer columns in the view
-        val cols = {
-            val userCols  = extractPathsCols(xmlDocument()) map { case (path, col) ⇒
-                val extractFunction = req.provider match {
-                    case "oracle"     ⇒ s"extractValue(d.xml, '/*/$path')"
-                    case "db2"        ⇒ s"XMLSERIALIZE(XMLQUERY('$$XML/*/$path/text()') AS VARCHAR(4000))"
-                    case "postgresql" ⇒ s"(xpath('/*/$path/text()', d.xml))[1]"
-                    case _            ⇒ ???
-                }
-                Col(extractFunction, col)
-            }
-            MetadataPairs.iterator ++ userCols
+        // - On Oracle we can use "OR REPLACE" when creating the view, but not if there is a materialized table
+        existingFlatObject(req.provider, connection, viewName) foreach { kind ⇒
+            if (! (kind == "VIEW" && req.provider == "oracle"))
+                connection.prepareStatement(s"DROP $kind $viewName").executeUpdate()
         }
 
         // Create view
         // - Generate app/form name in SQL, as Oracle doesn't allow bind variables for data definition operations.
-        locally {
-            val query =
-                s"""|CREATE  ${if (Set("oracle", "postgresql")(req.provider)) "OR REPLACE" else ""} VIEW $viewName AS
-                    |SELECT  ${cols map { case Col(col, name) ⇒ col + " " + name} mkString ", "}
-                    |  FROM  orbeon_form_data d,
-                    |        (
-                    |            SELECT   max(last_modified_time) last_modified_time,
-                    |                     app, form, document_id
-                    |              FROM   orbeon_form_data d
-                    |             WHERE       app   = '${escapeSQL(req.app)}'
-                    |                     AND form  = '${escapeSQL(req.form)}'
-                    |                     AND draft = 'N'
-                    |            GROUP BY app, form, document_id
-                    |        ) m
-                    | WHERE      d.last_modified_time = m.last_modified_time
-                    |        AND d.app                = m.app
-                    |        AND d.form               = m.form
-                    |        AND d.document_id        = m.document_id
-                    |        AND d.deleted            = 'N'
-                    |""".stripMargin
-            val ps = connection.prepareStatement(query)
-            ps.executeUpdate()
+        val cols  = flatCols(req.provider, extractPathsCols(xmlDocument())).to[List]
+        val query =
+            s"""|CREATE  ${if (Set("oracle", "postgresql")(req.provider)) "OR REPLACE" else ""} VIEW $viewName AS
+                |${selectQuery(req.app, req.form, cols, forDocument = false)}""".stripMargin
+        connection.prepareStatement(query).executeUpdate()
+    }
+
+    // Create a table with the same columns as the flat view, filled with the current data. Unlike the view, the table
+    // doesn't extract values from the XML when queried, but it must be kept current when data changes, see
+    // `refreshFlatTable()`.
+    def createFlatTable(req: Request, connection: Connection): Unit = {
+
+        val tableName = flatName(TablePrefix, req.app, req.form)
+
+        existingFlatObject(req.provider, connection, tableName) foreach { kind ⇒
+            connection.prepareStatement(s"DROP $kind $tableName").executeUpdate()
         }
+
+        val cols = flatCols(req.provider, extractPathsCols(xmlDocument())).to[List]
+        for (query ← createTableQueries(req.provider, tableName, selectQuery(req.app, req.form, cols, forDocument = false)))
+            connection.prepareStatement(query).executeUpdate()
+
+        // Rows are replaced by document id when data changes
+        connection.prepareStatement(
+            s"CREATE INDEX ${flatName(IndexPrefix, req.app, req.form)} ON $tableName (${MetadataDocumentId.colName})"
+        ).executeUpdate()
     }
 
+    // Replace the rows of the flat table for the document of the request, if the table exists
+    // - The rows are removed, then inserted again from the latest non-draft data, if any, so this works for deletes
+    //   as well as for saves.
+    def refreshFlatTable(req: Request, connection: Connection, pathsCols: Seq[(String, String)]): Unit = {
+
+        val tableName  = flatName(TablePrefix, req.app, req.form)
+        val documentId = req.dataPart.get.documentId
+
+        if (existingFlatObject(req.provider, connection, tableName) == Some("TABLE")) {
+
+            val delete = connection.prepareStatement(s"DELETE FROM $tableName WHERE ${MetadataDocumentId.colName} = ?")
+            delete.setString(1, documentId)
+            delete.executeUpdate()
+
+            val cols   = flatCols(req.provider, pathsCols.iterator).to[List]
+            val insert = connection.prepareStatement(
+                s"""|INSERT INTO $tableName (${cols map (_.colName) mkString ", "})
+                    |${selectQuery(req.app, req.form, cols, forDocument = true)}""".stripMargin)
+            insert.setString(1, documentId)
+            insert.executeUpdate()
+        }
+    }
+
+    def flatName(prefix: String, app: String, form: String) =
+        prefix + joinParts(xmlToSQLId(app), xmlToSQLId(form), MaxNameLength - prefix.length)
+
+    // Whether a table or view with the given name exists in the current schema, as "TABLE" or "VIEW"
+    def existingFlatObject(provider: String, connection: Connection, name: String): Option[String] = {
+        val query = provider match {
+            case "oracle"     ⇒ s"""|SELECT object_type
+                                     |  FROM user_objects
+                                     | WHERE      object_name = ?
+                                     |       AND  object_type IN ('TABLE', 'VIEW')
+                                     |""".stripMargin
+            case "db2"        ⇒ s"""|SELECT CASE type WHEN 'V' THEN 'VIEW' ELSE 'TABLE' END
+                                     |  FROM SYSIBM.SYSTABLES
+                                     | WHERE      creator =  (SELECT current_schema
+                                     |                          FROM SYSIBM.SYSDUMMY1)
+                                     |       AND  name    = ?
+                                     |       AND  type    IN ('T', 'V')
+                                     |""".stripMargin
+            case "postgresql" ⇒ s"""|SELECT CASE c.relkind WHEN 'v' THEN 'VIEW' ELSE 'TABLE' END
+                                     |  FROM      pg_catalog.pg_class c
+                                     |       JOIN pg_catalog.pg_namespace n
+                                     |         ON n.oid = c.relnamespace
+                                     | WHERE      n.nspname = current_schema
+                                     |       AND  c.relkind IN ('r', 'v')
+                                     |       AND  upper(c.relname) = ?
+                                     |""".stripMargin
+            case _            ⇒ ???
+        }
+
+        val ps = connection.prepareStatement(query)
+        ps.setString(1, name)
+        val rs = ps.executeQuery()
+        rs.next() option rs.getString(1)
+    }
+
+    // Columns of the view or table: metadata followed by values extracted from the data
+    def flatCols(provider: String, pathsCols: Iterator[(String, String)]): Iterator[Col] = {
+        val userCols = pathsCols map { case (path, col) ⇒
+            val extractFunction = provider match {
+                case "oracle"     ⇒ s"extractValue(d.xml, '/*/$path')"
+                case "db2"        ⇒ s"XMLSERIALIZE(XMLQUERY('$$XML/*/$path/text()') AS VARCHAR(4000))"
+                case "postgresql" ⇒ s"(xpath('/*/$path/text()', d.xml))[1]"
+                case _            ⇒ ???
+            }
+            Col(extractFunction, col)
+        }
+        MetadataPairs.iterator ++ userCols
+    }
+
+    // Latest non-draft, non-deleted data for the app/form, and optionally for a single document id passed as parameter
+    def selectQuery(app: String, form: String, cols: Seq[Col], forDocument: Boolean) =
+        s"""|SELECT  ${cols map { case Col(col, name) ⇒ col + " " + name} mkString ", "}
+            |  FROM  orbeon_form_data d,
+            |        (
+            |            SELECT   max(last_modified_time) last_modified_time,
+            |                     app, form, document_id
+            |              FROM   orbeon_form_data d
+            |             WHERE       app   = '${escapeSQL(app)}'
+            |                     AND form  = '${escapeSQL(form)}'
+            |                     AND draft = 'N'
+            |                     ${if (forDocument) "AND document_id = ?" else ""}
+            |            GROUP BY app, form, document_id
+            |        ) m
+            | WHERE      d.last_modified_time = m.last_modified_time
+            |        AND d.app                = m.app
+            |        AND d.form               = m.form
+            |        AND d.document_id        = m.document_id
+            |        AND d.deleted            = 'N'
+            |""".stripMargin
+
+    // DB2 can only create a table from a query without data, so the data is inserted separately
+    def createTableQueries(provider: String, tableName: String, select: String): List[String] =
+        provider match {
+            case "db2" ⇒ List(s"CREATE TABLE $tableName AS ($select) WITH NO DATA", s"INSERT INTO $tableName $select")
+            case _     ⇒ List(s"CREATE TABLE $tableName AS $select")
+        }
+
     def collectControls(document: DocumentInfo): Iterator[(NodeInfo, NodeInfo)] = {
 
         import FormRunner._
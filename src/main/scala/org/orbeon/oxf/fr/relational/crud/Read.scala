@@ -13,7 +13,7 @@
  */
 package org.orbeon.oxf.fr.relational.crud
 
-import java.io.{ByteArrayInputStream, OutputStreamWriter, StringReader}
+import java.io.OutputStreamWriter
 import org.orbeon.oxf.fr.FormRunnerPersistence
 import org.orbeon.oxf.fr.relational.{Next, Unspecified, RelationalUtils}
 import org.orbeon.oxf.http.Headers
@@ -40,12 +40,7 @@ trait Read extends RequestResponse with Common with FormRunnerPersistence {
             val resultSet = {
                 val table  = tableName(req)
                 val idCols = idColumns(req)
-                val xmlCol = req.provider match {
-                    case "oracle"     ⇒ "t.xml.getClobVal()"
-                    case "db2"        ⇒ "xml2clob(t.xml)"
-                    case "postgresql" ⇒ "t.xml as"
-                    case _            ⇒ "t.xml"
-                }
+                val xmlCol = RelationalUtils.xmlColumn(req.provider, "t")
                 val ps = connection.prepareStatement(
                     s"""|SELECT  t.last_modified_time
                         |        ${if (req.forAttachment) ", t.file_content"            else s", $xmlCol xml"}
@@ -105,21 +100,23 @@ trait Read extends RequestResponse with Common with FormRunnerPersistence {
                 }
 
                 // Write content (XML / file)
+                // NOTE: Use streams on all providers so we don't hold the whole content as a byte array or string
                 if (req.forAttachment) {
                     val stream = req.provider match {
-                        case "postgresql" ⇒ new ByteArrayInputStream(resultSet.getBytes("file_content"))
+                        case "postgresql" ⇒ resultSet.getBinaryStream("file_content")
                         case _            ⇒ resultSet.getBlob("file_content").getBinaryStream
                     }
-                    NetUtils.copyStream(stream, httpResponse.getOutputStream)
-                } else {
-                    val stream = req.provider match {
-                        case "postgresql" ⇒ new StringReader(resultSet.getString("xml"))
-                        case _            ⇒ resultSet.getClob("xml").getCharacterStream
+                    useAndClose(stream) { stream ⇒
+                        NetUtils.copyStream(stream, httpResponse.getOutputStream)
                     }
+                } else {
+                    val stream = RelationalUtils.xmlReader(req.provider, resultSet, "xml")
                     httpResponse.setHeader(Headers.ContentType, "application/xml")
-                    val writer = new OutputStreamWriter(httpResponse.getOutputStream, "UTF-8")
-                    NetUtils.copyStream(stream, writer)
-                    writer.close()
+                    useAndClose(stream) { stream ⇒
+                        val writer = new OutputStreamWriter(httpResponse.getOutputStream, "UTF-8")
+                        NetUtils.copyStream(stream, writer)
+                        writer.close()
+                    }
                 }
 
             } else {
@@ -0,0 +1,355 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.relational.crud
+
+import java.sql.{Connection, PreparedStatement, Timestamp}
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
+import org.orbeon.oxf.fr.FormRunner
+import org.orbeon.oxf.fr.relational.{Unspecified, RelationalUtils}
+import org.orbeon.oxf.pipeline.api.PipelineContext
+import org.orbeon.oxf.processor.{ProcessorOutput, ProcessorImpl}
+import org.orbeon.oxf.util.DateUtils.DateTime
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.XPath
+import org.orbeon.oxf.xml.XMLReceiver
+import org.orbeon.saxon.om.NodeInfo
+import org.orbeon.scaxon.XML
+import org.orbeon.scaxon.XML._
+import scala.collection.mutable.ListBuffer
+
+/**
+ * Search for the relational providers, running against the index tables rather than the XML data.
+ *
+ * - `orbeon_i_current` has one row per current document, `orbeon_i_control_text` one row per indexed value
+ * - structured queries support the `exact`, `prefix`, and `substring` match operators; only the first two can use
+ *   the index on `orbeon_i_control_text`
+ * - results are ordered by last modification time, and pages are obtained with keyset pagination when the caller
+ *   passes the last document it has seen, instead of numbering all the rows; in that case `page-number` doesn't
+ *   position the page, and is only returned as is, for display
+ * - the `last-seen` token carries the modification time at full precision, as the columns can store microseconds
+ * - counts are cached for a short time, as they are only informational
+ * - drafts are filtered as in `search.xpl`, with the `drafts` element
+ *
+ * The input is the search document produced by `common-search.xpl`, and the output is the same as `search.xpl`.
+ */
+class Search extends ProcessorImpl with RequestResponse with Common {
+
+    import Search._
+
+    override def createOutput(name: String): ProcessorOutput =
+        addOutput(name, new ProcessorOutputImpl(this, name) {
+            def readImpl(pipelineContext: PipelineContext, xmlReceiver: XMLReceiver): Unit = {
+
+                val search   = readInputAsTinyTree(pipelineContext, getInputByName(ProcessorImpl.INPUT_DATA), XPath.GlobalConfiguration) \ "search" head
+                val provider = search \ "provider" stringValue
+                val app      = search \ "app"      stringValue
+                val form     = search \ "form"     stringValue
+
+                val pageSize   = (search \ "page-size"   stringValue).trim.toInt
+                val pageNumber = (search \ "page-number" stringValue).trim.toInt
+
+                // When present, `last-seen` takes precedence over `page-number` to find the page
+                val lastSeen =
+                    (search \ "last-seen").headOption map { lastSeen ⇒
+                        (Timestamp.valueOf(lastSeen.attValue("last-modified")), lastSeen.attValue("data-id").toInt)
+                    }
+
+                val detailQueries = search \ "query" filter (_.attValue("path").nonEmpty)
+                val criteria      = searchCriteria(search)
+
+                // Read before establishing a connection, so we don't use two simultaneous connections
+                val formMetadata = readFormMetadata(Request(provider, app, form, None, Unspecified, None))
+                val permissions  = (formMetadata / "forms" / "form" / "permissions").headOption
+
+                val (total, searchTotal, documents) =
+                    RelationalUtils.withConnection { connection ⇒
+
+                        (ownerGroupCondition(permissions, requestUsername, requestGroup), draftsCondition(search, requestUsername)) match {
+                            case (None, _) ⇒
+                                // Not authorized to see any document
+                                (0, 0, Nil)
+                            case (Some(ownerGroup), drafts) ⇒
+
+                                // The total includes drafts, whether returned or not, except for anonymous users, who
+                                // can't use the draft functionality
+                                val totalConditions  = ownerGroup :: (requestUsername.isEmpty list Condition("AND c.draft = 'N'", Nil))
+                                val searchConditions = ownerGroup :: drafts.toList ::: criteria
+
+                                val documents =
+                                    if (drafts.isDefined)
+                                        findDocuments(connection, app, form, searchConditions, pageSize, pageNumber, lastSeen)
+                                    else
+                                        Nil
+
+                                val total       = cachedCount(connection, app, form, totalConditions)
+                                val searchTotal =
+                                    if (drafts.isEmpty)                            0
+                                    else if (searchConditions == totalConditions) total
+                                    else                                           cachedCount(connection, app, form, searchConditions)
+
+                                val values = findValues(connection, documents map (_.dataId), detailQueries map (_.attValue("name")))
+
+                                (total, searchTotal, documents map (d ⇒ d → values.getOrElse(d.dataId, Map.empty[String, Seq[String]])))
+                        }
+                    }
+
+                val documentsXML =
+                    <documents
+                        total={total.toString}
+                        search-total={searchTotal.toString}
+                        page-size={pageSize.toString}
+                        page-number={pageNumber.toString}>{
+                        for ((document, values) ← documents) yield
+                        <document
+                            created={DateTime.print(document.created.getTime)}
+                            last-modified={DateTime.print(document.lastModified.getTime)}
+                            draft={document.draft.toString}
+                            name={document.documentId}
+                            data-id={document.dataId.toString}
+                            operations={authorizedOperations(formMetadata, document.usernameGroupname).mkString(" ")}>
+                            <details>{
+                                for (query ← detailQueries) yield
+                                <detail>{values.getOrElse(query.attValue("name"), Nil) filter (_ != "") mkString ", "}</detail>
+                            }</details>
+                        </document>
+                    }{
+                        documents.lastOption.toList map { case (document, _) ⇒
+                            <last-seen last-modified={document.lastModified.toString} data-id={document.dataId.toString}/>
+                        }
+                    }</documents>
+
+                XML.elemToSAX(documentsXML, xmlReceiver)
+            }
+        })
+}
+
+object Search {
+
+    private val SearchOperations = Set("*", "read", "update", "delete")
+
+    // Counts are only informational, so we don't want to run them on every page
+    private val CountCacheName         = "fr.cache.search-counts"
+    private val CountCacheDefaultSize  = 200
+    private val CountTimeToLive        = 60 * 1000L
+
+    case class Document(dataId: Int, documentId: String, created: Timestamp, lastModified: Timestamp, username: Option[String], groupname: Option[String], draft: Boolean) {
+        // Like the XSLT search, a missing username or groupname doesn't match the current user or group
+        def usernameGroupname = Some(username.getOrElse("") → groupname.getOrElse(""))
+    }
+
+    // A condition in a WHERE clause along with the values of its parameters
+    case class Condition(sql: String, params: List[Any])
+
+    // Restriction on owner/group, or None if the user can't see any document
+    def ownerGroupCondition(permissions: Option[NodeInfo], username: Option[String], group: Option[String]): Option[Condition] =
+        permissions match {
+            case None ⇒
+                Some(Condition("", Nil))
+            case Some(permissionsElement) ⇒
+
+                val authorizedBasedOnRole =
+                    FormRunner.authorizedOperationsBasedOnRoles(permissionsElement).toSet exists SearchOperations
+
+                def searchPermissions =
+                    permissionsElement \ "permission" filter (p ⇒ split[Set](p.attValue("operations")) exists SearchOperations)
+
+                val ifOwner       = username filter (_ ⇒ searchPermissions exists (_ \ "owner" nonEmpty))
+                val ifGroupMember = group    filter (_ ⇒ searchPermissions exists (_ \ "group-member" nonEmpty))
+
+                if (authorizedBasedOnRole)
+                    Some(Condition("", Nil))
+                else if (ifOwner.isEmpty && ifGroupMember.isEmpty)
+                    None
+                else {
+                    val conditions = ifOwner.toList.map(_ ⇒ "c.username = ?") ::: ifGroupMember.toList.map(_ ⇒ "c.groupname = ?")
+                    Some(Condition(conditions.mkString("AND (", " OR ", ")"), ifOwner.toList ::: ifGroupMember.toList))
+                }
+        }
+
+    // Restriction on drafts, or None if neither drafts nor non-drafts are requested
+    def draftsCondition(search: NodeInfo, username: Option[String]): Option[Condition] = {
+
+        val drafts = (search \ "drafts").headOption
+
+        // Anonymous users can't use the draft functionality
+        val includeDrafts    = (drafts forall (d ⇒ Set("include", "only")(d.stringValue))) && username.isDefined
+        val includeNonDrafts =  drafts forall (d ⇒ Set("include", "exclude")(d.stringValue))
+
+        val forDocumentId         = drafts flatMap (_.attValueOpt("for-document-id"))
+        val forNeverSavedDocument = drafts exists (_.attValue("for-never-saved-document") == "true")
+
+        val draftConditions =
+            "c.draft = 'Y'" ::
+            (forDocumentId.toList map (_ ⇒ "c.document_id = ?")) :::
+            (forNeverSavedDocument list
+                """|NOT EXISTS (
+                   |    SELECT 1 FROM orbeon_i_current n
+                   |    WHERE  n.app = c.app AND n.form = c.form AND n.document_id = c.document_id AND n.draft = 'N'
+                   |)""".stripMargin)
+
+        val draftSql    = draftConditions mkString " AND "
+        val draftParams = forDocumentId.toList
+
+        (includeNonDrafts, includeDrafts) match {
+            case (true,  true)  ⇒ Some(Condition(s"AND (c.draft = 'N' OR ($draftSql))", draftParams))
+            case (true,  false) ⇒ Some(Condition("AND c.draft = 'N'", Nil))
+            case (false, true)  ⇒ Some(Condition(s"AND $draftSql", draftParams))
+            case (false, false) ⇒ None
+        }
+    }
+
+    // One condition per non-empty query, each of which must match a row of the index
+    def searchCriteria(search: NodeInfo): List[Condition] =
+        (search \ "query" filter (_.stringValue.trim.nonEmpty) map { query ⇒
+
+            val value = query.stringValue.trim
+
+            def existsIndexValue(control: Option[String], valueCondition: String, valueParam: String) =
+                Condition(
+                    s"""|AND EXISTS (
+                        |    SELECT 1 FROM orbeon_i_control_text t
+                        |    WHERE  t.data_id = c.data_id
+                        |           ${if (control.isDefined) "AND t.app = c.app AND t.form = c.form AND t.control = ?" else ""}
+                        |           AND $valueCondition
+                        |)""".stripMargin,
+                    control.toList ::: valueParam :: Nil
+                )
+
+            query.attValue("name") match {
+                case "" ⇒
+                    // Free text search
+                    existsIndexValue(None, "lower(t.val) LIKE ? ESCAPE '!'", "%" + escapeLike(value.toLowerCase) + "%")
+                case control ⇒
+                    query.attValue("match") match {
+                        case "exact"  ⇒ existsIndexValue(Some(control), "t.val = ?", value)
+                        case "prefix" ⇒ existsIndexValue(Some(control), "t.val LIKE ? ESCAPE '!'", escapeLike(value) + "%")
+                        case _        ⇒ existsIndexValue(Some(control), "lower(t.val) LIKE ? ESCAPE '!'", "%" + escapeLike(value.toLowerCase) + "%")
+                    }
+            }
+        }).toList
+
+    // Escape with `!` rather than a backslash, which MySQL treats as an escape in string literals
+    def escapeLike(s: String) =
+        s.replaceAllLiterally("!", "!!").replaceAllLiterally("%", "!%").replaceAllLiterally("_", "!_")
+
+    private def setParams(ps: PreparedStatement, params: Seq[Any]): Unit =
+        for ((param, index) ← params.zipWithIndex)
+            param match {
+                case s: String    ⇒ ps.setString(index + 1, s)
+                case i: Int       ⇒ ps.setInt(index + 1, i)
+                case t: Timestamp ⇒ ps.setTimestamp(index + 1, t)
+            }
+
+    def findDocuments(
+            connection  : Connection,
+            app         : String,
+            form        : String,
+            conditions  : List[Condition],
+            pageSize    : Int,
+            pageNumber  : Int,
+            lastSeen    : Option[(Timestamp, Int)]): List[Document] = {
+
+        // With keyset pagination, the database starts right after the last document seen, using the index on
+        // (app, form, last_modified, data_id); otherwise we fall back to skipping the rows of the previous pages
+        val keyset = lastSeen map { case (lastModified, dataId) ⇒
+            Condition("AND (c.last_modified < ? OR (c.last_modified = ? AND c.data_id < ?))", List(lastModified, lastModified, dataId))
+        }
+
+        val ps = connection.prepareStatement(
+            s"""|SELECT   c.data_id, c.document_id, c.created, c.last_modified, c.username, c.groupname, c.draft
+                |FROM     orbeon_i_current c
+                |WHERE    c.app = ? AND c.form = ?
+                |         ${conditions map (_.sql) mkString "\n"}
+                |         ${keyset map (_.sql) getOrElse ""}
+                |ORDER BY c.last_modified DESC, c.data_id DESC
+                |""".stripMargin)
+
+        setParams(ps, app :: form :: (conditions flatMap (_.params)) ::: (keyset.toList flatMap (_.params)))
+
+        val skip = if (lastSeen.isDefined) 0 else (pageNumber - 1) * pageSize
+        ps.setMaxRows(skip + pageSize)
+        ps.setFetchSize(pageSize)
+
+        val rs = ps.executeQuery()
+        val documents = ListBuffer[Document]()
+        var position  = 0
+        while (rs.next()) {
+            if (position >= skip)
+                documents += Document(
+                    dataId       = rs.getInt      ("data_id"),
+                    documentId   = rs.getString   ("document_id"),
+                    created      = rs.getTimestamp("created"),
+                    lastModified = rs.getTimestamp("last_modified"),
+                    username     = Option(rs.getString("username")),
+                    groupname    = Option(rs.getString("groupname")),
+                    draft        = rs.getString("draft") == "Y"
+                )
+            position += 1
+        }
+        documents.toList
+    }
+
+    // Values of the given controls for the given documents, by data id and control
+    def findValues(connection: Connection, dataIds: Seq[Int], controls: Seq[String]): Map[Int, Map[String, Seq[String]]] =
+        if (dataIds.isEmpty || controls.isEmpty)
+            Map.empty
+        else {
+            val ps = connection.prepareStatement(
+                s"""|SELECT   data_id, control, pos, val
+                    |FROM     orbeon_i_control_text
+                    |WHERE    data_id IN (${dataIds map (_ ⇒ "?") mkString ", "})
+                    |         AND control IN (${controls map (_ ⇒ "?") mkString ", "})
+                    |ORDER BY data_id, control, pos
+                    |""".stripMargin)
+
+            setParams(ps, dataIds ++ controls)
+
+            val rs = ps.executeQuery()
+            val values = ListBuffer[(Int, String, String)]()
+            while (rs.next())
+                values += ((rs.getInt("data_id"), rs.getString("control"), rs.getString("val")))
+
+            values groupBy (_._1) mapValues (_ groupBy (_._2) mapValues (_ map (_._3))) mapValues (_.toMap) toMap
+        }
+
+    private case class CachedCount(count: Int, timestamp: Long = System.currentTimeMillis)
+
+    // Count from the index tables, cached for a short time
+    def cachedCount(connection: Connection, app: String, form: String, conditions: List[Condition]): Int = {
+
+        val cache      = ObjectCache.instance(CountCacheName, CountCacheDefaultSize)
+        val key        = new InternalCacheKey("fr-search-count", (app :: form :: conditions.flatMap(c ⇒ c.sql :: c.params)).mkString("|"))
+
+        Option(cache.findValid(key, 0L).asInstanceOf[CachedCount]) filter
+            (System.currentTimeMillis - _.timestamp < CountTimeToLive) map
+            (_.count) getOrElse {
+
+            val ps = connection.prepareStatement(
+                s"""|SELECT count(*)
+                    |FROM   orbeon_i_current c
+                    |WHERE  c.app = ? AND c.form = ?
+                    |       ${conditions map (_.sql) mkString "\n"}
+                    |""".stripMargin)
+
+            setParams(ps, app :: form :: (conditions flatMap (_.params)))
+
+            val rs = ps.executeQuery()
+            rs.next()
+            val count = rs.getInt(1)
+
+            cache.add(key, 0L, CachedCount(count))
+            count
+        }
+    }
+}
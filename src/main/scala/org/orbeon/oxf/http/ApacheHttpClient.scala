@@ -192,7 +192,8 @@ class ApacheHttpClient(settings: HttpClientSettings) extends HttpClient {
         def newHttpParams =
             new BasicHttpParams |!>
             (HttpConnectionParams.setStaleCheckingEnabled(_, settings.staleCheckingEnabled)) |!>
-            (HttpConnectionParams.setSoTimeout(_, settings.soTimeout))
+            (HttpConnectionParams.setSoTimeout(_, settings.soTimeout)) |!>
+            (HttpConnectionParams.setConnectionTimeout(_, settings.connectionTimeout))
 
         // It seems that credentials and state are not thread-safe, so create every time
         def newProxyAuthState = proxyCredentials map {
@@ -28,6 +28,7 @@ object PropertiesConnectionSettings {
         HttpClientSettings(
             staleCheckingEnabled = props.getBoolean(StaleCheckingEnabledProperty, StaleCheckingEnabledDefault),
             soTimeout            = props.getInteger(SOTimeoutProperty, SOTimeoutPropertyDefault).toInt,
+            connectionTimeout    = props.getInteger(ConnectionTimeoutProperty, ConnectionTimeoutDefault).toInt,
             chunkRequests        = props.getBoolean(ChunkRequestsProperty, ChunkRequestsDefault),
 
             proxyHost            = Option(props.getString(ProxyHostProperty)),
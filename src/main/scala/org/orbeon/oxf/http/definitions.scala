@@ -90,6 +90,7 @@ case class Redirect(
 case class HttpClientSettings(
     staleCheckingEnabled: Boolean,
     soTimeout           : Int,
+    connectionTimeout   : Int,
     chunkRequests       : Boolean,
 
     proxyHost           : Option[String],
@@ -130,6 +131,7 @@ object HttpClientSettings {
         HttpClientSettings(
             staleCheckingEnabled = booleanParamWithDefault(StaleCheckingEnabledProperty, StaleCheckingEnabledDefault),
             soTimeout            = intParamWithDefault(SOTimeoutProperty, SOTimeoutPropertyDefault),
+            connectionTimeout    = intParamWithDefault(ConnectionTimeoutProperty, ConnectionTimeoutDefault),
             chunkRequests        = booleanParamWithDefault(ChunkRequestsProperty, ChunkRequestsDefault),
 
             proxyHost            = stringParam(ProxyHostProperty),
@@ -151,6 +153,7 @@ object HttpClientSettings {
     
     val StaleCheckingEnabledProperty = "oxf.http.stale-checking-enabled"
     val SOTimeoutProperty            = "oxf.http.so-timeout"
+    val ConnectionTimeoutProperty    = "oxf.http.connection-timeout"
     val ChunkRequestsProperty        = "oxf.http.chunk-requests"
     val ProxyHostProperty            = "oxf.http.proxy.host"
     val ProxyPortProperty            = "oxf.http.proxy.port"
@@ -167,6 +170,7 @@ object HttpClientSettings {
     
     val StaleCheckingEnabledDefault  = true
     val SOTimeoutPropertyDefault     = 0
+    val ConnectionTimeoutDefault     = 0
     val ChunkRequestsDefault         = false
     val ProxySSLPropertyDefault      = false
     val SSLHostnameVerifierDefault   = "strict"
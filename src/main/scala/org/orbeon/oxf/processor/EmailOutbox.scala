@@ -0,0 +1,411 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import EmailOutbox._
+import collection.JavaConverters._
+import collection.mutable
+import java.io._
+import java.lang.management.ManagementFactory
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.{ConcurrentHashMap, Delayed, DelayQueue, TimeUnit}
+import java.util.{ArrayList ⇒ JArrayList, Properties ⇒ JProperties}
+import javax.management.{StandardMBean, ObjectName}
+import javax.mail.internet.MimeMessage
+import javax.mail.{Session, Transport}
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.{SecureUtils, LoggerFactory}
+import scala.util.control.NonFatal
+
+/**
+ * Persistent outbox used by EmailProcessor when the `outbox` property is enabled.
+ *
+ * - messages are written to the outbox directory and fsync'd before enqueue returns, so they survive a crash
+ * - a single background thread sends them, reusing one connection per SMTP configuration across messages
+ * - failed sends are retried with exponential backoff, then moved aside with a `.failed` extension
+ * - messages found in the directory when the outbox is created are sent again
+ * - metrics are available with `metrics`, and through JMX under `org.orbeon:type=EmailOutbox`
+ */
+class EmailOutbox(
+        val directory     : File,
+        transportFactory  : Session ⇒ OutboxTransport = new SMTPOutboxTransport(_),
+        maxBatchSize      : Int  = 50,
+        maxAttempts       : Int  = 8,
+        initialBackoffMs  : Long = 1000,
+        idleTimeoutMs     : Long = 30000) {
+
+    private val queue   = new DelayQueue[Entry]
+    private val counter = new AtomicLong(System.currentTimeMillis)
+
+    // Statistics
+    private val sentCount         = new AtomicLong
+    private val failedCount       = new AtomicLong
+    private val retryCount        = new AtomicLong
+    private val totalSendLatency  = new AtomicLong
+    private val maxSendLatency    = new AtomicLong
+    private val connectionCount   = new AtomicInteger
+
+    // Only accessed from the sender thread
+    private val transports = mutable.HashMap[Envelope, (Session, OutboxTransport)]()
+
+    directory.mkdirs()
+    if (! directory.isDirectory)
+        throw new IOException("Cannot create outbox directory: " + directory)
+
+    recover()
+
+    private val mbeanName = registerMBean()
+
+    private val sender = {
+        val thread = new Thread("orbeon-email-outbox") {
+            override def run() = senderLoop()
+        }
+        thread.setDaemon(true)
+        thread.start()
+        thread
+    }
+
+    // Persist the message and schedule it for sending
+    def enqueue(properties: JProperties, usernameOption: Option[String], passwordOption: Option[String], message: MimeMessage): Unit = {
+
+        message.saveChanges()
+
+        val name = "%020d".format(counter.incrementAndGet())
+        val tmp  = new File(directory, name + TmpExtension)
+        val file = new File(directory, name + MessageExtension)
+
+        // Take a snapshot, as the caller might modify the properties afterwards
+        val envelope = Envelope.create(properties.asScala.toMap, usernameOption, passwordOption)
+
+        useAndClose(new FileOutputStream(tmp)) { fos ⇒
+            val os = new BufferedOutputStream(fos)
+            envelope.write(new DataOutputStream(os))
+            message.writeTo(os)
+            os.flush()
+            fos.getFD.sync()
+        }
+
+        if (! tmp.renameTo(file))
+            throw new IOException("Cannot rename outbox file: " + tmp)
+
+        queue.put(new Entry(file, envelope, 0, 0L))
+
+        if (Logger.isDebugEnabled)
+            Logger.debug("Enqueued message " + file.getName + ", queue depth " + queue.size)
+    }
+
+    def queueDepth = queue.size
+
+    def metrics = Metrics(
+        queueDepth         = queue.size,
+        sent               = sentCount.get,
+        failed             = failedCount.get,
+        retried            = retryCount.get,
+        connections        = connectionCount.get,
+        averageSendLatency = if (sentCount.get == 0) 0L else totalSendLatency.get / sentCount.get,
+        maxSendLatency     = maxSendLatency.get
+    )
+
+    def shutdown(): Unit = {
+        sender.interrupt()
+        sender.join(idleTimeoutMs)
+        mbeanName foreach (name ⇒ runQuietly(ManagementFactory.getPlatformMBeanServer.unregisterMBean(name)))
+    }
+
+    private def registerMBean() =
+        try {
+            val name = new ObjectName("org.orbeon:type=EmailOutbox,directory=" + ObjectName.quote(directory.getAbsolutePath))
+            val statistics = new EmailOutboxStatistics(this)
+            ManagementFactory.getPlatformMBeanServer.registerMBean(new StandardMBean(statistics, classOf[EmailOutboxStatisticsMBean]), name)
+            Some(name)
+        } catch {
+            case NonFatal(t) ⇒
+                Logger.warn("Cannot register outbox metrics with JMX: " + t.getMessage)
+                None
+        }
+
+    // Pick up messages left over by a previous run
+    private def recover(): Unit = {
+        val files = Option(directory.listFiles).toList.flatten
+
+        files filter (_.getName.endsWith(TmpExtension)) foreach (_.delete())
+
+        val pending = files filter (_.getName.endsWith(MessageExtension)) sortBy (_.getName)
+        for (file ← pending)
+            try queue.put(new Entry(file, readEnvelope(file), 0, 0L))
+            catch {
+                case NonFatal(t) ⇒
+                    Logger.error("Cannot read outbox file " + file.getName + ", moving it aside", t)
+                    moveToFailed(file)
+            }
+
+        if (pending.nonEmpty)
+            Logger.info("Recovered " + pending.size + " message(s) from outbox " + directory)
+    }
+
+    private def senderLoop(): Unit =
+        try {
+            while (! Thread.currentThread.isInterrupted) {
+                queue.poll(idleTimeoutMs, TimeUnit.MILLISECONDS) match {
+                    case null ⇒
+                        closeTransports()
+                    case first ⇒
+                        val batch = new JArrayList[Entry]
+                        batch.add(first)
+                        queue.drainTo(batch, maxBatchSize - 1)
+                        sendBatch(batch.asScala)
+                }
+            }
+        } catch {
+            case _: InterruptedException ⇒ // shutdown
+        } finally {
+            closeTransports()
+        }
+
+    // Send in due order, reusing the connection of any previous entry with the same envelope
+    private def sendBatch(batch: Seq[Entry]): Unit =
+        for (entry ← batch; envelope = entry.envelope)
+            try {
+                val (session, transport) = transportFor(envelope)
+                val message = useAndClose(new BufferedInputStream(new FileInputStream(entry.file))) { is ⇒
+                    Envelope.skip(new DataInputStream(is))
+                    new MimeMessage(session, is)
+                }
+
+                val start = System.currentTimeMillis
+                transport.send(message)
+                recordLatency(System.currentTimeMillis - start)
+
+                entry.file.delete()
+                sentCount.incrementAndGet()
+            } catch {
+                case NonFatal(t) ⇒
+                    // Drop the connection in case it is in a bad state
+                    transports.remove(envelope) foreach { case (_, transport) ⇒ runQuietly(transport.close()) }
+                    retryOrFail(entry, t)
+            }
+
+    private def retryOrFail(entry: Entry, t: Throwable): Unit = {
+        val attempts = entry.attempts + 1
+        if (attempts < maxAttempts) {
+            val backoff = initialBackoffMs << (attempts - 1)
+            Logger.warn("Failed sending " + entry.file.getName + ", attempt " + attempts + ", retrying in " + backoff + " ms: " + t.getMessage)
+            retryCount.incrementAndGet()
+            queue.put(new Entry(entry.file, entry.envelope, attempts, System.currentTimeMillis + backoff))
+        } else {
+            Logger.error("Failed sending " + entry.file.getName + " after " + attempts + " attempts, giving up", t)
+            failedCount.incrementAndGet()
+            moveToFailed(entry.file)
+        }
+    }
+
+    private def transportFor(envelope: Envelope) =
+        transports.get(envelope) filter (_._2.isConnected) getOrElse {
+            val session   = envelope.session
+            val transport = transportFactory(session)
+            transport.connect()
+            connectionCount.incrementAndGet()
+            val result = (session, transport)
+            transports += envelope → result
+            result
+        }
+
+    private def closeTransports(): Unit = {
+        transports.values foreach { case (_, transport) ⇒ runQuietly(transport.close()) }
+        transports.clear()
+    }
+
+    private def recordLatency(latency: Long): Unit = {
+        totalSendLatency.addAndGet(latency)
+        var max = maxSendLatency.get
+        while (latency > max && ! maxSendLatency.compareAndSet(max, latency))
+            max = maxSendLatency.get
+    }
+
+    private def moveToFailed(file: File) =
+        file.renameTo(new File(directory, file.getName.stripSuffix(MessageExtension) + FailedExtension))
+
+    private def readEnvelope(file: File) =
+        useAndClose(new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) { is ⇒
+            Envelope.read(is)
+        }
+}
+
+object EmailOutbox {
+
+    val Logger = LoggerFactory.createLogger(classOf[EmailOutbox])
+
+    val MessageExtension = ".msg"
+    val TmpExtension     = ".tmp"
+    val FailedExtension  = ".failed"
+
+    private val outboxes = new ConcurrentHashMap[File, EmailOutbox]
+
+    // Stop all the outboxes, called when the web app is destroyed
+    // Messages not yet sent remain in the outbox directories and are sent after the next start.
+    def shutdownAll(): Unit =
+        outboxes.synchronized {
+            outboxes.values.asScala foreach (outbox ⇒ runQuietly(outbox.shutdown()))
+            outboxes.clear()
+        }
+
+    // One outbox per directory for the whole JVM
+    def apply(directory: File): EmailOutbox = {
+        val key = directory.getAbsoluteFile
+        Option(outboxes.get(key)) getOrElse {
+            outboxes.synchronized {
+                Option(outboxes.get(key)) getOrElse {
+                    val outbox = new EmailOutbox(key)
+                    outboxes.put(key, outbox)
+                    outbox
+                }
+            }
+        }
+    }
+
+    case class Metrics(
+        queueDepth         : Int,
+        sent               : Long,
+        failed             : Long,
+        retried            : Long,
+        connections        : Int,
+        averageSendLatency : Long,
+        maxSendLatency     : Long)
+
+    // Metrics exposed through JMX
+    trait EmailOutboxStatisticsMBean {
+        def getQueueDepth: Int
+        def getSentCount: Long
+        def getFailedCount: Long
+        def getRetryCount: Long
+        def getConnectionCount: Int
+        def getAverageSendLatency: Long
+        def getMaxSendLatency: Long
+    }
+
+    class EmailOutboxStatistics(outbox: EmailOutbox) extends EmailOutboxStatisticsMBean {
+        def getQueueDepth         = outbox.metrics.queueDepth
+        def getSentCount          = outbox.metrics.sent
+        def getFailedCount        = outbox.metrics.failed
+        def getRetryCount         = outbox.metrics.retried
+        def getConnectionCount    = outbox.metrics.connections
+        def getAverageSendLatency = outbox.metrics.averageSendLatency
+        def getMaxSendLatency     = outbox.metrics.maxSendLatency
+    }
+
+    // Abstraction over the SMTP transport so the outbox can be tested without a mail server
+    trait OutboxTransport {
+        def connect(): Unit
+        def isConnected: Boolean
+        def send(message: MimeMessage): Unit
+        def close(): Unit
+    }
+
+    class SMTPOutboxTransport(session: Session) extends OutboxTransport {
+        private val transport: Transport = session.getTransport("smtp")
+        def connect()                    = transport.connect()
+        def isConnected                  = transport.isConnected
+        def send(message: MimeMessage)   = transport.sendMessage(message, message.getAllRecipients)
+        def close()                      = transport.close()
+    }
+
+    // SMTP configuration stored ahead of each message, so it can be sent after a restart
+    // NOTE: The password is stored encrypted with the oxf.crypto.password property, and is only decrypted when a
+    // session is created. Envelopes compare on an HMAC of the password, as each encryption uses a random IV.
+    // NOTE: Envelopes are used as keys, so they hold an immutable copy of the properties.
+    case class Envelope(
+            properties: Map[String, String],
+            usernameOption: Option[String],
+            passwordHmacOption: Option[String])(
+            val encryptedPasswordOption: Option[String]) {
+
+        def javaProperties = {
+            val result = new JProperties
+            for ((name, value) ← properties)
+                result.setProperty(name, value)
+            result
+        }
+
+        def session =
+            EmailProcessor.createSession(
+                javaProperties,
+                usernameOption,
+                encryptedPasswordOption map (p ⇒ new String(SecureUtils.decrypt(p), "utf-8"))
+            )
+
+        def write(os: DataOutputStream): Unit = {
+            val bytes = new ByteArrayOutputStream
+            javaProperties.store(bytes, null)
+            os.writeInt(bytes.size)
+            bytes.writeTo(os)
+            os.writeUTF(usernameOption getOrElse "")
+            os.writeUTF(encryptedPasswordOption getOrElse "")
+            os.flush()
+        }
+    }
+
+    object Envelope {
+
+        def create(properties: Map[String, String], usernameOption: Option[String], passwordOption: Option[String]) =
+            Envelope(
+                properties,
+                usernameOption,
+                passwordOption map (SecureUtils.hmacString(_, "hex")))(
+                passwordOption map (p ⇒ SecureUtils.encrypt(p.getBytes("utf-8"))))
+
+        def read(is: DataInputStream) = {
+            val bytes = new Array[Byte](is.readInt())
+            is.readFully(bytes)
+
+            val properties = new JProperties
+            properties.load(new ByteArrayInputStream(bytes))
+
+            val usernameOption = nonEmptyOrNone(is.readUTF())
+            val encryptedPasswordOption = nonEmptyOrNone(is.readUTF())
+
+            // The cleartext password is only needed transiently, to compute the HMAC used for comparisons
+            val passwordHmacOption =
+                encryptedPasswordOption map (p ⇒ SecureUtils.hmacString(new String(SecureUtils.decrypt(p), "utf-8"), "hex"))
+
+            Envelope(properties.asScala.toMap, usernameOption, passwordHmacOption)(encryptedPasswordOption)
+        }
+
+        def skip(is: DataInputStream) = {
+            is.skipBytes(is.readInt())
+            is.readUTF()
+            is.readUTF()
+        }
+    }
+
+    private class Entry(val file: File, val envelope: Envelope, val attempts: Int, val notBefore: Long) extends Delayed {
+
+        def getDelay(unit: TimeUnit) =
+            unit.convert(notBefore - System.currentTimeMillis, TimeUnit.MILLISECONDS)
+
+        // Order by due time, then by file name, which reflects the order in which messages were enqueued
+        def compareTo(other: Delayed) = other match {
+            case other: Entry ⇒
+                if (notBefore != other.notBefore)
+                    compareLongs(notBefore, other.notBefore)
+                else
+                    file.getName compareTo other.file.getName
+            case _ ⇒
+                compareLongs(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS))
+        }
+    }
+
+    // java.lang.Long.compare is only available from Java 7
+    private def compareLongs(a: Long, b: Long) =
+        if (a < b) -1 else if (a > b) 1 else 0
+}
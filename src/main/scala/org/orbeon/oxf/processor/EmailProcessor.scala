@@ -77,81 +77,62 @@ class EmailProcessor extends ProcessorImpl {
 
         properties.setProperty("mail.smtp.host", host)
 
-        // Create session
-        val session = {
-
-            // Get credentials if any
-            val (usernameOption, passwordOption) = {
-                Option(messageElement.element("credentials")) match {
-                    case Some(credentials) ⇒
-                        val usernameElement = credentials.element(Username)
-                        val passwordElement = credentials.element(Password)
-
-                        (optionalValueTrim(usernameElement), optionalValueTrim(passwordElement))
-                    case None ⇒
-                        (nonEmptyOrNone(propertySet.getString(Username)), nonEmptyOrNone(propertySet.getString(Password)))
-                }
+        // Get credentials if any
+        val (usernameOption, passwordOption) = {
+            Option(messageElement.element("credentials")) match {
+                case Some(credentials) ⇒
+                    val usernameElement = credentials.element(Username)
+                    val passwordElement = credentials.element(Password)
+
+                    (optionalValueTrim(usernameElement), optionalValueTrim(passwordElement))
+                case None ⇒
+                    (nonEmptyOrNone(propertySet.getString(Username)), nonEmptyOrNone(propertySet.getString(Password)))
             }
+        }
 
-            def ensureCredentials(encryption: String) =
-                if (usernameOption.isEmpty)
-                    throw new OXFException("Credentails are required when using " + encryption.toUpperCase)
-
-            val defaultUpdatePort: String ⇒ Unit =
-                properties.setProperty("mail.smtp.port", _)
-
-            // SSL and TLS
-            val (defaultPort, updatePort) =
-                valueFromElementOrProperty(messageElement, Encryption) match {
-                    case Some("ssl") ⇒
-                        ensureCredentials("ssl") // partly enforced by the schema, but could have been blank
-
-                        properties.setProperty("mail.smtp.auth", "true")
-                        properties.setProperty("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory")
-
-                        val updatePort: String ⇒ Unit = { port ⇒
-                            properties.setProperty("mail.smtp.socketFactory.port", port)
-                            defaultUpdatePort(port)
-                        }
-
-                        // Should we change the default to 587?
-                        // "Although some servers support port 465 for legacy secure SMTP in violation of the
-                        // specifications" http://en.wikipedia.org/wiki/Simple_Mail_Transfer_Protocol#Ports
-                        (Some("465"), updatePort)
+        def ensureCredentials(encryption: String) =
+            if (usernameOption.isEmpty)
+                throw new OXFException("Credentails are required when using " + encryption.toUpperCase)
 
-                    case Some("tls") ⇒
-                        ensureCredentials("tls") // partly enforced by the schema, but could have been blank
+        val defaultUpdatePort: String ⇒ Unit =
+            properties.setProperty("mail.smtp.port", _)
 
-                        properties.setProperty("mail.smtp.auth", "true")
-                        properties.setProperty("mail.smtp.starttls.enable", "true")
+        // SSL and TLS
+        val (defaultPort, updatePort) =
+            valueFromElementOrProperty(messageElement, Encryption) match {
+                case Some("ssl") ⇒
+                    ensureCredentials("ssl") // partly enforced by the schema, but could have been blank
 
-                        (Some("587"), defaultUpdatePort)
+                    properties.setProperty("mail.smtp.auth", "true")
+                    properties.setProperty("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory")
 
-                    case _ ⇒
-                        (None, defaultUpdatePort)
-                }
+                    val updatePort: String ⇒ Unit = { port ⇒
+                        properties.setProperty("mail.smtp.socketFactory.port", port)
+                        defaultUpdatePort(port)
+                    }
 
-            // Set or override port depending on the encryption settings
-            valueFromElementOrProperty(messageElement, SMTPPort) orElse defaultPort foreach updatePort
+                    // Should we change the default to 587?
+                    // "Although some servers support port 465 for legacy secure SMTP in violation of the
+                    // specifications" http://en.wikipedia.org/wiki/Simple_Mail_Transfer_Protocol#Ports
+                    (Some("465"), updatePort)
 
-            usernameOption match {
-                case Some(username) ⇒
-                    if (Logger.isInfoEnabled) Logger.info("Authentication")
+                case Some("tls") ⇒
+                    ensureCredentials("tls") // partly enforced by the schema, but could have been blank
 
                     properties.setProperty("mail.smtp.auth", "true")
+                    properties.setProperty("mail.smtp.starttls.enable", "true")
 
-                    if (Logger.isInfoEnabled) Logger.info("Username: " + usernameOption)
+                    (Some("587"), defaultUpdatePort)
 
-                    Session.getInstance(properties, new Authenticator {
-                        override def getPasswordAuthentication: PasswordAuthentication = {
-                            new PasswordAuthentication(username, passwordOption getOrElse "")
-                        }
-                    })
-                case None ⇒
-                    if (Logger.isInfoEnabled) Logger.info("No Authentication")
-                    Session.getInstance(properties)
+                case _ ⇒
+                    (None, defaultUpdatePort)
             }
-        }
+
+        // Set or override port depending on the encryption settings
+        valueFromElementOrProperty(messageElement, SMTPPort) orElse defaultPort foreach updatePort
+
+        // Create session
+        val session = createSession(properties, usernameOption, passwordOption)
 
         // Create message
         val message = new MimeMessage(session)
@@ -214,10 +195,19 @@ class EmailProcessor extends ProcessorImpl {
         else
             throw new OXFException("Main text or body element not found")
 
-        // Send message
-        useAndClose(session.getTransport("smtp")) { transport ⇒
-            Transport.send(message)
-        }
+        // Send message, either right away or through the outbox
+        if (propertySet.getBoolean(Outbox, default = false)) {
+            // The directory must be set explicitly, as queued messages must survive restarts and temporary files cleanup
+            val directory =
+                nonEmptyOrNone(propertySet.getString(OutboxDirectory)) map
+                (new File(_)) getOrElse
+                (throw new OXFException("The " + OutboxDirectory + " property must be set when the " + Outbox + " property is enabled"))
+
+            EmailOutbox(directory).enqueue(properties, usernameOption, passwordOption, message)
+        } else
+            useAndClose(session.getTransport("smtp")) { transport ⇒
+                Transport.send(message)
+            }
     }
 
     private def handleBody(pipelineContext: PipelineContext, dataInputSystemId: String, parentPart: Part, bodyElement: Element) {
@@ -359,6 +349,9 @@ object EmailProcessor {
     val TestTo       = "test-to"
     val TestSMTPHost = "test-smtp-host"
 
+    val Outbox          = "outbox"
+    val OutboxDirectory = "outbox-directory"
+
     val ConfigNamespaceURI = "http://www.orbeon.com/oxf/email"
 
     // Use utf-8 as most email clients support it. This allows us not to have to pick an inferior encoding.
@@ -372,6 +365,25 @@ object EmailProcessor {
         optionalValueTrim(e.element(name)) orElse
         nonEmptyOrNone(propertySet.getString(name))
 
+    def createSession(properties: JProperties, usernameOption: Option[String], passwordOption: Option[String]) =
+        usernameOption match {
+            case Some(username) ⇒
+                if (Logger.isInfoEnabled) Logger.info("Authentication")
+
+                properties.setProperty("mail.smtp.auth", "true")
+
+                if (Logger.isInfoEnabled) Logger.info("Username: " + usernameOption)
+
+                Session.getInstance(properties, new Authenticator {
+                    override def getPasswordAuthentication: PasswordAuthentication = {
+                        new PasswordAuthentication(username, passwordOption getOrElse "")
+                    }
+                })
+            case None ⇒
+                if (Logger.isInfoEnabled) Logger.info("No Authentication")
+                Session.getInstance(properties)
+        }
+
     // Read a text or binary document and return it as a FileItem
     def handleStreamedPartContent(pipelineContext: PipelineContext, source: SAXSource): FileItem = {
         val fileItem = NetUtils.prepareFileItem(NetUtils.REQUEST_SCOPE, ProcessorImpl.logger)
@@ -118,21 +118,7 @@ class Connection(
                     combineValues[String, String, List](capitalizedHeaders).toMap
                 }
 
-                val internalPath = {
-
-                    val servicePrefix =
-                        URLRewriterUtils.rewriteServiceURL(
-                            NetUtils.getExternalContext.getRequest,
-                            "/",
-                            URLRewriter.REWRITE_MODE_ABSOLUTE
-                        )
-
-                    val matchesServicePrefix = urlString.startsWith(servicePrefix)
-
-                    val servicePath = matchesServicePrefix option urlString.substring(servicePrefix.size - 1)
-
-                    servicePath filter isInternalPath
-                }
+                val internalPath = findInternalPath(urlString)
 
                 val cookieStore = cookieStoreOpt getOrElse new BasicCookieStore
                 cookieStoreOpt = Some(cookieStore)
@@ -254,19 +240,8 @@ trait ConnectionState {
             }
         }
 
-    private def stateAttributes(createSession: Boolean) = {
-        val externalContext = NetUtils.getExternalContext
-        stateScope match {
-            case "request" ⇒
-                Some(externalContext.getRequest.getAttributesMap)
-            case "session" if externalContext.getSession(createSession) ne null ⇒
-                Some(externalContext.getSession(createSession).getAttributesMap)
-            case "application" ⇒
-                Some(externalContext.getWebAppContext.getAttributesMap)
-            case _ ⇒
-                None
-        }
-    }
+    private def stateAttributes(createSession: Boolean) =
+        stateAttributesForScope(stateScope, createSession)
 }
 
 private object ConnectionState {
@@ -283,6 +258,20 @@ private object ConnectionState {
     val HttpCookieStoreAttribute = "oxf.http.cookie-store"
 
     val AllScopes = Set("none", "request", "session", "application")
+
+    def stateAttributesForScope(stateScope: String, createSession: Boolean) = {
+        val externalContext = NetUtils.getExternalContext
+        stateScope match {
+            case "request" ⇒
+                Some(externalContext.getRequest.getAttributesMap)
+            case "session" if externalContext.getSession(createSession) ne null ⇒
+                Some(externalContext.getSession(createSession).getAttributesMap)
+            case "application" ⇒
+                Some(externalContext.getWebAppContext.getAttributesMap)
+            case _ ⇒
+                None
+        }
+    }
 }
 
 object Connection extends Logging {
@@ -345,6 +334,46 @@ object Connection extends Logging {
         )
     }
 
+    // Cookie store of the HTTP state, for connections made from another thread, which can't access the HTTP state
+    // themselves. Like for a connection which loads and saves the state, the store is created and saved if missing.
+    // NOTE: This must run in the thread of the incoming request, as it uses the external context.
+    def httpStateCookieStore(): CookieStore = {
+
+        import org.orbeon.oxf.util.ConnectionState._
+
+        val stateScope = stateScopeFromProperty
+
+        def existing =
+            stateAttributesForScope(stateScope, createSession = false) flatMap
+            (m ⇒ Option(m.get(HttpCookieStoreAttribute).asInstanceOf[CookieStore]))
+
+        existing getOrElse {
+            // BasicCookieStore is thread-safe
+            val cookieStore = new BasicCookieStore
+            stateAttributesForScope(stateScope, createSession = true) foreach
+            (_.put(HttpCookieStoreAttribute, cookieStore))
+            cookieStore
+        }
+    }
+
+    // The path of the given absolute URL if it is a service of this web app handled internally
+    // NOTE: This uses the external context, so it must run in the thread of the incoming request.
+    def findInternalPath(urlString: String): Option[String] = {
+
+        val servicePrefix =
+            URLRewriterUtils.rewriteServiceURL(
+                NetUtils.getExternalContext.getRequest,
+                "/",
+                URLRewriter.REWRITE_MODE_ABSOLUTE
+            )
+
+        val matchesServicePrefix = urlString.startsWith(servicePrefix)
+
+        val servicePath = matchesServicePrefix option urlString.substring(servicePrefix.size - 1)
+
+        servicePath filter isInternalPath
+    }
+
     def isInternalPath(path: String) = {
         val propertySet = Properties.instance.getPropertySet
         val p = propertySet.getProperty(HttpInternalPathsProperty)
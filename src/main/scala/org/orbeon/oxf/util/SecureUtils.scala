@@ -13,8 +13,9 @@
  */
 package org.orbeon.oxf.util
 
-import java.security.{Security, SecureRandom, MessageDigest}
-import javax.crypto.Cipher
+import java.io.{DataInputStream, IOException, InputStream, OutputStream}
+import java.security.{GeneralSecurityException, Security, SecureRandom, MessageDigest}
+import javax.crypto.{CipherOutputStream, Cipher}
 import javax.crypto.Mac
 import javax.crypto.SecretKey
 import javax.crypto.SecretKeyFactory
@@ -132,6 +133,104 @@ object SecureUtils {
             cipher.doFinal(message)
         }
 
+    // Encrypt what is written to the resulting stream into the given stream, prepending the IV as encrypt() does
+    // The cipher is returned to the pool when the resulting stream is closed
+    def encryptingOutputStream(os: OutputStream): OutputStream = {
+        val cipher = pool.borrowObject()
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey)
+            os.write(cipher.getParameters.getParameterSpec(classOf[IvParameterSpec]).getIV)
+
+            new CipherOutputStream(os, cipher) {
+                private var closed = false
+                override def close() =
+                    if (! closed) {
+                        closed = true
+                        try super.close()
+                        finally pool.returnObject(cipher)
+                    }
+            }
+        } catch {
+            case t: Throwable ⇒
+                pool.returnObject(cipher)
+                throw t
+        }
+    }
+
+    // Decrypt the given stream, which starts with the IV as produced by encryptingOutputStream()
+    // The cipher is returned to the pool when the resulting stream is closed
+    def decryptingInputStream(is: InputStream): InputStream = {
+        val iv = new Array[Byte](AESIVSize)
+        new DataInputStream(is).readFully(iv)
+
+        val cipher = pool.borrowObject()
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv))
+            new DecryptingInputStream(is, cipher)
+        } catch {
+            case t: Throwable ⇒
+                pool.returnObject(cipher)
+                throw t
+        }
+    }
+
+    // NOTE: We don't use CipherInputStream, as with Java 6 and 7 it ignores BadPaddingException and
+    // IllegalBlockSizeException, so that tampered or truncated data would decrypt without error.
+    private class DecryptingInputStream(is: InputStream, cipher: Cipher) extends InputStream {
+
+        private val inputBuffer    = new Array[Byte](512)
+        private var outputBuffer   = Array.empty[Byte]
+        private var outputPosition = 0
+        private var ended          = false
+        private var closed         = false
+
+        // Decrypt until some output is available, return false at the end of the data
+        private def fill(): Boolean = {
+            while (outputPosition == outputBuffer.length && ! ended) {
+                val count = is.read(inputBuffer)
+                outputBuffer =
+                    if (count == -1) {
+                        ended = true
+                        try cipher.doFinal()
+                        catch { case e: GeneralSecurityException ⇒ throw new IOException(e) }
+                    } else
+                        Option(cipher.update(inputBuffer, 0, count)) getOrElse Array.empty[Byte]
+                outputPosition = 0
+            }
+            outputPosition < outputBuffer.length
+        }
+
+        def read(): Int =
+            if (fill()) {
+                val b = outputBuffer(outputPosition) & 0xff
+                outputPosition += 1
+                b
+            } else
+                -1
+
+        override def read(b: Array[Byte], off: Int, len: Int): Int =
+            if ((off < 0) || (len < 0) || (off > b.length) || ((off + len) > b.length))
+                throw new IndexOutOfBoundsException
+            else if (len == 0)
+                0
+            else if (fill()) {
+                val count = math.min(len, outputBuffer.length - outputPosition)
+                System.arraycopy(outputBuffer, outputPosition, b, off, count)
+                outputPosition += count
+                count
+            } else
+                -1
+
+        override def available = outputBuffer.length - outputPosition
+
+        override def close() =
+            if (! closed) {
+                closed = true
+                try is.close()
+                finally pool.returnObject(cipher)
+            }
+    }
+
     // Compute a digest
     def digestString(text: String, algorithm: String, encoding: String): String =
         digestBytes(text.getBytes("utf-8"), algorithm, encoding)
@@ -14,6 +14,7 @@
 package org.orbeon.oxf.webapp
 
 import org.orbeon.oxf.pipeline.InitUtils.runWithServletContext
+import org.orbeon.oxf.processor.EmailOutbox
 import javax.servlet.{ServletException, ServletContextEvent, ServletContextListener}
 import org.orbeon.oxf.util.ScalaUtils._
 
@@ -45,5 +46,7 @@ class OrbeonServletContextListener extends ServletContextListener {
             runWithServletContext(event.getServletContext, None, logger, logPrefix, "Context destroyed.", DestroyProcessorPrefix, DestroyInputPrefix)
             // NOTE: This calls all listeners, because the listeners are stored in the actual web app context's attributes
             WebAppContext(event.getServletContext).webAppDestroyed()
+            // Stop background senders so their threads and connections don't outlive the web app
+            EmailOutbox.shutdownAll()
         }
 }
\ No newline at end of file
@@ -18,6 +18,7 @@ import org.orbeon.exception.OrbeonFormatter
 import org.orbeon.oxf.util._
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
+import java.io.InputStream
 import java.io.OutputStream
 import java.util.zip.Deflater
 import java.util.zip.GZIPInputStream
@@ -90,6 +91,27 @@ object XFormsCompressor extends Logging {
         compressBytes(bytesToEncode, Deflater.BEST_SPEED)
     }
 
+    // Compress what is written to the resulting stream into the given stream, in the same format as compressBytes()
+    // The deflater is returned to the pool when the resulting stream is closed
+    def compressingOutputStream(os: OutputStream): OutputStream = {
+        val deflater = deflaterPool.borrowObject
+        deflater.setLevel(Deflater.BEST_SPEED)
+        new DeflaterGZIPOutputStream(deflater, os, BUFFER_SIZE) {
+            private var returned = false
+            override def close() =
+                try super.close()
+                finally {
+                    if (! returned) {
+                        returned = true
+                        deflaterPool.returnObject(deflater)
+                    }
+                }
+        }
+    }
+
+    def uncompressingInputStream(is: InputStream): InputStream =
+        new GZIPInputStream(is, BUFFER_SIZE)
+
     def uncompressBytes(bytesToDecode: Array[Byte]) = {
         val is = new GZIPInputStream(new ByteArrayInputStream(bytesToDecode))
         val os = new ByteArrayOutputStream(BUFFER_SIZE)
@@ -30,7 +30,7 @@ import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.xforms.XFormsServerSharedInstancesCache.Loader
 import org.orbeon.saxon.om.{NodeInfo, VirtualNode, DocumentInfo}
 import org.orbeon.oxf.util._
-import org.orbeon.oxf.xforms.state.InstanceState
+import org.orbeon.oxf.xforms.state.{DocumentWeigher, InstanceState}
 
 // Caching information associated with an instance loaded with xxf:cache="true"
 case class InstanceCaching(
@@ -106,6 +106,23 @@ class XFormsInstance(
     def readonly = _readonly
     def modified = _modified
 
+    // Result of the last schema validation, updated incrementally upon value changes
+    val schemaValidationState = new XFormsModelSchemaValidator.ValidationState
+
+    // Estimated memory retained by the instance content, see DocumentWeigher
+    // The instance is weighed once, after which the weight is adjusted upon insert, delete and value changes, as the
+    // document cache weighs documents upon each request.
+    private var _weight = -1L
+
+    def weight = {
+        if (_weight < 0)
+            _weight = DocumentWeigher.subtreeWeight(_documentInfo)
+        _weight
+    }
+
+    private def adjustWeight(delta: ⇒ Long) =
+        if (_weight >= 0)
+            _weight += delta
 
     // Mark the instance as modified
     // This is used so we can optimize serialization: if an instance is inline and not modified, we don't need to
@@ -119,6 +136,8 @@ class XFormsInstance(
         _readonly = readonly
 
         requireNewIndex()
+        schemaValidationState.invalidate()
+        _weight = -1L
 
         markModified()
     }
@@ -189,8 +208,10 @@ class XFormsInstance(
 
                 // Update index
                 // If this was a root element replacement, rely on XXFormsReplaceEvent instead
-                if (! insertEvent.isRootElementReplacement)
+                if (! insertEvent.isRootElementReplacement) {
                     updateIndexForInsert(insertedNodes)
+                    adjustWeight(insertedNodes map DocumentWeigher.subtreeWeight sum)
+                }
             case deleteEvent: XFormsDeleteEvent ⇒
                 // New nodes were just deleted
                 if (deleteEvent.deletedNodes.nonEmpty) {
@@ -198,6 +219,7 @@ class XFormsInstance(
                     val controls = container.getContainingDocument.getControls
                     updateRepeatNodesets(controls, null)
                     updateIndexForDelete(deleteEvent.deletedNodes)
+                    adjustWeight(- (deleteEvent.deletedNodes map DocumentWeigher.subtreeWeight sum))
                 }
             case replaceEvent: XXFormsReplaceEvent ⇒
                 // A node was replaced
@@ -205,8 +227,10 @@ class XFormsInstance(
                 // - a root element replacement
                 // - an id attribute replacement
                 updateIndexForReplace(replaceEvent.formerNode, replaceEvent.currentNode)
+                adjustWeight(DocumentWeigher.subtreeWeight(replaceEvent.currentNode) - DocumentWeigher.subtreeWeight(replaceEvent.formerNode))
             case valueChangeEvent: XXFormsValueChangedEvent ⇒
                 updateIndexForValueChange(valueChangeEvent)
+                adjustWeight(DocumentWeigher.valueWeight(valueChangeEvent.newValue) - DocumentWeigher.valueWeight(valueChangeEvent.oldValue))
             case _ ⇒
         }
 
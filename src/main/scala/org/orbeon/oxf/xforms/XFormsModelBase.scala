@@ -18,11 +18,11 @@ import org.orbeon.oxf.xforms.analysis.model.Model
 import org.orbeon.oxf.xforms.xbl.XBLContainer
 
 import java.{util ⇒ ju}
-import org.orbeon.oxf.xforms.model.{BindNode, DataModel}
+import org.orbeon.oxf.xforms.model.BindNode
 import org.orbeon.oxf.util.Logging
 import org.orbeon.oxf.util.ScalaUtils._
 import scala.collection.JavaConverters._
-import org.orbeon.saxon.om.{StructuredQName, NodeInfo}
+import org.orbeon.saxon.om.StructuredQName
 import org.orbeon.oxf.xforms.event.{XFormsEvent, Dispatch}
 import org.orbeon.oxf.xforms.event.events.{XXFormsInvalidEvent, XXFormsValidEvent}
 import collection.mutable
@@ -165,20 +165,8 @@ abstract class XFormsModelBase(val container: XBLContainer, val effectiveId: Str
             val instances = getInstances.asScala
             val invalidInstancesIds = mutable.LinkedHashSet[String]()
 
-            // Clear schema validation state
-            // NOTE: This could possibly be moved to rebuild(), but we must be careful about the presence of a schema
-            for {
-                instance ← instances
-                instanceMightBeSchemaValidated = hasSchema && instance.isSchemaValidation
-                if instanceMightBeSchemaValidated
-            } locally {
-                DataModel.visitElementJava(instance.rootElement, new DataModel.NodeVisitor {
-                    def visit(nodeInfo: NodeInfo) =
-                        InstanceData.clearSchemaState(nodeInfo)
-                })
-            }
-
             // Validate using schemas if needed
+            // NOTE: The validator clears the schema validation state of the nodes it validates again
             if (hasSchema)
                 for {
                     instance ← instances
@@ -88,11 +88,15 @@ abstract class XFormsModelBindsBase(model: XFormsModel) extends Logging {
                         dependencies.hasAnyCalculationBind(staticModel, instance.getPrefixedId) ||
                         dependencies.hasAnyValidationBind(staticModel, instance.getPrefixedId)
     
-                    if (instanceMightBeSchemaValidated || instanceMightHaveMips)
+                    if (instanceMightBeSchemaValidated || instanceMightHaveMips) {
                         DataModel.visitElementJava(instance.rootElement, new DataModel.NodeVisitor {
                             def visit(nodeInfo: NodeInfo): Unit =
                                 InstanceData.clearState(nodeInfo)
                         })
+
+                        // This also cleared the schema state
+                        instance.schemaValidationState.invalidate()
+                    }
                 }
 
             // Not ideal, but this state is updated when the bind tree is updated below
@@ -15,7 +15,7 @@ package org.orbeon.oxf.xforms
 
 import org.orbeon.oxf.util.IndentedLogger
 import state.AnnotatedTemplate
-import org.orbeon.oxf.xml.XMLReceiverHelper
+import org.orbeon.oxf.xml.{ElementHandlerController, XMLReceiverHelper}
 import org.orbeon.oxf.util.XPath.CompiledExpression
 
 trait XFormsStaticState {
@@ -42,6 +42,8 @@ trait XFormsStaticState {
     def propertyMaybeAsExpression(name: String): Either[Any, CompiledExpression]
     def clientNonDefaultProperties: Map[String, AnyRef]
 
+    def bodyHandlerTable(noscript: Boolean): ElementHandlerController.HandlerTable
+
     def toXML(helper: XMLReceiverHelper)
     def dumpAnalysis()
 }
\ No newline at end of file
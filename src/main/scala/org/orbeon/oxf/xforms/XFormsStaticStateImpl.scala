@@ -34,6 +34,7 @@ import org.orbeon.saxon.dom4j.DocumentWrapper
 import org.orbeon.oxf.xforms.library.XFormsFunctionLibrary
 import org.orbeon.oxf.xforms.XFormsProperties._
 import org.orbeon.oxf.util.XPath.CompiledExpression
+import org.orbeon.oxf.xforms.processor.handlers.xhtml.XHTMLBodyHandler
 
 class XFormsStaticStateImpl(
         val encodedState: String,
@@ -111,6 +112,13 @@ class XFormsStaticStateImpl(
     def staticIntProperty(name: String) =
         intPropertyMaybeAsExpression(name).left.get
 
+    // Handlers for xh:body, see XHTMLBodyHandler
+    private lazy val scriptBodyHandlerTable   = XHTMLBodyHandler.createHandlerTable(this, false)
+    private lazy val noscriptBodyHandlerTable = XHTMLBodyHandler.createHandlerTable(this, true)
+
+    def bodyHandlerTable(noscript: Boolean) =
+        if (noscript) noscriptBodyHandlerTable else scriptBodyHandlerTable
+
     // 2014-05-02: Used by XHTMLHeadHandler only
     def clientNonDefaultProperties = staticStateDocument.nonDefaultProperties filter
         { case (propertyName, _) ⇒ getPropertyDefinition(propertyName).isPropagateToClient }
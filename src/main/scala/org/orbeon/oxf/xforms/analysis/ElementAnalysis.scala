@@ -240,8 +240,9 @@ trait ElementEventHandlers {
 
     // Event handler information as a tuple:
     // - whether the default action needs to run
-    // - all event handlers grouped by phase and observer prefixed id
-    private type HandlerAnalysis = (Boolean, Map[Phase, Map[String, List[EventHandler]]])
+    // - all event handlers grouped by phase and observer prefixed id, with observers in the order in which they run
+    //   for the phase, and only observers which have handlers to run
+    private type HandlerAnalysis = (Boolean, Map[Phase, List[(String, List[EventHandler])]])
 
     // Cache for event handlers
     // Use an immutable map and @volatile so that update are published to other threads accessing this static state.
@@ -325,7 +326,7 @@ trait ElementEventHandlers {
         var performDefaultAction = true
 
         def handlersForPhase(observers: List[ElementAnalysis], phase: Phase) = {
-            val result = mutable.Map[String, List[EventHandler]]()
+            val result = mutable.ListBuffer[(String, List[EventHandler])]()
             breakable {
                 for (observer ← observers) {
 
@@ -344,7 +345,7 @@ trait ElementEventHandlers {
             }
 
             if (result.nonEmpty)
-                Some(phase → result.toMap)
+                Some(phase → result.toList)
             else
                 None
         }
@@ -17,12 +17,14 @@ import collection.mutable
 import org.orbeon.oxf.xforms.XFormsProperties
 
 // Gather request statistics
-// For now, only support XPath statistics
+// For now, only support XPath and event dispatch statistics
 trait RequestStats {
     def afterInitialResponse()
     def afterUpdateResponse()
     def addXPathStat(expr: String, time: Long)
     def withXPath[T](expr: ⇒ String)(body: ⇒ T): T
+    def addEventStat(name: String, time: Long)
+    def withEvent[T](name: String)(body: ⇒ T): T
 
     // For Java callers
     def getReporter: (String, Long) ⇒ Unit = addXPathStat
@@ -30,7 +32,7 @@ trait RequestStats {
 
 class RequestStatsImpl extends RequestStats {
 
-    private class XPathStats(val expr: String) {
+    private class Stats(val key: String) {
         private var _count = 0
         private var _totalTime = 0L
 
@@ -44,16 +46,22 @@ class RequestStatsImpl extends RequestStats {
         def meanTime = _totalTime / _count
 
         override def toString =
-            "expr: " + expr + ", count: " + count + ", total time: " + totalTime+ ", mean time: " + meanTime
+            "key: " + key + ", count: " + count + ", total time: " + totalTime+ ", mean time: " + meanTime
     }
 
-    private val xpathStats = mutable.Map[String, XPathStats]()
+    private val xpathStats = mutable.Map[String, Stats]()
+
+    // NOTE: The time of an event includes the time of events dispatched while it is being dispatched
+    private val eventStats = mutable.Map[String, Stats]()
 
     def addXPathStat(expr: String, time: Long) =
-        xpathStats.getOrElseUpdate(expr, new XPathStats(expr)).addStat(time)
+        xpathStats.getOrElseUpdate(expr, new Stats(expr)).addStat(time)
+
+    def addEventStat(name: String, time: Long) =
+        eventStats.getOrElseUpdate(name, new Stats(name)).addStat(time)
 
-    private def topXPath(n: Int, f: XPathStats ⇒ Long) =
-        xpathStats.values.toSeq sortBy f takeRight n reverse
+    private def top(stats: mutable.Map[String, Stats], n: Int, f: Stats ⇒ Long) =
+        stats.values.toSeq sortBy f takeRight n reverse
 
     private def distinctXPath = xpathStats.size
 
@@ -65,13 +73,21 @@ class RequestStatsImpl extends RequestStats {
         println(" distinct XPath: " + distinctXPath)
         println(" total time in XPath: " + (xpathStats.values map (_.totalTime) sum))
         println(" top XPath by mean time: ")
-        for ((topXPath, i) ← topXPath(10, _.meanTime).zipWithIndex)
+        for ((topXPath, i) ← top(xpathStats, 10, _.meanTime).zipWithIndex)
             println("  " + (i + 1) + ": " + topXPath.toString)
         println(" top XPath by total time: ")
-        for ((topXPath, i) ← topXPath(10, _.totalTime).zipWithIndex)
+        for ((topXPath, i) ← top(xpathStats, 10, _.totalTime).zipWithIndex)
             println("  " + (i + 1) + ": " + topXPath.toString)
+        println(" events dispatched: " + (eventStats.values map (_.count) sum))
+        println(" events by count: ")
+        for ((topEvent, i) ← top(eventStats, eventStats.size, _.count).zipWithIndex)
+            println("  " + (i + 1) + ": " + topEvent.toString)
     }
 
+    // Number of dispatches and total dispatch time in microseconds, by event name
+    def eventCounts: Map[String, Int]  = eventStats.mapValues(_.count).toMap
+    def eventTimes : Map[String, Long] = eventStats.mapValues(_.totalTime).toMap
+
     def withXPath[T](expr: ⇒ String)(body: ⇒ T): T = {
         val startTime = System.nanoTime
 
@@ -83,6 +99,16 @@ class RequestStatsImpl extends RequestStats {
 
         result
     }
+
+    def withEvent[T](name: String)(body: ⇒ T): T = {
+        val startTime = System.nanoTime
+
+        val result = body
+
+        addEventStat(name, (System.nanoTime - startTime) / 1000)
+
+        result
+    }
 }
 
 object NOPRequestStats extends RequestStats {
@@ -90,6 +116,8 @@ object NOPRequestStats extends RequestStats {
     def afterUpdateResponse() = ()
     def addXPathStat(expr: String, time: Long) = ()
     def withXPath[T](expr: ⇒ String)(body: ⇒ T) = body
+    def addEventStat(name: String, time: Long) = ()
+    def withEvent[T](name: String)(body: ⇒ T) = body
 }
 
 object RequestStatsImpl {
@@ -18,6 +18,7 @@ import org.orbeon.oxf.common.OrbeonLocationException
 import org.orbeon.oxf.xml.dom4j.ExtendedLocationData
 import org.orbeon.oxf.util.Logging
 import org.orbeon.oxf.xforms.event.XFormsEvent._
+import scala.collection.mutable
 import scala.util.control.NonFatal
 
 object Dispatch extends Logging {
@@ -31,6 +32,9 @@ object Dispatch extends Logging {
         val containingDocument = event.containingDocument
         implicit val indentedLogger = containingDocument.getIndentedLogger(XFormsEvents.LOGGING_CATEGORY)
 
+        // Checked once, so that nothing is allocated for logging when debug logging is disabled
+        val isDebug = indentedLogger.isDebugEnabled
+
         // Utility to help make sure we push and pop the event
         def withEvent[T](body: ⇒ T): T =
             try {
@@ -55,7 +59,8 @@ object Dispatch extends Logging {
 
                 // https://github.com/orbeon/orbeon-forms/issues/898
                 if (staticTarget eq null) {
-                    debug("ignoring event dispatch to target without static control", eventLogging)
+                    if (isDebug)
+                        debug("ignoring event dispatch to target without static control", eventLogging)
                     return
                 }
 
@@ -69,66 +74,81 @@ object Dispatch extends Logging {
                     statNativeHandlers += 1
                 }
 
-            withEvent {
+            def dispatch(): Unit =
                 if (handlers.nonEmpty) {
-                    withDebug("dispatching", eventLogging) {
-                        // There is at least one handler to run
-
-                        // Run all observers for the given phase
-                        // One one hand, we have prefixed ids, and on the other hand we need to find concrete controls.
-                        // The strategy we use here is to traverse all the observers. But we could instead determine the
-                        // effective id from prefixed id and then lookup the object by effective id. It is not clear at
-                        // this point which is faster.
-                        def doPhase(observers: List[XFormsEventObserver], staticHandlers: Map[String, List[EventHandler]], phase: Phase) =
-                            for {
-                                observer ← observers
-                                handlers ← staticHandlers.get(observer.getPrefixedId).toList
-                                handler  ← handlers
-                                if event.matches(handler)   // custom filtering by event
-                            } yield {
-                                event.currentObserver = observer
-                                event.currentPhase = phase
-
-                                withDebug("handler", Seq("name" → event.name, "phase" → phase.name, "observer" → observer.getEffectiveId)) {
-                                    handler.handleEvent(observer, event)
-                                    statHandleEvent += 1
-                                }
+                    // There is at least one handler to run
+
+                    // Static analysis tells us which observers have handlers for this target and event. We find the
+                    // concrete observers with those prefixed ids among the ancestors of the target, and stop walking
+                    // up as soon as all of them are found.
+                    lazy val observersByPrefixedId = {
+
+                        val remaining =
+                            mutable.Set[String]() ++= (handlers.get(Capture).iterator ++ handlers.get(Bubbling).iterator flatMap (_ map (_._1)))
+
+                        val result = mutable.Map[String, XFormsEventObserver]()
+                        var observer = target.parentEventObserver
+                        while ((observer ne null) && remaining.nonEmpty) {
+                            val prefixedId = observer.getPrefixedId
+                            if (remaining.remove(prefixedId))
+                                result += prefixedId → observer
+                            observer = observer.parentEventObserver
+                        }
+                        result
+                    }
+
+                    def runHandler(observer: XFormsEventObserver, handler: EventHandler, phase: Phase) = {
+                        event.currentObserver = observer
+                        event.currentPhase = phase
+
+                        if (isDebug)
+                            withDebug("handler", Seq("name" → event.name, "phase" → phase.name, "observer" → observer.getEffectiveId)) {
+                                handler.handleEvent(observer, event)
                             }
+                        else
+                            handler.handleEvent(observer, event)
 
-                        // All ancestor observers (not filtered by scope) gathered lazily so that if there is nothing
-                        // to do for capture and bubbling, we don't compute them.
-                        lazy val ancestorObservers =
-                            Iterator.iterate(target.parentEventObserver)(_.parentEventObserver) takeWhile (_ ne null) toList
+                        statHandleEvent += 1
+                    }
 
-                        // Capture phase
-                        handlers.get(Capture) foreach (doPhase(ancestorObservers.reverse, _, Capture))
+                    // Run all observers for the given phase, in order
+                    def doPhase(observersHandlers: List[(String, List[EventHandler])], findObserver: String ⇒ Option[XFormsEventObserver], phase: Phase) =
+                        for {
+                            (prefixedId, handlers) ← observersHandlers
+                            observer               ← findObserver(prefixedId)
+                            handler                ← handlers
+                            if event.matches(handler)   // custom filtering by event
+                        } runHandler(observer, handler, phase)
 
-                        // Target phase
-                        locally {
-                            // Perform "action at target" before running event handlers
+                    // Capture phase
+                    handlers.get(Capture) foreach (doPhase(_, observersByPrefixedId.get, Capture))
 
-                            // NOTE: As of 2011-03-07, this is used XFormsInstance for xforms-insert/xforms-delete
-                            // processing, and in XFormsUploadControl for upload processing.
-                            target.performTargetAction(event)
+                    // Target phase
+                    locally {
+                        // Perform "action at target" before running event handlers
 
-                            handlers.get(Target) foreach (doPhase(List(target), _, Target))
+                        // NOTE: As of 2011-03-07, this is used XFormsInstance for xforms-insert/xforms-delete
+                        // processing, and in XFormsUploadControl for upload processing.
+                        target.performTargetAction(event)
 
-                            callNativeListeners(target)
-                        }
+                        handlers.get(Target) foreach (doPhase(_, _ ⇒ Some(target), Target))
 
-                        // Bubbling phase, which the event may not support
-                        if (event.bubbles)
-                            handlers.get(Bubbling) foreach (doPhase(ancestorObservers, _, Bubbling))
+                        callNativeListeners(target)
+                    }
+
+                    // Bubbling phase, which the event may not support
+                    if (event.bubbles)
+                        handlers.get(Bubbling) foreach (doPhase(_, observersByPrefixedId.get, Bubbling))
 
-                        // Perform default action
-                        if (! event.cancelable || performDefaultAction)
-                            target.performDefaultAction(event)
+                    // Perform default action
+                    if (! event.cancelable || performDefaultAction)
+                        target.performDefaultAction(event)
 
+                    if (isDebug)
                         debugResults(Seq(
                             "regular handlers called" → statHandleEvent.toString,
                             "native handlers called"  → statNativeHandlers.toString
                         ))
-                    }
                 } else {
                     // No handlers, try to do as little as possible
                     target.performTargetAction(event)
@@ -136,7 +156,16 @@ object Dispatch extends Logging {
                     if (! event.cancelable || performDefaultAction)
                         target.performDefaultAction(event)
 
-                    debug("optimized dispatching", eventLogging ++ Seq("native handlers called" → statNativeHandlers.toString))
+                    if (isDebug)
+                        debug("optimized dispatching", eventLogging ++ Seq("native handlers called" → statNativeHandlers.toString))
+                }
+
+            containingDocument.getRequestStats.withEvent(event.name) {
+                withEvent {
+                    if (isDebug && handlers.nonEmpty)
+                        withDebug("dispatching", eventLogging)(dispatch())
+                    else
+                        dispatch()
                 }
             }
         } catch {
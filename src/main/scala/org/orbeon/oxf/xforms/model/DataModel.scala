@@ -201,6 +201,7 @@ object DataModel {
             case Some(modifiedInstance) ⇒
                 // Tell the model about the value change
                 modifiedInstance.markModified()
+                modifiedInstance.schemaValidationState.markValueChange(nodeInfo)
                 modifiedInstance.model.markValueChange(nodeInfo, isCalculate)
 
                 // Dispatch extension event to instance
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.processor
+
+import java.io.{FileInputStream, OutputStreamWriter, FileOutputStream, File}
+import java.util.{WeakHashMap ⇒ JWeakHashMap}
+import org.dom4j.{DocumentHelper, Document}
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.util.LoggerFactory
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.xforms.XFormsConstants._
+import org.orbeon.oxf.xforms.XFormsContainingDocument
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils
+import scala.util.control.NonFatal
+
+/**
+ * Record the Ajax requests handled by XFormsServer, so they can be replayed later by a load generator.
+ *
+ * Recording is enabled by setting oxf.xforms.ajax-recording.directory. Each document gets a directory named after its
+ * UUID, which contains:
+ *
+ * - static-state.xml: the digest and encoded static state of the form
+ * - request-00001.xml, request-00002.xml, etc.: the xxf:event-request documents, in the order they were handled
+ *
+ * The encoded state sent by the client, if any, is not recorded, so replaying requires server-side state handling.
+ */
+object AjaxRecorder {
+
+    val DirectoryProperty = "oxf.xforms.ajax-recording.directory"
+
+    val StaticStateFile   = "static-state.xml"
+    val RequestFilePrefix = "request-"
+
+    private val Logger = LoggerFactory.createLogger(getClass)
+
+    private lazy val directoryOpt =
+        nonEmptyOrNone(Properties.instance.getPropertySet.getString(DirectoryProperty)) map (new File(_))
+
+    def isEnabled = directoryOpt.isDefined
+
+    // Number of requests recorded for each live document
+    // The directory is only read the first time a document is seen, which includes after it was restored from its state.
+    private val requestCounts = new JWeakHashMap[XFormsContainingDocument, Integer]
+
+    // Return the index of the next request of the document, evaluating recordedCount only the first time
+    private def nextRequestIndex(containingDocument: XFormsContainingDocument, recordedCount: ⇒ Int) =
+        requestCounts.synchronized {
+            val count = Option(requestCounts.get(containingDocument)) map (_.intValue) getOrElse recordedCount
+            requestCounts.put(containingDocument, count + 1)
+            count + 1
+        }
+
+    // Called with the document lock held, so the requests of a document are recorded in order
+    def record(containingDocument: XFormsContainingDocument, requestDocument: Document): Unit =
+        directoryOpt foreach { directory ⇒
+            try {
+                val documentDirectory = new File(directory, containingDocument.getUUID)
+
+                // The first time, create the directory and count the requests recorded before, if any
+                def prepareDirectory = {
+                    documentDirectory.mkdirs()
+
+                    val staticStateFile = new File(documentDirectory, StaticStateFile)
+                    if (! staticStateFile.exists)
+                        write(staticStateFile, staticStateDocument(containingDocument))
+
+                    documentDirectory.list count (_ startsWith RequestFilePrefix)
+                }
+
+                val index = nextRequestIndex(containingDocument, prepareDirectory)
+                write(new File(documentDirectory, requestFileName(index)), withoutState(requestDocument))
+            } catch {
+                case NonFatal(t) ⇒ Logger.warn("unable to record Ajax request for document " + containingDocument.getUUID, t)
+            }
+        }
+
+    def requestFileName(index: Int) = RequestFilePrefix + "%05d".format(index) + ".xml"
+
+    // Recordings are read back by the load generator
+    def readStaticState(documentDirectory: File): (String, String) = {
+        val root = read(new File(documentDirectory, StaticStateFile)).getRootElement
+        (root.attributeValue("digest"), root.getText)
+    }
+
+    def readRequests(documentDirectory: File): Seq[Document] =
+        documentDirectory.listFiles.toList filter (_.getName startsWith RequestFilePrefix) sortBy (_.getName) map read
+
+    private def staticStateDocument(containingDocument: XFormsContainingDocument) = {
+        val staticState = containingDocument.getStaticState
+        val document    = DocumentHelper.createDocument
+        val root        = document.addElement("static-state")
+        root.addAttribute("digest", staticState.digest)
+        root.setText(staticState.encodedState)
+        document
+    }
+
+    // Remove the client state, which only makes sense for the document which was recorded
+    private def withoutState(requestDocument: Document) = {
+        val copy = Dom4jUtils.createDocumentCopyElement(requestDocument.getRootElement)
+        for (qName ← Seq(XXFORMS_STATIC_STATE_QNAME, XXFORMS_DYNAMIC_STATE_QNAME, XXFORMS_INITIAL_DYNAMIC_STATE_QNAME))
+            Option(copy.getRootElement.element(qName)) foreach (_.detach())
+        copy
+    }
+
+    private def read(file: File) =
+        useAndClose(new FileInputStream(file))(in ⇒ Dom4jUtils.readDom4j(in))
+
+    private def write(file: File, document: Document) =
+        useAndClose(new OutputStreamWriter(new FileOutputStream(file), "utf-8")) {
+            _.write(Dom4jUtils.domToString(document))
+        }
+}
@@ -218,14 +218,14 @@ class ControlsComparator(document: XFormsContainingDocument, valueChangeControlI
 
             // AVTs on HTML elements
             if (XFormsProperties.isHostLanguageAVTs) {
-                register(classOf[XXFormsAttributeHandler], XXFORMS_NAMESPACE_URI, "attribute", any = true)
-                register(classOf[XHTMLElementHandler], XMLConstants.XHTML_NAMESPACE_URI)
+                register(new XXFormsAttributeHandler, XXFORMS_NAMESPACE_URI, "attribute", any = true)
+                register(new XHTMLElementHandler, XMLConstants.XHTML_NAMESPACE_URI, matcher = XHTMLElementHandler.MATCHER)
             }
 
             // Swallow XForms elements that are unknown
-            register(classOf[NullHandler], XFORMS_NAMESPACE_URI)
-            register(classOf[NullHandler], XXFORMS_NAMESPACE_URI)
-            register(classOf[NullHandler], XBL_NAMESPACE_URI)
+            register(new NullHandler, XFORMS_NAMESPACE_URI)
+            register(new NullHandler, XXFORMS_NAMESPACE_URI)
+            register(new NullHandler, XBL_NAMESPACE_URI)
 
             controller
         }
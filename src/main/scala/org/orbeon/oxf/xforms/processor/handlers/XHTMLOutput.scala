@@ -39,39 +39,39 @@ object XHTMLOutput {
             import org.orbeon.oxf.xml.XMLConstants.{XHTML_NAMESPACE_URI ⇒ XH}
 
             if (isHTMLDocument) {
-                register(classOf[XHTMLHeadHandler], XH, "head")
-                register(classOf[XHTMLBodyHandler], XH, "body")
+                register(new XHTMLHeadHandler, XH, "head")
+                register(new XHTMLBodyHandler, XH, "body")
             } else {
-                register(classOf[XFormsDefaultControlHandler], XF, "input",    any = true)
-                register(classOf[XFormsDefaultControlHandler], XF, "secret",   any = true)
-                register(classOf[XFormsDefaultControlHandler], XF, "range",    any = true)
-                register(classOf[XFormsDefaultControlHandler], XF, "textarea", any = true)
-                register(classOf[XFormsDefaultControlHandler], XF, "output",   any = true)
-                register(classOf[XFormsDefaultControlHandler], XF, "trigger",  any = true)
-                register(classOf[XFormsDefaultControlHandler], XF, "submit",   any = true)
-                register(classOf[XFormsSelectHandler],         XF, "select",   any = true)
-                register(classOf[XFormsSelectHandler],         XF, "select1",  any = true)
-                register(classOf[XFormsGroupHandler],          XF, "group",    any = true)
-                register(classOf[XFormsCaseHandler],           XF, "case",     any = true)
-                register(classOf[XFormsRepeatHandler],         XF, "repeat",   any = true)
+                register(new XFormsDefaultControlHandler, XF, "input",    any = true)
+                register(new XFormsDefaultControlHandler, XF, "secret",   any = true)
+                register(new XFormsDefaultControlHandler, XF, "range",    any = true)
+                register(new XFormsDefaultControlHandler, XF, "textarea", any = true)
+                register(new XFormsDefaultControlHandler, XF, "output",   any = true)
+                register(new XFormsDefaultControlHandler, XF, "trigger",  any = true)
+                register(new XFormsDefaultControlHandler, XF, "submit",   any = true)
+                register(new XFormsSelectHandler,         XF, "select",   any = true)
+                register(new XFormsSelectHandler,         XF, "select1",  any = true)
+                register(new XFormsGroupHandler,          XF, "group",    any = true)
+                register(new XFormsCaseHandler,           XF, "case",     any = true)
+                register(new XFormsRepeatHandler,         XF, "repeat",   any = true)
             }
 
             // Register a handler for AVTs on HTML elements
             if (XFormsProperties.isHostLanguageAVTs) {
-                register(classOf[XXFormsAttributeHandler], XXF, "attribute")
+                register(new XXFormsAttributeHandler, XXF, "attribute")
 
                 if (isHTMLDocument)
-                    register(classOf[XHTMLElementHandler], XH)
+                    register(new XHTMLElementHandler, XH, matcher = XHTMLElementHandler.MATCHER)
 
                 for (additionalAvtElementNamespace ← XFormsProperties.getAdditionalAvtElementNamespaces)
-                    register(classOf[ElementHandlerXML], additionalAvtElementNamespace)
+                    register(new ElementHandlerXML, additionalAvtElementNamespace)
             }
 
             // Swallow XForms elements that are unknown
             if (isHTMLDocument) {
-                register(classOf[NullHandler], XF)
-                register(classOf[NullHandler], XXF)
-                register(classOf[NullHandler], XBL_NAMESPACE_URI)
+                register(new NullHandler, XF)
+                register(new NullHandler, XXF)
+                register(new NullHandler, XBL_NAMESPACE_URI)
             }
         }
 
@@ -83,17 +83,18 @@ object XHTMLOutput {
         template.saxStore.replay(new ExceptionWrapperXMLReceiver(controller, "converting XHTML+XForms document to XHTML"))
     }
 
-    def register[T](
-        clazz               : Class[T],
+    def register(
+        handler             : ⇒ ElementHandler,
         ns                  : String,
         elementName         : String = null,
-        any                 : Boolean = false)(
+        any                 : Boolean = false,
+        matcher             : ElementHandlerController.Matcher[_] = null)(
         implicit controller : ElementHandlerController
     ): Unit =
         controller.registerHandler(
-            clazz.getName,
+            new ElementHandlerController.HandlerFactory { def newHandler() = handler },
             ns,
             elementName,
-            if (any) XHTMLBodyHandler.ANY_MATCHER else null
+            if (any) XHTMLBodyHandler.ANY_MATCHER else matcher
         )
 }
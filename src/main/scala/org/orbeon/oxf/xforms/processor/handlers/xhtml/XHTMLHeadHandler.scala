@@ -25,6 +25,7 @@ import org.orbeon.oxf.xforms.control.Controls
 import org.orbeon.oxf.xforms.control.controls.XXFormsDialogControl
 import org.orbeon.oxf.xforms.event.XFormsEvents
 import org.orbeon.oxf.xforms.processor.XFormsFeatures
+import org.orbeon.oxf.xforms.processor.handlers.XHTMLOutput
 import org.orbeon.oxf.xforms.xbl.XBLResources
 import org.orbeon.oxf.xml._
 import org.xml.sax.Attributes
@@ -45,12 +46,7 @@ class XHTMLHeadHandler extends XFormsBaseHandlerXHTML(false, true) {
         val xmlReceiver = handlerContext.getController.getOutput
 
         // Register control handlers on controller
-        handlerContext.getController.registerHandler(
-            classOf[XXFormsTextHandler].getName,
-            XFormsConstants.XXFORMS_NAMESPACE_URI,
-            "text",
-            XHTMLBodyHandler.ANY_MATCHER
-        )
+        XHTMLOutput.register(new XXFormsTextHandler, XFormsConstants.XXFORMS_NAMESPACE_URI, "text", any = true)(handlerContext.getController)
 
         // Declare xmlns:f
         formattingPrefix = handlerContext.findFormattingPrefixDeclare
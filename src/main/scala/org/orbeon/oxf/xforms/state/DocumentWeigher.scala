@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import collection.JavaConverters._
+import org.orbeon.oxf.cache.CacheWeigher
+import org.orbeon.oxf.xforms.XFormsContainingDocument
+import org.orbeon.saxon.om.{NodeInfo, Axis}
+import org.orbeon.saxon.`type`.Type
+
+/**
+ * Estimate of the memory retained by a live document, used to limit the document cache by total size.
+ *
+ * The static state is not counted, as it is shared between documents and has its own cache. The estimate only needs
+ * to tell small documents from large ones: it counts instance nodes and characters, controls, and the size of the last
+ * Ajax response kept for retries.
+ *
+ * Documents are weighed each time they are put back into the cache, so this must not visit whole instances. Instances
+ * are weighed once, then XFormsInstance keeps their weight up to date as nodes are inserted, deleted or changed.
+ */
+object DocumentWeigher extends CacheWeigher {
+
+    // Rough per-object costs
+    private val DocumentBytes = 16 * 1024L
+    private val NodeBytes     = 96L
+    private val ControlBytes  = 512L
+
+    def weigh(cacheable: AnyRef) = cacheable match {
+        case document: XFormsContainingDocument ⇒
+            DocumentBytes + instancesWeight(document) + controlsWeight(document) + lastAjaxResponseWeight(document)
+        case _ ⇒
+            0L
+    }
+
+    def instancesWeight(document: XFormsContainingDocument) =
+        document.allModels flatMap (_.getInstances.asScala) map (_.weight) sum
+
+    // Weight of a string value
+    def valueWeight(value: CharSequence) = value.length * 2L
+
+    // Visit all the nodes of the subtree, including attributes
+    def subtreeWeight(start: NodeInfo) = {
+        var weight = 0L
+
+        def addWithAttributes(node: NodeInfo) = {
+            weight += (node.getNodeKind match {
+                case Type.DOCUMENT ⇒ 0L
+                case Type.ELEMENT  ⇒ NodeBytes
+                case _             ⇒ NodeBytes + valueWeight(node.getStringValueCS)
+            })
+            if (node.getNodeKind == Type.ELEMENT) {
+                val attributes = node.iterateAxis(Axis.ATTRIBUTE)
+                var attribute = attributes.next().asInstanceOf[NodeInfo]
+                while (attribute ne null) {
+                    weight += NodeBytes + valueWeight(attribute.getStringValueCS)
+                    attribute = attributes.next().asInstanceOf[NodeInfo]
+                }
+            }
+        }
+
+        addWithAttributes(start)
+        val descendants = start.iterateAxis(Axis.DESCENDANT)
+        var node = descendants.next().asInstanceOf[NodeInfo]
+        while (node ne null) {
+            addWithAttributes(node)
+            node = descendants.next().asInstanceOf[NodeInfo]
+        }
+
+        weight
+    }
+
+    def controlsWeight(document: XFormsContainingDocument) =
+        Option(document.getControls) flatMap (controls ⇒ Option(controls.getCurrentControlTree)) map
+            (_.getEffectiveIdsToControls.size * ControlBytes) getOrElse 0L
+
+    def lastAjaxResponseWeight(document: XFormsContainingDocument) =
+        Option(document.getLastAjaxResponse) map (_.getApproximateSize) getOrElse 0L
+}
@@ -15,10 +15,14 @@ package org.orbeon.oxf.xforms.state
 
 import collection.JavaConverters._
 
+import java.io.Writer
+import sbinary.{JavaInput, JavaOutput}
 import sbinary.Operations._
 import XFormsOperations._
 import XFormsProtocols._
 
+import org.orbeon.oxf.util.ScalaUtils.useAndClose
+import org.orbeon.oxf.util.StringBuilderWriter
 import org.orbeon.oxf.util.URLRewriterUtils.PathMatcher
 import org.orbeon.oxf.xforms._
 import control.Controls.ControlsIterator
@@ -74,12 +78,17 @@ case class DynamicState(
     def copyUpdateSequence(sequence: Int) = copy(sequence = sequence)
 
     // Encode to a string representation
-    def encodeToString(compress: Boolean, isForceEncryption: Boolean): String =
-        XFormsUtils.encodeBytes(
-            toByteArray(this),
-            compress,
-            isForceEncryption
-        )
+    def encodeToString(compress: Boolean, isForceEncryption: Boolean): String = {
+        val writer = new StringBuilderWriter
+        encodeTo(writer, compress, isForceEncryption)
+        writer.toString
+    }
+
+    // Encode to the given writer, serializing straight through the encoder without intermediate byte arrays
+    def encodeTo(writer: Writer, compress: Boolean, isForceEncryption: Boolean): Unit =
+        useAndClose(XFormsUtils.encodingOutputStream(writer, compress, isForceEncryption)) { os ⇒
+            write(new JavaOutput(os), this)
+        }
 
     // Encode to an XML representation (as of 2012-02-05, used only by unit tests)
     def toXML = {
@@ -281,12 +290,16 @@ object DynamicState {
     }
 
     // Create a DynamicState from an encoded string representation
-    def apply(encoded: String): DynamicState = {
-        val bytes = XFormsUtils.decodeBytes(encoded)
-        fromByteArray[DynamicState](bytes)
-    }
+    def apply(encoded: CharSequence): DynamicState =
+        useAndClose(XFormsUtils.decodingInputStream(encoded)) { is ⇒
+            read[DynamicState](new JavaInput(is))
+        }
 
     // Encode the given document to a string representation
     def encodeDocumentToString(document: XFormsContainingDocument, compress: Boolean, isForceEncryption: Boolean): String =
         DynamicState(document).encodeToString(compress, isForceEncryption || document.isClientStateHandling)
+
+    // Encode the given document to the given writer
+    def encodeDocumentTo(document: XFormsContainingDocument, writer: Writer, compress: Boolean, isForceEncryption: Boolean): Unit =
+        DynamicState(document).encodeTo(writer, compress, isForceEncryption || document.isClientStateHandling)
 }
\ No newline at end of file
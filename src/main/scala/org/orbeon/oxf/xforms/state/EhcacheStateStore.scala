@@ -27,16 +27,14 @@ object EhcacheStateStore extends XFormsStateStore {
 
     private def stateCache = Caches.stateCache
 
-    def storeDocumentState(document: XFormsContainingDocument, session: ExternalContext.Session, isInitialState: Boolean) = {
-
-        assert(document.getStaticState.isServerStateHandling)
+    def storeState(snapshot: StateSnapshot, session: ExternalContext.Session) = {
 
         if (isDebugEnabled)
             debug("store size before storing: " + getCurrentSize + " entries.")
 
-        val documentUUID = document.getUUID
-        val staticStateDigest = document.getStaticState.digest
-        val dynamicStateKey = getDynamicStateKey(documentUUID, isInitialState)
+        val documentUUID = snapshot.documentUUID
+        val staticStateDigest = snapshot.staticStateDigest
+        val dynamicStateKey = getDynamicStateKey(documentUUID, snapshot.isInitialState)
 
         def addOrReplaceOne(key: String, value: java.io.Serializable) =
             stateCache.put(new EhElement(key, value))
@@ -45,8 +43,8 @@ object EhcacheStateStore extends XFormsStateStore {
         addOrReplaceOne(documentUUID, staticStateDigest + ":" + dynamicStateKey)
 
         // Static and dynamic states
-        addOrReplaceOne(staticStateDigest, document.getStaticState.encodedState)
-        addOrReplaceOne(dynamicStateKey, DynamicState(document))
+        addOrReplaceOne(staticStateDigest, snapshot.staticState)
+        addOrReplaceOne(dynamicStateKey, snapshot.dynamicState)
     }
 
     def findState(session: ExternalContext.Session, documentUUID: String, isInitialState: Boolean): XFormsState = {
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import java.io.File
+import org.orbeon.oxf.pipeline.api.ExternalContext
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.util.SecureUtils
+import org.orbeon.oxf.xforms._
+import sbinary.Operations._
+import XFormsProtocols.DynamicStateRecordFormat
+
+/**
+ * State store keeping states in a StateLog on local disk.
+ *
+ * Keys are the same as for the Ehcache store: document UUID → mapping, static state digest → static state, and dynamic
+ * state key → dynamic state. The dynamic state is written field by field instead of going through Java serialization.
+ *
+ * Unlike the Ehcache store, states are not associated with the session: the session is ignored when storing and
+ * finding states, which are removed only once they have been idle for the configured time-to-idle.
+ */
+object LogStateStore extends XFormsStateStore {
+
+    private val storeDebugName = "Log"
+
+    private val DirectoryProperty   = "oxf.xforms.state.store.log.directory"
+    private val SegmentSizeProperty = "oxf.xforms.state.store.log.segment-size"
+    private val TimeToIdleProperty  = "oxf.xforms.state.store.log.time-to-idle"
+    private val CompactionProperty  = "oxf.xforms.state.store.log.compaction-interval"
+
+    @volatile private var opened = false
+
+    private lazy val log = {
+        val result = newStateLog(DirectoryProperty, "orbeon-xforms-state")
+        opened = true
+        result
+    }
+
+    // Create a StateLog in the directory given by the property, with the segment size, time-to-idle and compaction
+    // interval configured for the log store
+    def newStateLog(directoryProperty: String, defaultDirectoryName: String): StateLog = {
+        val propertySet = Properties.instance.getPropertySet
+
+        val directory =
+            Option(propertySet.getString(directoryProperty)) map (_.trim) filter (_.nonEmpty) map
+                (new File(_)) getOrElse new File(System.getProperty("java.io.tmpdir"), defaultDirectoryName)
+
+        val log =
+            new StateLog(
+                directory,
+                propertySet.getInteger(SegmentSizeProperty, 64 * 1024 * 1024).intValue,
+                propertySet.getInteger(TimeToIdleProperty, 1800).longValue * 1000
+            )
+
+        log.startCompaction(propertySet.getInteger(CompactionProperty, 120).longValue * 1000)
+        log
+    }
+
+    def storeState(snapshot: StateSnapshot, session: ExternalContext.Session) = {
+
+        if (isDebugEnabled)
+            debug("store size before storing: " + getCurrentSize + " entries.")
+
+        val documentUUID = snapshot.documentUUID
+        val staticStateDigest = snapshot.staticStateDigest
+        val dynamicStateKey = getDynamicStateKey(documentUUID, snapshot.isInitialState)
+
+        // The static state digest identifies its content, so only write the static state if it's not already there
+        if (! log.touch(staticStateDigest))
+            log.put(staticStateDigest, snapshot.staticState.getBytes("UTF-8"))
+
+        log.put(dynamicStateKey, toByteArray(snapshot.dynamicState)(DynamicStateRecordFormat))
+
+        // Mapping (UUID → static state key : dynamic state key), written last so that it never points to a missing state
+        log.put(documentUUID, (staticStateDigest + ":" + dynamicStateKey).getBytes("UTF-8"))
+    }
+
+    def findState(session: ExternalContext.Session, documentUUID: String, isInitialState: Boolean): XFormsState = {
+
+        if (isDebugEnabled)
+            debug("store size before finding: " + getCurrentSize + " entries.")
+
+        log.get(documentUUID) map (new String(_, "UTF-8")) match {
+            case Some(keyString) ⇒
+                // Found the keys, split into parts
+                val parts = keyString split ':'
+
+                assert(parts.size == 2)
+                assert(parts(0).length == SecureUtils.HexIdLength)   // static state key is an hex hash
+
+                // If isInitialState == true, force finding the initial state. Otherwise, use current state stored in mapping.
+                val dynamicStateKey = if (isInitialState) getDynamicStateKey(documentUUID, true) else parts(1)
+
+                // Return state only if both parts are found
+                val stateOpt =
+                    for {
+                        staticState  ← log.get(parts(0))
+                        dynamicState ← log.get(dynamicStateKey)
+                    } yield
+                        XFormsState(Some(parts(0)), new String(staticState, "UTF-8"), fromByteArray(dynamicState)(DynamicStateRecordFormat))
+
+                stateOpt.orNull
+
+            case None ⇒ null
+        }
+    }
+
+    override def close() =
+        if (opened)
+            log.close()
+
+    // There is no limit on the number of entries
+    def getMaxSize = 0L
+    def getCurrentSize = log.size.toLong
+
+    def findStateCombined(staticStateDigest: String, dynamicStateUUID: String) = null
+    def addStateCombined(staticStateDigest: String, dynamicStateUUID: String, xformsState: XFormsState, sessionId: String) = ()
+
+    private def getDynamicStateKey(documentUUID: String, isInitialState: Boolean) =
+        documentUUID + (if (isInitialState) "-I" else "-C") // key is different for initial vs. subsequent state
+
+    private def isDebugEnabled = XFormsStateManager.getIndentedLogger.isDebugEnabled
+
+    private def debug(message: String) =
+        XFormsStateManager.getIndentedLogger.logDebug("", storeDebugName + " store: " + message)
+}
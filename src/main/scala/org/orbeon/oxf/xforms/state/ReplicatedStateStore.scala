@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import java.net.InetAddress
+import java.nio.ByteBuffer
+import java.util.concurrent.{RejectedExecutionHandler, ThreadPoolExecutor, ArrayBlockingQueue, TimeUnit, ExecutorService, Executor}
+import collection.JavaConverters._
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.pipeline.api.ExternalContext
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.util.LoggerFactory
+import sbinary.Operations._
+import XFormsProtocols.DynamicStateRecordFormat
+
+/**
+ * State store which replicates states to peer nodes, so that any node can continue a document.
+ *
+ * - States are stored in the local store, then shipped asynchronously to each peer. The static state is only shipped
+ *   to a peer which doesn't have it yet.
+ * - States received from peers are kept in a StateLog. A state is rejected if the node already has the same or a newer
+ *   sequence for the document, so replicas arriving out of order don't overwrite newer ones.
+ * - findState looks in the local store, then in the replicas, then asks the peers in turn, for at most fetchTimeoutMs
+ *   in total.
+ * - Requests from peers are not tied to a session, so states are served to peers without one. This requires a local
+ *   store which doesn't use the session to find states, which is the case of the Ehcache and log stores.
+ * - close() closes the transport and the replicas, and shuts down the executor if it is an ExecutorService.
+ */
+class ReplicatedStateStore(
+    val nodeId     : String,
+    local          : XFormsStateStore,
+    replicas       : StateLog,
+    transport      : StateTransport,
+    peers          : Seq[String],
+    executor       : Executor,
+    fetchTimeoutMs : Int
+) extends XFormsStateStore with StateEndpoint {
+
+    import ReplicatedStateStore._
+
+    transport.register(nodeId, this)
+
+    def storeState(snapshot: StateSnapshot, session: ExternalContext.Session) = {
+
+        local.storeState(snapshot, session)
+
+        publish(
+            StateReplica(
+                snapshot.documentUUID,
+                snapshot.isInitialState,
+                snapshot.staticStateDigest,
+                Some(snapshot.staticState),
+                snapshot.dynamicState.sequence,
+                toByteArray(snapshot.dynamicState)(DynamicStateRecordFormat)
+            )
+        )
+    }
+
+    def findState(session: ExternalContext.Session, documentUUID: String, isInitialState: Boolean): XFormsState =
+        Option(local.findState(session, documentUUID, isInitialState)) orElse
+            findReplica(documentUUID, isInitialState) orElse
+            fetchFromPeers(documentUUID, isInitialState) orNull
+
+    def getMaxSize = local.getMaxSize
+    def getCurrentSize = local.getCurrentSize + replicas.size
+
+    def findStateCombined(staticStateDigest: String, dynamicStateUUID: String) =
+        local.findStateCombined(staticStateDigest, dynamicStateUUID)
+
+    def addStateCombined(staticStateDigest: String, dynamicStateUUID: String, xformsState: XFormsState, sessionId: String) =
+        local.addStateCombined(staticStateDigest, dynamicStateUUID, xformsState, sessionId)
+
+    // Ship a state to all the peers
+    def publish(replica: StateReplica): Unit =
+        for (peer ← peers)
+            executor.execute(new Runnable {
+                def run() = replicateTo(peer, replica)
+            })
+
+    // Called by peers
+    def receive(replica: StateReplica): ReplicationResult = synchronized {
+
+        val digest = replica.staticStateDigest
+
+        if (! replicas.touch(digest) && replica.staticState.isEmpty)
+            MissingStaticState
+        else {
+            replica.staticState foreach { staticState ⇒
+                if (! replicas.touch(digest))
+                    replicas.put(digest, staticState.getBytes("UTF-8"))
+            }
+
+            val key = dynamicStateKey(replica.documentUUID, replica.isInitialState)
+
+            if (replicas.get(key) exists (sequence(_) >= replica.sequence))
+                ReplicaStale
+            else {
+                replicas.put(replica.documentUUID, digest.getBytes("UTF-8"))
+                replicas.put(key, withSequence(replica.sequence, replica.dynamicState))
+                ReplicaAccepted
+            }
+        }
+    }
+
+    override def close() = {
+        transport.close()
+        executor match {
+            case executorService: ExecutorService ⇒ executorService.shutdownNow()
+            case _ ⇒
+        }
+        replicas.close()
+        local.close()
+    }
+
+    // Called by peers, from the states this node has without asking other peers
+    def serve(documentUUID: String, isInitialState: Boolean): Option[StateReplica] =
+        Option(local.findState(NoSession, documentUUID, isInitialState)) orElse findReplica(documentUUID, isInitialState) map {
+            case XFormsState(digest, staticState, dynamicState) ⇒
+                StateReplica(
+                    documentUUID,
+                    isInitialState,
+                    digest getOrElse (throw new OXFException("Missing static state digest")),
+                    Some(staticState),
+                    dynamicState.sequence,
+                    toByteArray(dynamicState)(DynamicStateRecordFormat)
+                )
+        }
+
+    private def replicateTo(peer: String, replica: StateReplica) =
+        try {
+            transport.replicate(peer, replica.copy(staticState = None)) match {
+                case MissingStaticState ⇒ transport.replicate(peer, replica)
+                case _                  ⇒
+            }
+        } catch {
+            case e: Exception ⇒ Logger.warn("node " + nodeId + ": unable to replicate state to " + peer, e)
+        }
+
+    // Like the other stores, return the current state unless the initial state is requested or there is no current state
+    private def findReplica(documentUUID: String, isInitialState: Boolean): Option[XFormsState] =
+        for {
+            digest       ← replicas.get(documentUUID) map (new String(_, "UTF-8"))
+            staticState  ← replicas.get(digest)
+            dynamicState ← (if (isInitialState) None else replicas.get(dynamicStateKey(documentUUID, false))) orElse
+                               replicas.get(dynamicStateKey(documentUUID, true))
+        } yield
+            XFormsState(Some(digest), new String(staticState, "UTF-8"), decodeDynamicState(dynamicState))
+
+    private def fetchFromPeers(documentUUID: String, isInitialState: Boolean): Option[XFormsState] = {
+
+        // The request waits for the peers, so bound the time spent on all of them
+        val deadline = System.currentTimeMillis + fetchTimeoutMs
+        def remaining = deadline - System.currentTimeMillis
+
+        def fetch(peer: String) =
+            try transport.fetch(peer, documentUUID, isInitialState, remaining.toInt max 1)
+            catch {
+                case e: Exception ⇒
+                    Logger.warn("node " + nodeId + ": unable to fetch state from " + peer, e)
+                    None
+            }
+
+        peers.iterator takeWhile (_ ⇒ remaining > 0) map fetch collectFirst { case Some(replica) ⇒ replica } map { replica ⇒
+            // Keep it so the next request doesn't go to the peers
+            receive(replica)
+            XFormsState(Some(replica.staticStateDigest), replica.staticState.get, fromByteArray(replica.dynamicState)(DynamicStateRecordFormat))
+        }
+    }
+}
+
+object ReplicatedStateStore {
+
+    val Logger = LoggerFactory.createLogger(classOf[ReplicatedStateStore])
+
+    private val NodeIdProperty     = "oxf.xforms.state.store.replicated.node-id"
+    private val PeersProperty      = "oxf.xforms.state.store.replicated.peers"
+    private val TransportProperty  = "oxf.xforms.state.store.replicated.transport"
+    private val LocalStoreProperty = "oxf.xforms.state.store.replicated.local"
+    private val DirectoryProperty  = "oxf.xforms.state.store.replicated.directory"
+    private val QueueSizeProperty  = "oxf.xforms.state.store.replicated.queue-size"
+
+    // See serve()
+    private val NoSession: ExternalContext.Session = null
+
+    // Replication runs in the background and must not block requests. When the peers can't keep up and the queue is
+    // full, replicas are dropped, and peers fetch the states they miss when they need them.
+    private def newExecutor(queueSize: Int) =
+        new ThreadPoolExecutor(
+            2,
+            2,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue[Runnable](queueSize),
+            SocketStateTransport.newDaemonThreadFactory("XForms state replication"),
+            new RejectedExecutionHandler {
+                def rejectedExecution(runnable: Runnable, executor: ThreadPoolExecutor) =
+                    if (! executor.isShutdown)
+                        Logger.warn("state replication queue is full, dropping replica")
+            }
+        )
+
+    // The store is closed when the web app is destroyed, see XFormsStateStoreFactory
+    lazy val instance: XFormsStateStore = {
+        val propertySet = Properties.instance.getPropertySet
+
+        val transport =
+            Option(propertySet.getString(TransportProperty)) map (_.trim) filter (_.nonEmpty) match {
+                case Some(className) ⇒ Class.forName(className).newInstance.asInstanceOf[StateTransport]
+                case None            ⇒ new SocketStateTransport
+            }
+
+        val nodeId =
+            Option(propertySet.getString(NodeIdProperty)) map (_.trim) filter (_.nonEmpty) getOrElse
+                InetAddress.getLocalHost.getHostName
+
+        new ReplicatedStateStore(
+            nodeId,
+            XFormsStateStoreFactory.storeForName(propertySet.getString(LocalStoreProperty, "ehcache")),
+            LogStateStore.newStateLog(DirectoryProperty, "orbeon-xforms-state-replicas-" + nodeId),
+            transport,
+            Option(propertySet.getNmtokens(PeersProperty)).toList flatMap (_.asScala) filterNot (_ == nodeId),
+            newExecutor(propertySet.getInteger(QueueSizeProperty, 1000).intValue),
+            propertySet.getInteger(SocketStateTransport.TimeoutProperty, SocketStateTransport.DefaultTimeoutMs).intValue
+        )
+    }
+
+    // Replicas of dynamic states are prefixed with their sequence number
+    private def withSequence(sequence: Long, dynamicState: Array[Byte]) =
+        ByteBuffer.allocate(8 + dynamicState.length).putLong(sequence).put(dynamicState).array
+
+    private def sequence(record: Array[Byte]) =
+        ByteBuffer.wrap(record).getLong
+
+    private def decodeDynamicState(record: Array[Byte]) =
+        fromByteArray(record.drop(8))(DynamicStateRecordFormat)
+
+    private def dynamicStateKey(documentUUID: String, isInitialState: Boolean) =
+        documentUUID + (if (isInitialState) "-I" else "-C")
+}
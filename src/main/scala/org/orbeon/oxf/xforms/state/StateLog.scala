@@ -0,0 +1,367 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import java.io.{RandomAccessFile, File}
+import java.nio.channels.{FileLock, FileChannel}
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.CRC32
+import java.util.{TimerTask, Timer}
+import collection.JavaConverters._
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.util.LoggerFactory
+import org.orbeon.oxf.util.ScalaUtils._
+
+/**
+ * Append-only key/value log made of memory-mapped segment files.
+ *
+ * - Each put appends a record to the active segment. Records are never modified in place.
+ * - An in-memory index maps each key to its latest record. Reads go straight to the mapped segment.
+ * - Records carry a CRC, which is checked on every read and during recovery.
+ * - Entries not accessed within `timeToIdle` milliseconds expire.
+ * - `compact()` drops expired entries and rewrites the live records of mostly dead segments to the active segment,
+ *   after which the old segment files are deleted.
+ * - When opening an existing directory, segments are scanned and the index rebuilt. Scanning a segment stops at the
+ *   first record which is incomplete or fails its CRC check. New records always go to a new segment.
+ *
+ * Segments are not forced to disk, so records survive a process restart but not necessarily an OS crash.
+ *
+ * After `close()`, the log is empty and rejects puts. The segments are unmapped when their buffers are collected, as
+ * unmapping them explicitly would crash readers still holding an entry.
+ */
+class StateLog(val directory: File, segmentSize: Int, timeToIdle: Long) {
+
+    import StateLog._
+
+    private class Segment(val id: Int, val file: File, val buffer: MappedByteBuffer) {
+        // End of the records in this segment
+        @volatile var used = 0
+        // Bytes of records which are expired or overwritten
+        val dead = new AtomicLong
+
+        def live = used - dead.get
+    }
+
+    private class Entry(val segment: Segment, val offset: Int, val length: Int, accessed: Long) {
+        @volatile var lastAccess = accessed
+    }
+
+    private val index    = new ConcurrentHashMap[String, Entry]
+    private val segments = new ConcurrentHashMap[Int, Segment]
+
+    @volatile private var closed = false
+    @volatile private var compactionTimer: Option[Timer] = None
+
+    directory.mkdirs()
+
+    // Prevent two JVMs from writing to the same directory
+    private val lock: FileLock =
+        new RandomAccessFile(new File(directory, "lock"), "rw").getChannel.tryLock() match {
+            case null     ⇒ throw new OXFException("State log directory is in use by another process: " + directory.getAbsolutePath)
+            case fileLock ⇒ fileLock
+        }
+
+    recover()
+
+    @volatile private var active = newSegment(nextSegmentId, segmentSize)
+
+    // Return the value for the given key, if present and not expired
+    def get(key: String): Option[Array[Byte]] =
+        Option(index.get(key)) filterNot (_ ⇒ closed) flatMap { entry ⇒
+            val now = System.currentTimeMillis
+            if (isExpired(entry, now)) {
+                remove(key, entry)
+                None
+            } else {
+                entry.lastAccess = now
+                readValue(key, entry)
+            }
+        }
+
+    // Whether the key is present and not expired, updating its last access time
+    def touch(key: String): Boolean =
+        Option(index.get(key)) filterNot (_ ⇒ closed) exists { entry ⇒
+            val now = System.currentTimeMillis
+            ! isExpired(entry, now) && { entry.lastAccess = now; true }
+        }
+
+    // Append a record for the given key, replacing any previous value
+    def put(key: String, value: Array[Byte]): Unit =
+        Option(index.put(key, append(key, value, System.currentTimeMillis))) foreach markDead
+
+    def size = index.size
+
+    // Total size of the segments in bytes, including dead records
+    def diskSize = segments.values.asScala map (_.used.toLong) sum
+
+    // Drop expired entries and rewrite segments whose proportion of live records is below the threshold
+    def compact(threshold: Double = 0.5): Unit = {
+
+        val now = System.currentTimeMillis
+
+        for ((key, entry) ← index.asScala.toList if isExpired(entry, now))
+            remove(key, entry)
+
+        val current = active
+        val candidates =
+            segments.values.asScala filter
+                (segment ⇒ (segment ne current) && segment.live < segment.used * threshold) toSet
+
+        if (candidates.nonEmpty) {
+            // Move live records to the active segment
+            for {
+                (key, entry) ← index.asScala.toList
+                if candidates(entry.segment)
+                value        ← readValue(key, entry)
+            } {
+                val moved = append(key, value, entry.lastAccess)
+                if (! index.replace(key, entry, moved))
+                    markDead(moved) // the key was overwritten in the meantime
+            }
+
+            // Readers might still hold entries in the old segments but their mappings remain valid after deletion
+            for (segment ← candidates) {
+                segments.remove(segment.id)
+                if (! segment.file.delete())
+                    segment.file.deleteOnExit()
+            }
+
+            debug("compacted " + candidates.size + " segments, " + index.size + " live entries")
+        }
+    }
+
+    // Run compaction at the given interval in a background thread, until the log is closed
+    def startCompaction(interval: Long): Unit = synchronized {
+        compactionTimer foreach (_.cancel())
+        val timer = new Timer("XForms state log compaction", true)
+        timer.schedule(new TimerTask {
+            def run() =
+                try compact()
+                catch { case t: Throwable ⇒ Logger.error("error while compacting state log", t) }
+        }, interval, interval)
+        compactionTimer = Some(timer)
+    }
+
+    // Stop compaction, drop the references to the segments, and release the directory
+    def close(): Unit = synchronized {
+        if (! closed) {
+            closed = true
+            compactionTimer foreach (_.cancel())
+            compactionTimer = None
+            index.clear()
+            segments.clear()
+            active = null
+            runQuietly(lock.channel.close())
+        }
+    }
+
+    private def isExpired(entry: Entry, now: Long) =
+        timeToIdle > 0 && now - entry.lastAccess > timeToIdle
+
+    private def remove(key: String, entry: Entry) =
+        if (index.remove(key, entry))
+            markDead(entry)
+
+    private def markDead(entry: Entry) =
+        entry.segment.dead.addAndGet(entry.length)
+
+    private def append(key: String, value: Array[Byte], timestamp: Long): Entry = {
+
+        val record = encodeRecord(key, value, timestamp)
+
+        synchronized {
+            if (closed)
+                throw new OXFException("State log is closed: " + directory.getAbsolutePath)
+
+            if (active.buffer.capacity - active.used < record.length)
+                active = newSegment(active.id + 1, record.length max segmentSize)
+
+            val segment = active
+            val offset  = segment.used
+
+            val buffer = segment.buffer.duplicate()
+            buffer.position(offset)
+            buffer.put(record)
+            segment.used = offset + record.length
+
+            new Entry(segment, offset, record.length, timestamp)
+        }
+    }
+
+    private def readValue(key: String, entry: Entry): Option[Array[Byte]] = {
+        val buffer = entry.segment.buffer.duplicate()
+        buffer.position(entry.offset)
+        buffer.limit(entry.offset + entry.length)
+        decodeRecord(buffer) match {
+            case Some(Record(`key`, value, _)) ⇒ Some(value)
+            case _ ⇒
+                Logger.error("corrupted record for key " + key + " in " + entry.segment.file.getName)
+                remove(key, entry)
+                None
+        }
+    }
+
+    private def newSegment(id: Int, size: Int): Segment = {
+        val file = new File(directory, SegmentPrefix + id + SegmentSuffix)
+        val segment = new Segment(id, file, map(file, size))
+        segments.put(id, segment)
+        segment
+    }
+
+    private def map(file: File, size: Int): MappedByteBuffer =
+        useAndClose(new RandomAccessFile(file, "rw")) { raf ⇒
+            if (raf.length < size)
+                raf.setLength(size)
+            // The mapping remains valid after the file is closed
+            raf.getChannel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length)
+        }
+
+    private def nextSegmentId =
+        (segments.keySet.asScala.toList :+ 0).max + 1
+
+    // Rebuild the index from the existing segments, oldest first
+    private def recover(): Unit = {
+
+        val existing =
+            for {
+                file ← Option(directory.listFiles).toList.flatten
+                name = file.getName
+                if name.startsWith(SegmentPrefix) && name.endsWith(SegmentSuffix)
+                id   ← parseId(name.substring(SegmentPrefix.length, name.length - SegmentSuffix.length))
+            } yield
+                id → file
+
+        val now = System.currentTimeMillis
+
+        for ((id, file) ← existing sortBy (_._1)) {
+            val segment = new Segment(id, file, map(file, 0))
+            segments.put(id, segment)
+
+            val buffer = segment.buffer.duplicate()
+            var done = false
+            while (! done) {
+                val offset = buffer.position
+                decodeRecord(buffer) match {
+                    case Some(Record(key, _, timestamp)) ⇒
+                        val entry = new Entry(segment, offset, buffer.position - offset, timestamp)
+                        segment.used = buffer.position
+                        if (isExpired(entry, now))
+                            markDead(entry)
+                        else
+                            Option(index.put(key, entry)) foreach markDead
+                    case None ⇒
+                        done = true
+                }
+            }
+
+            // Nothing to keep
+            if (segment.live == 0) {
+                segments.remove(id)
+                file.delete()
+            }
+        }
+
+        if (existing.nonEmpty)
+            debug("recovered " + index.size + " entries from " + existing.size + " segments")
+    }
+
+    private def debug(message: String) =
+        if (Logger.isDebugEnabled)
+            Logger.debug(directory.getAbsolutePath + ": " + message)
+}
+
+object StateLog {
+
+    val Logger = LoggerFactory.createLogger(classOf[StateLog])
+
+    private val SegmentPrefix = "segment-"
+    private val SegmentSuffix = ".log"
+
+    // Record layout: magic, CRC, timestamp, key length, key, value length, value
+    // The CRC covers everything after itself
+    private val Magic      = 0x4F585354
+    private val HeaderSize = 4 + 4 + 8 + 4 + 4
+
+    private case class Record(key: String, value: Array[Byte], timestamp: Long)
+
+    private def parseId(s: String) =
+        if (s.nonEmpty && s.forall(_.isDigit)) Some(s.toInt) else None
+
+    private def encodeRecord(key: String, value: Array[Byte], timestamp: Long) = {
+
+        val keyBytes = key.getBytes("UTF-8")
+        val record   = new Array[Byte](HeaderSize + keyBytes.length + value.length)
+
+        val buffer = ByteBuffer.wrap(record)
+        buffer.putInt(Magic)
+        buffer.putInt(0)
+        buffer.putLong(timestamp)
+        buffer.putInt(keyBytes.length)
+        buffer.put(keyBytes)
+        buffer.putInt(value.length)
+        buffer.put(value)
+
+        val crc = new CRC32
+        crc.update(record, 8, record.length - 8)
+        buffer.putInt(4, crc.getValue.toInt)
+
+        record
+    }
+
+    // Decode the record at the buffer's position and move past it, or return None if there is no valid record
+    private def decodeRecord(buffer: ByteBuffer): Option[Record] = {
+
+        val start = buffer.position
+
+        def hasRemaining(length: Int) = length >= 0 && buffer.remaining >= length
+
+        if (! hasRemaining(HeaderSize) || buffer.getInt != Magic)
+            return None
+
+        val crc       = buffer.getInt
+        val timestamp = buffer.getLong
+
+        val keyLength = buffer.getInt
+        if (! hasRemaining(keyLength + 4))
+            return None
+        val keyBytes = new Array[Byte](keyLength)
+        buffer.get(keyBytes)
+
+        val valueLength = buffer.getInt
+        if (! hasRemaining(valueLength))
+            return None
+        val value = new Array[Byte](valueLength)
+        buffer.get(value)
+
+        val checksum = new CRC32
+        val covered  = buffer.duplicate()
+        covered.position(start + 8)
+        covered.limit(buffer.position)
+        checksum.update(toArray(covered))
+
+        if (checksum.getValue.toInt != crc)
+            None
+        else
+            Some(Record(new String(keyBytes, "UTF-8"), value, timestamp))
+    }
+
+    // CRC32.update(ByteBuffer) is not available in Java 6
+    private def toArray(buffer: ByteBuffer) = {
+        val bytes = new Array[Byte](buffer.remaining)
+        buffer.get(bytes)
+        bytes
+    }
+}
@@ -0,0 +1,356 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import java.io.{DataOutputStream, DataInputStream, ByteArrayOutputStream, ByteArrayInputStream, BufferedOutputStream, BufferedInputStream}
+import java.net.{InetAddress, InetSocketAddress, Socket, ServerSocket}
+import java.util.concurrent.{RejectedExecutionException, ArrayBlockingQueue, TimeUnit, ThreadPoolExecutor, ThreadFactory, ConcurrentHashMap}
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.SecureUtils
+import sbinary.Operations._
+import sbinary.{JavaOutput, JavaInput, Input, Output, Format}
+
+// State of one document as shipped between nodes
+// The static state is only included when the receiving node doesn't have it yet.
+case class StateReplica(
+    documentUUID      : String,
+    isInitialState    : Boolean,
+    staticStateDigest : String,
+    staticState       : Option[String],
+    sequence          : Long,
+    dynamicState      : Array[Byte]    // encoded with XFormsProtocols.DynamicStateRecordFormat
+)
+
+object StateReplica {
+
+    // For transports which need to send replicas as bytes
+    // The length of the dynamic state is checked against maxLength before allocating it.
+    class StateReplicaFormat(maxLength: Int) extends Format[StateReplica] {
+
+        import XFormsProtocols._
+
+        def writes(output: Output, replica: StateReplica) = {
+            write(output, replica.documentUUID)
+            write(output, replica.isInitialState)
+            write(output, replica.staticStateDigest)
+            write(output, replica.staticState)
+            write(output, replica.sequence)
+            write(output, replica.dynamicState.length)
+            output.writeAll(replica.dynamicState)
+        }
+
+        def reads(input: Input) =
+            StateReplica(
+                read[String](input),
+                read[Boolean](input),
+                read[String](input),
+                read[Option[String]](input),
+                read[Long](input),
+                {
+                    val length = read[Int](input)
+                    if (length < 0 || length > maxLength)
+                        throw new OXFException("Invalid dynamic state length: " + length)
+                    val array = new Array[Byte](length)
+                    input.readFully(array)
+                    array
+                }
+            )
+    }
+}
+
+// Answer of a node to a replica
+sealed trait ReplicationResult
+case object ReplicaAccepted      extends ReplicationResult
+case object ReplicaStale         extends ReplicationResult // the node has the same or a newer sequence
+case object MissingStaticState   extends ReplicationResult // send again with the static state
+
+// What a node exposes to its peers
+trait StateEndpoint {
+    def receive(replica: StateReplica): ReplicationResult
+    def serve(documentUUID: String, isInitialState: Boolean): Option[StateReplica]
+}
+
+/**
+ * Transport between the nodes of a replicated state store.
+ *
+ * Peers are identified by strings whose meaning is up to the transport, for example host:port. Implementations must
+ * have a no-argument constructor and are expected to throw if a peer can't be reached. fetch is called while a request
+ * waits, so it must return or throw within the given timeout.
+ */
+trait StateTransport {
+    def register(nodeId: String, endpoint: StateEndpoint)
+    def replicate(peer: String, replica: StateReplica): ReplicationResult
+    def fetch(peer: String, documentUUID: String, isInitialState: Boolean, timeoutMs: Int): Option[StateReplica]
+
+    // Stop serving peers and release the transport's threads
+    def close(): Unit = ()
+}
+
+// Transport between nodes running in the same JVM
+class LoopbackStateTransport extends StateTransport {
+
+    private val endpoints = new ConcurrentHashMap[String, StateEndpoint]
+
+    def register(nodeId: String, endpoint: StateEndpoint) =
+        endpoints.put(nodeId, endpoint)
+
+    def unregister(nodeId: String) =
+        endpoints.remove(nodeId)
+
+    def replicate(peer: String, replica: StateReplica) =
+        endpoint(peer).receive(replica)
+
+    def fetch(peer: String, documentUUID: String, isInitialState: Boolean, timeoutMs: Int) =
+        endpoint(peer).serve(documentUUID, isInitialState)
+
+    private def endpoint(peer: String) =
+        Option(endpoints.get(peer)) getOrElse (throw new OXFException("Unknown peer: " + peer))
+}
+
+/**
+ * Transport between nodes over TCP.
+ *
+ * Node ids and peers are host:port, and a node listens on the address and port of its id. Each call opens a
+ * connection, sends one request and reads one answer. Connecting and reading are bounded by the timeout, so an
+ * unresponsive peer can't block replication or a request for longer than that.
+ *
+ * Nodes share a secret. When a peer connects, the node sends it a random challenge, and the request and the answer are
+ * each followed by an HMAC of the challenge and the message, keyed with the secret. A node closes connections whose
+ * request fails the check, and a caller rejects answers which fail it. Messages are not encrypted. Messages longer
+ * than maxLength are rejected before they are read.
+ */
+class SocketStateTransport(timeoutMs: Int, secret: String, maxLength: Int) extends StateTransport {
+
+    import SocketStateTransport._
+    import XFormsProtocols._
+
+    require(secret.nonEmpty, "state replication secret must not be empty")
+
+    def this() =
+        this(
+            SocketStateTransport.timeoutFromProperties,
+            SocketStateTransport.secretFromProperties,
+            SocketStateTransport.maxLengthFromProperties
+        )
+
+    private implicit val replicaFormat = new StateReplica.StateReplicaFormat(maxLength)
+
+    private val secretBytes = secret.getBytes("UTF-8")
+
+    private var serverSocket: Option[ServerSocket] = None
+
+    // Connections from peers are handled by a few threads, and a bounded number wait for them; when both are taken,
+    // further connections are closed right away
+    private lazy val handlers =
+        new ThreadPoolExecutor(
+            HandlerThreads,
+            HandlerThreads,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue[Runnable](HandlerQueueSize),
+            newDaemonThreadFactory("XForms state replication handler")
+        )
+
+    def register(nodeId: String, endpoint: StateEndpoint) = synchronized {
+        val (host, port) = hostPort(nodeId)
+        val socket = new ServerSocket(port, 0, InetAddress.getByName(host))
+        serverSocket = Some(socket)
+        newDaemonThreadFactory("XForms state replication listener").newThread(new Runnable {
+            def run() = accept(socket, endpoint)
+        }).start()
+    }
+
+    override def close() = synchronized {
+        serverSocket foreach (socket ⇒ runQuietly(socket.close()))
+        serverSocket = None
+        handlers.shutdownNow()
+    }
+
+    def replicate(peer: String, replica: StateReplica) =
+        call(peer, timeoutMs, encode { output ⇒ write(output, ReplicateRequest); write(output, replica) }) { answer ⇒
+            read[Int](answer) match {
+                case 0 ⇒ ReplicaAccepted
+                case 1 ⇒ ReplicaStale
+                case 2 ⇒ MissingStaticState
+                case code ⇒ throw new OXFException("Unexpected replication result from " + peer + ": " + code)
+            }
+        }
+
+    def fetch(peer: String, documentUUID: String, isInitialState: Boolean, fetchTimeoutMs: Int) =
+        call(peer, fetchTimeoutMs min timeoutMs, encode { output ⇒
+            write(output, FetchRequest)
+            write(output, documentUUID)
+            write(output, isInitialState)
+        }) { answer ⇒
+            read[Option[StateReplica]](answer)
+        }
+
+    // Encode a request or an answer
+    private def encode(body: Output ⇒ Unit) = {
+        val bytes = new ByteArrayOutputStream
+        body(new JavaOutput(bytes))
+        bytes.toByteArray
+    }
+
+    private def call[T](peer: String, timeoutMs: Int, request: Array[Byte])(body: Input ⇒ T): T =
+        useAndClose(new Socket) { socket ⇒
+            val (host, port) = hostPort(peer)
+            socket.connect(new InetSocketAddress(host, port), timeoutMs)
+            socket.setSoTimeout(timeoutMs)
+            val input  = new DataInputStream(new BufferedInputStream(socket.getInputStream))
+            val output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream))
+
+            val challenge = input.readUTF()
+            writeMessage(output, RequestMessage, challenge, request)
+            val answer = readMessage(input, AnswerMessage, challenge)
+
+            body(new JavaInput(new ByteArrayInputStream(answer)))
+        }
+
+    private def accept(serverSocket: ServerSocket, endpoint: StateEndpoint): Unit =
+        while (! serverSocket.isClosed) {
+            try {
+                val socket = serverSocket.accept()
+                try
+                    handlers.execute(new Runnable {
+                        def run() = handle(socket, endpoint)
+                    })
+                catch {
+                    case e: RejectedExecutionException ⇒
+                        runQuietly(socket.close())
+                        if (! handlers.isShutdown)
+                            ReplicatedStateStore.Logger.warn("too many state replication connections, closing connection from " + socket.getRemoteSocketAddress)
+                }
+            } catch {
+                case e: Exception if ! serverSocket.isClosed ⇒
+                    ReplicatedStateStore.Logger.warn("unable to accept state replication connection", e)
+                case _: Exception ⇒
+            }
+        }
+
+    private def handle(socket: Socket, endpoint: StateEndpoint) =
+        try {
+            useAndClose(socket) { socket ⇒
+                socket.setSoTimeout(timeoutMs)
+                val input  = new DataInputStream(new BufferedInputStream(socket.getInputStream))
+                val output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream))
+
+                val challenge = SecureUtils.randomHexId
+                output.writeUTF(challenge)
+                output.flush()
+
+                val request = new JavaInput(new ByteArrayInputStream(readMessage(input, RequestMessage, challenge)))
+
+                val answer =
+                    read[String](request) match {
+                        case ReplicateRequest ⇒
+                            val result =
+                                endpoint.receive(read[StateReplica](request)) match {
+                                    case ReplicaAccepted    ⇒ 0
+                                    case ReplicaStale       ⇒ 1
+                                    case MissingStaticState ⇒ 2
+                                }
+                            encode(write(_, result))
+                        case FetchRequest ⇒
+                            val documentUUID   = read[String](request)
+                            val isInitialState = read[Boolean](request)
+                            val replicaOpt     = endpoint.serve(documentUUID, isInitialState)
+                            encode(write(_, replicaOpt))
+                        case other ⇒
+                            throw new OXFException("Unexpected state replication request: " + other)
+                    }
+
+                writeMessage(output, AnswerMessage, challenge, answer)
+            }
+        } catch {
+            case e: Exception ⇒ ReplicatedStateStore.Logger.warn("unable to handle state replication request from " + socket.getRemoteSocketAddress, e)
+        }
+
+    // A message is its length, its bytes, and its HMAC
+    private def writeMessage(output: DataOutputStream, kind: String, challenge: String, message: Array[Byte]) = {
+        output.writeInt(message.length)
+        output.write(message)
+        output.writeUTF(hmac(kind, challenge, message))
+        output.flush()
+    }
+
+    private def readMessage(input: DataInputStream, kind: String, challenge: String) = {
+        val length = input.readInt()
+        if (length < 0 || length > maxLength)
+            throw new OXFException("Invalid state replication message length: " + length)
+
+        val message = new Array[Byte](length)
+        input.readFully(message)
+
+        if (! constantTimeEquals(input.readUTF(), hmac(kind, challenge, message)))
+            throw new OXFException("State replication message failed authentication")
+
+        message
+    }
+
+    // The kind prevents an answer from being passed as a request, and the challenge from replaying a message
+    private def hmac(kind: String, challenge: String, message: Array[Byte]) =
+        SecureUtils.hmacBytes(secretBytes, (kind + ":" + challenge + ":").getBytes("UTF-8") ++ message, HmacAlgorithm, "hex")
+}
+
+object SocketStateTransport {
+
+    val TimeoutProperty    = "oxf.xforms.state.store.replicated.timeout"
+    val SecretProperty     = "oxf.xforms.state.store.replicated.secret"
+    val MaxLengthProperty  = "oxf.xforms.state.store.replicated.max-length"
+    val DefaultTimeoutMs   = 2000
+    val DefaultMaxLength   = 16 * 1024 * 1024
+
+    private val HandlerThreads   = 4
+    private val HandlerQueueSize = 16
+    private val HmacAlgorithm    = "SHA256"
+
+    private val ReplicateRequest = "replicate"
+    private val FetchRequest     = "fetch"
+
+    private val RequestMessage   = "request"
+    private val AnswerMessage    = "answer"
+
+    // Arguments of the no-argument constructor
+    private def timeoutFromProperties =
+        Properties.instance.getPropertySet.getInteger(TimeoutProperty, DefaultTimeoutMs).intValue
+
+    private def secretFromProperties =
+        Option(Properties.instance.getPropertySet.getString(SecretProperty)) map (_.trim) filter (_.nonEmpty) getOrElse
+            (throw new OXFException("Property " + SecretProperty + " must be set to use the replicated state store"))
+
+    private def maxLengthFromProperties =
+        Properties.instance.getPropertySet.getInteger(MaxLengthProperty, DefaultMaxLength).intValue
+
+    def hostPort(nodeId: String) = {
+        val index = nodeId.lastIndexOf(':')
+        if (index == -1)
+            throw new OXFException("State replication node id must be host:port: " + nodeId)
+        (nodeId.substring(0, index), nodeId.substring(index + 1).toInt)
+    }
+
+    def newDaemonThreadFactory(name: String) = new ThreadFactory {
+        def newThread(runnable: Runnable) = {
+            val thread = new Thread(runnable, name)
+            thread.setDaemon(true)
+            thread
+        }
+    }
+
+    // Compare without stopping at the first difference, so the time taken doesn't tell how much of an HMAC is right
+    private def constantTimeEquals(a: String, b: String) =
+        a.length == b.length && (a zip b).foldLeft(0)((result, pair) ⇒ result | (pair._1 ^ pair._2)) == 0
+}
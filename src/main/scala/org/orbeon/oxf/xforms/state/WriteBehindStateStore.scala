@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import java.util.concurrent.{ThreadFactory, Executors, ConcurrentHashMap, Executor}
+import org.orbeon.oxf.pipeline.api.ExternalContext
+import org.orbeon.oxf.util.LoggerFactory
+
+/**
+ * State store which writes states to another store in the background.
+ *
+ * - storeState only records the snapshot, which is immutable, and schedules a write. The request doesn't wait for the
+ *   underlying store.
+ * - Consecutive states of a document which are not written yet are coalesced: only the last one is written.
+ * - findState returns states which are not written yet, so a document is never restored from an older state.
+ *
+ * The executor must run tasks in order, so that the initial state of a document is written before its current state.
+ */
+class WriteBehindStateStore(underlying: XFormsStateStore, executor: Executor) extends XFormsStateStore {
+
+    import WriteBehindStateStore._
+
+    private case class Pending(snapshot: StateSnapshot, session: ExternalContext.Session)
+
+    // States not written yet, by dynamic state key
+    private val pending = new ConcurrentHashMap[String, Pending]
+
+    def storeState(snapshot: StateSnapshot, session: ExternalContext.Session) = {
+        val key = dynamicStateKey(snapshot.documentUUID, snapshot.isInitialState)
+        // If there was already a pending state, its write is scheduled and will pick this one instead
+        if (pending.put(key, Pending(snapshot, session)) eq null)
+            scheduleWrite(key)
+    }
+
+    def findState(session: ExternalContext.Session, documentUUID: String, isInitialState: Boolean): XFormsState = {
+
+        def pendingState(isInitialState: Boolean) =
+            Option(pending.get(dynamicStateKey(documentUUID, isInitialState))) map (_.snapshot.xformsState)
+
+        // Like the other stores, return the current state unless the initial state is requested or there is no current
+        // state. The initial state is written first, so a pending initial state means there is no current state yet.
+        val pendingOpt =
+            if (isInitialState)
+                pendingState(true)
+            else
+                pendingState(false) orElse pendingState(true)
+
+        pendingOpt getOrElse underlying.findState(session, documentUUID, isInitialState)
+    }
+
+    override def close() = underlying.close()
+
+    def getMaxSize = underlying.getMaxSize
+    def getCurrentSize = underlying.getCurrentSize
+
+    def findStateCombined(staticStateDigest: String, dynamicStateUUID: String) =
+        underlying.findStateCombined(staticStateDigest, dynamicStateUUID)
+
+    def addStateCombined(staticStateDigest: String, dynamicStateUUID: String, xformsState: XFormsState, sessionId: String) =
+        underlying.addStateCombined(staticStateDigest, dynamicStateUUID, xformsState, sessionId)
+
+    // Number of states not written yet
+    def pendingCount = pending.size
+
+    private def scheduleWrite(key: String): Unit =
+        executor.execute(new Runnable {
+            def run() = write(key)
+        })
+
+    private def write(key: String): Unit = {
+        val toWrite = pending.get(key)
+        if (toWrite ne null) {
+            try underlying.storeState(toWrite.snapshot, toWrite.session)
+            catch {
+                case t: Throwable ⇒ Logger.error("unable to write state for document " + toWrite.snapshot.documentUUID, t)
+            }
+
+            // Keep the state visible until written, and write again if a newer state came in the meanwhile
+            if (! pending.remove(key, toWrite))
+                scheduleWrite(key)
+        }
+    }
+}
+
+object WriteBehindStateStore {
+
+    val Logger = LoggerFactory.createLogger(classOf[WriteBehindStateStore])
+
+    // A single thread keeps the writes in order
+    private lazy val executor = Executors.newSingleThreadExecutor(new ThreadFactory {
+        def newThread(runnable: Runnable) = {
+            val thread = new Thread(runnable, "XForms state write-behind")
+            thread.setDaemon(true)
+            thread
+        }
+    })
+
+    def apply(underlying: XFormsStateStore) = new WriteBehindStateStore(underlying, executor)
+
+    private def dynamicStateKey(documentUUID: String, isInitialState: Boolean) =
+        documentUUID + (if (isInitialState) "-I" else "-C")
+}
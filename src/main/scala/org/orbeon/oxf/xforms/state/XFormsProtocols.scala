@@ -61,6 +61,63 @@ object XFormsProtocols extends StandardTypes with StandardPrimitives with JavaLo
     implicit object DynamicStateFormat extends SerializableFormat[DynamicState]
     implicit object SAXStoreFormat extends SerializableFormat[SAXStore]
 
+    // Write the dynamic state field by field
+    // NOTE: Not implicit, as DynamicStateFormat above uses Java serialization
+    object DynamicStateRecordFormat extends Format[DynamicState] {
+
+        private def writeBytes(output: Output, bytes: Seq[Byte]) = {
+            val array = bytes.toArray
+            write(output, array.length)
+            output.writeAll(array)
+        }
+
+        private def readBytes(input: Input): Seq[Byte] = {
+            val array = new Array[Byte](read[Int](input))
+            input.readFully(array)
+            array.toSeq
+        }
+
+        def writes(output: Output, state: DynamicState) = {
+            write(output, state.uuid)
+            write(output, state.sequence)
+            write(output, state.deploymentType)
+            write(output, state.requestContextPath)
+            write(output, state.requestPath)
+            write(output, state.requestHeaders)
+            write(output, state.requestParameters)
+            write(output, state.containerType)
+            write(output, state.containerNamespace)
+            writeBytes(output, state.pathMatchers)
+            write(output, state.focusedControl)
+            writeBytes(output, state.pendingUploads)
+            write(output, state.annotatedTemplate.isDefined)
+            state.annotatedTemplate foreach (writeBytes(output, _))
+            writeBytes(output, state.lastAjaxResponse)
+            writeBytes(output, state.instances)
+            writeBytes(output, state.controls)
+        }
+
+        def reads(input: Input) =
+            DynamicState(
+                read[String](input),
+                read[Long](input),
+                read[Option[String]](input),
+                read[Option[String]](input),
+                read[Option[String]](input),
+                read[List[(String, List[String])]](input),
+                read[List[(String, List[String])]](input),
+                read[Option[String]](input),
+                read[Option[String]](input),
+                readBytes(input),
+                read[Option[String]](input),
+                readBytes(input),
+                if (read[Boolean](input)) Some(readBytes(input)) else None,
+                readBytes(input),
+                readBytes(input),
+                readBytes(input)
+            )
+    }
+
     implicit object Dom4jFormat extends Format[Document] {
         def writes(output: Output, document: Document) = {
             val identity = TransformerUtils.getXMLIdentityTransformer
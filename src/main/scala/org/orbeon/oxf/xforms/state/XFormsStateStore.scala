@@ -18,13 +18,46 @@ import org.orbeon.oxf.pipeline.api.ExternalContext
 
 trait XFormsStateStore {
 
-    def storeDocumentState(containingDocument: XFormsContainingDocument, session: ExternalContext.Session, isInitialState: Boolean)
+    def storeDocumentState(containingDocument: XFormsContainingDocument, session: ExternalContext.Session, isInitialState: Boolean): Unit =
+        storeState(StateSnapshot(containingDocument, isInitialState), session)
+
+    // Store a state which might have been taken earlier
+    def storeState(snapshot: StateSnapshot, session: ExternalContext.Session)
     def findState(session: ExternalContext.Session, documentUUID: String, isInitialState: Boolean): XFormsState
 
     def getMaxSize: Long
     def getCurrentSize: Long
 
+    // Release the resources held by the store, when the web app is destroyed
+    def close(): Unit = ()
+
     // For unit tests
     def addStateCombined(staticStateUUID: String, dynamicStateUUID: String, xformsState: XFormsState, sessionId: String)
     def findStateCombined(staticStateUUID: String, dynamicStateUUID: String): XFormsState
-}
\ No newline at end of file
+}
+
+// Immutable state of a document at a given time, which stores can write later
+case class StateSnapshot(
+    documentUUID      : String,
+    isInitialState    : Boolean,
+    staticStateDigest : String,
+    staticState       : String,
+    dynamicState      : DynamicState
+) {
+    def xformsState = XFormsState(Some(staticStateDigest), staticState, dynamicState)
+}
+
+object StateSnapshot {
+    def apply(document: XFormsContainingDocument, isInitialState: Boolean): StateSnapshot = {
+
+        assert(document.getStaticState.isServerStateHandling)
+
+        StateSnapshot(
+            document.getUUID,
+            isInitialState,
+            document.getStaticState.digest,
+            document.getStaticState.encodedState,
+            DynamicState(document)
+        )
+    }
+}
@@ -13,10 +13,50 @@
  */
 package org.orbeon.oxf.xforms.state
 
+import java.util.concurrent.atomic.AtomicBoolean
 import org.orbeon.oxf.pipeline.api.ExternalContext
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.webapp.WebAppListener
 
 
 object XFormsStateStoreFactory {
-    // Use Ehcache state store
-    def instance(externalContext: ExternalContext): XFormsStateStore = EhcacheStateStore
+    private val StoreProperty       = "oxf.xforms.state.store"
+    private val WriteBehindProperty = "oxf.xforms.state.store.write-behind"
+
+    // Use the Ehcache state store unless another store is configured
+    private lazy val store: XFormsStateStore = {
+        val propertySet = Properties.instance.getPropertySet
+
+        val configured =
+            propertySet.getString(StoreProperty, "ehcache") match {
+                case "replicated" ⇒ ReplicatedStateStore.instance
+                case other        ⇒ storeForName(other)
+            }
+
+        if (propertySet.getBoolean(WriteBehindProperty, false))
+            WriteBehindStateStore(configured)
+        else
+            configured
+    }
+
+    // Local stores
+    def storeForName(name: String): XFormsStateStore = name match {
+        case "log" ⇒ LogStateStore
+        case _     ⇒ EhcacheStateStore
+    }
+
+    private val closeRegistered = new AtomicBoolean(false)
+
+    // Close the store when the web app is destroyed, so that its threads and files are released
+    def instance(externalContext: ExternalContext): XFormsStateStore = {
+        if (! closeRegistered.get)
+            Option(externalContext) flatMap (e ⇒ Option(e.getWebAppContext)) foreach { webAppContext ⇒
+                if (closeRegistered.compareAndSet(false, true))
+                    webAppContext.addListener(new WebAppListener {
+                        def webAppDestroyed() = store.close()
+                    })
+            }
+
+        store
+    }
 }
\ No newline at end of file
@@ -93,18 +93,17 @@ case class AbstractBinding(
         e.elements.get(0).asInstanceOf[Element]
     }
 
-    private lazy val transformConfig =
+    private lazy val transform =
         for {
             transformQName ← transformQNameOption
             templateRoot ← templateRootOption
         } yield
-            Transform.createTransformConfig(transformQName, templateRoot, lastModified)
+            Transform.createTransform(transformQName, templateRoot, lastModified)
 
-    // A transform cannot be reused, so this creates a new one when called, based on the config
-    def newTransform(boundElement: Element) = transformConfig map {
-        case (pipelineConfig, domGenerator) ⇒
-            // Run the transformation
-            val generatedDocument = Transform.transformBoundElement(pipelineConfig, domGenerator, boundElement)
+    // Return a new document with the transformation of the bound element, if there is a transform
+    def newTransform(boundElement: Element) = transform map {
+        runTransform ⇒
+            val generatedDocument = runTransform(boundElement)
 
             // Repackage the result
             val generatedRootElement = generatedDocument.getRootElement.detach.asInstanceOf[Element]
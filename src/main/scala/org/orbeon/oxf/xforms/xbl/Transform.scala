@@ -13,18 +13,131 @@
  */
 package org.orbeon.oxf.xforms.xbl
 
+import java.lang.{Boolean ⇒ JBoolean}
+import javax.xml.transform.Templates
 import org.dom4j.{Document, Element, QName}
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
+import org.orbeon.oxf.common.OrbeonLocationException
 import org.orbeon.oxf.pipeline.InitUtils.withPipelineContext
+import org.orbeon.oxf.pipeline.api.{FunctionLibrary ⇒ PipelineFunctionLibrary}
 import org.orbeon.oxf.processor.DOMSerializer
 import org.orbeon.oxf.processor.generator.DOMGenerator
 import org.orbeon.oxf.processor.pipeline.{PipelineConfig, PipelineProcessor, PipelineReader}
-import org.orbeon.oxf.util.PipelineUtils
-import org.orbeon.oxf.xml.XMLConstants
-import org.orbeon.oxf.xml.dom4j.Dom4jUtils
+import org.orbeon.oxf.processor.transformer.TransformerURIResolver
+import org.orbeon.oxf.processor.transformer.xslt.StringErrorListener
+import org.orbeon.oxf.util.{LoggerFactory, NumberUtils, PipelineUtils, XPath}
+import org.orbeon.oxf.xml.dom4j.{Dom4jUtils, ExtendedLocationData, LocationData, LocationDocumentResult}
+import org.orbeon.oxf.xml.{TransformerUtils, XMLConstants, XMLParsing}
+import org.orbeon.saxon.functions.FunctionLibraryList
+import org.orbeon.saxon.{FeatureKeys, TransformerFactoryImpl}
 import org.orbeon.scaxon.XML
+import scala.collection.JavaConverters._
+import scala.util.control.NonFatal
 
 object Transform {
 
+    private val Logger = LoggerFactory.createLogger(getClass)
+
+    // XSLT processors which can run directly from compiled templates, and whether they allow Java extension functions
+    private val XSLTProcessors = Map(
+        XMLConstants.XSLT_PROCESSOR_QNAME        → false,
+        XMLConstants.UNSAFE_XSLT_PROCESSOR_QNAME → true
+    )
+
+    // Outputs of bound element transformations, by digest of the transform and of the bound element
+    private lazy val outputCache = ObjectCache.instance("xforms.cache.xbl-transforms", 200)
+
+    // Create a reusable transformation of bound elements
+    //
+    // With oxf:xslt and oxf:unsafe-xslt, the transform is compiled once and applied directly to each bound element.
+    // Other processors run in a pipeline. In both cases, an identical bound element is only transformed once as long
+    // as its output remains in cache.
+    def createTransform(transformQName: QName, transform: Element, lastModified: Long): Element ⇒ Document = {
+
+        val run: Document ⇒ Document =
+            XSLTProcessors.get(transformQName) match {
+                case Some(allowExternalFunctions) ⇒
+                    val templates = compileXSLT(transform, allowExternalFunctions)
+                    transformWithTemplates(templates, _)
+                case None ⇒
+                    val (pipelineConfig, domGenerator) = createTransformConfig(transformQName, transform, lastModified)
+                    transformBoundElement(pipelineConfig, domGenerator, _)
+            }
+
+        // The transform is part of the key, as bindings from different sources can have the same name
+        val transformKey =
+            transformQName.getNamespaceURI + '|' + transformQName.getName + '|' + digest(Dom4jUtils.createDocumentCopyParentNamespaces(transform))
+
+        boundElement ⇒ {
+            val data = Dom4jUtils.createDocumentCopyParentNamespaces(boundElement)
+            val key  = new InternalCacheKey("XBL transform", transformKey + '|' + digest(data))
+
+            val output =
+                Option(outputCache.findValid(key, lastModified).asInstanceOf[Document]) getOrElse {
+                    val newOutput = run(data)
+                    outputCache.add(key, lastModified, newOutput)
+                    newOutput
+                }
+
+            // Callers modify the result
+            Dom4jUtils.createDocumentCopyElement(output.getRootElement)
+        }
+    }
+
+    private def digest(document: Document) =
+        NumberUtils.toHexString(Dom4jUtils.getDigest(document))
+
+    // Compile an XSLT transform with the same configuration as the XSLT processor
+    private def compileXSLT(transform: Element, allowExternalFunctions: Boolean): Templates = {
+
+        val source = Dom4jUtils.getDocumentSource(Dom4jUtils.createDocumentCopyParentNamespaces(transform))
+        source.setSystemId(Dom4jUtils.makeSystemId(transform))
+
+        val attributes  = Map[String, JBoolean](FeatureKeys.ALLOW_EXTERNAL_FUNCTIONS → allowExternalFunctions).asJava
+        val uriResolver = new TransformerURIResolver(XMLParsing.ParserConfiguration.PLAIN)
+        val errorListener = new StringErrorListener(Logger)
+        try
+            TransformerUtils.getTemplates(source, classOf[TransformerFactoryImpl].getName, attributes, newXSLTConfiguration, errorListener, uriResolver)
+        catch {
+            case NonFatal(t) ⇒
+                val description = if (errorListener.hasErrors) errorListener.getMessages else "compiling XBL transform"
+                throw OrbeonLocationException.wrapException(t, new ExtendedLocationData(locationData(transform), description))
+        } finally
+            uriResolver.destroy()
+    }
+
+    // Configuration which adds the Orbeon pipeline function library, like the XSLT processor does
+    private def newXSLTConfiguration = {
+        val configuration = XPath.newConfiguration
+        val functionLibraryList = new FunctionLibraryList
+        functionLibraryList.addFunctionLibrary(configuration.getExtensionBinder("java"))
+        functionLibraryList.addFunctionLibrary(PipelineFunctionLibrary.instance)
+        configuration.setExtensionBinder("java", functionLibraryList)
+        configuration
+    }
+
+    private def transformWithTemplates(templates: Templates, data: Document) = {
+        val transformer = templates.newTransformer
+        val uriResolver = new TransformerURIResolver(XMLParsing.ParserConfiguration.PLAIN)
+        transformer.setURIResolver(uriResolver)
+
+        val result = new LocationDocumentResult
+        try
+            transformer.transform(Dom4jUtils.getDocumentSource(data), result)
+        catch {
+            case NonFatal(t) ⇒
+                throw OrbeonLocationException.wrapException(t, new ExtendedLocationData(locationData(data.getRootElement), "running XBL transform"))
+        } finally
+            uriResolver.destroy()
+
+        result.getDocument
+    }
+
+    private def locationData(element: Element) = element.getData match {
+        case locationData: LocationData ⇒ locationData
+        case _                          ⇒ null
+    }
+
     // Create a transformation pipeline configuration for processing XBL templates
     def createTransformConfig(transformQName: QName, transform: Element, lastModified: Long) = {
         // Create reusable pipeline config
@@ -63,17 +176,17 @@ object Transform {
         (pipelineConfig, domGenerator)
     }
 
-    // Run a transformation created above on a bound element
-    def transformBoundElement(pipelineConfig: PipelineConfig, domGeneratorConfig: DOMGenerator, boundElement: Element) = {
+    // Run a transformation created above on a copy of a bound element
+    def transformBoundElement(pipelineConfig: PipelineConfig, domGeneratorConfig: DOMGenerator, data: Document) = {
         val pipeline = new PipelineProcessor(pipelineConfig)
         PipelineUtils.connect(domGeneratorConfig, "data", pipeline, "transform")
 
         // Connect the bound element to the processor data input
         val domGeneratorData = PipelineUtils.createDOMGenerator(
-            Dom4jUtils.createDocumentCopyParentNamespaces(boundElement),
+            data,
             "xbl-transform-data",
             DOMGenerator.ZeroValidity,
-            Dom4jUtils.makeSystemId(boundElement)
+            Dom4jUtils.makeSystemId(data.getRootElement)
         )
         PipelineUtils.connect(domGeneratorData, "data", pipeline, "data")
 
@@ -0,0 +1,30 @@
+ALTER TABLE orbeon_form_data ADD id INT NOT NULL GENERATED ALWAYS AS IDENTITY;
+CALL SYSPROC.ADMIN_CMD('REORG TABLE orbeon_form_data');
+CREATE UNIQUE INDEX orbeon_form_data_id ON orbeon_form_data (id);
+
+CREATE TABLE orbeon_i_current (
+    data_id             INT          NOT NULL PRIMARY KEY,
+    document_id         VARCHAR(255) NOT NULL,
+    created             TIMESTAMP,
+    last_modified       TIMESTAMP    NOT NULL,
+    username            VARCHAR(255),
+    groupname           VARCHAR(255),
+    app                 VARCHAR(255) NOT NULL,
+    form                VARCHAR(255) NOT NULL,
+    draft               CHARACTER(1) NOT NULL
+);
+
+CREATE TABLE orbeon_i_control_text (
+    data_id             INT          NOT NULL,
+    username            VARCHAR(255),
+    app                 VARCHAR(255) NOT NULL,
+    form                VARCHAR(255) NOT NULL,
+    control             VARCHAR(255) NOT NULL,
+    pos                 INT          NOT NULL,
+    val                 VARCHAR(255)
+);
+
+CREATE INDEX orbeon_i_current_app_form   ON orbeon_i_current      (app, form, last_modified, data_id);
+CREATE INDEX orbeon_i_current_document   ON orbeon_i_current      (app, form, document_id);
+CREATE INDEX orbeon_i_control_text_val   ON orbeon_i_control_text (app, form, control, val);
+CREATE INDEX orbeon_i_control_text_data  ON orbeon_i_control_text (data_id, control, pos);
@@ -0,0 +1,29 @@
+ALTER TABLE orbeon_form_data ADD id INT NOT NULL AUTO_INCREMENT PRIMARY KEY FIRST;
+
+CREATE TABLE orbeon_i_current (
+    data_id            INT                                                               NOT NULL,
+    document_id        VARCHAR(255)           CHARACTER SET utf8 COLLATE utf8_bin        NOT NULL,
+    created            TIMESTAMP(6),
+    last_modified      TIMESTAMP(6)                                                      NOT NULL,
+    username           VARCHAR(255)           CHARACTER SET utf8 COLLATE utf8_bin,
+    groupname          VARCHAR(255)           CHARACTER SET utf8 COLLATE utf8_bin,
+    app                VARCHAR(255)           CHARACTER SET utf8 COLLATE utf8_bin        NOT NULL,
+    form               VARCHAR(255)           CHARACTER SET utf8 COLLATE utf8_bin        NOT NULL,
+    draft              CHAR(1)                                   COLLATE utf8_bin        NOT NULL,
+    PRIMARY KEY (data_id)
+)   ENGINE = InnoDB;
+
+CREATE TABLE orbeon_i_control_text (
+    data_id            INT                                                               NOT NULL,
+    username           VARCHAR(255)           CHARACTER SET utf8 COLLATE utf8_bin,
+    app                VARCHAR(255)           CHARACTER SET utf8 COLLATE utf8_bin        NOT NULL,
+    form               VARCHAR(255)           CHARACTER SET utf8 COLLATE utf8_bin        NOT NULL,
+    control            VARCHAR(255)           CHARACTER SET utf8 COLLATE utf8_bin        NOT NULL,
+    pos                INT                                                               NOT NULL,
+    val                TEXT                   CHARACTER SET utf8 COLLATE utf8_unicode_ci
+)   ENGINE = InnoDB;
+
+CREATE INDEX orbeon_i_current_app_form   ON orbeon_i_current      (app, form, last_modified, data_id);
+CREATE INDEX orbeon_i_current_document   ON orbeon_i_current      (app, form, document_id);
+CREATE INDEX orbeon_i_control_text_val   ON orbeon_i_control_text (app, form, control, val(255));
+CREATE INDEX orbeon_i_control_text_data  ON orbeon_i_control_text (data_id, control, pos);
@@ -0,0 +1,44 @@
+ALTER TABLE orbeon_form_data ADD id NUMBER;
+
+CREATE SEQUENCE orbeon_form_data_id_seq;
+UPDATE orbeon_form_data SET id = orbeon_form_data_id_seq.NEXTVAL;
+ALTER TABLE orbeon_form_data MODIFY id NOT NULL;
+CREATE UNIQUE INDEX orbeon_form_data_id ON orbeon_form_data (id);
+
+CREATE TABLE orbeon_i_current (
+    data_id            NUMBER          NOT NULL,
+    document_id        VARCHAR2(255)   NOT NULL,
+    created            TIMESTAMP,
+    last_modified      TIMESTAMP       NOT NULL,
+    username           VARCHAR2(255),
+    groupname          VARCHAR2(255),
+    app                VARCHAR2(255)   NOT NULL,
+    form               VARCHAR2(255)   NOT NULL,
+    draft              CHAR(1)         NOT NULL,
+    CONSTRAINT orbeon_i_current_pk PRIMARY KEY (data_id)
+);
+
+CREATE TABLE orbeon_i_control_text (
+    data_id            NUMBER          NOT NULL,
+    username           VARCHAR2(255),
+    app                VARCHAR2(255)   NOT NULL,
+    form               VARCHAR2(255)   NOT NULL,
+    control            VARCHAR2(255)   NOT NULL,
+    pos                INT             NOT NULL,
+    val                VARCHAR2(255 CHAR)
+);
+
+CREATE INDEX orbeon_i_current_app_form   ON orbeon_i_current      (app, form, last_modified, data_id);
+CREATE INDEX orbeon_i_current_document   ON orbeon_i_current      (app, form, document_id);
+CREATE INDEX orbeon_i_control_text_val   ON orbeon_i_control_text (app, form, control, val);
+CREATE INDEX orbeon_i_control_text_data  ON orbeon_i_control_text (data_id, control, pos);
+
+CREATE OR REPLACE TRIGGER orbeon_form_data_id
+         BEFORE INSERT ON orbeon_form_data
+FOR EACH ROW
+BEGIN
+    IF :new.id IS NULL THEN
+        SELECT orbeon_form_data_id_seq.NEXTVAL INTO :new.id FROM dual;
+    END IF;
+END;
+/
@@ -23,6 +23,7 @@ CREATE TABLE orbeon_form_definition_attach (
 );
 
 CREATE TABLE orbeon_form_data (
+    id                  SERIAL PRIMARY KEY,
     created             TIMESTAMP,
     last_modified_time  TIMESTAMP,
     last_modified_by    VARCHAR(255),
@@ -52,3 +53,30 @@ CREATE TABLE orbeon_form_data_attach (
     file_name           VARCHAR(255),
     file_content        BYTEA
 );
+
+CREATE TABLE orbeon_i_current (
+    data_id             INT          NOT NULL PRIMARY KEY,
+    document_id         VARCHAR(255) NOT NULL,
+    created             TIMESTAMP,
+    last_modified       TIMESTAMP    NOT NULL,
+    username            VARCHAR(255),
+    groupname           VARCHAR(255),
+    app                 VARCHAR(255) NOT NULL,
+    form                VARCHAR(255) NOT NULL,
+    draft               CHARACTER(1) NOT NULL
+);
+
+CREATE TABLE orbeon_i_control_text (
+    data_id             INT          NOT NULL,
+    username            VARCHAR(255),
+    app                 VARCHAR(255) NOT NULL,
+    form                VARCHAR(255) NOT NULL,
+    control             VARCHAR(255) NOT NULL,
+    pos                 INT          NOT NULL,
+    val                 VARCHAR(255)
+);
+
+CREATE INDEX orbeon_i_current_app_form   ON orbeon_i_current      (app, form, last_modified, data_id);
+CREATE INDEX orbeon_i_current_document   ON orbeon_i_current      (app, form, document_id);
+CREATE INDEX orbeon_i_control_text_val   ON orbeon_i_control_text (app, form, control, val);
+CREATE INDEX orbeon_i_control_text_data  ON orbeon_i_control_text (data_id, control, pos);
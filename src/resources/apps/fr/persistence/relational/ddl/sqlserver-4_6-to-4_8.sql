@@ -0,0 +1,26 @@
+CREATE TABLE orbeon_i_current (
+    data_id            INT           NOT NULL PRIMARY KEY,
+    document_id        NVARCHAR(255) NOT NULL,
+    created            DATETIME,
+    last_modified      DATETIME      NOT NULL,
+    username           NVARCHAR(255),
+    groupname          NVARCHAR(255),
+    app                NVARCHAR(255) NOT NULL,
+    form               NVARCHAR(255) NOT NULL,
+    draft              CHAR(1)       NOT NULL
+);
+
+CREATE TABLE orbeon_i_control_text (
+    data_id            INT           NOT NULL,
+    username           NVARCHAR(255),
+    app                NVARCHAR(255) NOT NULL,
+    form               NVARCHAR(255) NOT NULL,
+    control            NVARCHAR(255) NOT NULL,
+    pos                INT           NOT NULL,
+    val                NVARCHAR(255)
+);
+
+CREATE INDEX orbeon_i_current_app_form   ON orbeon_i_current      (app, form, last_modified, data_id);
+CREATE INDEX orbeon_i_current_document   ON orbeon_i_current      (app, form, document_id);
+CREATE INDEX orbeon_i_control_text_val   ON orbeon_i_control_text (app, form, control, val);
+CREATE INDEX orbeon_i_control_text_data  ON orbeon_i_control_text (data_id, control, pos);
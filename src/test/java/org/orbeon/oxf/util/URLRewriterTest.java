@@ -24,6 +24,7 @@ import org.orbeon.oxf.processor.test.TestExternalContext;
 import org.orbeon.oxf.properties.Properties;
 import org.orbeon.oxf.test.ResourceManagerTestBase;
 
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -419,4 +420,27 @@ public class URLRewriterTest extends ResourceManagerTestBase {
         assertEquals("http://localhost:8080/myapp/a%20b", NetUtils.resolveURI("a b", "http://localhost:8080/myapp/"));
         assertEquals("http://localhost:8080/myapp/a%20b", NetUtils.resolveURI("http://localhost:8080/myapp/a b", null));
     }
+
+    @Test
+    public void testVersionedMatchers() {
+        final List<URLRewriterUtils.PathMatcher> combined = Arrays.asList(
+            new URLRewriterUtils.PathMatcher("/ops/.*\\.png", null, true),
+            new URLRewriterUtils.PathMatcher("/config/.*", null, true)
+        );
+
+        assertTrue(URLRewriterUtils.isVersionedURL("/ops/images/a.png", combined));
+        assertTrue(URLRewriterUtils.isVersionedURL("/config/theme.css", combined));
+        assertFalse(URLRewriterUtils.isVersionedURL("/ops/images/a.png.txt", combined));
+        assertFalse(URLRewriterUtils.isVersionedURL("/apps/config/theme.css", combined));
+
+        // Back references are matched one by one
+        final List<URLRewriterUtils.PathMatcher> oneByOne = Arrays.asList(
+            new URLRewriterUtils.PathMatcher("/config/.*", null, true),
+            new URLRewriterUtils.PathMatcher("/apps/([^/]+)/\\1\\.css", null, true)
+        );
+
+        assertTrue(URLRewriterUtils.isVersionedURL("/apps/foo/foo.css", oneByOne));
+        assertFalse(URLRewriterUtils.isVersionedURL("/apps/foo/bar.css", oneByOne));
+        assertTrue(URLRewriterUtils.isVersionedURL("/config/theme.css", oneByOne));
+    }
 }
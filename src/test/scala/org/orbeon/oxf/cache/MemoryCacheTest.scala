@@ -219,4 +219,35 @@ class MemoryCacheTest extends AssertionsForJUnit {
         assert(range === keysAsInts)
         assert(range === values)
     }
+
+    @Test def testEvictByWeight() {
+        val weigher = new CacheWeigher {
+            def weigh(cacheable: AnyRef) = cacheable.asInstanceOf[String].length
+        }
+        val cache = new MemoryCacheImpl("test", 100, weigher, 10)
+
+        cache.add(Key("o1"), VALIDITY, "aaa")
+        cache.add(Key("o2"), VALIDITY, "bbb")
+        cache.add(Key("o3"), VALIDITY, "ccc")
+        assert(cache.getCurrentSize === 3)
+        assert(cache.getCurrentWeight === 9)
+
+        // Pushes out the least recently used entry
+        cache.add(Key("o4"), VALIDITY, "dd")
+        assert(cache.findValid(Key("o1"), VALIDITY) === null)
+        assert(cache.getCurrentWeight === 8)
+
+        // Re-adding an entry updates its weight
+        cache.add(Key("o2"), VALIDITY, "bbbbbb")
+        assert(cache.findValid(Key("o3"), VALIDITY) === null)
+        assert(cache.getCurrentWeight === 8)
+
+        // An entry heavier than the limit on its own is kept
+        cache.add(Key("o5"), VALIDITY, "e" * 20)
+        assert(cache.getCurrentSize === 1)
+        assert(cache.getCurrentWeight === 20)
+
+        cache.removeAll()
+        assert(cache.getCurrentWeight === 0)
+    }
 }
\ No newline at end of file
@@ -282,5 +282,26 @@ class MigrationTest extends DocumentTestBase with FormBuilderSupport with XMLSup
             DataMigration.migrateDataFrom(DataMigration.migrateDataTo(Data47.root, MigrationJSON), MigrationJSON)
         )
 
+    @Test def migrateLargeRepeats(): Unit = {
+
+        val Iterations = 50000
+        val Migration  = """[{ "path": "section-1/grid-1", "iteration-name": "grid-1-iteration" }]"""
+
+        def data(grids: ⇒ String) =
+            TransformerUtils.stringToTinyTree(XPath.GlobalConfiguration, s"<form><section-1>$grids<control-2/></section-1></form>", false, false)
+
+        val data47 = data((1 to Iterations) map (i ⇒ s"<grid-1><control-1>$i</control-1></grid-1>") mkString)
+        val data48 = data((1 to Iterations) map (i ⇒ s"<grid-1-iteration><control-1>$i</control-1></grid-1-iteration>") mkString ("<grid-1>", "", "</grid-1>"))
+
+        val migratedTo = DataMigration.migrateDataTo(data47, Migration)
+        assert(1          === (migratedTo.rootElement / "section-1" / "grid-1").size)
+        assert(Iterations === (migratedTo.rootElement / "section-1" / "grid-1" / "grid-1-iteration").size)
+        assertXMLDocumentsIgnoreNamespacesInScope(data48, migratedTo)
+
+        val migratedFrom = DataMigration.migrateDataFrom(data48, Migration)
+        assert(Iterations === (migratedFrom.rootElement / "section-1" / "grid-1").size)
+        assertXMLDocumentsIgnoreNamespacesInScope(data47, migratedFrom)
+    }
+
     // TODO: annotate.xpl migrations
 }
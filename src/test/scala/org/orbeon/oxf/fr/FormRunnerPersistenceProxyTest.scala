@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr
+
+import org.junit.Test
+import org.orbeon.oxf.fr.FormRunnerPersistenceProxy._
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.XPath
+import org.orbeon.oxf.xml.TransformerUtils
+import org.orbeon.scaxon.XML._
+import org.scalatest.junit.AssertionsForJUnit
+
+import scala.collection.mutable
+
+class FormRunnerPersistenceProxyTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    // Forms returned by a stub provider: a single form named after the provider
+    private def forms(provider: String, etag: Option[String]) = {
+        val doc = TransformerUtils.stringToTinyTree(XPath.GlobalConfiguration, s"<forms><form><form-name>$provider</form-name></form></forms>", false, false)
+        ProviderForms((doc \\ "form").toList, etag, None)
+    }
+
+    private def formNames(forms: List[org.orbeon.saxon.om.NodeInfo]) =
+        forms map (_.elemValue("form-name"))
+
+    @Test def concurrentProviders(): Unit = {
+
+        val providers = List("concurrent-1", "concurrent-2", "concurrent-3")
+        val Delay     = 500L
+
+        def fetch(provider: String, cached: Option[ProviderForms]) = ProviderRead(() ⇒ {
+            Thread.sleep(Delay)
+            forms(provider, None)
+        }, inWorker = true)
+
+        val start  = System.currentTimeMillis
+        val result = readProvidersForms(providers, "", _ ⇒ 10000L, fetch)
+
+        // Results are in the order of the providers, and providers were called concurrently
+        assert(providers === formNames(result))
+        assert(System.currentTimeMillis - start < providers.size * Delay)
+    }
+
+    @Test def providerTimeout(): Unit = {
+
+        def fetch(provider: String, cached: Option[ProviderForms]) = ProviderRead(() ⇒ {
+            if (provider == "timeout-slow")
+                Thread.sleep(5000)
+            forms(provider, None)
+        }, inWorker = true)
+
+        def timeout(provider: String) = if (provider == "timeout-slow") 100L else 10000L
+
+        assert(List("timeout-fast") === formNames(readProvidersForms(List("timeout-slow", "timeout-fast"), "", timeout, fetch)))
+    }
+
+    @Test def readsUsingIncomingRequestInCurrentThread(): Unit = {
+
+        val threads = mutable.Map[String, Thread]()
+
+        def fetch(provider: String, cached: Option[ProviderForms]) = ProviderRead(() ⇒ {
+            threads.synchronized(threads += provider → Thread.currentThread)
+            forms(provider, None)
+        }, inWorker = provider == "thread-worker")
+
+        val result = readProvidersForms(List("thread-current", "thread-worker"), "", _ ⇒ 10000L, fetch)
+
+        assert(List("thread-current", "thread-worker") === formNames(result))
+        assert(Thread.currentThread eq threads("thread-current"))
+        assert(Thread.currentThread ne threads("thread-worker"))
+    }
+
+    @Test def cacheWithValidators(): Unit = {
+
+        val received = mutable.Buffer[(String, Option[ProviderForms])]()
+
+        def fetch(provider: String, cached: Option[ProviderForms]) = {
+            received.synchronized(received += provider → cached)
+            ProviderRead(() ⇒ cached getOrElse forms(provider, provider == "cache-validated" option "\"1\""), inWorker = true)
+        }
+
+        def read() = readProvidersForms(List("cache-validated", "cache-not-validated"), "/app", _ ⇒ 10000L, fetch)
+
+        // First read: nothing cached
+        assert(List("cache-validated", "cache-not-validated") === formNames(read()))
+        assert(received forall (_._2.isEmpty))
+
+        // Second read: only the forms with validators are cached, and passed to the provider for validation
+        received.clear()
+        read()
+        assert(Some(Some("\"1\"")) === (received.toMap.get("cache-validated") map (_ flatMap (_.etag))))
+        assert(Some(None)         === received.toMap.get("cache-not-validated"))
+
+        // Publishing a form of the app removes the cached forms
+        removeProviderForms("cache-validated", "app", "form")
+        received.clear()
+        read()
+        assert(received forall (_._2.isEmpty))
+    }
+
+    @Test def workerConnectionTimeouts(): Unit = {
+        // Rounded up to a power of two seconds, so that few HTTP clients are created
+        assert(List(1000, 1000, 2000, 16000, 16000, 32000) === (List(0L, 1000L, 1001L, 10000L, 16000L, 20000L) map workerConnectionTimeout))
+        assert(workerConnectionTimeout(Long.MaxValue) > 0)
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.embedding
+
+import java.io._
+import org.apache.commons.io.IOUtils
+import org.orbeon.oxf.common.OXFException
+
+// Compare the throughput of the streaming WSRP decoder with the previous implementation, which read the whole content
+// into a string first. Run with the test classpath: scala org.orbeon.oxf.fr.embedding.WSRPDecodingBenchmark
+object WSRPDecodingBenchmark {
+
+    // Previous implementation
+    def decodeWSRPContentString(content: String, ns: String, decodeURL: String ⇒ String, writer: Writer): Unit = {
+
+        val stringLength = content.length
+        var currentIndex = 0
+        var index        = 0
+
+        import org.orbeon.oxf.externalcontext.WSRPURLRewriter.{decodeURL ⇒ _, _}
+
+        while ({index = content.indexOf(BaseTag, currentIndex); index} != -1) {
+
+            writer.write(content, currentIndex, index - currentIndex)
+
+            if (index + BaseTagLength * 2 <= stringLength &&
+                    content.substring(index + BaseTagLength, index + BaseTagLength * 2) == BaseTag) {
+                writer.write(BaseTag)
+                currentIndex = index + BaseTagLength * 2
+            } else if (index < stringLength - BaseTagLength && content.charAt(index + BaseTagLength) == '?') {
+                val endIndex = content.indexOf(EndTag, index)
+                if (endIndex == -1)
+                    throw new OXFException("Missing end tag for WSRP encoded URL.")
+                val encodedURL = content.substring(index + StartTagLength, endIndex)
+                currentIndex = endIndex + EndTagLength
+
+                writer.write(decodeURL(encodedURL))
+            } else if (index < stringLength - BaseTagLength && content.charAt(index + BaseTagLength) == '_') {
+                writer.write(ns)
+                currentIndex = index + PrefixTagLength
+            } else
+                throw new OXFException("Invalid WSRP rewrite tagging.")
+        }
+
+        if (currentIndex < stringLength)
+            writer.write(content, currentIndex, content.length - currentIndex)
+    }
+
+    // Something like a large Form Runner page: markup with namespaced ids and encoded URLs
+    def page(controls: Int) = {
+        val sb = new StringBuilder
+        for (i ← 1 to controls) {
+            sb.append("<div id=\"wsrp_rewrite_control-").append(i).append("\" class=\"xforms-control xforms-input\">")
+            sb.append("<label for=\"wsrp_rewrite_control-").append(i).append("$xforms-input-1\">Label ").append(i).append("</label>")
+            sb.append("<input type=\"text\" id=\"wsrp_rewrite_control-").append(i).append("$xforms-input-1\" value=\"\"/>")
+            if (i % 10 == 0)
+                sb.append("<img src=\"wsrp_rewrite?wsrp-urlType=resource&amp;wsrp-navigationalState=orbeon.path%3D%2Fops%2Fimages%2F").append(i).append(".png/wsrp_rewrite\"/>")
+            sb.append("</div>\n")
+        }
+        sb.toString.getBytes("utf-8")
+    }
+
+    def main(args: Array[String]): Unit = {
+
+        val bytes      = page(args.headOption map (_.toInt) getOrElse 20000)
+        val iterations = 50
+        val decodeURL  = (url: String) ⇒ "/portal/resource?id=" + url.length
+
+        def run(name: String, decode: InputStream ⇒ Unit) = {
+            // Warm up
+            for (_ ← 1 to iterations) decode(new ByteArrayInputStream(bytes))
+
+            val start = System.nanoTime
+            for (_ ← 1 to iterations) decode(new ByteArrayInputStream(bytes))
+            val seconds = (System.nanoTime - start) / 1e9
+
+            println(f"$name%-10s ${bytes.length * iterations / seconds / 1024 / 1024}%8.1f MB/s")
+        }
+
+        run("string", is ⇒
+            decodeWSRPContentString(IOUtils.toString(is, "utf-8"), "o0", decodeURL, new OutputStreamWriter(new ByteArrayOutputStream, "utf-8")))
+
+        run("streaming", is ⇒
+            APISupport.decodeWSRPContent(new InputStreamReader(is, "utf-8"), "o0", decodeURL, new OutputStreamWriter(new ByteArrayOutputStream, "utf-8")))
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.embedding
+
+import java.io.{Reader, StringReader, StringWriter}
+import org.junit.Test
+import org.orbeon.oxf.common.OXFException
+import org.scalatest.junit.AssertionsForJUnit
+
+class WSRPDecodingTest extends AssertionsForJUnit {
+
+    // Reader returning at most one character at a time, so that tags are split across reads
+    class TrickleReader(s: String) extends Reader {
+        private val reader = new StringReader(s)
+        def read(buffer: Array[Char], offset: Int, length: Int) = reader.read(buffer, offset, length min 1)
+        def close() = reader.close()
+    }
+
+    def decode(content: String, trickle: Boolean = false) = {
+        val writer = new StringWriter
+        APISupport.decodeWSRPContent(
+            if (trickle) new TrickleReader(content) else new StringReader(content),
+            "o0",
+            url ⇒ "[" + url + "]",
+            writer
+        )
+        writer.toString
+    }
+
+    val expected = Seq(
+        ""                                                 → "",
+        "plain text"                                       → "plain text",
+        "wsrp_rewrite_id"                                  → "o0id",
+        "<div id='wsrp_rewrite_foo'>wsrp</div>"            → "<div id='o0foo'>wsrp</div>",
+        "a wsrp_rewrite?url/wsrp_rewrite b"                → "a [url] b",
+        "wsrp_rewrite?a/b/wsrp_rewritewsrp_rewrite?c/wsrp_rewrite" → "[a/b][c]",
+        "wsrp_rewritewsrp_rewrite_"                        → "wsrp_rewrite_",
+        "wsrp_rewrit"                                      → "wsrp_rewrit",
+        "wwsrp_rewrite_x"                                  → "wo0x",
+        "wsrp_rewrite?/wsrp_rewrit/wsrp_rewrite"           → "[/wsrp_rewrit]"
+    )
+
+    @Test def decodeTags(): Unit =
+        for ((content, result) ← expected; trickle ← List(false, true))
+            assert(decode(content, trickle) === result)
+
+    @Test def tagsAcrossBuffers(): Unit = {
+        // Place tags at all the positions around the buffer boundary
+        val url = "u" * 20000
+        for (padding ← 8150 to 8200) {
+            val prefix = "x" * padding
+            assert(decode(prefix + "wsrp_rewrite_id wsrp_rewritewsrp_rewrite") === prefix + "o0id wsrp_rewrite")
+            assert(decode(prefix + "wsrp_rewrite?" + url + "/wsrp_rewrite.") === prefix + "[" + url + "].")
+        }
+    }
+
+    @Test def invalidTags(): Unit =
+        for (content ← List("wsrp_rewrite", "wsrp_rewrite!", "wsrp_rewrite?url", "wsrp_rewrite?url/wsrp_rewrit"))
+            intercept[OXFException](decode(content))
+}
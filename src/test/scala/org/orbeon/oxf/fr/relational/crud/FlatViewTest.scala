@@ -94,4 +94,24 @@ class FlatViewTest extends ResourceManagerTestBase with AssertionsForJUnit {
         for ((expected, left, right) ← expectedForValues)
             assert(expected === FlatView.joinParts(left, right, 7))
     }
+
+    @Test def flatTableQueriesTest(): Unit = {
+
+        val cols = FlatView.flatCols("oracle", Iterator("section-1/first-name" → "SECTION_1_FIRST_NAME")).to[List]
+
+        assert("ORBEON_F_MY_APP_MY_FORM" === FlatView.flatName(FlatView.TablePrefix, "my-app", "my-form"))
+        assert("ORBEON_I_MY_APP_MY_FORM" === FlatView.flatName(FlatView.IndexPrefix, "my-app", "my-form"))
+        assert(FlatView.MetadataPairs.size + 1 === cols.size)
+        assert(FlatView.Col("extractValue(d.xml, '/*/section-1/first-name')", "SECTION_1_FIRST_NAME") === cols.last)
+
+        // The query for a single document has exactly one parameter, and app/form are escaped
+        val forDocument = FlatView.selectQuery("o'app", "form", cols, forDocument = true)
+        assert(1 === forDocument.count(_ == '?'))
+        assert(forDocument.contains("app   = 'o''app'"))
+        assert(0 === FlatView.selectQuery("app", "form", cols, forDocument = false).count(_ == '?'))
+
+        // DB2 creates the table and inserts the data separately
+        assert(1 === FlatView.createTableQueries("oracle", "T", "SELECT 1").size)
+        assert(List("CREATE TABLE T AS (SELECT 1) WITH NO DATA", "INSERT INTO T SELECT 1") === FlatView.createTableQueries("db2", "T", "SELECT 1"))
+    }
 }
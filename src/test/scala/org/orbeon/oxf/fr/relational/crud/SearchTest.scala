@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.relational.crud
+
+import org.junit.Test
+import org.orbeon.scaxon.XML._
+import org.scalatest.junit.AssertionsForJUnit
+
+class SearchTest extends AssertionsForJUnit {
+
+    import Search._
+
+    @Test def escapeLikeWithoutBackslash(): Unit = {
+        assert("50!% off" === escapeLike("50% off"))
+        assert("a!_b"     === escapeLike("a_b"))
+        assert("wow!!"    === escapeLike("wow!"))
+        assert("c:\\dir"  === escapeLike("c:\\dir"))
+    }
+
+    @Test def drafts(): Unit = {
+
+        def condition(search: scala.xml.Elem, username: Option[String]) =
+            draftsCondition((elemToDocumentInfo(search) \ *).head, username) map (_.sql)
+
+        // Anonymous users don't see drafts
+        assert(Some("AND c.draft = 'N'") === condition(<search/>, None))
+        assert(None                      === condition(<search><drafts>only</drafts></search>, None))
+
+        // Exclude, only, and include
+        assert(Some("AND c.draft = 'N'")                      === condition(<search><drafts>exclude</drafts></search>, Some("u")))
+        assert(Some("AND c.draft = 'Y'")                      === condition(<search><drafts>only</drafts></search>, Some("u")))
+        assert(Some("AND (c.draft = 'N' OR (c.draft = 'Y'))") === condition(<search/>, Some("u")))
+
+        // Drafts for a given document
+        val forDocument = draftsCondition((elemToDocumentInfo(<search><drafts for-document-id="42">only</drafts></search>) \ *).head, Some("u"))
+        assert(Some(List("42")) === (forDocument map (_.params)))
+    }
+}
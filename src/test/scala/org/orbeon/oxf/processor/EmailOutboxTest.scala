@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import EmailOutbox._
+import java.io.File
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.{Properties ⇒ JProperties}
+import javax.mail.internet.{InternetAddress, MimeMessage}
+import javax.mail.{Message, Session}
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+import collection.JavaConverters._
+
+class EmailOutboxTest extends AssertionsForJUnit {
+
+    // In-process stand-in for an SMTP server
+    class StubTransport(failures: AtomicInteger, sent: ConcurrentLinkedQueue[String], connections: AtomicInteger) extends OutboxTransport {
+        var connected = false
+        def connect()     = { connections.incrementAndGet(); connected = true }
+        def isConnected   = connected
+        def close()       = connected = false
+        def send(message: MimeMessage) =
+            if (failures.getAndDecrement() > 0)
+                throw new javax.mail.MessagingException("stub failure")
+            else
+                sent.add(message.getSubject)
+    }
+
+    def newDirectory = {
+        val file = File.createTempFile("outbox", "")
+        file.delete()
+        file.mkdir()
+        file
+    }
+
+    def newMessage(subject: String) = {
+        val message = new MimeMessage(Session.getInstance(new JProperties))
+        message.addFrom(Array(new InternetAddress("from@example.org")))
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("to@example.org"))
+        message.setSubject(subject)
+        message.setText("body")
+        message
+    }
+
+    def properties = {
+        val p = new JProperties
+        p.setProperty("mail.smtp.host", "localhost")
+        p
+    }
+
+    def waitFor(condition: ⇒ Boolean) = {
+        val end = System.currentTimeMillis + 10000
+        while (! condition && System.currentTimeMillis < end)
+            Thread.sleep(10)
+        assert(condition)
+    }
+
+    def messageFiles(directory: File) =
+        directory.listFiles.toList filter (_.getName.endsWith(MessageExtension))
+
+    @Test def sendsInOrderOverOneConnection(): Unit = {
+        val sent        = new ConcurrentLinkedQueue[String]
+        val connections = new AtomicInteger
+        val directory   = newDirectory
+
+        val outbox = new EmailOutbox(directory, _ ⇒ new StubTransport(new AtomicInteger(0), sent, connections))
+        try {
+            val subjects = 1 to 20 map ("message " + _)
+            subjects foreach (s ⇒ outbox.enqueue(properties, None, None, newMessage(s)))
+
+            // The stub records a message before the outbox counts it as sent
+            waitFor(outbox.metrics.sent == subjects.size)
+
+            assert(subjects === sent.asScala.toList)
+            assert(1 === connections.get)
+            assert(0 === outbox.queueDepth)
+            waitFor(messageFiles(directory).isEmpty)
+        } finally
+            outbox.shutdown()
+    }
+
+    @Test def retriesWithBackoff(): Unit = {
+        val sent        = new ConcurrentLinkedQueue[String]
+        val failures    = new AtomicInteger(2)
+        val directory   = newDirectory
+
+        val outbox = new EmailOutbox(directory, _ ⇒ new StubTransport(failures, sent, new AtomicInteger), initialBackoffMs = 10)
+        try {
+            outbox.enqueue(properties, None, None, newMessage("retried"))
+
+            waitFor(outbox.metrics.sent == 1)
+
+            assert(2 === outbox.metrics.retried)
+            assert(0 === outbox.metrics.failed)
+        } finally
+            outbox.shutdown()
+    }
+
+    @Test def recoversPendingMessages(): Unit = {
+        val sent      = new ConcurrentLinkedQueue[String]
+        val directory = newDirectory
+
+        // First outbox can never send
+        val failing = new EmailOutbox(directory, _ ⇒ new StubTransport(new AtomicInteger(Int.MaxValue), sent, new AtomicInteger), initialBackoffMs = 60000)
+        failing.enqueue(properties, None, None, newMessage("recovered"))
+        failing.shutdown()
+
+        assert(1 === messageFiles(directory).size)
+
+        // Second outbox on the same directory picks up the message
+        val outbox = new EmailOutbox(directory, _ ⇒ new StubTransport(new AtomicInteger(0), sent, new AtomicInteger))
+        try {
+            waitFor(outbox.metrics.sent == 1)
+            assert("recovered" === sent.peek)
+        } finally
+            outbox.shutdown()
+    }
+
+    @Test def snapshotsProperties(): Unit = {
+        val sent        = new ConcurrentLinkedQueue[String]
+        val connections = new AtomicInteger
+        val directory   = newDirectory
+
+        val outbox = new EmailOutbox(directory, _ ⇒ new StubTransport(new AtomicInteger(0), sent, connections))
+        try {
+            // Changing the properties after enqueuing must neither affect the queued message nor the connection reuse
+            val p = properties
+            outbox.enqueue(p, None, None, newMessage("first"))
+            p.setProperty("mail.smtp.port", "2525")
+            outbox.enqueue(properties, None, None, newMessage("second"))
+
+            waitFor(outbox.metrics.sent == 2)
+            assert(1 === connections.get)
+        } finally
+            outbox.shutdown()
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.XQuery
+
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+import scala.collection.mutable
+
+class XQuerySessionPoolTest extends AssertionsForJUnit {
+
+    // Session which records what it prepared and closed
+    class TestSession(key: String) extends XQuerySessionPool.Session[String](key) {
+        val prepared = mutable.Buffer[String]()
+        val closedStatements = mutable.Buffer[String]()
+        var closed = false
+
+        protected def newStatement(text: String) = { prepared += text; "statement: " + text }
+        protected def closeStatement(statement: String): Unit = closedStatements += statement
+        protected def closeConnection(): Unit = closed = true
+    }
+
+    @Test def reuse(): Unit = {
+        val pool = new XQuerySessionPool
+
+        assert(pool.take("a", 0) === null)
+
+        val session = new TestSession("a")
+        session.prepare("query")
+        pool.release(session, 2)
+        assert(pool.getIdleCount("a") === 1)
+
+        // Same session for the same key, with the statement already prepared
+        val taken = pool.take("a", 0).asInstanceOf[TestSession]
+        assert(taken eq session)
+        assert(taken.prepare("query") === "statement: query")
+        assert(taken.prepared === Seq("query"))
+
+        // Not for another key
+        pool.release(taken, 2)
+        assert(pool.take("b", 0) === null)
+        assert(pool.getIdleCount("a") === 1)
+    }
+
+    @Test def limits(): Unit = {
+        val pool = new XQuerySessionPool
+
+        // Sessions beyond the maximum number of idle sessions are closed
+        val sessions = 1 to 3 map (_ ⇒ new TestSession("a"))
+        sessions foreach (pool.release(_, 2))
+        assert(pool.getIdleCount("a") === 2)
+        assert(sessions.count(_.closed) === 1)
+
+        // Least recently used statements are closed
+        val session = sessions.head
+        1 to XQuerySessionPool.MAX_PREPARED_EXPRESSIONS + 1 foreach (i ⇒ session.prepare("query " + i))
+        assert(session.getPreparedCount === XQuerySessionPool.MAX_PREPARED_EXPRESSIONS)
+        assert(session.closedStatements === Seq("statement: query 1"))
+
+        // Expired sessions are closed when taking a session
+        Thread.sleep(20)
+        assert(pool.take("a", 10) === null)
+        assert(sessions.forall(_.closed))
+    }
+}
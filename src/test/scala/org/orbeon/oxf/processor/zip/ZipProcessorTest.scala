@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.zip
+
+import java.io.ByteArrayInputStream
+import java.util.zip.ZipInputStream
+
+import org.dom4j.QName
+import org.junit.Test
+import org.orbeon.oxf.pipeline.InitUtils._
+import org.orbeon.oxf.pipeline.api.ProcessorDefinition
+import org.orbeon.oxf.processor.DOMSerializer
+import org.orbeon.oxf.resources.URLFactory
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.NetUtils
+import org.orbeon.oxf.util.PipelineUtils._
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.xml.XMLConstants._
+import org.orbeon.saxon.om.NodeInfo
+import org.orbeon.scaxon.XML._
+import org.scalatest.junit.AssertionsForJUnit
+
+import scala.collection.mutable.ListBuffer
+
+class ZipProcessorTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    val Compressed   = "oxf:/ops/unit-tests/tests-xpl.xml"
+    val Uncompressed = "oxf:/ops/unit-tests/tests-xupdate.xml"
+
+    case class ReadEntry(name: String, content: Seq[Byte], size: Long, compressedSize: Long)
+
+    // Run the zip processor, and read back the archive it produces
+    def zip(files: NodeInfo) = {
+
+        val zipProcessor =
+            createProcessor(
+                new ProcessorDefinition(new QName("zip", OXF_PROCESSORS_NAMESPACE))
+                    |!> (_.addInput("data", files))
+            )
+
+        val serializer = new DOMSerializer
+        connect(zipProcessor, "data", serializer, "data")
+
+        val document =
+            withPipelineContext { pipelineContext ⇒
+                zipProcessor.reset(pipelineContext)
+                serializer.reset(pipelineContext)
+                serializer.runGetDocument(pipelineContext)
+            }
+
+        val root  = document.getRootElement
+        val bytes = NetUtils.base64StringToByteArray(root.getText)
+
+        val entries = ListBuffer[ReadEntry]()
+        useAndClose(new ZipInputStream(new ByteArrayInputStream(bytes))) { zis ⇒
+            var entry = zis.getNextEntry
+            while (entry ne null) {
+                val content = NetUtils.inputStreamToByteArray(zis)
+                // Sizes are only known once the entry is read, as they are written after the data
+                entries += ReadEntry(entry.getName, content.toSeq, entry.getSize, entry.getCompressedSize)
+                entry = zis.getNextEntry
+            }
+        }
+
+        (root.attributeValue("filename"), entries.toList)
+    }
+
+    def resourceBytes(url: String) =
+        useAndClose(URLFactory.createURL(url).openStream)(NetUtils.inputStreamToByteArray).toSeq
+
+    @Test def readBackArchive(): Unit = {
+
+        val (filename, entries) = zip(
+            <files filename="archive.zip">
+                <file name="a/compressed.xml">{Compressed}</file>
+                <file name="b/uncompressed.xml" compress="false">{Uncompressed}</file>
+            </files>
+        )
+
+        assert("archive.zip" === filename)
+        assert(List("a/compressed.xml", "b/uncompressed.xml") === (entries map (_.name)))
+
+        val List(compressed, uncompressed) = entries
+
+        // Content is streamed unchanged into the entries
+        assert(resourceBytes(Compressed)   === compressed.content)
+        assert(resourceBytes(Uncompressed) === uncompressed.content)
+
+        // Only the first entry is compressed
+        assert(compressed.compressedSize   <  compressed.size)
+        assert(uncompressed.compressedSize >= uncompressed.size)
+    }
+
+    @Test def uncompressedByDefault(): Unit = {
+
+        val (_, entries) = zip(
+            <files compress="false">
+                <file name="compressed.xml" compress="true">{Compressed}</file>
+                <file name="uncompressed.xml">{Uncompressed}</file>
+            </files>
+        )
+
+        val List(compressed, uncompressed) = entries
+
+        assert(resourceBytes(Uncompressed) === uncompressed.content)
+        assert(compressed.compressedSize   <  compressed.size)
+        assert(uncompressed.compressedSize >= uncompressed.size)
+    }
+}
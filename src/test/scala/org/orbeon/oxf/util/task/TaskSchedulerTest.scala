@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.util.task
+
+import java.util.concurrent.{TimeUnit, CountDownLatch, Executors, Executor}
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+import scala.collection.mutable
+
+class TaskSchedulerTest extends AssertionsForJUnit {
+
+    class ManualClock extends TaskScheduler.Clock {
+        var now = 0L
+        def currentTimeMillis = now
+    }
+
+    // Executor which only runs tasks when asked to
+    class ManualExecutor extends Executor {
+        val pending = mutable.Queue[Runnable]()
+        def execute(runnable: Runnable) = pending += runnable
+        def runAll() = while (pending.nonEmpty) pending.dequeue().run()
+    }
+
+    class TestTask(body: ⇒ Unit) extends Task {
+        def run() = body
+        def getStatus = ""
+    }
+
+    def newScheduler(clock: ManualClock, executor: ManualExecutor) =
+        new TaskScheduler(clock, null, executor, 0)
+
+    def schedule(scheduler: TaskScheduler, interval: Long, policy: Task.OverlapPolicy)(body: ⇒ Unit) = {
+        val task = new TestTask(body)
+        task.setSchedule(0, interval)
+        task.setOverlapPolicy(policy)
+        scheduler.schedule(task)
+        task
+    }
+
+    @Test def skipWhenRunning(): Unit = {
+        val clock    = new ManualClock
+        val executor = new ManualExecutor
+        val scheduler = newScheduler(clock, executor)
+
+        val task = schedule(scheduler, 100, Task.OverlapPolicy.SKIP) { clock.now += 30 }
+
+        scheduler.runDueTasks()
+        assert(executor.pending.size === 1)
+
+        // Due again while the first run is still waiting for a worker
+        clock.now = 100
+        scheduler.runDueTasks()
+        assert(executor.pending.size === 1)
+        assert(task.getSkipCount === 1)
+
+        executor.runAll()
+        assert(task.getRunCount === 1)
+        assert(task.getLastRunDuration === 30)
+
+        clock.now = 200
+        scheduler.runDueTasks()
+        executor.runAll()
+        assert(task.getRunCount === 2)
+        assert(task.getSkipCount === 1)
+        assert(task.getTotalRunDuration === 60)
+    }
+
+    @Test def queueWhenRunning(): Unit = {
+        val clock    = new ManualClock
+        val executor = new ManualExecutor
+        val scheduler = newScheduler(clock, executor)
+
+        val task = schedule(scheduler, 100, Task.OverlapPolicy.QUEUE) { clock.now += 10 }
+
+        scheduler.runDueTasks()
+
+        // At most one run is queued
+        clock.now = 100
+        scheduler.runDueTasks()
+        clock.now = 200
+        scheduler.runDueTasks()
+        assert(executor.pending.size === 1)
+
+        // The queued run follows the first one on the same worker
+        executor.runAll()
+        assert(task.getRunCount === 2)
+        assert(task.getSkipCount === 0)
+    }
+
+    @Test def failuresAreIsolated(): Unit = {
+        val clock    = new ManualClock
+        val executor = new ManualExecutor
+        val scheduler = newScheduler(clock, executor)
+
+        val failing = schedule(scheduler, 100, Task.OverlapPolicy.SKIP) { throw new RuntimeException("failing task") }
+        val other   = schedule(scheduler, 100, Task.OverlapPolicy.SKIP) { clock.now += 5 }
+
+        for (time ← Seq(0L, 100L)) {
+            clock.now = time
+            scheduler.runDueTasks()
+            executor.runAll()
+        }
+
+        assert(failing.getRunCount === 2)
+        assert(failing.getFailureCount === 2)
+        assert(other.getRunCount === 2)
+        assert(other.getFailureCount === 0)
+    }
+
+    @Test def missedOccurrencesRunOnce(): Unit = {
+        val clock    = new ManualClock
+        val executor = new ManualExecutor
+        val scheduler = newScheduler(clock, executor)
+
+        val task = schedule(scheduler, 100, Task.OverlapPolicy.QUEUE) {}
+
+        scheduler.runDueTasks()
+        executor.runAll()
+
+        clock.now = 550
+        scheduler.runDueTasks()
+        executor.runAll()
+        assert(task.getRunCount === 2)
+
+        clock.now = 599
+        scheduler.runDueTasks()
+        assert(executor.pending.isEmpty)
+
+        clock.now = 600
+        scheduler.runDueTasks()
+        assert(executor.pending.size === 1)
+    }
+
+    @Test def cancel(): Unit = {
+        val clock    = new ManualClock
+        val executor = new ManualExecutor
+        val scheduler = newScheduler(clock, executor)
+
+        val task = schedule(scheduler, 100, Task.OverlapPolicy.QUEUE) {}
+        assert(scheduler.getRunningTasks.toSeq === Seq(task))
+
+        task.cancel()
+        scheduler.runDueTasks()
+        assert(executor.pending.isEmpty)
+        assert(scheduler.getRunningTasks.isEmpty)
+    }
+
+    @Test def gracefulShutdown(): Unit = {
+        val scheduler = new TaskScheduler(
+            TaskScheduler.SYSTEM_CLOCK,
+            Executors.newSingleThreadScheduledExecutor(),
+            Executors.newFixedThreadPool(2),
+            10000
+        )
+
+        val started = new CountDownLatch(1)
+        @volatile var completed = false
+
+        val task = new TestTask({ started.countDown(); Thread.sleep(200); completed = true })
+        task.setSchedule(System.currentTimeMillis, 60 * 1000)
+        scheduler.schedule(task)
+
+        assert(started.await(10, TimeUnit.SECONDS))
+
+        // Shutdown waits for the run in progress
+        scheduler.cancelAll(false)
+        assert(completed)
+        assert(task.getRunCount === 1)
+
+        intercept[IllegalStateException] {
+            scheduler.schedule(new TestTask({}))
+        }
+    }
+}
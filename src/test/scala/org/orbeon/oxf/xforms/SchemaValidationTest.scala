@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms
+
+import org.junit.Test
+import org.orbeon.oxf.test.DocumentTestBase
+import org.orbeon.oxf.xforms.action.XFormsAPI._
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.orbeon.saxon.om.NodeInfo
+import org.orbeon.scaxon.XML._
+import org.scalatest.junit.AssertionsForJUnit
+
+class SchemaValidationTest extends DocumentTestBase with AssertionsForJUnit {
+
+    def setupSchemaDocument() =
+        this setupDocument
+            <xh:html xmlns:xh="http://www.w3.org/1999/xhtml"
+                     xmlns:xf="http://www.w3.org/2002/xforms"
+                     xmlns:xxf="http://orbeon.org/oxf/xml/xforms"
+                     xmlns:xs="http://www.w3.org/2001/XMLSchema">
+                <xh:head>
+                    <xf:model id="model">
+                        <xs:schema elementFormDefault="qualified">
+                            <xs:element name="order">
+                                <xs:complexType>
+                                    <xs:sequence>
+                                        <xs:element name="item" maxOccurs="unbounded">
+                                            <xs:complexType>
+                                                <xs:sequence>
+                                                    <xs:element name="quantity" type="xs:positiveInteger"/>
+                                                    <xs:element name="price" type="xs:decimal"/>
+                                                </xs:sequence>
+                                                <xs:attribute name="code" type="xs:NCName" use="required"/>
+                                            </xs:complexType>
+                                        </xs:element>
+                                    </xs:sequence>
+                                </xs:complexType>
+                            </xs:element>
+                        </xs:schema>
+                        <xf:instance id="strict" xxf:validation="strict">
+                            <order>
+                                <item code="a"><quantity>1</quantity><price>1.5</price></item>
+                                <item code="b"><quantity>2</quantity><price>2.5</price></item>
+                                <item code="c"><quantity>3</quantity><price>3.5</price></item>
+                            </order>
+                        </xf:instance>
+                        <xf:instance id="lax">
+                            <orders>
+                                <comment>Not in the schema</comment>
+                                <order>
+                                    <item code="a"><quantity>1</quantity><price>1.5</price></item>
+                                    <item code="b"><quantity>2</quantity><price>2.5</price></item>
+                                </order>
+                            </orders>
+                        </xf:instance>
+                    </xf:model>
+                </xh:head>
+                <xh:body/>
+            </xh:html>
+
+    // Validity and type of all the elements and attributes of the instance
+    def schemaState(instance: XFormsInstance) =
+        (instance.valid, for {
+            element ← instance.rootElement descendantOrSelf *
+            node    ← element +: (element /@ @*)
+        } yield
+            (node.getDisplayName, InstanceData.getValid(node), InstanceData.getType(node)))
+
+    def revalidate(instance: XFormsInstance): Unit = {
+        instance.model.deferredActionContext.markRecalculateRevalidate()
+        instance.model.doRecalculateRevalidate(applyDefaults = false)
+    }
+
+    // Set a value, then check that incremental validation gives the same result as a full validation
+    def setValueAndCompare(instance: XFormsInstance, node: NodeInfo, value: String) = {
+        setvalue(Seq(node), value)
+        assert(instance.schemaValidationState.isIncremental)
+        revalidate(instance)
+        val incremental = schemaState(instance)
+
+        // Only the changed element and the elements around it are validated again
+        val elementCount = (instance.rootElement descendantOrSelf *).size
+        assert(instance.schemaValidationState.getValidatedElementCount > 0)
+        assert(instance.schemaValidationState.getValidatedElementCount < elementCount)
+
+        instance.schemaValidationState.invalidate()
+        revalidate(instance)
+        val full = schemaState(instance)
+
+        assert(full === incremental)
+        incremental._1
+    }
+
+    @Test def strictIncrementalSameAsFull(): Unit =
+        withActionAndDoc(setupSchemaDocument()) {
+
+            val strict = instance("strict").get
+            def items = strict.rootElement / "item"
+
+            assert(schemaState(strict)._1)
+
+            assert(! setValueAndCompare(strict, (items(0) / "quantity").head, "-1"))
+            assert(! setValueAndCompare(strict, (items(1) / "price").head, "foo"))
+            assert(! setValueAndCompare(strict, (items(0) / "quantity").head, "10"))
+            assert(! setValueAndCompare(strict, (items(2) /@ "code").head, "1c"))
+            assert(! setValueAndCompare(strict, (items(1) / "price").head, "4"))
+            assert(  setValueAndCompare(strict, (items(2) /@ "code").head, "c"))
+        }
+
+    @Test def laxIncrementalSameAsFull(): Unit =
+        withActionAndDoc(setupSchemaDocument()) {
+
+            val lax = instance("lax").get
+            def items = lax.rootElement / "order" / "item"
+
+            assert(schemaState(lax)._1)
+
+            assert(  setValueAndCompare(lax, (lax.rootElement / "comment").head, "Still not in the schema"))
+            assert(! setValueAndCompare(lax, (items(1) / "quantity").head, "0"))
+            assert(! setValueAndCompare(lax, (items(0) /@ "code").head, ""))
+            assert(! setValueAndCompare(lax, (items(0) /@ "code").head, "a"))
+            assert(  setValueAndCompare(lax, (items(1) / "quantity").head, "5"))
+        }
+
+    @Test def structuralChangeRequiresFullValidation(): Unit =
+        withActionAndDoc(setupSchemaDocument()) {
+
+            val strict = instance("strict").get
+            def items = strict.rootElement / "item"
+
+            insert(origin = items.last, after = items.last)
+            assert(! strict.schemaValidationState.isIncremental)
+
+            revalidate(strict)
+            assert(strict.schemaValidationState.isIncremental)
+            assert(items.size === 4)
+            assert(schemaState(strict)._1)
+
+            delete(items.head / "price")
+            assert(! strict.schemaValidationState.isIncremental)
+
+            revalidate(strict)
+            assert(! schemaState(strict)._1)
+        }
+}
@@ -16,7 +16,10 @@ package org.orbeon.oxf.xforms
 import org.scalatest.junit.AssertionsForJUnit
 import org.junit.Test
 import XFormsUtils._
+import java.util.Random
+import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.test.DocumentTestBase
+import org.orbeon.oxf.util.{SecureUtils, Base64}
 
 class XFormsUtilsTest extends DocumentTestBase with AssertionsForJUnit {
     @Test def effectiveAndAbsolute(): Unit = {
@@ -40,4 +43,58 @@ class XFormsUtilsTest extends DocumentTestBase with AssertionsForJUnit {
         assert(! isAbsoluteId(""))
         assert(! isAbsoluteId("≡≡"))
     }
+
+    @Test def encodeDecode(): Unit = {
+
+        val random = new Random(0)
+
+        // Compressible content with some noise
+        def newBytes(size: Int) =
+            Array.tabulate[Byte](size)(i ⇒ if (i % 7 == 0) random.nextInt.toByte else (i % 64).toByte)
+
+        for {
+            size     ← Seq(0, 1, 2, 3, 4, 100, 1000, 10000, 100000)
+            bytes    = newBytes(size)
+            compress ← Seq(false, true)
+            encrypt  ← Seq(false, true)
+        } locally {
+
+            val encoded = encodeBytes(bytes, compress, encrypt)
+
+            // Round trip
+            assert(bytes.toList === decodeBytes(encoded).toList)
+
+            // Same wire format as the array-based encoding
+            val data = if (compress) XFormsCompressor.compressBytes(bytes) else bytes
+            if (encrypt) {
+                assert(encoded.substring(0, 2) === (if (compress) "X2" else "X1"))
+                assert(data.toList === SecureUtils.decrypt(encoded.substring(2)).toList)
+                assert(bytes.toList === decodeBytes(encoded.substring(0, 2) + SecureUtils.encrypt(data)).toList)
+            } else {
+                assert(encoded === (if (compress) "X4" else "X3") + Base64.encode(data, false))
+            }
+
+            // White space is ignored when decoding
+            assert(bytes.toList === decodeBytes(encoded.substring(0, 2) + Base64.encode(Base64.decode(encoded.substring(2)), true)).toList)
+        }
+    }
+
+    @Test def decodeInvalidEncryptedData(): Unit = {
+
+        val encoded = encodeBytes(Array.fill[Byte](100)(1), false, true)
+
+        // Ciphertext which is not a multiple of the block size
+        intercept[OXFException] {
+            decodeBytes(encoded.substring(0, encoded.length - 4))
+        }
+
+        // Changing the last byte of the block before the last one changes the last padding byte, so that it's invalid
+        val bytes = Base64.decode(encoded.substring(2))
+        val index = bytes.length - SecureUtils.AESIVSize - 1
+        bytes(index) = (bytes(index) ^ 1).toByte
+
+        intercept[OXFException] {
+            decodeBytes("X1" + Base64.encode(bytes, false))
+        }
+    }
 }
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.analytics
+
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+
+class RequestStatsTest extends AssertionsForJUnit {
+
+    @Test def eventStats(): Unit = {
+
+        val stats = new RequestStatsImpl
+
+        stats.withEvent("xforms-value-changed") {
+            stats.withEvent("xforms-recalculate") {
+                Thread.sleep(1)
+            }
+        }
+        stats.withEvent("xforms-value-changed")(())
+
+        assert(Map("xforms-value-changed" → 2, "xforms-recalculate" → 1) === stats.eventCounts)
+
+        // The time of an event includes the time of nested events
+        assert(stats.eventTimes("xforms-value-changed") >= stats.eventTimes("xforms-recalculate"))
+        assert(stats.eventTimes("xforms-recalculate") > 0)
+    }
+}
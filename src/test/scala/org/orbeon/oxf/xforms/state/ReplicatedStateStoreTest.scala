@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import java.io.File
+import java.net.ServerSocket
+import java.util.concurrent.Executor
+import collection.mutable.ListBuffer
+import org.junit.{After, Test}
+import org.orbeon.oxf.pipeline.api.ExternalContext
+import org.scalatest.junit.AssertionsForJUnit
+import sbinary.Operations._
+import XFormsProtocols.DynamicStateRecordFormat
+
+class ReplicatedStateStoreTest extends AssertionsForJUnit {
+
+    // Local store of a node which has just restarted
+    object EmptyStore extends XFormsStateStore {
+        def storeState(snapshot: StateSnapshot, session: ExternalContext.Session) = ()
+        def findState(session: ExternalContext.Session, documentUUID: String, isInitialState: Boolean) = null
+        def getMaxSize = 0L
+        def getCurrentSize = 0L
+        def addStateCombined(staticStateUUID: String, dynamicStateUUID: String, xformsState: XFormsState, sessionId: String) = ()
+        def findStateCombined(staticStateUUID: String, dynamicStateUUID: String) = null
+    }
+
+    // Replicate synchronously so tests can check results right away
+    object SameThreadExecutor extends Executor {
+        def execute(runnable: Runnable) = runnable.run()
+    }
+
+    val transport = new LoopbackStateTransport
+    val logs      = ListBuffer[StateLog]()
+
+    def node(nodeId: String, peers: String*): ReplicatedStateStore =
+        nodeWithTransport(transport, nodeId, peers: _*)
+
+    def nodeWithTransport(transport: StateTransport, nodeId: String, peers: String*) = {
+        val directory = File.createTempFile("state-replicas", "")
+        directory.delete()
+        val log = new StateLog(directory, 64 * 1024, 0)
+        logs += log
+        new ReplicatedStateStore(nodeId, EmptyStore, log, transport, peers, SameThreadExecutor, 500)
+    }
+
+    val Secret    = "secret"
+    val MaxLength = 1024 * 1024
+
+    def freePort = {
+        val socket = new ServerSocket(0)
+        try socket.getLocalPort
+        finally socket.close()
+    }
+
+    @After def deleteLogs(): Unit =
+        for (log ← logs) {
+            log.close()
+            log.directory.listFiles foreach (_.delete())
+            log.directory.delete()
+        }
+
+    val UUID   = "document-uuid"
+    val Digest = "static-state-digest"
+
+    def replica(sequence: Long, isInitialState: Boolean = false, staticState: Option[String] = Some("static")) =
+        StateReplica(UUID, isInitialState, Digest, staticState, sequence, toByteArray(dynamicState(sequence))(DynamicStateRecordFormat))
+
+    def dynamicState(sequence: Long) =
+        DynamicState(UUID, sequence, None, None, None, Nil, Nil, None, None, Seq(), None, Seq(), None, Seq(), Seq(), Seq())
+
+    def sequenceOf(state: XFormsState) = Option(state) map (_.dynamicState.sequence)
+
+    @Test def replicateToPeers(): Unit = {
+        val a = node("a", "b", "c")
+        val b = node("b", "a", "c")
+        val c = node("c", "a", "b")
+
+        a.publish(replica(1, isInitialState = true))
+        a.publish(replica(3))
+
+        for (peer ← List(b, c)) {
+            val state = peer.findState(null, UUID, isInitialState = false)
+            assert(state.staticStateDigest === Some(Digest))
+            assert(state.staticState === "static")
+            assert(state.dynamicState === dynamicState(3))
+            assert(sequenceOf(peer.findState(null, UUID, isInitialState = true)) === Some(1))
+        }
+    }
+
+    @Test def rejectStaleStates(): Unit = {
+        val a = node("a")
+
+        assert(a.receive(replica(5)) === ReplicaAccepted)
+        assert(a.receive(replica(4)) === ReplicaStale)
+        assert(a.receive(replica(5)) === ReplicaStale)
+        assert(sequenceOf(a.findState(null, UUID, isInitialState = false)) === Some(5))
+
+        assert(a.receive(replica(6)) === ReplicaAccepted)
+        assert(sequenceOf(a.findState(null, UUID, isInitialState = false)) === Some(6))
+    }
+
+    @Test def shipStaticStateOnlyWhenMissing(): Unit = {
+        val a = node("a")
+
+        assert(a.receive(replica(1, staticState = None)) === MissingStaticState)
+        assert(a.findState(null, UUID, isInitialState = false) === null)
+
+        assert(a.receive(replica(1)) === ReplicaAccepted)
+        assert(a.receive(replica(2, staticState = None)) === ReplicaAccepted)
+        assert(sequenceOf(a.findState(null, UUID, isInitialState = false)) === Some(2))
+    }
+
+    @Test def fetchFromPeerOnMiss(): Unit = {
+        val a = node("a", "b")
+        val b = node("b")
+        val c = node("c", "down", "b")
+
+        a.publish(replica(2))
+
+        // c doesn't have the state, skips the unreachable peer and gets it from b
+        assert(sequenceOf(c.findState(null, UUID, isInitialState = false)) === Some(2))
+
+        // c now has its own copy
+        transport.unregister("b")
+        assert(sequenceOf(c.findState(null, UUID, isInitialState = false)) === Some(2))
+        assert(c.findState(null, "other-uuid", isInitialState = false) === null)
+    }
+
+    @Test def unreachablePeer(): Unit = {
+        val a = node("a", "down", "b")
+        val b = node("b")
+
+        a.publish(replica(1))
+        assert(sequenceOf(b.findState(null, UUID, isInitialState = false)) === Some(1))
+    }
+
+    @Test def replicateOverSockets(): Unit = {
+        val idA = "127.0.0.1:" + freePort
+        val idB = "127.0.0.1:" + freePort
+        val idC = "127.0.0.1:" + freePort
+
+        val transports = List.fill(3)(new SocketStateTransport(1000, Secret, MaxLength))
+        try {
+            val a = nodeWithTransport(transports(0), idA, idB)
+            val b = nodeWithTransport(transports(1), idB)
+            val c = nodeWithTransport(transports(2), idC, idB)
+
+            // The static state is sent to b on the first replica only
+            a.publish(replica(1))
+            a.publish(replica(2, staticState = None))
+            assert(sequenceOf(b.findState(null, UUID, isInitialState = false)) === Some(2))
+
+            // c gets the state from b
+            val state = c.findState(null, UUID, isInitialState = false)
+            assert(state.staticState === "static")
+            assert(state.dynamicState === dynamicState(2))
+        } finally
+            transports foreach (_.close())
+    }
+
+    @Test def unresponsivePeerTimesOut(): Unit = {
+        // Connections to this socket are accepted by the system, but never answered
+        val silent    = new ServerSocket(0)
+        val transport = new SocketStateTransport(10000, Secret, MaxLength)
+        try {
+            val a = nodeWithTransport(transport, "127.0.0.1:" + freePort, "127.0.0.1:" + silent.getLocalPort)
+
+            // The store gives up after its own timeout, not the longer one of the transport
+            val start = System.currentTimeMillis
+            assert(a.findState(null, UUID, isInitialState = false) === null)
+            assert(System.currentTimeMillis - start < 5000)
+        } finally {
+            transport.close()
+            silent.close()
+        }
+    }
+
+    @Test def rejectUnauthenticatedPeer(): Unit = {
+        val idA = "127.0.0.1:" + freePort
+        val idB = "127.0.0.1:" + freePort
+
+        val transports = List(new SocketStateTransport(1000, "other", MaxLength), new SocketStateTransport(1000, Secret, MaxLength))
+        try {
+            val a = nodeWithTransport(transports(0), idA, idB)
+            val b = nodeWithTransport(transports(1), idB)
+
+            a.publish(replica(1))
+            assert(b.findState(null, UUID, isInitialState = false) === null)
+        } finally
+            transports foreach (_.close())
+    }
+
+    @Test def rejectOversizedMessage(): Unit = {
+        val idA = "127.0.0.1:" + freePort
+        val idB = "127.0.0.1:" + freePort
+
+        val transports = List(new SocketStateTransport(1000, Secret, MaxLength), new SocketStateTransport(1000, Secret, 1024))
+        try {
+            val a = nodeWithTransport(transports(0), idA, idB)
+            val b = nodeWithTransport(transports(1), idB)
+
+            a.publish(replica(1, staticState = Some("x" * 2048)))
+            assert(b.findState(null, UUID, isInitialState = false) === null)
+
+            a.publish(replica(2))
+            assert(sequenceOf(b.findState(null, UUID, isInitialState = false)) === Some(2))
+        } finally
+            transports foreach (_.close())
+    }
+}
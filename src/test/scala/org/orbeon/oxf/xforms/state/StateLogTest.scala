@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import java.io.{RandomAccessFile, File}
+import org.junit.Test
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.util.ScalaUtils._
+import org.scalatest.junit.AssertionsForJUnit
+import sbinary.Operations._
+
+class StateLogTest extends AssertionsForJUnit {
+
+    def withLog[T](segmentSize: Int = 1024, timeToIdle: Long = 0)(body: (File, () ⇒ StateLog) ⇒ T): T = {
+        val directory = File.createTempFile("state-log", "")
+        directory.delete()
+        directory.mkdir()
+        try body(directory, () ⇒ new StateLog(directory, segmentSize, timeToIdle))
+        finally {
+            directory.listFiles foreach (_.delete())
+            directory.delete()
+        }
+    }
+
+    def value(s: String) = s.getBytes("UTF-8")
+    def string(bytes: Option[Array[Byte]]) = bytes map (new String(_, "UTF-8"))
+
+    def segmentFiles(directory: File) =
+        directory.listFiles filter (_.getName.endsWith(".log")) sortBy (_.getName)
+
+    @Test def putAndGet(): Unit =
+        withLog() { (_, open) ⇒
+            val log = open()
+            log.put("a", value("1"))
+            log.put("b", value("2"))
+            log.put("a", value("3"))
+            assert(string(log.get("a")) === Some("3"))
+            assert(string(log.get("b")) === Some("2"))
+            assert(log.get("c") === None)
+            assert(log.size === 2)
+
+            // Records larger than a segment
+            val large = "x" * 5000
+            log.put("large", value(large))
+            assert(string(log.get("large")) === Some(large))
+            log.close()
+        }
+
+    @Test def recovery(): Unit =
+        withLog() { (directory, open) ⇒
+            val log1 = open()
+            for (i ← 1 to 100)
+                log1.put("key" + (i % 10), value("value" + i))
+            log1.close()
+
+            val log2 = open()
+            assert(log2.size === 10)
+            for (i ← 91 to 100)
+                assert(string(log2.get("key" + (i % 10))) === Some("value" + i))
+            log2.close()
+        }
+
+    @Test def corruptedRecord(): Unit =
+        withLog(segmentSize = 64 * 1024) { (directory, open) ⇒
+            val log1 = open()
+            log1.put("a", value("1"))
+            log1.put("b", value("2"))
+            log1.close()
+
+            // Damage the value of the last record, which ends at the last non-zero byte of the preallocated segment
+            val file = segmentFiles(directory).last
+            useAndClose(new RandomAccessFile(file, "rw")) { raf ⇒
+                val position = (raf.length - 1 to 0L by -1) find { i ⇒ raf.seek(i); raf.read() != 0 } get
+
+                raf.seek(position)
+                raf.write('X')
+            }
+
+            val log2 = open()
+            assert(string(log2.get("a")) === Some("1"))
+            assert(log2.get("b") === None)
+            log2.close()
+        }
+
+    @Test def compaction(): Unit =
+        withLog() { (directory, open) ⇒
+            val log = open()
+            for (i ← 1 to 200)
+                log.put("key" + (i % 5), value("value" + i))
+
+            val sizeBefore = log.diskSize
+            log.compact()
+            assert(log.diskSize < sizeBefore)
+            assert(log.size === 5)
+            for (i ← 196 to 200)
+                assert(string(log.get("key" + (i % 5))) === Some("value" + i))
+            log.close()
+
+            // Compacted segments are gone and the remaining ones recover to the same content
+            val reopened = open()
+            assert(reopened.size === 5)
+            for (i ← 196 to 200)
+                assert(string(reopened.get("key" + (i % 5))) === Some("value" + i))
+            reopened.close()
+        }
+
+    @Test def expiration(): Unit =
+        withLog(timeToIdle = 50) { (_, open) ⇒
+            val log = open()
+            log.put("a", value("1"))
+            log.put("b", value("2"))
+            Thread.sleep(100)
+            assert(log.touch("a") === false)
+            log.put("b", value("3"))
+            log.compact()
+            assert(log.size === 1)
+            assert(string(log.get("b")) === Some("3"))
+            log.close()
+        }
+
+    @Test def closeStopsLog(): Unit =
+        withLog() { (_, open) ⇒
+            val log = open()
+            log.startCompaction(10)
+            log.put("a", value("1"))
+            log.close()
+
+            assert(log.get("a") === None)
+            assert(log.touch("a") === false)
+            intercept[OXFException] {
+                log.put("b", value("2"))
+            }
+
+            // The directory is released, and the record is still there
+            val reopened = open()
+            assert(string(reopened.get("a")) === Some("1"))
+            reopened.close()
+        }
+
+    @Test def dynamicStateFormat(): Unit = {
+        val state =
+            DynamicState(
+                "uuid",
+                42,
+                Some("standalone"),
+                Some("/orbeon"),
+                None,
+                List("accept" → List("text/html", "application/xml")),
+                Nil,
+                None,
+                Some(""),
+                Seq[Byte](1, 2, 3),
+                Some("input"),
+                Seq[Byte](),
+                None,
+                Seq[Byte](4),
+                Seq[Byte](5, 6),
+                Seq[Byte](7)
+            )
+
+        val format = XFormsProtocols.DynamicStateRecordFormat
+        assert(fromByteArray(toByteArray(state)(format))(format) === state)
+        assert(fromByteArray(toByteArray(state.copy(annotatedTemplate = Some(Seq[Byte](8)))(format))(format) === state.copy(annotatedTemplate = Some(Seq[Byte](8))))
+    }
+}
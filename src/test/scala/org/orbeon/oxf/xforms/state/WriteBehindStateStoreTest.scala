@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import java.util.concurrent.Executor
+import collection.mutable
+import org.junit.Test
+import org.orbeon.oxf.pipeline.api.ExternalContext
+import org.scalatest.junit.AssertionsForJUnit
+
+class WriteBehindStateStoreTest extends AssertionsForJUnit {
+
+    // Keeps the last state written for each document and kind of state
+    class MapStore extends XFormsStateStore {
+        val written = mutable.ListBuffer[StateSnapshot]()
+
+        def storeState(snapshot: StateSnapshot, session: ExternalContext.Session) = written += snapshot
+        def findState(session: ExternalContext.Session, documentUUID: String, isInitialState: Boolean) =
+            written.reverse find (s ⇒ s.documentUUID == documentUUID && (! isInitialState || s.isInitialState)) map (_.xformsState) orNull
+
+        def getMaxSize = 0L
+        def getCurrentSize = written.size.toLong
+        def addStateCombined(staticStateUUID: String, dynamicStateUUID: String, xformsState: XFormsState, sessionId: String) = ()
+        def findStateCombined(staticStateUUID: String, dynamicStateUUID: String) = null
+    }
+
+    // Runs tasks when asked to, so tests can observe states not written yet
+    class ManualExecutor extends Executor {
+        val tasks = mutable.Queue[Runnable]()
+        def execute(runnable: Runnable) = tasks += runnable
+        def runAll() = while (tasks.nonEmpty) tasks.dequeue().run()
+    }
+
+    def snapshot(uuid: String, sequence: Long, isInitialState: Boolean = false) =
+        StateSnapshot(
+            uuid,
+            isInitialState,
+            "digest",
+            "static",
+            DynamicState(uuid, sequence, None, None, None, Nil, Nil, None, None, Seq(), None, Seq(), None, Seq(), Seq(), Seq())
+        )
+
+    def sequenceOf(state: XFormsState) = Option(state) map (_.dynamicState.sequence)
+
+    @Test def coalesceUpdates(): Unit = {
+        val underlying = new MapStore
+        val executor   = new ManualExecutor
+        val store      = new WriteBehindStateStore(underlying, executor)
+
+        store.storeState(snapshot("a", 1, isInitialState = true), null)
+        for (sequence ← 2 to 5)
+            store.storeState(snapshot("a", sequence), null)
+        store.storeState(snapshot("b", 1), null)
+
+        // Nothing written yet, but the latest states are visible
+        assert(underlying.written.isEmpty)
+        assert(sequenceOf(store.findState(null, "a", isInitialState = false)) === Some(5))
+        assert(sequenceOf(store.findState(null, "a", isInitialState = true)) === Some(1))
+        assert(store.pendingCount === 3)
+
+        // One write per document and kind of state, initial state first
+        executor.runAll()
+        assert(underlying.written.toList map (s ⇒ (s.documentUUID, s.dynamicState.sequence)) === List("a" → 1, "a" → 5, "b" → 1))
+        assert(store.pendingCount === 0)
+        assert(sequenceOf(store.findState(null, "a", isInitialState = false)) === Some(5))
+    }
+
+    @Test def initialStateOnly(): Unit = {
+        val store = new WriteBehindStateStore(new MapStore, new ManualExecutor)
+
+        store.storeState(snapshot("a", 1, isInitialState = true), null)
+        assert(sequenceOf(store.findState(null, "a", isInitialState = false)) === Some(1))
+        assert(store.findState(null, "b", isInitialState = false) === null)
+    }
+
+    @Test def updateDuringWrite(): Unit = {
+        val executor = new ManualExecutor
+        lazy val store: WriteBehindStateStore = new WriteBehindStateStore(underlying, executor)
+
+        // A newer state comes in while the first one is being written
+        lazy val underlying: MapStore = new MapStore {
+            override def storeState(snapshot: StateSnapshot, session: ExternalContext.Session) = {
+                super.storeState(snapshot, session)
+                if (snapshot.dynamicState.sequence == 1)
+                    store.storeState(WriteBehindStateStoreTest.this.snapshot("a", 2), null)
+            }
+        }
+
+        store.storeState(snapshot("a", 1), null)
+        executor.runAll()
+
+        assert(underlying.written.toList map (_.dynamicState.sequence) === List(1, 2))
+        assert(store.pendingCount === 0)
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xml
+
+import collection.mutable.ListBuffer
+import org.junit.Test
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.xml.ElementHandlerController.{HandlerFactory, HandlerTable, Matcher}
+import org.orbeon.scaxon.XML
+import org.scalatest.junit.AssertionsForJUnit
+import org.xml.sax.Attributes
+
+class ElementHandlerControllerTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    val NS = "urn:test"
+
+    // Replace each handled element with an element named after the handler
+    def factory(name: String) = new HandlerFactory {
+        def newHandler() = new ElementHandler {
+            def isRepeating  = false
+            def isForwarding = true
+
+            def output = getContext.asInstanceOf[ElementHandlerController].getOutput
+
+            override def start(uri: String, localname: String, qName: String, attributes: Attributes) =
+                output.startElement("", name, name, SAXUtils.EMPTY_ATTRIBUTES)
+
+            override def end(uri: String, localname: String, qName: String) =
+                output.endElement("", name, name)
+        }
+    }
+
+    def kindMatcher(kind: String) = new Matcher[AnyRef] {
+        def `match`(attributes: Attributes, handlerContext: AnyRef) =
+            if (attributes.getValue("kind") == kind) java.lang.Boolean.TRUE else null
+    }
+
+    val table =
+        new HandlerTable.Builder()
+            .registerHandler(factory("special"), NS, "foo", kindMatcher("special"))
+            .registerHandler(factory("foo"), NS, "foo", null)
+            .registerHandler(factory("any"), NS, null, kindMatcher("any"))
+            .build()
+
+    // Run the document through a controller and return the names of the resulting elements
+    def process(table: HandlerTable)(register: ElementHandlerController ⇒ Unit = _ ⇒ ()) = {
+
+        val names = ListBuffer[String]()
+
+        val controller = new ElementHandlerController
+        controller.registerHandlers(table)
+        register(controller)
+        controller.setElementHandlerContext(controller)
+        controller.setOutput(new DeferredXMLReceiverImpl(new XMLReceiverAdapter {
+            override def startElement(uri: String, localname: String, qName: String, attributes: Attributes) =
+                names += localname
+        }))
+
+        XML.elemToSAX(
+            <root xmlns:t="urn:test">
+                <t:foo kind="special"/>
+                <t:foo/>
+                <t:bar kind="any"/>
+                <t:bar/>
+                <other/>
+            </root>,
+            controller
+        )
+
+        names.toList
+    }
+
+    @Test def dispatch(): Unit =
+        assert(process(table)() === List("root", "special", "foo", "any", "bar", "other"))
+
+    @Test def sharedTableIsNotModified(): Unit = {
+        assert(process(table)(_.registerHandler(factory("baz"), NS, "bar", null)) === List("root", "special", "foo", "any", "baz", "other"))
+        assert(process(table)() === List("root", "special", "foo", "any", "bar", "other"))
+        assert(table.hasHandler(NS, "foo"))
+        assert(! table.hasHandler(NS, "bar"))
+    }
+
+    @Test def registrationOrder(): Unit = {
+        // Handlers registered on the controller after the table come after the handlers of the table
+        assert(process(table)(_.registerHandler(factory("last"), NS, "foo", null)) === List("root", "special", "foo", "any", "bar", "other"))
+        // Handlers registered on the controller before the table come first
+        val before = new HandlerTable.Builder().registerHandler(factory("first"), NS, "foo", null).build()
+        assert(process(before)(_.registerHandlers(table)) === List("root", "first", "first", "any", "bar", "other"))
+    }
+}
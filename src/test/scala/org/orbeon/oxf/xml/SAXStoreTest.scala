@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2014 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xml
+
+import java.io.{ObjectInputStream, ByteArrayInputStream, ObjectOutputStream, ByteArrayOutputStream}
+import org.junit.Test
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils
+import org.scalatest.junit.AssertionsForJUnit
+import org.xml.sax.{Locator, Attributes}
+
+class SAXStoreTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    // Enough rows to fill several pages of each buffer
+    def rows(count: Int) =
+        (1 to count) map (i ⇒ s"""<row id="r$i"><name>value $i</name><!-- comment $i --></row>""") mkString
+            ("<rows>", "\n", "</rows>")
+
+    def record(xml: String, store: SAXStore, systemId: String = null) = {
+        XMLParsing.stringToSAX(xml, systemId, store, XMLParsing.ParserConfiguration.PLAIN, true)
+        store
+    }
+
+    def serialized(store: SAXStore) = Dom4jUtils.domToString(store.getDocument)
+
+    @Test def spillToDisk(): Unit = {
+        val xml = rows(50000)
+
+        val inMemory = record(xml, new SAXStore(0))
+        val spilled  = record(xml, new SAXStore(256 * 1024))
+
+        assert(inMemory.getSpilledPages === 0)
+        assert(spilled.getSpilledPages > 0)
+        assert(serialized(spilled) === serialized(inMemory))
+        assert(spilled.getApproximateSize === inMemory.getApproximateSize)
+    }
+
+    @Test def externalize(): Unit = {
+        val store = record(rows(20000), new SAXStore(256 * 1024))
+
+        val bytes = new ByteArrayOutputStream
+        val out = new ObjectOutputStream(bytes)
+        out.writeObject(store)
+        out.close()
+
+        val copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray)).readObject().asInstanceOf[SAXStore]
+        assert(serialized(copy) === serialized(store))
+    }
+
+    @Test def systemIds(): Unit = {
+        val store = new SAXStore
+        record("<a><b/></a>", store, "oxf:/a.xml")
+        record("<c/>", store, "oxf:/c.xml")
+
+        val systemIds = collection.mutable.ListBuffer[String]()
+        store.replay(new XMLReceiverAdapter {
+            var locator: Locator = _
+            override def setDocumentLocator(locator: Locator): Unit = this.locator = locator
+            override def startElement(uri: String, localname: String, qName: String, attributes: Attributes): Unit =
+                systemIds += qName + " " + locator.getSystemId
+        })
+
+        assert(systemIds === List("a oxf:/a.xml", "b oxf:/a.xml", "c oxf:/c.xml"))
+    }
+}